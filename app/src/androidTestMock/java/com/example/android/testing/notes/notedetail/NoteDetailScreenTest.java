@@ -18,7 +18,7 @@ package com.example.android.testing.notes.notedetail;
 
 import com.example.android.testing.notes.R;
 import com.example.android.testing.notes.data.FakeNotesServiceApiImpl;
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.NoteSnapshot;
 
 import org.junit.After;
 import org.junit.Before;
@@ -56,9 +56,10 @@ public class NoteDetailScreenTest {
     private static String NOTE_IMAGE = "file:///android_asset/atsl-logo.png";
 
     /**
-     * {@link Note} stub that is added to the fake service API layer.
+     * {@link NoteSnapshot} stub that is added to the fake service API layer.
      */
-    private static Note NOTE = new Note(NOTE_TITLE, NOTE_DESCRIPTION, NOTE_IMAGE);
+    private static NoteSnapshot NOTE = new NoteSnapshot("ATSL_NOTE_ID", NOTE_TITLE,
+            NOTE_DESCRIPTION, NOTE_IMAGE, NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP);
 
     /**
      * {@link ActivityTestRule} is a JUnit {@link Rule @Rule} to launch your activity under test.
@@ -24,6 +24,7 @@ import com.bumptech.glide.request.target.GlideDrawableImageViewTarget;
 import com.example.android.testing.notes.Injection;
 import com.example.android.testing.notes.R;
 import com.example.android.testing.notes.util.EspressoIdlingResource;
+import com.example.android.testing.notes.util.Schedulers;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -76,8 +77,9 @@ public class AddNoteFragment extends Fragment implements AddNoteContract.View {
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
-        mActionListener = new AddNotePresenter(Injection.provideNotesRepository(), this,
-                Injection.provideImageFile());
+        mActionListener = new AddNotePresenter(
+                Injection.provideNotesRepository(getContext()), this,
+                Injection.provideImageFile(), Schedulers.getDefault());
 
         FloatingActionButton fab =
                 (FloatingActionButton) getActivity().findViewById(R.id.fab_add_notes);
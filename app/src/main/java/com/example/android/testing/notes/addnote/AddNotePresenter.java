@@ -16,9 +16,12 @@
 
 package com.example.android.testing.notes.addnote;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.NoteSnapshot;
 import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.util.EspressoIdlingResource;
 import com.example.android.testing.notes.util.ImageFile;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.TaskScheduler;
 
 import android.support.annotation.NonNull;
 
@@ -40,23 +43,52 @@ public class AddNotePresenter implements AddNoteContract.UserActionsListener {
     private final AddNoteContract.View mAddNoteView;
     @NonNull
     private final ImageFile mImageFile;
+    @NonNull
+    private final Schedulers mSchedulers;
 
     public AddNotePresenter(@NonNull NotesRepository notesRepository,
                             @NonNull AddNoteContract.View addNoteView,
                             @NonNull ImageFile imageFile) {
+        this(notesRepository, addNoteView, imageFile, Schedulers.immediate());
+    }
+
+    /**
+     * Creates a presenter that checks the image file on the IO scheduler of {@code schedulers}
+     * and updates the UI on its main scheduler.
+     */
+    public AddNotePresenter(@NonNull NotesRepository notesRepository,
+                            @NonNull AddNoteContract.View addNoteView,
+                            @NonNull ImageFile imageFile,
+                            @NonNull Schedulers schedulers) {
         mNotesRepository = checkNotNull(notesRepository);
         mAddNoteView = checkNotNull(addNoteView);
         addNoteView.setUserActionListener(this);
         mImageFile = imageFile;
+        mSchedulers = checkNotNull(schedulers);
     }
 
     @Override
-    public void saveNote(String title, String description) {
-        String imageUrl = null;
-        if (mImageFile.exists()) {
-            imageUrl = mImageFile.getPath();
-        }
-        Note newNote = new Note(title, description, imageUrl);
+    public void saveNote(final String title, final String description) {
+        // The image file is checked on another thread, make sure Espresso knows that the app is
+        // busy until the UI is updated.
+        EspressoIdlingResource.increment(); // App is busy until further notice
+
+        mSchedulers.io().execute(TaskScheduler.Priority.HIGH, new Runnable() {
+            @Override
+            public void run() {
+                final String imageUrl = mImageFile.exists() ? mImageFile.getPath() : null;
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        saveNote(NoteSnapshot.create(title, description, imageUrl));
+                    }
+                });
+            }
+        });
+    }
+
+    private void saveNote(NoteSnapshot newNote) {
         if (newNote.isEmpty()) {
             mAddNoteView.showEmptyNoteError();
         } else {
@@ -75,11 +107,25 @@ public class AddNotePresenter implements AddNoteContract.UserActionsListener {
 
     @Override
     public void imageAvailable() {
-        if (mImageFile.exists()) {
-            mAddNoteView.showImagePreview(mImageFile.getPath());
-        } else {
-            imageCaptureFailed();
-        }
+        EspressoIdlingResource.increment(); // App is busy until further notice
+
+        mSchedulers.io().execute(TaskScheduler.Priority.HIGH, new Runnable() {
+            @Override
+            public void run() {
+                final boolean exists = mImageFile.exists();
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        if (exists) {
+                            mAddNoteView.showImagePreview(mImageFile.getPath());
+                        } else {
+                            imageCaptureFailed();
+                        }
+                    }
+                });
+            }
+        });
     }
 
     @Override
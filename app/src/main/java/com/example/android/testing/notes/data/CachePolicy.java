@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+/**
+ * How a {@link NotesRepository} read uses the notes it has cached.
+ */
+public enum CachePolicy {
+
+    /**
+     * Serve cached data if there is any, otherwise load it from the service API. This is what
+     * reads without an explicit policy do.
+     */
+    CACHE_ELSE_NETWORK,
+
+    /**
+     * Only serve cached data, the callback receives null if nothing is cached.
+     */
+    CACHE_ONLY,
+
+    /**
+     * Always load from the service API, the result still updates the cache.
+     */
+    NETWORK_ONLY,
+
+    /**
+     * Serve cached data right away and then load fresh data from the service API, which is
+     * delivered to the same callback a second time. Without cached data the callback is only
+     * invoked once.
+     */
+    CACHE_THEN_NETWORK
+}
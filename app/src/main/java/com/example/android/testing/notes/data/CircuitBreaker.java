@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.support.annotation.NonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Stops calls to a backend that keeps failing, so callers fail fast instead of waiting for
+ * timeouts and piling up retries while it is down.
+ * <p>
+ * The breaker opens after a number of failures in a row. While it is open every call is rejected,
+ * once the open time is over a single trial call is let through: if it succeeds the breaker
+ * closes, if it fails the breaker stays open for another round.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+
+        /**
+         * Calls go through.
+         */
+        CLOSED,
+
+        /**
+         * Calls are rejected.
+         */
+        OPEN,
+
+        /**
+         * A trial call is let through to find out whether the backend is back.
+         */
+        HALF_OPEN
+    }
+
+    private final TaskScheduler mClock;
+
+    private final int mFailureThreshold;
+
+    private final long mOpenMillis;
+
+    private State mState = State.CLOSED;
+
+    private int mConsecutiveFailures;
+
+    /**
+     * When the breaker opened, on {@link #mClock}.
+     */
+    private long mOpenedAt;
+
+    private boolean mTrialInFlight;
+
+    private long mRejectedCount;
+
+    /**
+     * @param clock            tells how long the breaker has been open.
+     * @param failureThreshold the number of failures in a row that open the breaker.
+     * @param openMillis       how long calls are rejected before a trial call is let through.
+     */
+    public CircuitBreaker(@NonNull TaskScheduler clock, int failureThreshold, long openMillis) {
+        checkArgument(failureThreshold > 0, "failureThreshold must be positive");
+        checkArgument(openMillis > 0, "openMillis must be positive");
+        mClock = checkNotNull(clock);
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Returns whether a call may go through. Every call that was let through must report back
+     * with {@link #onSuccess()} or {@link #onFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (mClock.now() - mOpenedAt >= mOpenMillis) {
+                    mState = State.HALF_OPEN;
+                    mTrialInFlight = true;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                if (!mTrialInFlight) {
+                    mTrialInFlight = true;
+                    return true;
+                }
+                break;
+        }
+        mRejectedCount++;
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        if (mState == State.OPEN) {
+            // A call from before the breaker opened, the trial call decides when it closes.
+            return;
+        }
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mTrialInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN
+                || (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold)) {
+            mState = State.OPEN;
+            mOpenedAt = mClock.now();
+            mTrialInFlight = false;
+        }
+    }
+
+    @NonNull
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return the number of calls that were rejected because the breaker was open.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+}
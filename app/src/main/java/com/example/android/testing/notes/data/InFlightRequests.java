@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps track of the callbacks waiting for in-flight requests, so concurrent calls for the same key
+ * share a single request instead of each starting their own.
+ *
+ * @param <K> key identifying a request
+ * @param <C> type of the callbacks waiting for it
+ */
+final class InFlightRequests<K, C> {
+
+    private final Map<K, List<C>> mWaitingCallbacks = new HashMap<>();
+
+    private long mCoalescedCount;
+
+    /**
+     * Registers a callback for the request with the given key.
+     *
+     * @return true if no request for the key is in flight yet and the caller has to start one,
+     * false if the callback was attached to the pending request.
+     */
+    synchronized boolean register(@NonNull K key, @NonNull C callback) {
+        List<C> callbacks = mWaitingCallbacks.get(checkNotNull(key));
+        if (callbacks != null) {
+            callbacks.add(checkNotNull(callback));
+            mCoalescedCount++;
+            return false;
+        }
+        callbacks = new ArrayList<>(1);
+        callbacks.add(checkNotNull(callback));
+        mWaitingCallbacks.put(key, callbacks);
+        return true;
+    }
+
+    /**
+     * Marks the request with the given key as done.
+     *
+     * @return the callbacks that were waiting for it, in the order they were registered.
+     */
+    synchronized List<C> complete(@NonNull K key) {
+        List<C> callbacks = mWaitingCallbacks.remove(checkNotNull(key));
+        return callbacks == null ? Collections.<C>emptyList() : callbacks;
+    }
+
+    /**
+     * @return the number of calls that were served by another call's request.
+     */
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
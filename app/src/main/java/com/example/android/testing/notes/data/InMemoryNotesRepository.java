@@ -18,64 +18,1095 @@ package com.example.android.testing.notes.data;
 
 import com.google.common.collect.ImmutableList;
 
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.SerialExecutor;
+import com.example.android.testing.notes.util.TaskScheduler;
+
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Concrete implementation to load notes from the a data source.
+ * Concrete implementation to load notes from the a data source. Notes are cached in memory after
+ * the first successful load and writes go through to both the cache and the service API, so the
+ * service API is only hit again after {@link #refreshData()} marks the cache as dirty. With a
+ * {@link NoteOutbox} writes are queued there instead and written in order once the backend can
+ * be reached.
  */
 public class InMemoryNotesRepository implements NotesRepository {
 
+    private static final String ALL_NOTES = "ALL_NOTES";
+
     private final NotesServiceApi mNotesServiceApi;
 
+    /**
+     * This method has reduced visibility for testing and is only visible to tests in the same
+     * package.
+     */
+    @VisibleForTesting
+    List<NoteSnapshot> mCachedNotes;
+
+    @VisibleForTesting
+    final NoteCache mNoteCache;
+
+    @VisibleForTesting
+    boolean mCacheIsDirty;
+
+    /**
+     * The pages loaded so far, in {@link PageRequest#KEYSET_ORDER}. Pages are only fetched when
+     * they are requested and each one continues where the previous one stopped.
+     */
+    @VisibleForTesting
+    final List<NoteSnapshot> mPagedNotes = new ArrayList<>();
+
+    @VisibleForTesting
+    boolean mAllPagesLoaded;
+
+    /**
+     * Latest modification time of any note loaded from the service API, the next sync only asks
+     * for notes changed after it.
+     */
+    @VisibleForTesting
+    long mHighWaterMark = NoteSnapshot.NO_TIMESTAMP;
+
+    /**
+     * Indexes over all notes, built when they are loaded and kept up to date with every write.
+     * Only touched by tasks of {@link #mIndexExecutor}.
+     */
+    private NoteIndexes mIndexes = new NoteIndexes();
+
+    /**
+     * Builds, updates and queries {@link #mIndexes} on the compute scheduler, in the order the
+     * main scheduler asked for it, so a query sees every write made before it without blocking
+     * the main scheduler.
+     */
+    private final SerialExecutor mIndexExecutor;
+
+    /**
+     * Set while the indexes over newly loaded notes are built.
+     */
+    private boolean mBuildingIndexes;
+
+    /**
+     * Keeps the loaded pages across app starts, null if they are only kept in memory.
+     */
+    @Nullable
+    private final NoteListSnapshotFile mSnapshotFile;
+
+    /**
+     * Page requests made while the pages stored in {@link #mSnapshotFile} are read, answered once
+     * they are restored. Null while no pages are read.
+     */
+    @Nullable
+    private List<Runnable> mWaitingForRestore;
+
+    /**
+     * Set if the pages being read are out of date before they are restored.
+     */
+    private boolean mRestoredPagesStale;
+
+    /**
+     * Delivers writes and synced changes to the loaded pages. Loading pages and
+     * {@link #refreshData()} don't emit changes, observers load the notes again for those.
+     */
+    private final NotesChangeDispatcher mChangeDispatcher;
+
+    private long mLastSequenceNumber;
+
+    /**
+     * The state of the repository is only touched on the main scheduler.
+     */
+    private final Schedulers mSchedulers;
+
+    private final InFlightRequests<String, LoadNotesCallback> mInFlightNotes =
+            new InFlightRequests<>();
+
+    private final InFlightRequests<PageRequest, LoadNotesPageCallback> mInFlightPages =
+            new InFlightRequests<>();
+
+    private final InFlightRequests<String, GetNoteCallback> mInFlightNoteIds =
+            new InFlightRequests<>();
+
+    /**
+     * Queues the writes until they are written, null if they go straight to the service API.
+     */
+    @Nullable
+    private final NoteOutbox mOutbox;
+
+    private final List<SyncStateObserver> mSyncStateObservers = new ArrayList<>();
+
     public InMemoryNotesRepository(@NonNull NotesServiceApi notesServiceApi) {
+        this(notesServiceApi, new NoteCache());
+    }
+
+    public InMemoryNotesRepository(@NonNull NotesServiceApi notesServiceApi,
+                                   @NonNull NoteCache noteCache) {
+        this(notesServiceApi, noteCache, null);
+    }
+
+    public InMemoryNotesRepository(@NonNull NotesServiceApi notesServiceApi,
+                                   @NonNull NoteCache noteCache,
+                                   @Nullable NoteListSnapshotFile snapshotFile) {
+        this(notesServiceApi, noteCache, snapshotFile, NotesChangeDispatcher.IMMEDIATE);
+    }
+
+    /**
+     * Creates a repository that starts out with the pages stored in {@code snapshotFile}, read on
+     * the io scheduler, and stores the loaded pages there after every load. Changes are delivered
+     * to observers in batches, one per frame of {@code frameScheduler}.
+     */
+    public InMemoryNotesRepository(@NonNull NotesServiceApi notesServiceApi,
+                                   @NonNull NoteCache noteCache,
+                                   @Nullable NoteListSnapshotFile snapshotFile,
+                                   @NonNull NotesChangeDispatcher.FrameScheduler frameScheduler) {
+        this(notesServiceApi, noteCache, snapshotFile, frameScheduler, Schedulers.immediate());
+    }
+
+    /**
+     * Creates a repository like
+     * {@link #InMemoryNotesRepository(NotesServiceApi, NoteCache, NoteListSnapshotFile,
+     * NotesChangeDispatcher.FrameScheduler)} that handles the responses of the service API on
+     * the main scheduler of {@code schedulers}, whichever thread the service API calls back on.
+     * The indexes over all notes are built on the compute scheduler.
+     */
+    public InMemoryNotesRepository(@NonNull NotesServiceApi notesServiceApi,
+                                   @NonNull NoteCache noteCache,
+                                   @Nullable NoteListSnapshotFile snapshotFile,
+                                   @NonNull NotesChangeDispatcher.FrameScheduler frameScheduler,
+                                   @NonNull Schedulers schedulers) {
+        this(notesServiceApi, noteCache, snapshotFile, frameScheduler, schedulers, null);
+    }
+
+    /**
+     * Creates a repository like
+     * {@link #InMemoryNotesRepository(NotesServiceApi, NoteCache, NoteListSnapshotFile,
+     * NotesChangeDispatcher.FrameScheduler, Schedulers)} that queues saves and deletes in
+     * {@code outbox}, which must be used on the main scheduler of {@code schedulers}.
+     */
+    public InMemoryNotesRepository(@NonNull NotesServiceApi notesServiceApi,
+                                   @NonNull NoteCache noteCache,
+                                   @Nullable NoteListSnapshotFile snapshotFile,
+                                   @NonNull NotesChangeDispatcher.FrameScheduler frameScheduler,
+                                   @NonNull Schedulers schedulers,
+                                   @Nullable NoteOutbox outbox) {
         mNotesServiceApi = checkNotNull(notesServiceApi);
+        mNoteCache = checkNotNull(noteCache);
+        mSnapshotFile = snapshotFile;
+        mChangeDispatcher = new NotesChangeDispatcher(frameScheduler);
+        mSchedulers = checkNotNull(schedulers);
+        mIndexExecutor = new SerialExecutor(schedulers.compute(), TaskScheduler.Priority.HIGH);
+        mOutbox = outbox;
+        if (snapshotFile != null) {
+            readStoredPages(snapshotFile);
+        }
+        if (outbox != null) {
+            outbox.addListener(new NoteOutbox.Listener() {
+                @Override
+                public void onSyncStatesChanged(@NonNull Map<String, SyncState> syncStates) {
+                    for (SyncStateObserver observer : new ArrayList<>(mSyncStateObservers)) {
+                        observer.onSyncStatesChanged(syncStates);
+                    }
+                }
+
+                @Override
+                public void onNoteCreated(@NonNull NoteMutation create,
+                                          @NonNull NoteSnapshot created) {
+                    replaceNewNote(create, created);
+                }
+            });
+        }
     }
 
     @Override
-    public void getNotes(@NonNull final LoadNotesCallback callback) {
+    public NotesRequest getNotes(@NonNull LoadNotesCallback callback) {
         checkNotNull(callback);
+        NotesRequest request = newRequest();
+        loadNotes(deliverTo(request, callback));
+        return request;
+    }
+
+    private void loadNotes(LoadNotesCallback callback) {
+        if (mCachedNotes != null && !mCacheIsDirty && !mBuildingIndexes) {
+            callback.onNotesLoaded(mCachedNotes);
+            return;
+        }
+        if (!mInFlightNotes.register(ALL_NOTES, callback)) {
+            // Served by the request that is already in flight.
+            return;
+        }
         // Load from API only if needed.
-        mNotesServiceApi.getAllNotes(new NotesServiceApi.NotesServiceCallback<List<Note>>() {
+        mNotesServiceApi.getAllNotes(onMainThread(
+                new NotesServiceApi.NotesServiceCallback<List<NoteSnapshot>>() {
+                    @Override
+                    public void onLoaded(List<NoteSnapshot> notes) {
+                        cacheNotes(notes);
+                        // The callers are answered once the notes are indexed.
+                        buildIndexes(mCachedNotes);
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        for (LoadNotesCallback waiting : mInFlightNotes.complete(ALL_NOTES)) {
+                            waiting.onDataNotAvailable();
+                        }
+                    }
+                }));
+    }
+
+    @Override
+    public NotesRequest getNotesPage(@NonNull PageRequest request,
+                                     @NonNull LoadNotesPageCallback callback) {
+        return getNotesPage(request, CachePolicy.CACHE_ELSE_NETWORK, callback);
+    }
+
+    @Override
+    public NotesRequest getNotesPage(@NonNull final PageRequest request,
+                                     @NonNull final CachePolicy cachePolicy,
+                                     @NonNull final LoadNotesPageCallback callback) {
+        checkNotNull(request);
+        checkNotNull(cachePolicy);
+        checkNotNull(callback);
+        final NotesRequest notesRequest = newRequest();
+        if (mWaitingForRestore != null && cachePolicy != CachePolicy.NETWORK_ONLY) {
+            // The restored pages may serve the request.
+            mWaitingForRestore.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (!notesRequest.isCancelled()) {
+                        getNotesPage(request, cachePolicy, notesRequest, callback);
+                    }
+                }
+            });
+            return notesRequest;
+        }
+        getNotesPage(request, cachePolicy, notesRequest, callback);
+        return notesRequest;
+    }
+
+    private void getNotesPage(PageRequest request, CachePolicy cachePolicy,
+                              NotesRequest notesRequest, LoadNotesPageCallback callback) {
+        NotesPage cachedPage = cachePolicy == CachePolicy.NETWORK_ONLY
+                ? null : getCachedPage(request);
+        if (cachedPage != null || cachePolicy == CachePolicy.CACHE_ONLY) {
+            if (cachePolicy != CachePolicy.CACHE_THEN_NETWORK) {
+                notesRequest.finish();
+                callback.onNotesPageLoaded(cachedPage);
+                return;
+            }
+            callback.onNotesPageLoaded(cachedPage);
+        }
+        loadPage(request, deliverTo(notesRequest, callback));
+    }
+
+    private void loadPage(final PageRequest request, LoadNotesPageCallback callback) {
+        if (!mInFlightPages.register(request, callback)) {
+            return;
+        }
+        mNotesServiceApi.getNotesPage(request, onMainThread(
+                new NotesServiceApi.NotesServiceCallback<NotesPage>() {
+                    @Override
+                    public void onLoaded(NotesPage page) {
+                        cachePage(request, page);
+                        storePages();
+                        for (LoadNotesPageCallback waiting : mInFlightPages.complete(request)) {
+                            waiting.onNotesPageLoaded(page);
+                        }
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        for (LoadNotesPageCallback waiting : mInFlightPages.complete(request)) {
+                            waiting.onDataNotAvailable();
+                        }
+                    }
+                }));
+    }
+
+    @Nullable
+    private NotesPage getCachedPage(PageRequest request) {
+        if (!continuesLoadedNote(request)) {
+            return null;
+        }
+        int start = firstIndexAfterCursor(request);
+        int end = start + request.getPageSize();
+        if (end < mPagedNotes.size()) {
+            List<NoteSnapshot> notes = mPagedNotes.subList(start, end);
+            return new NotesPage(notes, PageRequest.after(notes.get(notes.size() - 1),
+                    request.getPageSize()), true);
+        }
+        if (mAllPagesLoaded) {
+            return new NotesPage(mPagedNotes.subList(start, mPagedNotes.size()), null, true);
+        }
+        return null;
+    }
+
+    private void cachePage(PageRequest request, NotesPage page) {
+        for (NoteSnapshot note : page.getNotes()) {
+            mNoteCache.put(note);
+            raiseHighWaterMark(note.getUpdatedAt());
+        }
+        if (!continuesLoadedNote(request)) {
+            // Pages can only be chained, anything else would leave gaps in the loaded pages.
+            return;
+        }
+        int start = firstIndexAfterCursor(request);
+        mPagedNotes.subList(start, mPagedNotes.size()).clear();
+        mPagedNotes.addAll(page.getNotes());
+        mAllPagesLoaded = page.isLastPage();
+    }
+
+    /**
+     * @return true if the request starts at the beginning or right after one of the loaded notes.
+     */
+    private boolean continuesLoadedNote(PageRequest request) {
+        if (request.isFirstPage()) {
+            return true;
+        }
+        int index = firstIndexAfterCursor(request);
+        return index > 0 && request.getAfterId().equals(mPagedNotes.get(index - 1).getId());
+    }
+
+    /**
+     * @return the index of the first loaded note that comes after the cursor of the request.
+     */
+    private int firstIndexAfterCursor(PageRequest request) {
+        int low = 0;
+        int high = mPagedNotes.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (request.isAfterCursor(mPagedNotes.get(mid))) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void saveNote(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        writeSave(note);
+        mNoteCache.put(note);
+        savePagedNote(note);
+        if (note.getId() != null) {
+            // New notes are indexed once they come back from the backend with an id.
+            indexNote(note);
+        }
+        if (mCachedNotes == null) {
+            // Nothing has been loaded yet, the next getNotes() call will pick the note up.
+            return;
+        }
+        List<NoteSnapshot> notes = new ArrayList<>(mCachedNotes.size() + 1);
+        for (NoteSnapshot cachedNote : mCachedNotes) {
+            if (!isSameNote(cachedNote, note)) {
+                notes.add(cachedNote);
+            }
+        }
+        notes.add(note);
+        mCachedNotes = ImmutableList.copyOf(notes);
+    }
+
+    @Override
+    public NotesRequest getNote(@NonNull String noteId, @NonNull GetNoteCallback callback) {
+        return getNote(noteId, CachePolicy.CACHE_ELSE_NETWORK, callback);
+    }
+
+    @Override
+    public NotesRequest getNote(@NonNull String noteId, @NonNull CachePolicy cachePolicy,
+                                @NonNull GetNoteCallback callback) {
+        checkNotNull(noteId);
+        checkNotNull(cachePolicy);
+        checkNotNull(callback);
+        NotesRequest request = newRequest();
+        NoteSnapshot cachedNote = cachePolicy == CachePolicy.NETWORK_ONLY
+                ? null : mNoteCache.get(noteId);
+        if (cachedNote != null || cachePolicy == CachePolicy.CACHE_ONLY) {
+            if (cachePolicy != CachePolicy.CACHE_THEN_NETWORK) {
+                request.finish();
+                callback.onNoteLoaded(cachedNote);
+                return request;
+            }
+            callback.onNoteLoaded(cachedNote);
+        }
+        loadNote(noteId, deliverTo(request, callback));
+        return request;
+    }
+
+    private void loadNote(final String noteId, GetNoteCallback callback) {
+        if (!mInFlightNoteIds.register(noteId, callback)) {
+            return;
+        }
+        // Notes missing from the cache or expired are loaded directly from the API.
+        mNotesServiceApi.getNote(noteId, onMainThread(
+                new NotesServiceApi.NotesServiceCallback<NoteSnapshot>() {
+                    @Override
+                    public void onLoaded(NoteSnapshot note) {
+                        if (note != null) {
+                            mNoteCache.put(note);
+                        }
+                        for (GetNoteCallback waiting : mInFlightNoteIds.complete(noteId)) {
+                            waiting.onNoteLoaded(note);
+                        }
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        for (GetNoteCallback waiting : mInFlightNoteIds.complete(noteId)) {
+                            waiting.onDataNotAvailable();
+                        }
+                    }
+                }));
+    }
+
+    /**
+     * @return the number of calls that were answered by a request another call already started.
+     */
+    public long getCoalescedCallCount() {
+        return mInFlightNotes.getCoalescedCount() + mInFlightPages.getCoalescedCount()
+                + mInFlightNoteIds.getCoalescedCount();
+    }
+
+    @Override
+    public void refreshData() {
+        mRestoredPagesStale = mWaitingForRestore != null;
+        mCacheIsDirty = true;
+        mHighWaterMark = NoteSnapshot.NO_TIMESTAMP;
+        mNoteCache.clear();
+        mPagedNotes.clear();
+        mAllPagesLoaded = false;
+    }
+
+    @Override
+    public NotesRequest syncNotes(@NonNull SyncNotesCallback callback) {
+        checkNotNull(callback);
+        NotesRequest request = newRequest();
+        syncChanges(request, callback);
+        return request;
+    }
+
+    private void syncChanges(final NotesRequest request, final SyncNotesCallback callback) {
+        if (mHighWaterMark == NoteSnapshot.NO_TIMESTAMP) {
+            refreshData();
+            request.finish();
+            callback.onNotesSynced();
+            return;
+        }
+        mNotesServiceApi.getNotesChangedSince(mHighWaterMark, onMainThread(
+                new NotesServiceApi.NotesServiceCallback<NotesDelta>() {
+                    @Override
+                    public void onLoaded(NotesDelta delta) {
+                        mergeDelta(delta);
+                        // A cancelled sync stops after this batch, the next one picks up from
+                        // the changes merged so far.
+                        if (delta.hasMoreChanges() && !request.isCancelled()) {
+                            syncChanges(request, callback);
+                            return;
+                        }
+                        storePages();
+                        if (request.isPending()) {
+                            request.finish();
+                            callback.onNotesSynced();
+                        }
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        // Keep the batches merged so far, the next sync continues after them.
+                        storePages();
+                        if (request.isPending()) {
+                            request.finish();
+                            callback.onDataNotAvailable();
+                        }
+                    }
+                }));
+    }
+
+    private NotesRequest newRequest() {
+        return new NotesRequest(++mLastSequenceNumber);
+    }
+
+    private static LoadNotesCallback deliverTo(final NotesRequest request,
+                                               final LoadNotesCallback callback) {
+        return new LoadNotesCallback() {
+            @Override
+            public void onNotesLoaded(List<NoteSnapshot> notes) {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onNotesLoaded(notes);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onDataNotAvailable();
+                }
+            }
+        };
+    }
+
+    private static LoadNotesPageCallback deliverTo(final NotesRequest request,
+                                                   final LoadNotesPageCallback callback) {
+        return new LoadNotesPageCallback() {
+            @Override
+            public void onNotesPageLoaded(NotesPage page) {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onNotesPageLoaded(page);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onDataNotAvailable();
+                }
+            }
+        };
+    }
+
+    private static GetNoteCallback deliverTo(final NotesRequest request,
+                                             final GetNoteCallback callback) {
+        return new GetNoteCallback() {
+            @Override
+            public void onNoteLoaded(NoteSnapshot note) {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onNoteLoaded(note);
+                }
+            }
+
             @Override
-            public void onLoaded(List<Note> notes) {
-                callback.onNotesLoaded(notes);
+            public void onDataNotAvailable() {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onDataNotAvailable();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a callback that hands the response to {@code callback} on the main scheduler, so
+     * the repository and its callers are only ever touched from one thread.
+     */
+    private <T> NotesServiceApi.NotesServiceCallback<T> onMainThread(
+            final NotesServiceApi.NotesServiceCallback<T> callback) {
+        return new NotesServiceApi.NotesServiceCallback<T>() {
+            @Override
+            public void onLoaded(final T response) {
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(response);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(@NonNull final Exception error) {
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onError(error);
+                    }
+                });
+            }
+        };
+    }
+
+    private void mergeDelta(NotesDelta delta) {
+        raiseHighWaterMark(delta.getHighWaterMark());
+        if (delta.isEmpty()) {
+            return;
+        }
+        Set<String> changedIds = new HashSet<>(delta.getDeletedNoteIds());
+        for (NoteSnapshot note : delta.getChangedNotes()) {
+            changedIds.add(note.getId());
+        }
+        for (String deletedId : delta.getDeletedNoteIds()) {
+            mNoteCache.remove(deletedId);
+            unindexNote(deletedId);
+        }
+        for (NoteSnapshot note : delta.getChangedNotes()) {
+            mNoteCache.put(note);
+            indexNote(note);
+        }
+
+        if (mCachedNotes != null) {
+            List<NoteSnapshot> notes = new ArrayList<>(mCachedNotes.size());
+            for (NoteSnapshot cachedNote : mCachedNotes) {
+                if (!changedIds.contains(cachedNote.getId())) {
+                    notes.add(cachedNote);
+                }
+            }
+            notes.addAll(delta.getChangedNotes());
+            mCachedNotes = ImmutableList.copyOf(notes);
+        }
+
+        for (String deletedId : delta.getDeletedNoteIds()) {
+            removePagedNote(deletedId);
+        }
+        for (NoteSnapshot note : delta.getChangedNotes()) {
+            putPagedNote(note);
+        }
+    }
+
+    /**
+     * Replaces the new note of {@code create} with the note the outbox wrote for it. While it was
+     * offline, the note may have been loaded under the key of its create.
+     */
+    private void replaceNewNote(NoteMutation create, NoteSnapshot created) {
+        NoteSnapshot newNote = create.getNote();
+        String storedId = create.getIdempotencyKey();
+        mNoteCache.remove(storedId);
+        mNoteCache.put(created);
+        unindexNote(storedId);
+        indexNote(created);
+        if (mCachedNotes != null) {
+            List<NoteSnapshot> notes = new ArrayList<>(mCachedNotes.size() + 1);
+            for (NoteSnapshot cachedNote : mCachedNotes) {
+                if (cachedNote != newNote && !storedId.equals(cachedNote.getId())
+                        && !isSameNote(cachedNote, created)) {
+                    notes.add(cachedNote);
+                }
+            }
+            notes.add(created);
+            mCachedNotes = ImmutableList.copyOf(notes);
+        }
+        removePagedNote(storedId);
+        putPagedNote(created);
+    }
+
+    /**
+     * Puts {@code note} into the loaded pages at the position of its creation time.
+     */
+    private void putPagedNote(NoteSnapshot note) {
+        // The creation time never changes, so a changed note keeps its position.
+        int index = Collections.binarySearch(mPagedNotes, note, PageRequest.KEYSET_ORDER);
+        if (index >= 0) {
+            mPagedNotes.set(index, note);
+            mChangeDispatcher.dispatch(NotesChange.updated(note, index));
+            return;
+        }
+        int insertionPoint = -index - 1;
+        // Notes beyond the loaded pages are picked up when their page is loaded.
+        if (insertionPoint < mPagedNotes.size() || mAllPagesLoaded) {
+            mPagedNotes.add(insertionPoint, note);
+            mChangeDispatcher.dispatch(NotesChange.inserted(note, insertionPoint));
+        }
+    }
+
+    private void readStoredPages(final NoteListSnapshotFile snapshotFile) {
+        mWaitingForRestore = new ArrayList<>();
+        mSchedulers.io().execute(TaskScheduler.Priority.HIGH, new Runnable() {
+            @Override
+            public void run() {
+                final NotesPage storedPages = snapshotFile.read();
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStoredPagesRead(storedPages);
+                    }
+                });
             }
         });
     }
 
+    private void onStoredPagesRead(@Nullable NotesPage storedPages) {
+        List<Runnable> waiting = mWaitingForRestore;
+        mWaitingForRestore = null;
+        // Pages loaded meanwhile are newer than the stored ones.
+        if (!mRestoredPagesStale && mPagedNotes.isEmpty()) {
+            restorePages(storedPages);
+        }
+        for (Runnable request : waiting) {
+            request.run();
+        }
+    }
+
+    private void restorePages(@Nullable NotesPage storedPages) {
+        if (storedPages == null) {
+            return;
+        }
+        for (NoteSnapshot note : storedPages.getNotes()) {
+            raiseHighWaterMark(note.getUpdatedAt());
+        }
+        mPagedNotes.addAll(storedPages.getNotes());
+        mAllPagesLoaded = storedPages.isLastPage();
+    }
+
+    private void storePages() {
+        if (mSnapshotFile != null && !mPagedNotes.isEmpty()) {
+            mSnapshotFile.write(mPagedNotes, mAllPagesLoaded);
+        }
+    }
+
+    private void raiseHighWaterMark(long updatedAt) {
+        mHighWaterMark = Math.max(mHighWaterMark, updatedAt);
+    }
+
     @Override
-    public void saveNote(@NonNull Note note) {
+    public void deleteNote(@NonNull NoteSnapshot note) {
         checkNotNull(note);
+        writeDelete(note);
+        if (note.getId() != null) {
+            mNoteCache.remove(note.getId());
+            unindexNote(note.getId());
+            removePagedNote(note.getId());
+        }
+        if (mCachedNotes == null) {
+            return;
+        }
+        List<NoteSnapshot> notes = new ArrayList<>(mCachedNotes.size());
+        for (NoteSnapshot cachedNote : mCachedNotes) {
+            if (!isSameNote(cachedNote, note)) {
+                notes.add(cachedNote);
+            }
+        }
+        mCachedNotes = ImmutableList.copyOf(notes);
+    }
+
+    private void writeSave(NoteSnapshot note) {
+        if (mOutbox != null) {
+            mOutbox.enqueueSave(note);
+            return;
+        }
         mNotesServiceApi.saveNote(note);
-        refreshData();
+    }
+
+    private void writeDelete(NoteSnapshot note) {
+        if (mOutbox != null) {
+            // Also drops or follows the create of a note that has no id yet.
+            mOutbox.enqueueDelete(note);
+            return;
+        }
+        mNotesServiceApi.deleteNote(note);
+    }
+
+    private void savePagedNote(NoteSnapshot note) {
+        for (int i = 0; i < mPagedNotes.size(); i++) {
+            if (isSameNote(mPagedNotes.get(i), note)) {
+                mPagedNotes.set(i, note);
+                mChangeDispatcher.dispatch(NotesChange.updated(note, i));
+                return;
+            }
+        }
+        // New notes only get their id and creation time from the backend. The outbox hands them
+        // over once they are written, otherwise the last page has to be loaded again to pick
+        // them up in the right position.
+        if (mOutbox == null) {
+            mAllPagesLoaded = false;
+        }
+        mChangeDispatcher.dispatch(NotesChange.inserted(note, NotesChange.NO_POSITION));
+    }
+
+    private void removePagedNote(String noteId) {
+        for (int i = 0; i < mPagedNotes.size(); i++) {
+            NoteSnapshot pagedNote = mPagedNotes.get(i);
+            if (noteId.equals(pagedNote.getId())) {
+                mPagedNotes.remove(i);
+                mChangeDispatcher.dispatch(NotesChange.removed(pagedNote, i));
+                return;
+            }
+        }
     }
 
     @Override
-    public void getNote(@NonNull final String noteId, @NonNull final GetNoteCallback callback) {
-        checkNotNull(noteId);
+    public void subscribe(@NonNull NotesObserver observer) {
+        mChangeDispatcher.subscribe(observer);
+    }
+
+    @Override
+    public void unsubscribe(@NonNull NotesObserver observer) {
+        mChangeDispatcher.unsubscribe(observer);
+    }
+
+    @Override
+    public void subscribeToSyncStates(@NonNull SyncStateObserver observer) {
+        mSyncStateObservers.add(checkNotNull(observer));
+        observer.onSyncStatesChanged(mOutbox == null
+                ? Collections.<String, SyncState>emptyMap() : mOutbox.getSyncStates());
+    }
+
+    @Override
+    public void unsubscribeFromSyncStates(@NonNull SyncStateObserver observer) {
+        mSyncStateObservers.remove(checkNotNull(observer));
+    }
+
+    @Override
+    public void retryPendingWrites() {
+        if (mOutbox != null) {
+            mOutbox.replayNow();
+        }
+    }
+
+    @Override
+    public void retrySync(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (mOutbox != null) {
+            mOutbox.retryDeadLetters(note);
+        }
+    }
+
+    @Override
+    public void discardUnsyncedChanges(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (mOutbox != null) {
+            mOutbox.discardDeadLetters(note);
+            // The cached notes still have the changes that were dropped.
+            refreshData();
+        }
+    }
+
+    /**
+     * @return the outbox the writes are queued in, null if they go straight to the service API.
+     */
+    @Nullable
+    public NoteOutbox getOutbox() {
+        return mOutbox;
+    }
+
+    @Override
+    public NotesRequest search(@NonNull final String query, final int limit,
+                               @NonNull SearchNotesCallback callback) {
+        checkNotNull(query);
         checkNotNull(callback);
-        // Load notes matching the id always directly from the API.
-        mNotesServiceApi.getNote(noteId, new NotesServiceApi.NotesServiceCallback<Note>() {
+        return queryIndexes(new IndexQuery() {
             @Override
-            public void onLoaded(Note note) {
-                callback.onNoteLoaded(note);
+            public List<NoteSnapshot> run() {
+                return mIndexes.mSearchIndex.search(query, limit);
             }
-        });
+        }, found(callback));
     }
 
     @Override
-    public void refreshData() {
+    public NotesRequest filter(@NonNull final String prefix, final int limit,
+                               @NonNull SearchNotesCallback callback) {
+        checkNotNull(prefix);
+        checkNotNull(callback);
+        return queryIndexes(new IndexQuery() {
+            @Override
+            public List<NoteSnapshot> run() {
+                return mIndexes.mPrefixIndex.find(prefix, limit);
+            }
+        }, found(callback));
     }
 
     @Override
-    public void deleteNote(@NonNull Note note) {
-        mNotesServiceApi.deleteNote(note);
+    public NotesRequest getNewestNotes(final int limit,
+                                       @NonNull LoadNotesCallback callback) {
+        checkNotNull(callback);
+        return queryIndexes(new IndexQuery() {
+            @Override
+            public List<NoteSnapshot> run() {
+                return mIndexes.mCreatedAtIndex.newest(limit);
+            }
+        }, callback);
     }
 
+    @Override
+    public NotesRequest getNotesCreatedBetween(final long from, final long to,
+                                               final boolean newestFirst,
+                                               @NonNull LoadNotesCallback callback) {
+        checkNotNull(callback);
+        return queryIndexes(new IndexQuery() {
+            @Override
+            public List<NoteSnapshot> run() {
+                return mIndexes.mCreatedAtIndex.between(from, to, newestFirst);
+            }
+        }, callback);
+    }
+
+    @Override
+    public NotesRequest getRecentlyUpdatedNotes(final int limit,
+                                                @NonNull LoadNotesCallback callback) {
+        checkNotNull(callback);
+        return queryIndexes(new IndexQuery() {
+            @Override
+            public List<NoteSnapshot> run() {
+                return mIndexes.mUpdatedAtIndex.newest(limit);
+            }
+        }, callback);
+    }
+
+    /**
+     * A query against the indexes over all notes.
+     */
+    private interface IndexQuery {
+
+        List<NoteSnapshot> run();
+    }
+
+    /**
+     * Runs {@code query} on the compute scheduler once all notes are loaded and hands its result
+     * to {@code callback} on the main scheduler. A query whose request is cancelled before it
+     * runs, like one superseded by the next keystroke, is dropped.
+     */
+    private NotesRequest queryIndexes(final IndexQuery query,
+                                      final LoadNotesCallback callback) {
+        final NotesRequest request = newRequest();
+        // The indexes cover all notes, so they have to be loaded before they can be queried.
+        loadNotes(new LoadNotesCallback() {
+            @Override
+            public void onNotesLoaded(List<NoteSnapshot> notes) {
+                if (request.isPending()) {
+                    runQuery(query, request, callback);
+                }
+            }
 
+            @Override
+            public void onDataNotAvailable() {
+                if (request.isPending()) {
+                    request.finish();
+                    callback.onDataNotAvailable();
+                }
+            }
+        });
+        return request;
+    }
+
+    private void runQuery(final IndexQuery query, final NotesRequest request,
+                          final LoadNotesCallback callback) {
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isPending()) {
+                    return;
+                }
+                final List<NoteSnapshot> results = query.run();
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request.isPending()) {
+                            request.finish();
+                            callback.onNotesLoaded(results);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static LoadNotesCallback found(final SearchNotesCallback callback) {
+        return new LoadNotesCallback() {
+            @Override
+            public void onNotesLoaded(List<NoteSnapshot> notes) {
+                callback.onNotesFound(notes);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        };
+    }
+
+    private void indexNote(final NoteSnapshot note) {
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mIndexes.put(note);
+            }
+        });
+    }
+
+    private void unindexNote(final String noteId) {
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mIndexes.remove(noteId);
+            }
+        });
+    }
+
+    private void cacheNotes(List<NoteSnapshot> notes) {
+        mCachedNotes = ImmutableList.copyOf(notes);
+        for (NoteSnapshot note : mCachedNotes) {
+            mNoteCache.put(note);
+            raiseHighWaterMark(note.getUpdatedAt());
+        }
+        mCacheIsDirty = false;
+    }
+
+    /**
+     * Replaces the indexes with ones over {@code notes} on the compute scheduler, then answers
+     * the callers waiting for all notes on the main scheduler. Writes made meanwhile are applied
+     * to the new indexes once they are built.
+     */
+    private void buildIndexes(final List<NoteSnapshot> notes) {
+        mBuildingIndexes = true;
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                NoteIndexes indexes = new NoteIndexes();
+                for (NoteSnapshot note : notes) {
+                    if (note.getId() != null) {
+                        indexes.put(note);
+                    }
+                }
+                mIndexes = indexes;
+                mSchedulers.main().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onIndexesBuilt();
+                    }
+                });
+            }
+        });
+    }
+
+    private void onIndexesBuilt() {
+        mBuildingIndexes = false;
+        for (LoadNotesCallback waiting : mInFlightNotes.complete(ALL_NOTES)) {
+            waiting.onNotesLoaded(mCachedNotes);
+        }
+    }
+
+    private static boolean isSameNote(NoteSnapshot first, NoteSnapshot second) {
+        return first == second
+                || (first.getId() != null && first.getId().equals(second.getId()));
+    }
+
+    /**
+     * The indexes over all notes, not thread safe.
+     */
+    private static final class NoteIndexes {
+
+        final NoteSearchIndex mSearchIndex = new NoteSearchIndex();
+
+        final NotePrefixIndex mPrefixIndex = new NotePrefixIndex();
+
+        final NoteTimeIndex mCreatedAtIndex =
+                new NoteTimeIndex(NoteTimeIndex.Timestamp.CREATED_AT);
+
+        final NoteTimeIndex mUpdatedAtIndex =
+                new NoteTimeIndex(NoteTimeIndex.Timestamp.UPDATED_AT);
+
+        void put(NoteSnapshot note) {
+            mSearchIndex.put(note);
+            mPrefixIndex.put(note);
+            mCreatedAtIndex.put(note);
+            mUpdatedAtIndex.put(note);
+        }
+
+        void remove(String noteId) {
+            mSearchIndex.remove(noteId);
+            mPrefixIndex.remove(noteId);
+            mCreatedAtIndex.remove(noteId);
+            mUpdatedAtIndex.remove(noteId);
+        }
+    }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+
+import com.example.android.testing.notes.util.LogHistogram;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Wraps a {@link NotesServiceApi} and records how long each of its methods takes, from the call
+ * until the callback, how often it succeeded or failed and how many bytes it handed over. The
+ * numbers can be written to a file or logcat at any time.
+ * <p>
+ * Recording only costs a few atomic increments, calls that complete with a callback allocate the
+ * callback that stops their clock.
+ */
+public class InstrumentedNotesServiceApi implements NotesServiceApi {
+
+    /**
+     * What was recorded for one method.
+     */
+    public static final class MethodStats {
+
+        private final LogHistogram mLatencyNanos = new LogHistogram();
+
+        private final LogHistogram mPayloadBytes = new LogHistogram();
+
+        private final AtomicLong mSuccessCount = new AtomicLong();
+
+        private final AtomicLong mErrorCount = new AtomicLong();
+
+        private MethodStats() {
+        }
+
+        @NonNull
+        public LogHistogram.Snapshot getLatencyNanos() {
+            return mLatencyNanos.snapshot();
+        }
+
+        /**
+         * The estimated size of the notes passed to or returned by the method.
+         */
+        @NonNull
+        public LogHistogram.Snapshot getPayloadBytes() {
+            return mPayloadBytes.snapshot();
+        }
+
+        public long getSuccessCount() {
+            return mSuccessCount.get();
+        }
+
+        public long getErrorCount() {
+            return mErrorCount.get();
+        }
+    }
+
+    private static final Method[] METHODS = Method.values();
+
+    private final NotesServiceApi mDelegate;
+
+    private final Ticker mTicker;
+
+    private final MethodStats[] mStats = new MethodStats[METHODS.length];
+
+    public InstrumentedNotesServiceApi(@NonNull NotesServiceApi delegate) {
+        this(delegate, Ticker.systemTicker());
+    }
+
+    public InstrumentedNotesServiceApi(@NonNull NotesServiceApi delegate, @NonNull Ticker ticker) {
+        mDelegate = checkNotNull(delegate);
+        mTicker = checkNotNull(ticker);
+        for (int i = 0; i < mStats.length; i++) {
+            mStats[i] = new MethodStats();
+        }
+    }
+
+    @Override
+    public void getAllNotes(NotesServiceCallback<List<NoteSnapshot>> callback) {
+        long start = mTicker.read();
+        try {
+            mDelegate.getAllNotes(measure(Method.GET_ALL_NOTES, start, callback));
+        } catch (RuntimeException e) {
+            recordError(Method.GET_ALL_NOTES, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void getNotesPage(PageRequest request, NotesServiceCallback<NotesPage> callback) {
+        long start = mTicker.read();
+        try {
+            mDelegate.getNotesPage(request, measure(Method.GET_NOTES_PAGE, start, callback));
+        } catch (RuntimeException e) {
+            recordError(Method.GET_NOTES_PAGE, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void getNotesChangedSince(long updatedAfter,
+                                     NotesServiceCallback<NotesDelta> callback) {
+        long start = mTicker.read();
+        try {
+            mDelegate.getNotesChangedSince(updatedAfter,
+                    measure(Method.GET_NOTES_CHANGED_SINCE, start, callback));
+        } catch (RuntimeException e) {
+            recordError(Method.GET_NOTES_CHANGED_SINCE, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void getNote(String noteId, NotesServiceCallback<NoteSnapshot> callback) {
+        long start = mTicker.read();
+        try {
+            mDelegate.getNote(noteId, measure(Method.GET_NOTE, start, callback));
+        } catch (RuntimeException e) {
+            recordError(Method.GET_NOTE, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void saveNote(NoteSnapshot note) {
+        long start = mTicker.read();
+        try {
+            mDelegate.saveNote(note);
+        } catch (RuntimeException e) {
+            recordError(Method.SAVE_NOTE, start);
+            throw e;
+        }
+        recordSuccess(Method.SAVE_NOTE, start, sizeOf(note));
+    }
+
+    @Override
+    public void deleteNote(NoteSnapshot note) {
+        long start = mTicker.read();
+        try {
+            mDelegate.deleteNote(note);
+        } catch (RuntimeException e) {
+            recordError(Method.DELETE_NOTE, start);
+            throw e;
+        }
+        recordSuccess(Method.DELETE_NOTE, start, sizeOf(note));
+    }
+
+    @Override
+    public void writeMutation(@NonNull NoteMutation mutation,
+                              @NonNull NotesServiceCallback<NoteSnapshot> callback) {
+        long start = mTicker.read();
+        try {
+            mDelegate.writeMutation(mutation, measure(Method.WRITE_MUTATION, start, callback));
+        } catch (RuntimeException e) {
+            recordError(Method.WRITE_MUTATION, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeMutations(@NonNull List<NoteMutation> mutations,
+                               @NonNull NotesServiceCallback<List<NoteSnapshot>> callback) {
+        long start = mTicker.read();
+        try {
+            mDelegate.writeMutations(mutations,
+                    measure(Method.WRITE_MUTATIONS, start, callback));
+        } catch (RuntimeException e) {
+            recordError(Method.WRITE_MUTATIONS, start);
+            throw e;
+        }
+    }
+
+    @NonNull
+    public MethodStats getStats(@NonNull Method method) {
+        return mStats[checkNotNull(method).ordinal()];
+    }
+
+    /**
+     * @return one line per method that was called, latencies in milliseconds.
+     */
+    @NonNull
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Method method : METHODS) {
+            MethodStats stats = getStats(method);
+            LogHistogram.Snapshot latency = stats.getLatencyNanos();
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            LogHistogram.Snapshot payload = stats.getPayloadBytes();
+            report.append(String.format(Locale.US,
+                    "%s ok=%d errors=%d latency_ms p50=%.1f p95=%.1f p99=%.1f p999=%.1f"
+                            + " max=%.1f payload_bytes p50=%d p95=%d max=%d\n",
+                    method, stats.getSuccessCount(), stats.getErrorCount(),
+                    millis(latency.getP50()), millis(latency.getP95()),
+                    millis(latency.getP99()), millis(latency.getP999()),
+                    millis(latency.getMax()),
+                    payload.getP50(), payload.getP95(), payload.getMax()));
+        }
+        return report.toString();
+    }
+
+    public void writeReport(@NonNull File file) throws IOException {
+        Files.write(report(), checkNotNull(file), Charsets.UTF_8);
+    }
+
+    public void logReport() {
+        for (String line : report().split("\n")) {
+            if (!line.isEmpty()) {
+                Timber.i(line);
+            }
+        }
+    }
+
+    private <T> NotesServiceCallback<T> measure(final Method method, final long start,
+                                                final NotesServiceCallback<T> callback) {
+        return new NotesServiceCallback<T>() {
+            @Override
+            public void onLoaded(T result) {
+                recordSuccess(method, start, sizeOf(result));
+                callback.onLoaded(result);
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                recordError(method, start);
+                callback.onError(error);
+            }
+        };
+    }
+
+    private void recordSuccess(Method method, long start, long payloadBytes) {
+        MethodStats stats = mStats[method.ordinal()];
+        stats.mLatencyNanos.record(Math.max(0, mTicker.read() - start));
+        stats.mPayloadBytes.record(payloadBytes);
+        stats.mSuccessCount.incrementAndGet();
+    }
+
+    private void recordError(Method method, long start) {
+        MethodStats stats = mStats[method.ordinal()];
+        stats.mLatencyNanos.record(Math.max(0, mTicker.read() - start));
+        stats.mErrorCount.incrementAndGet();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static long sizeOf(@Nullable Object payload) {
+        if (payload instanceof NoteSnapshot) {
+            return sizeOf((NoteSnapshot) payload);
+        } else if (payload instanceof NotesPage) {
+            return sizeOf(((NotesPage) payload).getNotes());
+        } else if (payload instanceof NotesDelta) {
+            NotesDelta delta = (NotesDelta) payload;
+            long size = sizeOf(delta.getChangedNotes());
+            List<String> deletedNoteIds = delta.getDeletedNoteIds();
+            for (int i = 0; i < deletedNoteIds.size(); i++) {
+                size += 2 * length(deletedNoteIds.get(i));
+            }
+            return size;
+        } else if (payload instanceof List) {
+            return sizeOf((List<?>) payload);
+        }
+        return 0;
+    }
+
+    private static long sizeOf(List<?> notes) {
+        long size = 0;
+        // Indexed so no iterator is allocated, the lists handed out are array based.
+        for (int i = 0; i < notes.size(); i++) {
+            size += sizeOf(notes.get(i));
+        }
+        return size;
+    }
+
+    /**
+     * Roughly what the note takes in memory: two bytes per char and its two timestamps.
+     */
+    private static long sizeOf(@Nullable NoteSnapshot note) {
+        if (note == null) {
+            return 0;
+        }
+        return 2 * (length(note.getId()) + length(note.getTitle())
+                + length(note.getDescription()) + length(note.getImageUrl()))
+                + 2 * Long.SIZE / Byte.SIZE;
+    }
+
+    private static long length(@Nullable String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Implementation of the {@link NotesServiceApi} that keeps notes on the device in a
+ * {@link NoteLog}. It works without a network connection and stamps notes the same way the
+ * backend does. Callbacks are invoked on the calling thread.
+ */
+public class LocalNotesServiceApiImpl implements NotesServiceApi {
+
+    private final NoteLog mNoteLog;
+
+    public LocalNotesServiceApiImpl(@NonNull NoteLog noteLog) {
+        mNoteLog = checkNotNull(noteLog);
+    }
+
+    @Override
+    public void getAllNotes(NotesServiceCallback<List<NoteSnapshot>> callback) {
+        callback.onLoaded(mNoteLog.getAll());
+    }
+
+    @Override
+    public void getNotesPage(PageRequest request, NotesServiceCallback<NotesPage> callback) {
+        // One extra note tells whether there is a next page.
+        List<NoteSnapshot> fetchedNotes = mNoteLog.getAfter(request, request.getPageSize() + 1);
+        callback.onLoaded(NotesPage.fromFetched(request, fetchedNotes));
+    }
+
+    @Override
+    public void getNotesChangedSince(long updatedAfter,
+                                     NotesServiceCallback<NotesDelta> callback) {
+        List<NoteSnapshot> changedNotes = new ArrayList<>();
+        List<String> deletedNoteIds = new ArrayList<>();
+        long highWaterMark = updatedAfter;
+        for (NoteSnapshot note : mNoteLog.getAll()) {
+            if (note.getUpdatedAt() > updatedAfter) {
+                changedNotes.add(note);
+                highWaterMark = Math.max(highWaterMark, note.getUpdatedAt());
+            }
+        }
+        for (Map.Entry<String, Long> deletedNote : mNoteLog.getDeletionTimes().entrySet()) {
+            if (deletedNote.getValue() > updatedAfter) {
+                deletedNoteIds.add(deletedNote.getKey());
+                highWaterMark = Math.max(highWaterMark, deletedNote.getValue());
+            }
+        }
+        callback.onLoaded(new NotesDelta(changedNotes, deletedNoteIds, highWaterMark, false));
+    }
+
+    @Override
+    public void getNote(String noteId, NotesServiceCallback<NoteSnapshot> callback) {
+        callback.onLoaded(mNoteLog.get(noteId));
+    }
+
+    @Override
+    public void saveNote(NoteSnapshot note) {
+        long now = System.currentTimeMillis();
+        if (note.getId() == null) {
+            note = note.withBackendState(UUID.randomUUID().toString(), now, now);
+        } else {
+            note = note.withBackendState(note.getId(), note.getCreatedAt(), now);
+        }
+        try {
+            mNoteLog.put(note);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to store note %s", note.getId());
+        }
+    }
+
+    @Override
+    public void writeMutation(@NonNull NoteMutation mutation,
+                              @NonNull NotesServiceCallback<NoteSnapshot> callback) {
+        NoteSnapshot written;
+        try {
+            written = write(mutation, System.currentTimeMillis());
+        } catch (IOException e) {
+            Timber.e(e, "Failed to write %s", mutation);
+            callback.onError(e);
+            return;
+        }
+        callback.onLoaded(written);
+    }
+
+    @Override
+    public void writeMutations(@NonNull List<NoteMutation> mutations,
+                               @NonNull NotesServiceCallback<List<NoteSnapshot>> callback) {
+        List<NoteSnapshot> written = new ArrayList<>(mutations.size());
+        long now = System.currentTimeMillis();
+        for (NoteMutation mutation : mutations) {
+            try {
+                written.add(write(mutation, now));
+            } catch (IOException e) {
+                Timber.e(e, "Failed to write %s", mutation);
+                callback.onError(e);
+                return;
+            }
+        }
+        callback.onLoaded(written);
+    }
+
+    /**
+     * New notes get the idempotency key of their mutation as id, so a create that is written again
+     * finds the note it created before.
+     *
+     * @return the note as stored, null for deletes
+     */
+    @Nullable
+    private NoteSnapshot write(NoteMutation mutation, long now) throws IOException {
+        NoteSnapshot note = mutation.getNote();
+        switch (mutation.getType()) {
+            case CREATE:
+                NoteSnapshot created = mNoteLog.get(mutation.getIdempotencyKey());
+                if (created == null) {
+                    created = note.withBackendState(mutation.getIdempotencyKey(), now, now);
+                    mNoteLog.put(created);
+                }
+                return created;
+            case UPDATE:
+                note = note.withBackendState(note.getId(), note.getCreatedAt(), now);
+                mNoteLog.put(note);
+                return note;
+            default:
+                // A note deleted before its create was answered has the id the create gave it.
+                mNoteLog.remove(note.getId() != null ? note.getId() : mutation.getCreateKey(),
+                        now);
+                return null;
+        }
+    }
+
+    @Override
+    public void deleteNote(NoteSnapshot note) {
+        if (note.getId() == null) {
+            // Never stored.
+            return;
+        }
+        try {
+            mNoteLog.remove(note.getId(), System.currentTimeMillis());
+        } catch (IOException e) {
+            Timber.e(e, "Failed to delete note %s", note.getId());
+        }
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.example.android.testing.notes.data;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.parse.ParseClassName;
 import com.parse.ParseObject;
 
+import java.util.Date;
+
 /**
- * Immutable model class for a Note.
+ * Parse model class for a Note. Only the Parse backed {@link NotesServiceApi} works with this
+ * class, everything else uses {@link NoteSnapshot}s created by {@link #toSnapshot()}.
  */
 @ParseClassName("Note")
 public final class Note extends ParseObject {
@@ -31,6 +35,18 @@ public final class Note extends ParseObject {
     private static final String DESCRIPTION = "createdDate";
     private static final String IMAGEURL = "image_url";
 
+    /**
+     * Deleted notes are kept as tombstones with this flag set, so clients that sync incrementally
+     * find out about the deletion.
+     */
+    static final String DELETED = "deleted";
+
+    /**
+     * Key of the {@link NoteMutation} that created the note, so a create that is sent again after
+     * its answer was lost finds the note instead of creating a second one.
+     */
+    static final String IDEMPOTENCY_KEY = "idempotencyKey";
+
     public Note() {
 
     }
@@ -45,6 +61,52 @@ public final class Note extends ParseObject {
             put(IMAGEURL, imageUrl);
     }
 
+    /**
+     * Creates a Parse object holding the fields of the given snapshot. Snapshots with an id
+     * refer to the existing backend object, the others create a new one when saved.
+     */
+    @NonNull
+    public static Note fromSnapshot(@NonNull NoteSnapshot snapshot) {
+        Note note = snapshot.getId() == null
+                ? new Note()
+                : ParseObject.createWithoutData(Note.class, snapshot.getId());
+        putOrRemove(note, TITLE, snapshot.getTitle());
+        putOrRemove(note, DESCRIPTION, snapshot.getDescription());
+        putOrRemove(note, IMAGEURL, snapshot.getImageUrl());
+        return note;
+    }
+
+    /**
+     * Creates the tombstone that replaces the note with the given id on the backend.
+     */
+    @NonNull
+    public static Note tombstone(@NonNull String noteId) {
+        Note note = ParseObject.createWithoutData(Note.class, noteId);
+        note.put(DELETED, true);
+        return note;
+    }
+
+    private static void putOrRemove(Note note, String key, @Nullable String value) {
+        if (value != null) {
+            note.put(key, value);
+        } else {
+            note.remove(key);
+        }
+    }
+
+    /**
+     * Copies all fields out of the Parse object in one go.
+     */
+    @NonNull
+    public NoteSnapshot toSnapshot() {
+        return new NoteSnapshot(getObjectId(), getString(TITLE), getString(DESCRIPTION),
+                getString(IMAGEURL), toMillis(getCreatedAt()), toMillis(getUpdatedAt()));
+    }
+
+    private static long toMillis(@Nullable Date date) {
+        return date == null ? NoteSnapshot.NO_TIMESTAMP : date.getTime();
+    }
+
     public String getId() {
         return getObjectId();
     }
@@ -63,6 +125,10 @@ public final class Note extends ParseObject {
     public String getImageUrl() {
         return getString(IMAGEURL);
     }
+    public boolean isDeleted() {
+        return getBoolean(DELETED);
+    }
+
     public boolean isEmpty() {
         return (getString(TITLE) == null || "".equals(getString(TITLE))) &&
                 (getString(DESCRIPTION) == null || "".equals(getString(DESCRIPTION)));
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Size-bounded, time-to-live cache of single {@link NoteSnapshot}s keyed by their id. The least
+ * recently used note is evicted once the capacity is reached and notes expire after the configured
+ * time since they were last written.
+ */
+public class NoteCache {
+
+    public static final int DEFAULT_CAPACITY = 100;
+
+    public static final long DEFAULT_EXPIRY_SECONDS = 60;
+
+    private final Cache<String, NoteSnapshot> mNotes;
+
+    public NoteCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_EXPIRY_SECONDS, TimeUnit.SECONDS, Ticker.systemTicker());
+    }
+
+    public NoteCache(int capacity, long expiry, @NonNull TimeUnit unit, @NonNull Ticker ticker) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        checkArgument(expiry > 0, "expiry must be positive");
+        mNotes = CacheBuilder.newBuilder()
+                .maximumSize(capacity)
+                .expireAfterWrite(expiry, checkNotNull(unit))
+                .ticker(checkNotNull(ticker))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the cached note or null if it is missing or has expired.
+     */
+    @Nullable
+    public NoteSnapshot get(@NonNull String noteId) {
+        return mNotes.getIfPresent(checkNotNull(noteId));
+    }
+
+    public void put(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (note.getId() != null) {
+            mNotes.put(note.getId(), note);
+        }
+    }
+
+    public void remove(@NonNull String noteId) {
+        mNotes.invalidate(checkNotNull(noteId));
+    }
+
+    public void clear() {
+        mNotes.invalidateAll();
+    }
+
+    public long size() {
+        return mNotes.size();
+    }
+
+    public long getHitCount() {
+        return stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return stats().evictionCount();
+    }
+
+    private CacheStats stats() {
+        return mNotes.stats();
+    }
+}
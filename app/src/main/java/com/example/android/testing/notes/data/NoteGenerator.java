@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * Made-up notes in production quantities for benchmarks, scroll tests and memory profiling. The
+ * notes are generated one at a time as they are needed, nothing is kept in memory, and each note
+ * only depends on the seed and its index: the same seed always gives the same notes and any note
+ * can be generated without the ones before it.
+ * <p>
+ * The notes look like real ones: most titles are a few words long, descriptions range from
+ * nothing to a few pages with most of them a paragraph long, a fifth of the notes have an image
+ * and about a third were edited after they were created. Notes are generated in
+ * {@link PageRequest#KEYSET_ORDER}, created in bursts over the configured time span.
+ */
+public final class NoteGenerator implements Iterable<NoteSnapshot> {
+
+    public static final int SMALL = 1000;
+
+    public static final int MEDIUM = 10000;
+
+    public static final int LARGE = 100000;
+
+    /**
+     * A fixed end of the creation dates, so the notes don't depend on when they are generated.
+     */
+    public static final long DEFAULT_END_TIME = 1451606400000L; // 2016-01-01T00:00:00Z
+
+    public static final long DEFAULT_SPAN_MILLIS = TimeUnit.DAYS.toMillis(3 * 365);
+
+    private static final String[] WORDS = {
+            "the", "a", "to", "and", "of", "for", "in", "on", "with", "at", "is", "it", "this",
+            "that", "be", "not", "from", "by", "up", "out", "call", "meeting", "notes", "todo",
+            "buy", "milk", "coffee", "espresso", "idea", "project", "review", "testing", "unit",
+            "android", "release", "bug", "fix", "design", "shopping", "list", "book", "trip",
+            "flight", "hotel", "dinner", "birthday", "gift", "recipe", "workout", "plan", "week",
+            "tomorrow", "monday", "friday", "remember", "check", "send", "email", "draft", "read",
+            "repository", "presenter", "fragment", "adapter", "cache", "offline", "sync"
+    };
+
+    private static final int IMAGE_PERCENT = 20;
+
+    private static final int EDITED_PERCENT = 30;
+
+    private static final int EMPTY_TITLE_PERCENT = 5;
+
+    private static final int EMPTY_DESCRIPTION_PERCENT = 10;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long mSeed;
+
+    private final int mCount;
+
+    private final long mStartTime;
+
+    private final long mSpanMillis;
+
+    public NoteGenerator(long seed, int count) {
+        this(seed, count, DEFAULT_END_TIME, DEFAULT_SPAN_MILLIS);
+    }
+
+    /**
+     * @param endTime    no note is created after this time.
+     * @param spanMillis the notes are created over this long a time before {@code endTime}.
+     */
+    public NoteGenerator(long seed, int count, long endTime, long spanMillis) {
+        checkArgument(count >= 0, "count cannot be negative");
+        checkArgument(spanMillis > 0, "spanMillis must be positive");
+        mSeed = seed;
+        mCount = count;
+        mStartTime = endTime - spanMillis;
+        mSpanMillis = spanMillis;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Generates the note at {@code index}, the same one every time.
+     */
+    @NonNull
+    public NoteSnapshot get(int index) {
+        checkElementIndex(index, mCount);
+        Random random = new Random(mSeed, index);
+        String id = String.format(Locale.US, "%016x%016x", random.nextLong(), random.nextLong());
+        String title = random.nextInt(100) < EMPTY_TITLE_PERCENT
+                ? "" : capitalize(words(random, 1 + geometric(random, 0.35, 11)));
+        String description = random.nextInt(100) < EMPTY_DESCRIPTION_PERCENT
+                ? "" : sentences(random, logNormal(random, 25, 1.0, 2000));
+        String imageUrl = random.nextInt(100) < IMAGE_PERCENT
+                ? "https://example.com/images/" + id + ".jpg" : null;
+        long createdAt = createdAt(index, random);
+        long updatedAt = random.nextInt(100) < EDITED_PERCENT
+                ? createdAt + (long) (-Math.log(1 - random.nextDouble())
+                * TimeUnit.DAYS.toMillis(7)) : createdAt;
+        return new NoteSnapshot(id, title, description, imageUrl, createdAt, updatedAt);
+    }
+
+    @Override
+    public Iterator<NoteSnapshot> iterator() {
+        return new Iterator<NoteSnapshot>() {
+
+            private int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mCount;
+            }
+
+            @Override
+            public NoteSnapshot next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(mNext++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Notes are spread evenly over the time span with some jitter, which comes out as bursts of
+     * notes with quiet times in between. Each note gets its own millisecond, so they stay in
+     * order of their index.
+     */
+    private long createdAt(int index, Random random) {
+        double slot = (double) mSpanMillis / Math.max(1, mCount);
+        double jitter = slot > 1 ? random.nextDouble() * (slot - 1) : 0;
+        return mStartTime + (long) (index * slot + jitter);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(word(random));
+        }
+        return text.toString();
+    }
+
+    private static String sentences(Random random, int wordCount) {
+        StringBuilder text = new StringBuilder();
+        int written = 0;
+        while (written < wordCount) {
+            int length = Math.min(wordCount - written, 4 + random.nextInt(12));
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(capitalize(words(random, length))).append('.');
+            written += length;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Common words come up more often than rare ones, roughly like in real text.
+     */
+    private static String word(Random random) {
+        double uniform = random.nextDouble();
+        return WORDS[(int) (uniform * uniform * WORDS.length)];
+    }
+
+    private static String capitalize(String text) {
+        if (text.isEmpty()) {
+            return text;
+        }
+        return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+    }
+
+    private static int geometric(Random random, double p, int max) {
+        int count = 0;
+        while (count < max && random.nextDouble() > p) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int logNormal(Random random, double median, double sigma, int max) {
+        double value = median * Math.exp(sigma * random.nextGaussian());
+        return (int) Math.max(1, Math.min(max, Math.round(value)));
+    }
+
+    /**
+     * SplitMix64 seeded by the generator seed and the note index, so every note gets its own
+     * independent numbers without a generator object per note set.
+     */
+    private static final class Random {
+
+        private long mState;
+
+        private double mNextGaussian = Double.NaN;
+
+        Random(long seed, int index) {
+            mState = mix(seed) + index * GOLDEN_GAMMA;
+        }
+
+        long nextLong() {
+            mState += GOLDEN_GAMMA;
+            return mix(mState);
+        }
+
+        int nextInt(int bound) {
+            return (int) ((nextLong() >>> 33) % bound);
+        }
+
+        double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        double nextGaussian() {
+            if (!Double.isNaN(mNextGaussian)) {
+                double gaussian = mNextGaussian;
+                mNextGaussian = Double.NaN;
+                return gaussian;
+            }
+            // Box-Muller, keeps the second value for the next call.
+            double radius = Math.sqrt(-2 * Math.log(1 - nextDouble()));
+            double angle = 2 * Math.PI * nextDouble();
+            mNextGaussian = radius * Math.sin(angle);
+            return radius * Math.cos(angle);
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
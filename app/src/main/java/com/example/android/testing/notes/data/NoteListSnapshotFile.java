@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.SerialExecutor;
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps a copy of the loaded notes list in a single compact file, so the list can be shown on a
+ * cold start before anything was loaded from the service API. The file is read in one go and
+ * replaced atomically on a background thread every time the list is written.
+ * <p>
+ * Format, all integers are unsigned LEB128 varints unless noted otherwise:
+ * <pre>
+ * magic (4 bytes) | version | flags | note count | notes... | CRC32 of everything before (4 bytes)
+ * note: id | title | description | image url | created at | updated at
+ * string: byte length + 1, or 0 for null | UTF-8 bytes
+ * </pre>
+ * A file with an unknown version or a bad checksum is ignored.
+ */
+public class NoteListSnapshotFile {
+
+    public static final int VERSION = 1;
+
+    /**
+     * Only the start of long lists is kept, the rest is paged in as usual.
+     */
+    public static final int DEFAULT_MAX_NOTES = 1000;
+
+    private static final int MAGIC = 0x4e4c5354; // "NLST"
+
+    /**
+     * Set if the file holds the complete list rather than its first pages.
+     */
+    private static final int FLAG_COMPLETE = 1;
+
+    private static final int CRC_BYTES = 4;
+
+    private final File mFile;
+
+    /**
+     * Writes one list at a time, so an older list can never replace a newer one.
+     */
+    private final Executor mWriteExecutor;
+
+    private final int mMaxNotes;
+
+    public NoteListSnapshotFile(@NonNull File file) {
+        this(file, Schedulers.getDefault().io(), DEFAULT_MAX_NOTES);
+    }
+
+    public NoteListSnapshotFile(@NonNull File file, @NonNull TaskScheduler writeScheduler,
+                                int maxNotes) {
+        mFile = checkNotNull(file);
+        mWriteExecutor = new SerialExecutor(writeScheduler, TaskScheduler.Priority.LOW);
+        mMaxNotes = maxNotes;
+    }
+
+    /**
+     * Reads the stored list. The page is marked as served from cache, it is the last page if the
+     * complete list was stored.
+     *
+     * @return the stored notes or null if there are none or they cannot be read.
+     */
+    @Nullable
+    public NotesPage read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try {
+            return decode(Files.toByteArray(mFile));
+        } catch (IOException e) {
+            Timber.w(e, "Ignoring unreadable notes snapshot %s", mFile);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the stored list in the background.
+     *
+     * @param notes    the list in {@link PageRequest#KEYSET_ORDER}.
+     * @param complete true if the list holds all notes rather than the first pages.
+     */
+    public void write(@NonNull List<NoteSnapshot> notes, boolean complete) {
+        checkNotNull(notes);
+        final boolean truncated = notes.size() > mMaxNotes;
+        final List<NoteSnapshot> copy = ImmutableList.copyOf(
+                truncated ? notes.subList(0, mMaxNotes) : notes);
+        final boolean completeCopy = complete && !truncated;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeAtomically(encode(copy, completeCopy));
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to write notes snapshot %s", mFile);
+                }
+            }
+        });
+    }
+
+    private void writeAtomically(byte[] bytes) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+    }
+
+    @VisibleForTesting
+    static byte[] encode(List<NoteSnapshot> notes, boolean complete) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * (notes.size() + 1));
+        ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+        out.write(magic.array(), 0, magic.capacity());
+        writeVarint(out, VERSION);
+        writeVarint(out, complete ? FLAG_COMPLETE : 0);
+        writeVarint(out, notes.size());
+        for (NoteSnapshot note : notes) {
+            writeString(out, note.getId());
+            writeString(out, note.getTitle());
+            writeString(out, note.getDescription());
+            writeString(out, note.getImageUrl());
+            writeVarint(out, note.getCreatedAt());
+            writeVarint(out, note.getUpdatedAt());
+        }
+        CRC32 crc = new CRC32();
+        byte[] bytes = out.toByteArray();
+        crc.update(bytes, 0, bytes.length);
+        ByteBuffer checksum = ByteBuffer.allocate(CRC_BYTES).putInt((int) crc.getValue());
+        out.write(checksum.array(), 0, CRC_BYTES);
+        return out.toByteArray();
+    }
+
+    @VisibleForTesting
+    static NotesPage decode(byte[] bytes) throws IOException {
+        if (bytes.length < CRC_BYTES) {
+            throw new IOException("Truncated notes snapshot");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - CRC_BYTES);
+        if ((int) crc.getValue() != buffer.getInt(bytes.length - CRC_BYTES)) {
+            throw new IOException("Corrupt notes snapshot");
+        }
+        buffer.limit(bytes.length - CRC_BYTES);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a notes snapshot");
+            }
+            long version = readVarint(buffer);
+            if (version != VERSION) {
+                throw new IOException("Unsupported notes snapshot version " + version);
+            }
+            boolean complete = (readVarint(buffer) & FLAG_COMPLETE) != 0;
+            int count = (int) readVarint(buffer);
+            List<NoteSnapshot> notes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                notes.add(new NoteSnapshot(readString(buffer), readString(buffer),
+                        readString(buffer), readString(buffer), readVarint(buffer),
+                        readVarint(buffer)));
+            }
+            PageRequest nextPage = null;
+            if (!complete && !notes.isEmpty()) {
+                nextPage = PageRequest.after(notes.get(notes.size() - 1),
+                        PageRequest.DEFAULT_PAGE_SIZE);
+            }
+            return new NotesPage(notes, nextPage, true);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated notes snapshot", e);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, @Nullable String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) throws IOException {
+        long length = readVarint(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("Truncated notes snapshot");
+        }
+        String value = new String(buffer.array(), buffer.position(), (int) length,
+                Charsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in notes snapshot");
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Persists notes in an append-only log of memory-mapped segment files. Every save and delete is
+ * appended to the newest segment and an in-memory index maps each note id to the record holding
+ * its latest version, so reads never scan the log. A second index keeps the notes in
+ * {@link PageRequest#KEYSET_ORDER}, so pages are read without sorting. Opening a log replays its
+ * segments to rebuild the indexes, a torn record at the end of a segment is ignored and
+ * overwritten by the next write. A last segment whose header was never written, because the app
+ * died right after creating it, is deleted.
+ * <p>
+ * Overwritten records are garbage until the log is compacted: the live records are copied to new
+ * segments and the old segments are deleted. This happens automatically once the garbage outweighs
+ * the live records and fills at least a segment, or on demand through {@link #compact()}.
+ * Compaction also drops the deletions that every client has synced, see
+ * {@link #setSyncHighWaterMark}.
+ * <p>
+ * Records are handed to the OS as soon as they are written to a mapped segment, so they survive
+ * the app being killed, but they are only guaranteed to survive a power loss after {@link #sync()}.
+ */
+public final class NoteLog implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    @VisibleForTesting
+    static final String SEGMENT_PREFIX = "notes-";
+
+    @VisibleForTesting
+    static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x4e4c4f47; // "NLOG"
+
+    private static final int VERSION = 1;
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    /**
+     * Every record starts with the length of its payload and the CRC32 of the payload.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_PUT = 1;
+
+    private static final byte TYPE_DELETE = 2;
+
+    private static final int NULL_STRING = -1;
+
+    private static final int INT_BYTES = 4;
+
+    private static final int LONG_BYTES = 8;
+
+    private final File mDirectory;
+
+    private final int mSegmentSize;
+
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+
+    /**
+     * Location of the latest record of every note that was not deleted, see {@link #location}.
+     */
+    private final Map<String, Long> mIndex = new HashMap<>();
+
+    /**
+     * The notes of {@link #mIndex} in {@link PageRequest#KEYSET_ORDER}.
+     */
+    private final TreeSet<SortKey> mSortedIndex = new TreeSet<>();
+
+    /**
+     * Location of the delete record of every deleted note. Deletions are kept through compactions
+     * so changes can still be reported to clients that synced before the deletion.
+     */
+    private final Map<String, Long> mTombstones = new HashMap<>();
+
+    private long mSyncHighWaterMark = NoteSnapshot.NO_TIMESTAMP;
+
+    @Nullable
+    private Segment mActiveSegment;
+
+    private long mTotalBytes;
+
+    private long mGarbageBytes;
+
+    private NoteLog(File directory, int segmentSize) {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log stored in {@code directory}, creating it if necessary.
+     */
+    @NonNull
+    public static NoteLog open(@NonNull File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @VisibleForTesting
+    static NoteLog open(File directory, int segmentSize) throws IOException {
+        checkNotNull(directory);
+        checkArgument(segmentSize > SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create note log directory " + directory);
+        }
+        NoteLog log = new NoteLog(directory, segmentSize);
+        log.replay();
+        return log;
+    }
+
+    /**
+     * Appends the latest version of a note. The note must have an id.
+     */
+    public synchronized void put(@NonNull NoteSnapshot note) throws IOException {
+        checkNotNull(note.getId(), "Only notes with an id can be stored");
+        long location = append(encodePut(note));
+        apply(note.getId(), TYPE_PUT, note.getCreatedAt(), location);
+        compactIfWasteful();
+    }
+
+    /**
+     * Appends the deletion of a note, nothing is written if the log doesn't hold the note.
+     */
+    public synchronized void remove(@NonNull String noteId, long deletedAt) throws IOException {
+        checkNotNull(noteId);
+        if (!mIndex.containsKey(noteId)) {
+            return;
+        }
+        long location = append(encodeDelete(noteId, deletedAt));
+        apply(noteId, TYPE_DELETE, NoteSnapshot.NO_TIMESTAMP, location);
+        compactIfWasteful();
+    }
+
+    @Nullable
+    public synchronized NoteSnapshot get(@NonNull String noteId) {
+        Long location = mIndex.get(checkNotNull(noteId));
+        return location == null ? null : decodePut(readPayload(location));
+    }
+
+    /**
+     * @return all notes in {@link PageRequest#KEYSET_ORDER}.
+     */
+    @NonNull
+    public synchronized List<NoteSnapshot> getAll() {
+        return read(mSortedIndex, mSortedIndex.size());
+    }
+
+    /**
+     * @return up to {@code maxNotes} notes that come after the cursor of {@code request}, in
+     * {@link PageRequest#KEYSET_ORDER}.
+     */
+    @NonNull
+    public synchronized List<NoteSnapshot> getAfter(@NonNull PageRequest request, int maxNotes) {
+        checkArgument(maxNotes >= 0);
+        if (request.isFirstPage()) {
+            return read(mSortedIndex, maxNotes);
+        }
+        SortKey cursor = new SortKey(request.getAfterCreatedAt(), request.getAfterId());
+        return read(mSortedIndex.tailSet(cursor, false), maxNotes);
+    }
+
+    /**
+     * @return the deletion time of every deleted note by id.
+     */
+    @NonNull
+    public synchronized Map<String, Long> getDeletionTimes() {
+        ImmutableMap.Builder<String, Long> deletionTimes = ImmutableMap.builder();
+        for (Map.Entry<String, Long> tombstone : mTombstones.entrySet()) {
+            deletionTimes.put(tombstone.getKey(),
+                    readDeletedAt(readPayload(tombstone.getValue())));
+        }
+        return deletionTimes.build();
+    }
+
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * @return true if no note was ever stored, or everything stored was compacted away.
+     */
+    public synchronized boolean isEmpty() {
+        return mIndex.isEmpty() && mTombstones.isEmpty();
+    }
+
+    /**
+     * Tells the log that every client has synced the changes up to {@code highWaterMark}, so the
+     * next compaction can drop the deletions made up to then. The mark only ever moves forward
+     * and is not persisted, after opening the log again all deletions are kept until it is set.
+     */
+    public synchronized void setSyncHighWaterMark(long highWaterMark) {
+        mSyncHighWaterMark = Math.max(mSyncHighWaterMark, highWaterMark);
+    }
+
+    /**
+     * Copies the live records to new segments and deletes the old ones. Deletions up to the sync
+     * high-water mark are not copied.
+     */
+    public synchronized void compact() throws IOException {
+        List<Segment> oldSegments = new ArrayList<>(mSegments.values());
+        dropSyncedTombstones();
+        // Start a new segment, the ids of the copies are higher than the ids of the old segments
+        // so a crash halfway through still replays to the same notes.
+        mActiveSegment = null;
+        copyRecords(mIndex);
+        copyRecords(mTombstones);
+        for (Segment segment : mSegments.tailMap(lastSegmentId(oldSegments), false).values()) {
+            segment.mBuffer.force();
+        }
+        for (Segment segment : oldSegments) {
+            mSegments.remove(segment.mId);
+            if (!segment.mFile.delete()) {
+                throw new IOException("Cannot delete compacted segment " + segment.mFile);
+            }
+        }
+        mTotalBytes -= mGarbageBytes;
+        mGarbageBytes = 0;
+    }
+
+    /**
+     * Flushes all written records to the storage device.
+     */
+    public synchronized void sync() {
+        for (Segment segment : mSegments.values()) {
+            segment.mBuffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+        mSegments.clear();
+        mIndex.clear();
+        mSortedIndex.clear();
+        mTombstones.clear();
+        mActiveSegment = null;
+    }
+
+    @VisibleForTesting
+    synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    @VisibleForTesting
+    synchronized long getGarbageBytes() {
+        return mGarbageBytes;
+    }
+
+    private void replay() throws IOException {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot list note log directory " + mDirectory);
+        }
+        TreeMap<Integer, File> filesById = new TreeMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            filesById.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length())), file);
+        }
+        for (Map.Entry<Integer, File> entry : filesById.entrySet()) {
+            File file = entry.getValue();
+            if (entry.getKey().equals(filesById.lastKey()) && Segment.isTorn(file)) {
+                // Created right before a crash, it holds no records yet.
+                if (!file.delete()) {
+                    throw new IOException("Cannot delete torn note log segment " + file);
+                }
+                break;
+            }
+            mSegments.put(entry.getKey(), Segment.open(entry.getKey(), file));
+        }
+        for (Segment segment : mSegments.values()) {
+            replay(segment);
+            mActiveSegment = segment;
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.mBuffer;
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer payload = slice(buffer, position + RECORD_HEADER_SIZE, length);
+            if (crc(payload) != buffer.getInt(position + INT_BYTES)) {
+                break;
+            }
+            long createdAt = payload.get(0) == TYPE_PUT
+                    ? readCreatedAt(payload) : NoteSnapshot.NO_TIMESTAMP;
+            byte type = payload.get();
+            String noteId = readString(payload);
+            mTotalBytes += RECORD_HEADER_SIZE + length;
+            apply(noteId, type, createdAt, location(segment.mId, position));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.mPosition = position;
+    }
+
+    /**
+     * Points the indexes at a new record and accounts for the records it replaces.
+     *
+     * @param createdAt the creation time of the note if the record stores one
+     */
+    private void apply(String noteId, byte type, long createdAt, long location) {
+        Long replaced = mIndex.remove(noteId);
+        if (replaced != null) {
+            mGarbageBytes += recordSize(replaced);
+            mSortedIndex.remove(new SortKey(readCreatedAt(readPayload(replaced)), noteId));
+        }
+        Long tombstone = mTombstones.remove(noteId);
+        if (tombstone != null) {
+            mGarbageBytes += recordSize(tombstone);
+        }
+        if (type == TYPE_PUT) {
+            mIndex.put(noteId, location);
+            mSortedIndex.add(new SortKey(createdAt, noteId));
+        } else {
+            mTombstones.put(noteId, location);
+        }
+    }
+
+    private List<NoteSnapshot> read(Iterable<SortKey> keys, int maxNotes) {
+        List<NoteSnapshot> notes = new ArrayList<>(Math.min(maxNotes, mIndex.size()));
+        for (SortKey key : keys) {
+            if (notes.size() == maxNotes) {
+                break;
+            }
+            notes.add(decodePut(readPayload(mIndex.get(key.mNoteId))));
+        }
+        return notes;
+    }
+
+    /**
+     * Turns the deletions up to the sync high-water mark into garbage.
+     */
+    private void dropSyncedTombstones() {
+        Iterator<Map.Entry<String, Long>> tombstones = mTombstones.entrySet().iterator();
+        while (tombstones.hasNext()) {
+            long location = tombstones.next().getValue();
+            if (readDeletedAt(readPayload(location)) <= mSyncHighWaterMark) {
+                mGarbageBytes += recordSize(location);
+                tombstones.remove();
+            }
+        }
+    }
+
+    private void compactIfWasteful() throws IOException {
+        if (mGarbageBytes >= mSegmentSize && mGarbageBytes > mTotalBytes - mGarbageBytes) {
+            compact();
+        }
+    }
+
+    private void copyRecords(Map<String, Long> locations) throws IOException {
+        for (Map.Entry<String, Long> entry : locations.entrySet()) {
+            long location = entry.getValue();
+            Segment segment = mSegments.get(segmentId(location));
+            int size = recordSize(location);
+            byte[] record = new byte[size];
+            ByteBuffer source = segment.mBuffer.duplicate();
+            source.position(offset(location));
+            source.get(record);
+            entry.setValue(write(record));
+        }
+    }
+
+    private long append(byte[] payload) throws IOException {
+        byte[] record = new byte[RECORD_HEADER_SIZE + payload.length];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(ByteBuffer.wrap(payload)));
+        buffer.put(payload);
+        mTotalBytes += record.length;
+        return write(record);
+    }
+
+    private long write(byte[] record) throws IOException {
+        if (mActiveSegment == null
+                || mActiveSegment.mPosition + record.length > mActiveSegment.mBuffer.capacity()) {
+            int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+            File file = new File(mDirectory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+            // A note that doesn't fit into a regular segment gets a segment of its own.
+            int size = Math.max(mSegmentSize, SEGMENT_HEADER_SIZE + record.length);
+            mActiveSegment = Segment.create(id, file, size);
+            mSegments.put(id, mActiveSegment);
+        }
+        ByteBuffer target = mActiveSegment.mBuffer.duplicate();
+        target.position(mActiveSegment.mPosition);
+        target.put(record);
+        long location = location(mActiveSegment.mId, mActiveSegment.mPosition);
+        mActiveSegment.mPosition += record.length;
+        return location;
+    }
+
+    private ByteBuffer readPayload(long location) {
+        ByteBuffer buffer = mSegments.get(segmentId(location)).mBuffer;
+        int offset = offset(location);
+        return slice(buffer, offset + RECORD_HEADER_SIZE, buffer.getInt(offset));
+    }
+
+    private int recordSize(long location) {
+        return RECORD_HEADER_SIZE + mSegments.get(segmentId(location)).mBuffer
+                .getInt(offset(location));
+    }
+
+    private static byte[] encodePut(NoteSnapshot note) {
+        byte[] id = encodeString(note.getId());
+        byte[] title = encodeString(note.getTitle());
+        byte[] description = encodeString(note.getDescription());
+        byte[] imageUrl = encodeString(note.getImageUrl());
+        ByteBuffer buffer = ByteBuffer.allocate(1 + stringSize(id) + stringSize(title)
+                + stringSize(description) + stringSize(imageUrl) + 2 * LONG_BYTES);
+        buffer.put(TYPE_PUT);
+        writeString(buffer, id);
+        writeString(buffer, title);
+        writeString(buffer, description);
+        writeString(buffer, imageUrl);
+        buffer.putLong(note.getCreatedAt());
+        buffer.putLong(note.getUpdatedAt());
+        return buffer.array();
+    }
+
+    private static byte[] encodeDelete(String noteId, long deletedAt) {
+        byte[] id = encodeString(noteId);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + stringSize(id) + LONG_BYTES);
+        buffer.put(TYPE_DELETE);
+        writeString(buffer, id);
+        buffer.putLong(deletedAt);
+        return buffer.array();
+    }
+
+    private static NoteSnapshot decodePut(ByteBuffer payload) {
+        payload.get(); // type
+        String id = readString(payload);
+        String title = readString(payload);
+        String description = readString(payload);
+        String imageUrl = readString(payload);
+        return new NoteSnapshot(id, title, description, imageUrl, payload.getLong(),
+                payload.getLong());
+    }
+
+    private static long readCreatedAt(ByteBuffer payload) {
+        payload = payload.duplicate();
+        payload.get(); // type
+        for (int i = 0; i < 4; i++) {
+            readString(payload); // id, title, description and image url
+        }
+        return payload.getLong();
+    }
+
+    private static long readDeletedAt(ByteBuffer payload) {
+        payload = payload.duplicate();
+        payload.get(); // type
+        readString(payload); // id
+        return payload.getLong();
+    }
+
+    @Nullable
+    private static byte[] encodeString(@Nullable String value) {
+        return value == null ? null : value.getBytes(Charsets.UTF_8);
+    }
+
+    private static int stringSize(@Nullable byte[] value) {
+        return INT_BYTES + (value == null ? 0 : value.length);
+    }
+
+    private static void writeString(ByteBuffer buffer, @Nullable byte[] value) {
+        if (value == null) {
+            buffer.putInt(NULL_STRING);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, Charsets.UTF_8);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    private static int crc(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static int lastSegmentId(List<Segment> segments) {
+        return segments.isEmpty() ? -1 : segments.get(segments.size() - 1).mId;
+    }
+
+    /**
+     * Packs the id of a segment and the offset of a record within it into a single long.
+     */
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << Integer.SIZE) | offset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> Integer.SIZE);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Orders notes like {@link PageRequest#KEYSET_ORDER} without decoding them.
+     */
+    private static final class SortKey implements Comparable<SortKey> {
+
+        final long mCreatedAt;
+
+        final String mNoteId;
+
+        SortKey(long createdAt, String noteId) {
+            mCreatedAt = createdAt;
+            mNoteId = noteId;
+        }
+
+        @Override
+        public int compareTo(@NonNull SortKey other) {
+            if (mCreatedAt != other.mCreatedAt) {
+                return mCreatedAt < other.mCreatedAt ? -1 : 1;
+            }
+            return mNoteId.compareTo(other.mNoteId);
+        }
+    }
+
+    private static final class Segment {
+
+        final int mId;
+
+        final File mFile;
+
+        final MappedByteBuffer mBuffer;
+
+        /**
+         * Offset at which the next record is written.
+         */
+        int mPosition = SEGMENT_HEADER_SIZE;
+
+        private Segment(int id, File file, MappedByteBuffer buffer) {
+            mId = id;
+            mFile = file;
+            mBuffer = buffer;
+        }
+
+        static Segment create(int id, File file, int size) throws IOException {
+            Segment segment = new Segment(id, file, map(file, size));
+            segment.mBuffer.putInt(0, MAGIC);
+            segment.mBuffer.putInt(INT_BYTES, VERSION);
+            return segment;
+        }
+
+        static Segment open(int id, File file) throws IOException {
+            MappedByteBuffer buffer = map(file, file.length());
+            if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(INT_BYTES) != VERSION) {
+                throw new IOException("Unsupported note log segment " + file);
+            }
+            return new Segment(id, file, buffer);
+        }
+
+        /**
+         * @return true if the segment was created but its header was not written completely.
+         */
+        static boolean isTorn(File file) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                if (randomAccessFile.length() < SEGMENT_HEADER_SIZE) {
+                    return true;
+                }
+                int magic = randomAccessFile.readInt();
+                int version = randomAccessFile.readInt();
+                return magic == 0 || (magic == MAGIC && version == 0);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        private static MappedByteBuffer map(File file, long size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(size);
+                // The mapping stays valid after the file is closed.
+                return randomAccessFile.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.MoreObjects;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A write that is waiting in the {@link NoteOutbox} to be sent to the backend. The idempotency key
+ * is chosen once when the write is made and sent with every attempt, so the backend can tell a
+ * retry from a new write and applies each mutation only once.
+ * <p>
+ * A note deleted while its create is being sent has no id yet, its delete carries the idempotency
+ * key of the create instead and the backend looks the note up by that key.
+ */
+public final class NoteMutation {
+
+    public enum Type {
+        CREATE,
+        UPDATE,
+        DELETE
+    }
+
+    private final long mSequenceNumber;
+
+    @NonNull
+    private final Type mType;
+
+    @NonNull
+    private final String mIdempotencyKey;
+
+    @NonNull
+    private final NoteSnapshot mNote;
+
+    @Nullable
+    private final String mCreateKey;
+
+    public NoteMutation(long sequenceNumber, @NonNull Type type, @NonNull String idempotencyKey,
+                        @NonNull NoteSnapshot note) {
+        this(sequenceNumber, type, idempotencyKey, note, null);
+    }
+
+    /**
+     * @param createKey the idempotency key of the create of the note, only for deletes of notes
+     *                  without an id.
+     */
+    public NoteMutation(long sequenceNumber, @NonNull Type type, @NonNull String idempotencyKey,
+                        @NonNull NoteSnapshot note, @Nullable String createKey) {
+        checkArgument(type == Type.CREATE || note.getId() != null
+                        || (type == Type.DELETE && createKey != null),
+                "Only new notes can be written without an id");
+        checkArgument(createKey == null || type == Type.DELETE,
+                "Only deletes follow a create");
+        mSequenceNumber = sequenceNumber;
+        mType = checkNotNull(type);
+        mIdempotencyKey = checkNotNull(idempotencyKey);
+        mNote = checkNotNull(note);
+        mCreateKey = createKey;
+    }
+
+    /**
+     * Creates the mutation that saves {@code note}, a create if it has no id yet.
+     */
+    @NonNull
+    public static NoteMutation save(long sequenceNumber, @NonNull NoteSnapshot note) {
+        Type type = note.getId() == null ? Type.CREATE : Type.UPDATE;
+        return new NoteMutation(sequenceNumber, type, UUID.randomUUID().toString(), note);
+    }
+
+    @NonNull
+    public static NoteMutation delete(long sequenceNumber, @NonNull NoteSnapshot note) {
+        return new NoteMutation(sequenceNumber, Type.DELETE, UUID.randomUUID().toString(), note);
+    }
+
+    /**
+     * Creates the mutation that deletes the note written by {@code create}, which may not have
+     * been answered yet.
+     */
+    @NonNull
+    public static NoteMutation deleteCreated(long sequenceNumber, @NonNull NoteMutation create) {
+        checkArgument(create.getType() == Type.CREATE, "%s is not a create", create);
+        return new NoteMutation(sequenceNumber, Type.DELETE, UUID.randomUUID().toString(),
+                create.getNote(), create.getIdempotencyKey());
+    }
+
+    /**
+     * @return this delete for {@code created}, the note its create has written.
+     */
+    @NonNull
+    NoteMutation withCreatedNote(@NonNull NoteSnapshot created) {
+        checkState(mCreateKey != null, "%s does not follow a create", this);
+        return new NoteMutation(mSequenceNumber, mType, mIdempotencyKey, checkNotNull(created),
+                mCreateKey);
+    }
+
+    /**
+     * @return this mutation at {@code sequenceNumber} in the outbox, with the same idempotency key.
+     */
+    @NonNull
+    NoteMutation withSequenceNumber(long sequenceNumber) {
+        return new NoteMutation(sequenceNumber, mType, mIdempotencyKey, mNote, mCreateKey);
+    }
+
+    /**
+     * @return the position of the mutation in the outbox, mutations are sent in this order.
+     */
+    public long getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    @NonNull
+    public Type getType() {
+        return mType;
+    }
+
+    @NonNull
+    public String getIdempotencyKey() {
+        return mIdempotencyKey;
+    }
+
+    @NonNull
+    public NoteSnapshot getNote() {
+        return mNote;
+    }
+
+    /**
+     * @return the id of the note, null for creates.
+     */
+    @Nullable
+    public String getNoteId() {
+        return mNote.getId();
+    }
+
+    /**
+     * @return the idempotency key of the create of the note if this deletes a note that had no id
+     * when it was deleted, null otherwise.
+     */
+    @Nullable
+    public String getCreateKey() {
+        return mCreateKey;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("sequenceNumber", mSequenceNumber)
+                .add("type", mType)
+                .add("note", mNote)
+                .add("createKey", mCreateKey)
+                .toString();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.SerialExecutor;
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Collects note writes for a short window, or until a batch is full, and hands them to a
+ * {@link Flusher} in one go. Writes are coalesced while they wait: only the last save of a note is
+ * kept and a save followed by a delete of the same note only deletes it, or is dropped altogether
+ * if the note never made it to the backend. A new note deleted after it was handed to the
+ * {@link Flusher} is deleted once the backend has assigned its id.
+ */
+public class NoteMutationQueue {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 500;
+
+    /**
+     * Parse executes at most 50 operations in a single batch request.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    /**
+     * Writes a batch of coalesced mutations to the backend. Every new note among the saves must be
+     * reported to {@link #onNoteCreated(NoteSnapshot, NoteSnapshot)} once it is written.
+     */
+    public interface Flusher {
+
+        void flush(@NonNull List<NoteSnapshot> saves, @NonNull List<NoteSnapshot> deletes);
+    }
+
+    private final Flusher mFlusher;
+
+    private final TaskScheduler mScheduler;
+
+    /**
+     * Runs the flushes of the queue one at a time, so batches reach the flusher in order.
+     */
+    private final Executor mFlushExecutor;
+
+    private final long mWindowMillis;
+
+    private final int mMaxBatchSize;
+
+    /**
+     * Pending saves and deletes of notes that have an id, in the order they were first queued.
+     */
+    private final Map<String, Mutation> mPendingById = new LinkedHashMap<>();
+
+    /**
+     * Pending saves of new notes, they don't have an id until the backend assigns one. They are
+     * told apart by instance, two new notes with the same content are still different notes.
+     */
+    private final List<NoteSnapshot> mPendingNewNotes = new ArrayList<>();
+
+    /**
+     * New notes handed to the {@link Flusher} whose id is not known yet, mapped to whether they
+     * were deleted meanwhile.
+     */
+    private final Map<NoteSnapshot, Boolean> mInFlightNewNotes = new IdentityHashMap<>();
+
+    private boolean mFlushScheduled;
+
+    /**
+     * Incremented by every flush, so a scheduled flush that was overtaken does nothing.
+     */
+    private long mFlushGeneration;
+
+    private long mCoalescedCount;
+
+    public NoteMutationQueue(@NonNull Flusher flusher) {
+        this(flusher, Schedulers.getDefault().io(), DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param scheduler runs the flushes
+     */
+    public NoteMutationQueue(@NonNull Flusher flusher, @NonNull TaskScheduler scheduler,
+                             long windowMillis, int maxBatchSize) {
+        checkArgument(windowMillis >= 0, "windowMillis cannot be negative");
+        checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        mFlusher = checkNotNull(flusher);
+        mScheduler = checkNotNull(scheduler);
+        mFlushExecutor = new SerialExecutor(scheduler, TaskScheduler.Priority.NORMAL);
+        mWindowMillis = windowMillis;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public synchronized void enqueueSave(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (note.getId() == null) {
+            mPendingNewNotes.add(note);
+        } else if (mPendingById.put(note.getId(), new Mutation(note, false)) != null) {
+            mCoalescedCount++;
+        }
+        onEnqueued();
+    }
+
+    public synchronized void enqueueDelete(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (note.getId() == null) {
+            if (removePendingNewNote(note)) {
+                // A new note deleted before it was written, neither needs to reach the backend.
+                mCoalescedCount += 2;
+            } else if (mInFlightNewNotes.containsKey(note)) {
+                // Deleted once the backend has assigned its id.
+                mInFlightNewNotes.put(note, true);
+            } else {
+                Timber.w("Cannot delete %s, it was never saved", note);
+            }
+            return;
+        }
+        if (mPendingById.put(note.getId(), new Mutation(note, true)) != null) {
+            mCoalescedCount++;
+        }
+        onEnqueued();
+    }
+
+    /**
+     * Tells the queue that {@code newNote}, handed to the {@link Flusher} without an id, was
+     * written as {@code created}. Queues its delete if it was deleted in the meantime.
+     */
+    public synchronized void onNoteCreated(@NonNull NoteSnapshot newNote,
+                                           @NonNull NoteSnapshot created) {
+        checkNotNull(newNote);
+        checkArgument(created.getId() != null, "created note has no id");
+        Boolean deleted = mInFlightNewNotes.remove(newNote);
+        if (deleted != null && deleted) {
+            enqueueDelete(created);
+        }
+    }
+
+    /**
+     * Hands all pending mutations to the {@link Flusher} right away.
+     */
+    public void flush() {
+        List<NoteSnapshot> saves;
+        List<NoteSnapshot> deletes;
+        synchronized (this) {
+            mFlushScheduled = false;
+            mFlushGeneration++;
+            if (getPendingCount() == 0) {
+                return;
+            }
+            saves = new ArrayList<>(mPendingNewNotes);
+            for (NoteSnapshot newNote : mPendingNewNotes) {
+                mInFlightNewNotes.put(newNote, false);
+            }
+            deletes = new ArrayList<>();
+            for (Mutation mutation : mPendingById.values()) {
+                (mutation.mIsDelete ? deletes : saves).add(mutation.mNote);
+            }
+            mPendingNewNotes.clear();
+            mPendingById.clear();
+        }
+        // Flush outside of the lock, the flusher is free to take its time.
+        mFlusher.flush(saves, deletes);
+    }
+
+    public synchronized int getPendingCount() {
+        return mPendingById.size() + mPendingNewNotes.size();
+    }
+
+    /**
+     * @return the number of mutations that never had to be sent because they were superseded.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private boolean removePendingNewNote(NoteSnapshot note) {
+        for (Iterator<NoteSnapshot> iterator = mPendingNewNotes.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == note) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onEnqueued() {
+        if (getPendingCount() >= mMaxBatchSize) {
+            mFlushExecutor.execute(mFlushRunnable);
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            final long generation = mFlushGeneration;
+            mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (NoteMutationQueue.this) {
+                        if (generation != mFlushGeneration) {
+                            return;
+                        }
+                    }
+                    mFlushExecutor.execute(mFlushRunnable);
+                }
+            }, mWindowMillis);
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static final class Mutation {
+
+        final NoteSnapshot mNote;
+
+        final boolean mIsDelete;
+
+        Mutation(NoteSnapshot note, boolean isDelete) {
+            mNote = note;
+            mIsDelete = isDelete;
+        }
+    }
+}
@@ -0,0 +1,1236 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import com.example.android.testing.notes.data.NotesServiceApi.NotesServiceCallback;
+import com.example.android.testing.notes.util.LogHistogram;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.SerialExecutor;
+import com.example.android.testing.notes.util.TaskScheduler;
+import com.parse.ParseException;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Queues the saves and deletes made on this device until the backend has accepted them, so they
+ * are neither lost nor reordered while the device is offline or the app is killed. Every
+ * {@link NoteMutation} is appended to a journal file and synced to the storage device before it
+ * is sent, once the backend accepted it an acknowledgement is appended. Opening an outbox replays
+ * its journal and sends the mutations that were not acknowledged again, a torn record at the end
+ * is dropped. The journal is rewritten with only the pending mutations once those are a small
+ * part of it, and emptied whenever nothing is pending.
+ * <p>
+ * Mutations are sent in the order they were made, up to {@link #MAX_BATCH_SIZE} of them with one
+ * {@link NotesServiceApi#writeMutations} call, one call at a time and at most
+ * {@code maxWritesPerSecond} calls, so a long queue doesn't flood the backend when the device
+ * comes back online. A batch holds at most one mutation per note. A pending update is dropped
+ * when a later update or delete of the same note replaces it. Once a batch failed, mutations are
+ * sent one at a time until one gets through, so a mutation the backend rejects doesn't take the
+ * others with it. A mutation that failed for a reason that may pass, such as a lost connection,
+ * holds up the ones after it: it is sent again with exponential backoff or right away on
+ * {@link #replayNow()}, always with the same idempotency key. After {@link #MAX_ATTEMPTS}
+ * attempts, or as soon as the backend rejects it for good, it is moved to the dead letters, its
+ * note is marked as not synced and the queue moves on. Dead letters are sent again on
+ * {@link #retryDeadLetters(NoteSnapshot)}, dropped on {@link #discardDeadLetters(NoteSnapshot)}
+ * and superseded by the next save or delete of their note.
+ * <p>
+ * Notes with pending mutations have a {@link SyncState}, every other note is synced. New notes
+ * only get an id when their create is written, so they have no state until then. Deleting such a
+ * note drops its create if that wasn't sent yet, otherwise the delete follows the create and
+ * refers to it by its idempotency key.
+ * <p>
+ * The outbox must only be used on the main scheduler, it hands the answers of the service API
+ * over to it and notifies its listeners there. The journal is only read and written on the io
+ * scheduler, one task at a time: the journal is read after the outbox was opened, mutations are
+ * only sent once they are synced and saves and deletes made before the journal was read are
+ * queued behind the mutations in it. If the journal can't be read or written, mutations are still
+ * sent but don't survive a restart.
+ */
+public final class NoteOutbox implements Closeable {
+
+    /**
+     * Notified on the main scheduler whenever the sync state of a note changes or a new note was
+     * written.
+     */
+    public interface Listener {
+
+        /**
+         * @param syncStates the state of every note that is not {@link SyncState#SYNCED}.
+         */
+        void onSyncStatesChanged(@NonNull Map<String, SyncState> syncStates);
+
+        /**
+         * Called when the backend wrote the note of {@code create}, unless the note was deleted
+         * in the meantime.
+         *
+         * @param created the note with the id and timestamps the backend gave it
+         */
+        void onNoteCreated(@NonNull NoteMutation create, @NonNull NoteSnapshot created);
+    }
+
+    /**
+     * A change of the journal, made on the io scheduler.
+     */
+    private interface JournalWrite {
+
+        void writeTo(@NonNull RandomAccessFile journal) throws IOException;
+    }
+
+    public static final int DEFAULT_MAX_WRITES_PER_SECOND = 5;
+
+    @VisibleForTesting
+    static final String JOURNAL_NAME = "outbox.journal";
+
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = NoteMutationQueue.DEFAULT_MAX_BATCH_SIZE;
+
+    @VisibleForTesting
+    static final long MIN_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    @VisibleForTesting
+    static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Attempts to send a mutation, the first one included, about half an hour of backoff.
+     */
+    @VisibleForTesting
+    static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * Journals smaller than this are not worth rewriting.
+     */
+    @VisibleForTesting
+    static final int COMPACTION_THRESHOLD_BYTES = 64 * 1024;
+
+    private static final int MAGIC = 0x4e4f4258; // "NOBX"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Every record starts with the length of its payload and the CRC32 of the payload.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_MUTATION = 1;
+
+    private static final byte TYPE_ACK = 2;
+
+    private static final int NULL_STRING = -1;
+
+    private static final NoteMutation.Type[] MUTATION_TYPES = NoteMutation.Type.values();
+
+    private final File mFile;
+
+    private final NotesServiceApi mServiceApi;
+
+    private final TaskScheduler mScheduler;
+
+    private final Executor mJournalExecutor;
+
+    private final long mMinIntervalMillis;
+
+    /**
+     * Only used by the tasks of {@link #mJournalExecutor}, null if it can't be written.
+     */
+    @Nullable
+    private RandomAccessFile mJournal;
+
+    /**
+     * The size of the journal once the writes handed to {@link #mJournalExecutor} are done.
+     */
+    private long mJournalBytes;
+
+    private boolean mJournalRead;
+
+    /**
+     * Saves and deletes made before the journal was read.
+     */
+    private final List<Runnable> mEarlyWrites = new ArrayList<>();
+
+    /**
+     * The sequence number of the last mutation that was synced to the journal.
+     */
+    private long mJournaledSequenceNumber = -1;
+
+    /**
+     * Mutations that were not acknowledged yet, in the order they are sent.
+     */
+    private final TreeMap<Long, NoteMutation> mPending = new TreeMap<>();
+
+    /**
+     * Journal record size of every pending mutation, their sum is {@link #mLiveBytes}.
+     */
+    private final Map<Long, Integer> mRecordSizes = new HashMap<>();
+
+    private long mLiveBytes;
+
+    /**
+     * When the mutations added since the outbox was opened were added, on the scheduler's clock.
+     */
+    private final Map<Long, Long> mEnqueueTimes = new HashMap<>();
+
+    private final Map<String, Integer> mPendingCounts = new HashMap<>();
+
+    private final Map<String, SyncState> mSyncStates = new HashMap<>();
+
+    /**
+     * How often the pending mutations failed since the outbox was opened.
+     */
+    private final Map<Long, Integer> mFailedAttempts = new HashMap<>();
+
+    /**
+     * The mutations given up on since the outbox was opened, unless they were retried, discarded
+     * or superseded.
+     */
+    private final List<NoteMutation> mDeadLetters = new ArrayList<>();
+
+    /**
+     * The idempotency key of the create of every new note queued since the outbox was opened. The
+     * new notes are told apart by instance, two of them with the same content are still different
+     * notes.
+     */
+    private final Map<NoteSnapshot, String> mCreateKeys = new IdentityHashMap<>();
+
+    /**
+     * The notes written by the creates sent since the outbox was opened, by the idempotency key of
+     * the create, so a delete of the new note finds its id.
+     */
+    private final Map<String, NoteSnapshot> mCreatedNotes = new HashMap<>();
+
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    private long mNextSequenceNumber;
+
+    /**
+     * The batch that is being sent.
+     */
+    @Nullable
+    private List<NoteMutation> mInFlight;
+
+    /**
+     * Set while the mutations are sent one at a time, after a batch failed.
+     */
+    private boolean mSendingSingly;
+
+    private boolean mReplayScheduled;
+
+    /**
+     * Incremented to drop the replay that is scheduled, see {@link #replayNow()}.
+     */
+    private int mReplayGeneration;
+
+    private long mNextSendTime;
+
+    private long mRetryTime;
+
+    private long mRetryMillis;
+
+    private boolean mClosed;
+
+    private final LogHistogram mQueueDepth = new LogHistogram();
+
+    private final LogHistogram mLatencyMillis = new LogHistogram();
+
+    private int mMaxPendingCount;
+
+    private long mWrittenCount;
+
+    private long mFailedAttemptCount;
+
+    private long mCoalescedCount;
+
+    private NoteOutbox(File file, NotesServiceApi serviceApi, Schedulers schedulers,
+                       int maxWritesPerSecond) {
+        mFile = file;
+        mServiceApi = serviceApi;
+        mScheduler = schedulers.main();
+        mJournalExecutor = new SerialExecutor(schedulers.io(), TaskScheduler.Priority.NORMAL);
+        mMinIntervalMillis = TimeUnit.SECONDS.toMillis(1) / maxWritesPerSecond;
+    }
+
+    /**
+     * Opens the outbox stored in {@code directory}, creating it if necessary. Its journal is read
+     * on the io scheduler, after that the mutations that are still pending are sent.
+     */
+    @NonNull
+    public static NoteOutbox open(@NonNull File directory, @NonNull NotesServiceApi serviceApi,
+                                  @NonNull Schedulers schedulers) {
+        return open(directory, serviceApi, schedulers, DEFAULT_MAX_WRITES_PER_SECOND);
+    }
+
+    @NonNull
+    public static NoteOutbox open(@NonNull final File directory,
+                                  @NonNull NotesServiceApi serviceApi,
+                                  @NonNull Schedulers schedulers, int maxWritesPerSecond) {
+        checkNotNull(directory);
+        checkArgument(maxWritesPerSecond > 0, "maxWritesPerSecond must be positive");
+        final NoteOutbox outbox = new NoteOutbox(new File(directory, JOURNAL_NAME),
+                checkNotNull(serviceApi), checkNotNull(schedulers), maxWritesPerSecond);
+        outbox.mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                outbox.readJournal(directory);
+            }
+        });
+        return outbox;
+    }
+
+    /**
+     * Queues the save of {@code note}, a create if it has no id yet.
+     */
+    public void enqueueSave(@NonNull final NoteSnapshot note) {
+        checkNotNull(note);
+        checkState(!mClosed, "The outbox is closed");
+        if (!mJournalRead) {
+            mEarlyWrites.add(new Runnable() {
+                @Override
+                public void run() {
+                    enqueueSave(note);
+                }
+            });
+            if (note.getId() != null) {
+                setSyncState(note.getId(), SyncState.PENDING);
+            }
+            return;
+        }
+        NoteMutation mutation = NoteMutation.save(mNextSequenceNumber, note);
+        if (mutation.getType() == NoteMutation.Type.CREATE) {
+            mCreateKeys.put(note, mutation.getIdempotencyKey());
+        }
+        enqueue(mutation);
+    }
+
+    /**
+     * Queues the delete of {@code note}. If it is a new note whose create is still pending, the
+     * create is dropped instead.
+     */
+    public void enqueueDelete(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        checkState(!mClosed, "The outbox is closed");
+        if (!mJournalRead) {
+            final NoteSnapshot deleted = note;
+            mEarlyWrites.add(new Runnable() {
+                @Override
+                public void run() {
+                    enqueueDelete(deleted);
+                }
+            });
+            if (note.getId() != null) {
+                setSyncState(note.getId(), SyncState.PENDING);
+            }
+            return;
+        }
+        String createKey = note.getId() == null ? mCreateKeys.get(note) : null;
+        if (createKey != null && mCreatedNotes.containsKey(createKey)) {
+            note = mCreatedNotes.get(createKey);
+        }
+        if (note.getId() != null) {
+            enqueue(NoteMutation.delete(mNextSequenceNumber, note));
+            return;
+        }
+        NoteMutation create = createKey == null ? null : findPendingCreate(createKey);
+        if (create == null) {
+            // Never queued, so there is nothing to delete.
+            return;
+        }
+        if (isInFlight(create)) {
+            enqueue(NoteMutation.deleteCreated(mNextSequenceNumber, create));
+            return;
+        }
+        // Like the mutation it replaces, dropping the create must survive a crash.
+        acknowledge(create, true);
+        mCoalescedCount++;
+    }
+
+    /**
+     * Queues the dead letters of {@code note} again, with their idempotency keys, in the order
+     * they were made.
+     */
+    public void retryDeadLetters(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        checkState(!mClosed, "The outbox is closed");
+        for (NoteMutation mutation : removeDeadLetters(note)) {
+            enqueue(mutation.withSequenceNumber(mNextSequenceNumber));
+        }
+    }
+
+    /**
+     * Drops the dead letters of {@code note}, the changes they made on this device never reach
+     * the backend.
+     */
+    public void discardDeadLetters(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (!removeDeadLetters(note).isEmpty() && note.getId() != null
+                && getSyncState(note.getId()) == SyncState.NOT_SYNCED) {
+            setSyncState(note.getId(), SyncState.SYNCED);
+        }
+    }
+
+    /**
+     * Sends the pending mutations right away instead of waiting for the backoff of a failed one,
+     * for example once the device is back online.
+     */
+    public void replayNow() {
+        mRetryTime = 0;
+        mRetryMillis = 0;
+        mReplayGeneration++;
+        mReplayScheduled = false;
+        scheduleReplay();
+    }
+
+    @NonNull
+    public SyncState getSyncState(@NonNull String noteId) {
+        SyncState state = mSyncStates.get(checkNotNull(noteId));
+        return state == null ? SyncState.SYNCED : state;
+    }
+
+    /**
+     * @return the state of every note that is not {@link SyncState#SYNCED}.
+     */
+    @NonNull
+    public Map<String, SyncState> getSyncStates() {
+        return ImmutableMap.copyOf(mSyncStates);
+    }
+
+    /**
+     * @return the mutations that were not acknowledged yet, in the order they are sent.
+     */
+    @NonNull
+    public List<NoteMutation> getPendingMutations() {
+        return ImmutableList.copyOf(mPending.values());
+    }
+
+    /**
+     * @return the mutations that were given up on since the outbox was opened and not retried,
+     * discarded or superseded since, in the order they were given up on. They are no longer in
+     * the journal.
+     */
+    @NonNull
+    public List<NoteMutation> getDeadLetters() {
+        return ImmutableList.copyOf(mDeadLetters);
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        mListeners.add(checkNotNull(listener));
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(checkNotNull(listener));
+    }
+
+    /**
+     * @return the number of mutations waiting to be written, the depth of the queue.
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    public int getMaxPendingCount() {
+        return mMaxPendingCount;
+    }
+
+    /**
+     * @return the depth of the queue each time a mutation was added, that one included.
+     */
+    @NonNull
+    public LogHistogram.Snapshot getQueueDepth() {
+        return mQueueDepth.snapshot();
+    }
+
+    /**
+     * @return how long mutations waited from being added until the backend accepted them.
+     */
+    @NonNull
+    public LogHistogram.Snapshot getLatencyMillis() {
+        return mLatencyMillis.snapshot();
+    }
+
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * @return the number of attempts to send a mutation that failed.
+     */
+    public long getFailedAttemptCount() {
+        return mFailedAttemptCount;
+    }
+
+    /**
+     * @return the number of pending updates dropped because a later mutation replaced them.
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    @NonNull
+    public String report() {
+        LogHistogram.Snapshot latency = getLatencyMillis();
+        LogHistogram.Snapshot depth = getQueueDepth();
+        return String.format(Locale.US,
+                "outbox pending=%d max_pending=%d depth p50=%d p95=%d written=%d failed=%d"
+                        + " dead=%d coalesced=%d latency_ms p50=%d p95=%d max=%d",
+                getPendingCount(), mMaxPendingCount, depth.getP50(), depth.getP95(),
+                mWrittenCount, mFailedAttemptCount, mDeadLetters.size(), mCoalescedCount,
+                latency.getP50(),
+                latency.getP95(), latency.getMax());
+    }
+
+    /**
+     * Stops sending, the pending mutations are sent when the outbox is opened again. Saves and
+     * deletes made before the journal was read are dropped.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mInFlight = null;
+        mReplayGeneration++;
+        mListeners.clear();
+        mEarlyWrites.clear();
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) {
+                    return;
+                }
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to close the outbox journal %s", mFile);
+                }
+                mJournal = null;
+            }
+        });
+    }
+
+    @VisibleForTesting
+    long getJournalBytes() {
+        return mJournalBytes;
+    }
+
+    private void enqueue(final NoteMutation mutation) {
+        // The mutation is durable before it is sent, see sendNext().
+        int recordSize = append(encodeMutation(mutation), true, new Runnable() {
+            @Override
+            public void run() {
+                mJournaledSequenceNumber = mutation.getSequenceNumber();
+                scheduleReplay();
+            }
+        });
+        mNextSequenceNumber++;
+        if (mutation.getNoteId() != null) {
+            // The note is written anew, the writes given up on are out of date.
+            removeDeadLetters(mutation.getNote());
+        }
+        addPending(mutation, recordSize);
+        mEnqueueTimes.put(mutation.getSequenceNumber(), mScheduler.now());
+        coalesce(mutation);
+        mMaxPendingCount = Math.max(mMaxPendingCount, mPending.size());
+        mQueueDepth.record(mPending.size());
+        if (mutation.getNoteId() != null) {
+            setSyncState(mutation.getNoteId(), SyncState.PENDING);
+        }
+        scheduleReplay();
+    }
+
+    /**
+     * Drops the pending updates of the same note that {@code mutation} replaces, unless one of
+     * them is being sent already.
+     */
+    private void coalesce(NoteMutation mutation) {
+        String noteId = mutation.getNoteId();
+        if (noteId == null) {
+            return;
+        }
+        List<NoteMutation> replaced = new ArrayList<>();
+        for (NoteMutation earlier
+                : mPending.headMap(mutation.getSequenceNumber(), false).values()) {
+            if (!isInFlight(earlier) && earlier.getType() == NoteMutation.Type.UPDATE
+                    && noteId.equals(earlier.getNoteId())) {
+                replaced.add(earlier);
+            }
+        }
+        for (NoteMutation earlier : replaced) {
+            acknowledge(earlier, false);
+            mCoalescedCount++;
+        }
+    }
+
+    private void scheduleReplay() {
+        if (mClosed || mInFlight != null || mReplayScheduled || !isNextJournaled()) {
+            return;
+        }
+        mReplayScheduled = true;
+        final int generation = mReplayGeneration;
+        Runnable replay = new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mReplayGeneration) {
+                    mReplayScheduled = false;
+                    sendNext();
+                }
+            }
+        };
+        long delay = Math.max(mNextSendTime, mRetryTime) - mScheduler.now();
+        if (delay > 0) {
+            mScheduler.executeDelayed(TaskScheduler.Priority.LOW, replay, delay);
+        } else {
+            mScheduler.execute(TaskScheduler.Priority.LOW, replay);
+        }
+    }
+
+    /**
+     * @return true if the next mutation is synced to the journal, it is sent again after a crash.
+     */
+    private boolean isNextJournaled() {
+        return !mPending.isEmpty() && mPending.firstKey() <= mJournaledSequenceNumber;
+    }
+
+    private void sendNext() {
+        if (mClosed || mInFlight != null || !isNextJournaled()) {
+            return;
+        }
+        final List<NoteMutation> batch = nextBatch();
+        mInFlight = batch;
+        mNextSendTime = mScheduler.now() + mMinIntervalMillis;
+        mServiceApi.writeMutations(batch, new NotesServiceCallback<List<NoteSnapshot>>() {
+            @Override
+            public void onLoaded(final List<NoteSnapshot> notes) {
+                mScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWritten(batch, notes);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(@NonNull final Exception error) {
+                mScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWriteFailed(batch, error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the journaled mutations at the head of the queue, up to the second mutation of a
+     * note. A delete of a new note counts as a mutation of the note its create writes.
+     */
+    private List<NoteMutation> nextBatch() {
+        int maxSize = mSendingSingly ? 1 : MAX_BATCH_SIZE;
+        List<NoteMutation> batch = new ArrayList<>();
+        Set<String> notes = new HashSet<>();
+        for (NoteMutation mutation
+                : mPending.headMap(mJournaledSequenceNumber, true).values()) {
+            if (batch.size() == maxSize || !notes.add(getNoteKey(mutation))) {
+                break;
+            }
+            batch.add(mutation);
+        }
+        return batch;
+    }
+
+    private static String getNoteKey(NoteMutation mutation) {
+        if (mutation.getNoteId() != null) {
+            return mutation.getNoteId();
+        }
+        return mutation.getCreateKey() != null
+                ? mutation.getCreateKey() : mutation.getIdempotencyKey();
+    }
+
+    private boolean isInFlight(NoteMutation mutation) {
+        if (mInFlight == null) {
+            return false;
+        }
+        for (NoteMutation sent : mInFlight) {
+            if (sent == mutation) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onWritten(List<NoteMutation> batch, List<NoteSnapshot> written) {
+        if (batch != mInFlight) {
+            // Closed while the batch was sent.
+            return;
+        }
+        mInFlight = null;
+        mSendingSingly = false;
+        mRetryTime = 0;
+        mRetryMillis = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            onWritten(batch.get(i), written.get(i));
+        }
+        scheduleReplay();
+    }
+
+    private void onWritten(NoteMutation mutation, @Nullable NoteSnapshot written) {
+        mWrittenCount++;
+        Long enqueueTime = mEnqueueTimes.get(mutation.getSequenceNumber());
+        if (enqueueTime != null) {
+            mLatencyMillis.record(Math.max(0, mScheduler.now() - enqueueTime));
+        }
+        acknowledge(mutation, false);
+        if (mutation.getType() == NoteMutation.Type.CREATE && written != null
+                && written.getId() != null) {
+            mCreatedNotes.put(mutation.getIdempotencyKey(), written);
+            if (!bindDeletesOfCreated(mutation, written)) {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onNoteCreated(mutation, written);
+                }
+            }
+        }
+        String noteId = mutation.getNoteId();
+        if (noteId != null) {
+            setSyncState(noteId, mPendingCounts.containsKey(noteId)
+                    ? SyncState.PENDING : SyncState.SYNCED);
+        }
+    }
+
+    private void onWriteFailed(List<NoteMutation> batch, Exception error) {
+        if (batch != mInFlight) {
+            return;
+        }
+        mInFlight = null;
+        mFailedAttemptCount++;
+        mSendingSingly = true;
+        if (batch.size() > 1 && isPermanent(error)) {
+            // Any of them may have been rejected, sending them one at a time finds out which.
+            Timber.w("Writing %d mutations failed, sending them one at a time: %s", batch.size(),
+                    error);
+            scheduleReplay();
+            return;
+        }
+        // The first mutation is sent alone next, the attempt counts for it.
+        NoteMutation mutation = batch.get(0);
+        Integer failedAttempts = mFailedAttempts.get(mutation.getSequenceNumber());
+        int attempts = failedAttempts == null ? 1 : failedAttempts + 1;
+        boolean givenUp = isPermanent(error) || attempts >= MAX_ATTEMPTS;
+        if (givenUp) {
+            Timber.e("Giving up on %s after %d attempts: %s", mutation, attempts, error);
+            mRetryTime = 0;
+            mRetryMillis = 0;
+            deadLetter(mutation);
+        } else {
+            mFailedAttempts.put(mutation.getSequenceNumber(), attempts);
+            mRetryMillis = mRetryMillis == 0
+                    ? MIN_RETRY_MILLIS : Math.min(MAX_RETRY_MILLIS, 2 * mRetryMillis);
+            mRetryTime = mScheduler.now() + mRetryMillis;
+            Timber.w("Writing %s failed, trying again in %d ms: %s", mutation, mRetryMillis,
+                    error);
+        }
+        if (mutation.getNoteId() != null) {
+            setSyncState(mutation.getNoteId(), givenUp ? SyncState.NOT_SYNCED : SyncState.FAILED);
+        }
+        scheduleReplay();
+    }
+
+    /**
+     * @return true if sending the mutation again can't succeed, because the backend refused it
+     * rather than being out of reach.
+     */
+    @VisibleForTesting
+    static boolean isPermanent(Exception error) {
+        if (!(error instanceof ParseException)) {
+            // Lost connections, timeouts and the like.
+            return false;
+        }
+        switch (((ParseException) error).getCode()) {
+            case ParseException.OTHER_CAUSE:
+            case ParseException.INTERNAL_SERVER_ERROR:
+            case ParseException.CONNECTION_FAILED:
+            case ParseException.TIMEOUT:
+            case ParseException.EXCEEDED_QUOTA:
+            case ParseException.REQUEST_LIMIT_EXCEEDED:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Removes a mutation that is given up on from the journal, the note is marked as not synced.
+     */
+    private void deadLetter(NoteMutation mutation) {
+        mDeadLetters.add(mutation);
+        acknowledge(mutation, false);
+    }
+
+    /**
+     * Removes the dead letters that write {@code note}, a new note by the key of its create.
+     *
+     * @return the removed dead letters, in the order they were made
+     */
+    private List<NoteMutation> removeDeadLetters(NoteSnapshot note) {
+        String noteId = note.getId();
+        String createKey = noteId == null ? mCreateKeys.get(note) : null;
+        List<NoteMutation> removed = new ArrayList<>();
+        for (NoteMutation mutation : mDeadLetters) {
+            if (noteId != null ? noteId.equals(mutation.getNoteId())
+                    : createKey != null && (createKey.equals(mutation.getIdempotencyKey())
+                            || createKey.equals(mutation.getCreateKey()))) {
+                removed.add(mutation);
+            }
+        }
+        mDeadLetters.removeAll(removed);
+        return removed;
+    }
+
+    @Nullable
+    private NoteMutation findPendingCreate(String idempotencyKey) {
+        for (NoteMutation mutation : mPending.values()) {
+            if (mutation.getType() == NoteMutation.Type.CREATE
+                    && mutation.getIdempotencyKey().equals(idempotencyKey)) {
+                return mutation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives the deletes that follow {@code create} the id of the note it wrote. The journal keeps
+     * the idempotency key of the create, by which the backend finds the note as well.
+     *
+     * @return true if the note is deleted again
+     */
+    private boolean bindDeletesOfCreated(NoteMutation create, NoteSnapshot created) {
+        boolean deleted = false;
+        for (NoteMutation delete : new ArrayList<>(mPending.values())) {
+            if (create.getIdempotencyKey().equals(delete.getCreateKey())
+                    && delete.getNoteId() == null) {
+                long sequenceNumber = delete.getSequenceNumber();
+                Long enqueueTime = mEnqueueTimes.get(sequenceNumber);
+                NoteMutation bound = delete.withCreatedNote(created);
+                removePending(sequenceNumber);
+                // Sized as it is written when the journal is compacted.
+                addPending(bound, record(encodeMutation(bound)).length);
+                if (enqueueTime != null) {
+                    mEnqueueTimes.put(sequenceNumber, enqueueTime);
+                }
+                setSyncState(created.getId(), SyncState.PENDING);
+                deleted = true;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Removes a pending mutation. Unless {@code sync} is set the acknowledgement is not synced to
+     * the storage device, if it is lost the mutation is sent once more and the idempotency key
+     * keeps it from being applied twice.
+     */
+    private void acknowledge(NoteMutation mutation, final boolean sync) {
+        removePending(mutation.getSequenceNumber());
+        if (mPending.isEmpty()) {
+            mJournalBytes = HEADER_SIZE;
+            writeJournal(new JournalWrite() {
+                @Override
+                public void writeTo(RandomAccessFile journal) throws IOException {
+                    journal.setLength(HEADER_SIZE);
+                    if (sync) {
+                        journal.getChannel().force(false);
+                    }
+                }
+            }, null);
+            return;
+        }
+        append(encodeAck(mutation.getSequenceNumber()), sync, null);
+        if (mJournalBytes >= COMPACTION_THRESHOLD_BYTES && mLiveBytes < mJournalBytes / 2) {
+            compact();
+        }
+    }
+
+    private void addPending(NoteMutation mutation, int recordSize) {
+        mPending.put(mutation.getSequenceNumber(), mutation);
+        mRecordSizes.put(mutation.getSequenceNumber(), recordSize);
+        mLiveBytes += recordSize;
+        String noteId = mutation.getNoteId();
+        if (noteId != null) {
+            Integer count = mPendingCounts.get(noteId);
+            mPendingCounts.put(noteId, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void removePending(long sequenceNumber) {
+        NoteMutation mutation = mPending.remove(sequenceNumber);
+        if (mutation == null) {
+            return;
+        }
+        mLiveBytes -= mRecordSizes.remove(sequenceNumber);
+        mEnqueueTimes.remove(sequenceNumber);
+        mFailedAttempts.remove(sequenceNumber);
+        String noteId = mutation.getNoteId();
+        if (noteId != null) {
+            int count = mPendingCounts.get(noteId);
+            if (count == 1) {
+                mPendingCounts.remove(noteId);
+            } else {
+                mPendingCounts.put(noteId, count - 1);
+            }
+        }
+    }
+
+    private void setSyncState(String noteId, SyncState state) {
+        SyncState previous = state == SyncState.SYNCED
+                ? mSyncStates.remove(noteId) : mSyncStates.put(noteId, state);
+        if (previous == state || (previous == null && state == SyncState.SYNCED)) {
+            return;
+        }
+        notifySyncStatesChanged();
+    }
+
+    private void notifySyncStatesChanged() {
+        Map<String, SyncState> syncStates = getSyncStates();
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onSyncStatesChanged(syncStates);
+        }
+    }
+
+    /**
+     * Reads the journal on the io scheduler and hands the mutations in it over to the main
+     * scheduler.
+     */
+    private void readJournal(File directory) {
+        Replay replay = new Replay();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create outbox directory " + directory);
+            }
+            mJournal = new RandomAccessFile(mFile, "rw");
+            replay.read(mJournal, mFile);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to read the outbox journal %s", mFile);
+            if (mJournal != null) {
+                try {
+                    mJournal.close();
+                } catch (IOException closeError) {
+                    Timber.e(closeError, "Failed to close the outbox journal %s", mFile);
+                }
+                mJournal = null;
+            }
+            replay = new Replay();
+        }
+        final Replay journal = replay;
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                onJournalRead(journal);
+            }
+        });
+    }
+
+    private void onJournalRead(Replay journal) {
+        if (mClosed) {
+            return;
+        }
+        mJournalRead = true;
+        mJournalBytes = journal.mJournalBytes;
+        mNextSequenceNumber = journal.mNextSequenceNumber;
+        mJournaledSequenceNumber = mNextSequenceNumber - 1;
+        boolean changed = false;
+        for (NoteMutation mutation : journal.mPending.values()) {
+            addPending(mutation, journal.mRecordSizes.get(mutation.getSequenceNumber()));
+            String noteId = mutation.getNoteId();
+            if (noteId != null && mSyncStates.put(noteId, SyncState.PENDING) == null) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            notifySyncStatesChanged();
+        }
+        List<Runnable> earlyWrites = new ArrayList<>(mEarlyWrites);
+        mEarlyWrites.clear();
+        for (Runnable write : earlyWrites) {
+            write.run();
+        }
+        scheduleReplay();
+    }
+
+    /**
+     * Rewrites the journal with only the pending mutations. The new journal is written next to
+     * the old one and renamed over it, so a crash leaves one of them intact.
+     */
+    @VisibleForTesting
+    void compact() {
+        final List<NoteMutation> pending = getPendingMutations();
+        mJournalBytes = HEADER_SIZE + mLiveBytes;
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal == null) {
+                    return;
+                }
+                try {
+                    rewriteJournal(pending);
+                } catch (IOException e) {
+                    // The old journal is still intact.
+                    Timber.e(e, "Failed to compact the outbox journal %s", mFile);
+                }
+            }
+        });
+    }
+
+    private void rewriteJournal(List<NoteMutation> pending) throws IOException {
+        File compacted = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile journal = new RandomAccessFile(compacted, "rw");
+        try {
+            journal.setLength(0);
+            journal.writeInt(MAGIC);
+            journal.writeInt(VERSION);
+            for (NoteMutation mutation : pending) {
+                journal.write(record(encodeMutation(mutation)));
+            }
+            journal.getChannel().force(false);
+        } finally {
+            journal.close();
+        }
+        if (!compacted.renameTo(mFile)) {
+            throw new IOException("Cannot replace outbox journal " + mFile);
+        }
+        mJournal.close();
+        mJournal = new RandomAccessFile(mFile, "rw");
+    }
+
+    /**
+     * Appends a record to the journal on the io scheduler.
+     *
+     * @param onWritten run on the main scheduler once the record was written.
+     * @return the size of the record.
+     */
+    private int append(byte[] payload, final boolean sync, @Nullable Runnable onWritten) {
+        final byte[] record = record(payload);
+        mJournalBytes += record.length;
+        writeJournal(new JournalWrite() {
+            @Override
+            public void writeTo(RandomAccessFile journal) throws IOException {
+                journal.seek(journal.length());
+                journal.write(record);
+                if (sync) {
+                    journal.getChannel().force(false);
+                }
+            }
+        }, onWritten);
+        return record.length;
+    }
+
+    /**
+     * Runs {@code write} on the io scheduler after the writes handed over before it, then
+     * {@code onWritten} on the main scheduler. A failed write is logged, the outbox carries on
+     * without it.
+     */
+    private void writeJournal(final JournalWrite write, @Nullable final Runnable onWritten) {
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal != null) {
+                    try {
+                        write.writeTo(mJournal);
+                    } catch (IOException e) {
+                        Timber.e(e, "Failed to write the outbox journal %s", mFile);
+                    }
+                }
+                if (onWritten != null) {
+                    mScheduler.execute(onWritten);
+                }
+            }
+        });
+    }
+
+    private static byte[] record(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(crc(payload, 0, payload.length));
+        record.put(payload);
+        return record.array();
+    }
+
+    private static byte[] encodeMutation(NoteMutation mutation) {
+        ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+        payload.writeByte(TYPE_MUTATION);
+        payload.writeLong(mutation.getSequenceNumber());
+        payload.writeByte(mutation.getType().ordinal());
+        writeString(payload, mutation.getIdempotencyKey());
+        NoteSnapshot note = mutation.getNote();
+        writeString(payload, note.getId());
+        writeString(payload, note.getTitle());
+        writeString(payload, note.getDescription());
+        writeString(payload, note.getImageUrl());
+        payload.writeLong(note.getCreatedAt());
+        payload.writeLong(note.getUpdatedAt());
+        writeString(payload, mutation.getCreateKey());
+        return payload.toByteArray();
+    }
+
+    private static NoteMutation decodeMutation(long sequenceNumber, DataInputStream payload)
+            throws IOException {
+        NoteMutation.Type type = MUTATION_TYPES[payload.readByte()];
+        String idempotencyKey = readString(payload);
+        String id = readString(payload);
+        String title = readString(payload);
+        String description = readString(payload);
+        String imageUrl = readString(payload);
+        NoteSnapshot note = new NoteSnapshot(id, title, description, imageUrl,
+                payload.readLong(), payload.readLong());
+        // Records written before deletes could follow creates end here.
+        String createKey = payload.available() > 0 ? readString(payload) : null;
+        return new NoteMutation(sequenceNumber, type, idempotencyKey, note, createKey);
+    }
+
+    private static byte[] encodeAck(long sequenceNumber) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + Long.SIZE / Byte.SIZE);
+        payload.put(TYPE_ACK);
+        payload.putLong(sequenceNumber);
+        return payload.array();
+    }
+
+    private static void writeString(ByteArrayDataOutput payload, @Nullable String value) {
+        if (value == null) {
+            payload.writeInt(NULL_STRING);
+        } else {
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            payload.writeInt(bytes.length);
+            payload.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static String readString(DataInputStream payload) throws IOException {
+        int length = payload.readInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        payload.readFully(value);
+        return new String(value, Charsets.UTF_8);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The mutations read from a journal that were not acknowledged.
+     */
+    private static final class Replay {
+
+        final TreeMap<Long, NoteMutation> mPending = new TreeMap<>();
+
+        final Map<Long, Integer> mRecordSizes = new HashMap<>();
+
+        long mNextSequenceNumber;
+
+        long mJournalBytes = HEADER_SIZE;
+
+        /**
+         * Reads {@code journal}, writing the header of a new one and dropping a torn record at
+         * its end.
+         */
+        void read(RandomAccessFile journal, File file) throws IOException {
+            byte[] bytes = new byte[(int) journal.length()];
+            journal.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (bytes.length < HEADER_SIZE) {
+                // New, or torn before its first record was written.
+                journal.setLength(0);
+                journal.writeInt(MAGIC);
+                journal.writeInt(VERSION);
+                journal.getChannel().force(false);
+                return;
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(HEADER_SIZE / 2) != VERSION) {
+                throw new IOException("Unsupported outbox journal " + file);
+            }
+            int position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= bytes.length) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || length > bytes.length - position - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                int offset = position + RECORD_HEADER_SIZE;
+                if (crc(bytes, offset, length)
+                        != buffer.getInt(position + RECORD_HEADER_SIZE / 2)) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes, offset, length)),
+                        RECORD_HEADER_SIZE + length);
+                position += RECORD_HEADER_SIZE + length;
+            }
+            // Drop a torn record, the next one is appended after the last complete one.
+            journal.setLength(position);
+            mJournalBytes = position;
+        }
+
+        private void apply(DataInputStream payload, int recordSize) throws IOException {
+            byte type = payload.readByte();
+            long sequenceNumber = payload.readLong();
+            mNextSequenceNumber = Math.max(mNextSequenceNumber, sequenceNumber + 1);
+            if (type == TYPE_MUTATION) {
+                mPending.put(sequenceNumber, decodeMutation(sequenceNumber, payload));
+                mRecordSizes.put(sequenceNumber, recordSize);
+            } else {
+                mPending.remove(sequenceNumber);
+                mRecordSizes.remove(sequenceNumber);
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds notes by the start of the words in their title and description, for filtering the list
+ * as the user types. The words are kept in a radix trie and every node remembers the most
+ * recently updated notes below it, so looking up a prefix only walks the characters of the
+ * prefix and never visits the notes that don't make it into the result.
+ * <p>
+ * A query with several words matches notes that contain words starting with each of them. The
+ * candidates come from the word with the fewest matches. Only if the notes a node remembers
+ * don't answer the query, because more are asked for or too few of them match every word, are
+ * all notes below it visited.
+ */
+public class NotePrefixIndex {
+
+    public static final int DEFAULT_TOP_K = 20;
+
+    /**
+     * Most recently updated first, notes updated at the same time are ordered by id.
+     */
+    @VisibleForTesting
+    static final Comparator<NoteSnapshot> MOST_RECENT_FIRST = new Comparator<NoteSnapshot>() {
+        @Override
+        public int compare(NoteSnapshot first, NoteSnapshot second) {
+            if (first.getUpdatedAt() != second.getUpdatedAt()) {
+                return first.getUpdatedAt() > second.getUpdatedAt() ? -1 : 1;
+            }
+            return first.getId().compareTo(second.getId());
+        }
+    };
+
+    private final int mTopK;
+
+    private final Node mRoot = new Node("");
+
+    private final Map<String, NoteSnapshot> mNotes = new HashMap<>();
+
+    private final Map<String, Set<String>> mNoteTerms = new HashMap<>();
+
+    public NotePrefixIndex() {
+        this(DEFAULT_TOP_K);
+    }
+
+    /**
+     * @param topK the number of notes every node remembers, the most a lookup can return.
+     */
+    public NotePrefixIndex(int topK) {
+        checkArgument(topK > 0, "topK must be positive");
+        mTopK = topK;
+    }
+
+    /**
+     * Adds a note or replaces the indexed version of it.
+     */
+    public void put(@NonNull NoteSnapshot note) {
+        checkNotNull(note.getId(), "Only notes with an id can be indexed");
+        remove(note.getId());
+        Set<String> terms = new HashSet<>(NoteSearchIndex.tokenize(note.getTitle()));
+        terms.addAll(NoteSearchIndex.tokenize(note.getDescription()));
+        mNotes.put(note.getId(), note);
+        mNoteTerms.put(note.getId(), terms);
+        for (String term : terms) {
+            insert(term, note);
+        }
+    }
+
+    public void remove(@NonNull String noteId) {
+        Set<String> terms = mNoteTerms.remove(checkNotNull(noteId));
+        if (terms == null) {
+            return;
+        }
+        NoteSnapshot note = mNotes.remove(noteId);
+        // Every node on the way to one of the words might have to refill its top notes, deepest
+        // nodes first so their parents merge up to date lists.
+        Map<Node, Integer> affectedNodes = new IdentityHashMap<>();
+        for (String term : terms) {
+            delete(term, note, affectedNodes);
+        }
+        List<Map.Entry<Node, Integer>> byDepth = new ArrayList<>(affectedNodes.entrySet());
+        Collections.sort(byDepth, new Comparator<Map.Entry<Node, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Node, Integer> first, Map.Entry<Node, Integer> second) {
+                return second.getValue() - first.getValue();
+            }
+        });
+        for (Map.Entry<Node, Integer> entry : byDepth) {
+            Node node = entry.getKey();
+            if (node.mTopNotes.contains(note)) {
+                refill(node);
+            }
+        }
+    }
+
+    public void clear() {
+        mRoot.mChildren.clear();
+        mRoot.mTopNotes.clear();
+        mNotes.clear();
+        mNoteTerms.clear();
+    }
+
+    public int size() {
+        return mNotes.size();
+    }
+
+    /**
+     * @return up to {@code limit} of the most recently updated notes with words starting with
+     * every word of the query.
+     */
+    @NonNull
+    public List<NoteSnapshot> find(@NonNull String query, int limit) {
+        checkArgument(limit > 0, "limit must be positive");
+        List<String> prefixes = NoteSearchIndex.tokenize(checkNotNull(query));
+        if (prefixes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Node narrowest = null;
+        for (String prefix : prefixes) {
+            Node node = findNode(prefix);
+            if (node == null) {
+                return Collections.emptyList();
+            }
+            if (narrowest == null || node.mTopNotes.size() < narrowest.mTopNotes.size()) {
+                narrowest = node;
+            }
+        }
+        List<NoteSnapshot> results = collectMatches(narrowest.mTopNotes, prefixes, limit);
+        if (results.size() == limit || narrowest.mTopNotes.size() < mTopK) {
+            // Found enough, or the node remembers every note below it.
+            return results;
+        }
+        TreeSet<NoteSnapshot> notesBelow = new TreeSet<>(MOST_RECENT_FIRST);
+        addNotesBelow(narrowest, notesBelow);
+        return collectMatches(notesBelow, prefixes, limit);
+    }
+
+    private List<NoteSnapshot> collectMatches(Iterable<NoteSnapshot> candidates,
+                                              List<String> prefixes, int limit) {
+        List<NoteSnapshot> results = new ArrayList<>(Math.min(limit, mTopK));
+        for (NoteSnapshot note : candidates) {
+            if (results.size() == limit) {
+                break;
+            }
+            if (prefixes.size() == 1 || matchesAll(note, prefixes)) {
+                results.add(note);
+            }
+        }
+        return results;
+    }
+
+    private static void addNotesBelow(Node node, Set<NoteSnapshot> notes) {
+        if (node.mEndingNotes != null) {
+            notes.addAll(node.mEndingNotes);
+        }
+        for (Node child : node.mChildren.values()) {
+            addNotesBelow(child, notes);
+        }
+    }
+
+    private boolean matchesAll(NoteSnapshot note, List<String> prefixes) {
+        Set<String> terms = mNoteTerms.get(note.getId());
+        for (String prefix : prefixes) {
+            boolean matches = false;
+            for (String term : terms) {
+                if (term.startsWith(prefix)) {
+                    matches = true;
+                    break;
+                }
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the node that holds all words starting with the prefix or null if there are none.
+     */
+    @Nullable
+    private Node findNode(String prefix) {
+        Node node = mRoot;
+        int position = 0;
+        while (position < prefix.length()) {
+            Node child = node.mChildren.get(prefix.charAt(position));
+            if (child == null) {
+                return null;
+            }
+            int common = commonPrefixLength(child.mLabel, prefix, position);
+            if (position + common == prefix.length()) {
+                // The prefix ends on or inside the label of the child.
+                return child;
+            }
+            if (common < child.mLabel.length()) {
+                return null;
+            }
+            node = child;
+            position += common;
+        }
+        return node;
+    }
+
+    private void insert(String term, NoteSnapshot note) {
+        Node node = mRoot;
+        offer(node, note);
+        int position = 0;
+        while (position < term.length()) {
+            Node child = node.mChildren.get(term.charAt(position));
+            if (child == null) {
+                child = new Node(term.substring(position));
+                node.mChildren.put(child.mLabel.charAt(0), child);
+            } else {
+                int common = commonPrefixLength(child.mLabel, term, position);
+                if (common < child.mLabel.length()) {
+                    child = split(node, child, common);
+                }
+            }
+            offer(child, note);
+            node = child;
+            position += child.mLabel.length();
+        }
+        if (node.mEndingNotes == null) {
+            node.mEndingNotes = new TreeSet<>(MOST_RECENT_FIRST);
+        }
+        node.mEndingNotes.add(note);
+    }
+
+    /**
+     * Splits the label of {@code child} after {@code length} characters.
+     *
+     * @return the new node holding the first part of the label.
+     */
+    private Node split(Node parent, Node child, int length) {
+        Node middle = new Node(child.mLabel.substring(0, length));
+        // The middle node holds exactly the words below the child.
+        middle.mTopNotes.addAll(child.mTopNotes);
+        child.mLabel = child.mLabel.substring(length);
+        middle.mChildren.put(child.mLabel.charAt(0), child);
+        parent.mChildren.put(middle.mLabel.charAt(0), middle);
+        return middle;
+    }
+
+    private void delete(String term, NoteSnapshot note, Map<Node, Integer> affectedNodes) {
+        List<Node> path = new ArrayList<>();
+        Node node = mRoot;
+        path.add(node);
+        affectedNodes.put(node, 0);
+        int position = 0;
+        while (position < term.length()) {
+            node = node.mChildren.get(term.charAt(position));
+            position += node.mLabel.length();
+            path.add(node);
+            affectedNodes.put(node, position);
+        }
+        node.mEndingNotes.remove(note);
+        if (node.mEndingNotes.isEmpty()) {
+            node.mEndingNotes = null;
+        }
+        // Drop nodes that no longer lead to any word.
+        for (int i = path.size() - 1; i > 0; i--) {
+            Node pruned = path.get(i);
+            if (pruned.mEndingNotes != null || !pruned.mChildren.isEmpty()) {
+                break;
+            }
+            path.get(i - 1).mChildren.remove(pruned.mLabel.charAt(0));
+            affectedNodes.remove(pruned);
+        }
+    }
+
+    private void offer(Node node, NoteSnapshot note) {
+        List<NoteSnapshot> topNotes = node.mTopNotes;
+        int index = Collections.binarySearch(topNotes, note, MOST_RECENT_FIRST);
+        if (index >= 0) {
+            // Already there through another word of the note.
+            return;
+        }
+        int insertionPoint = -index - 1;
+        if (insertionPoint < mTopK) {
+            topNotes.add(insertionPoint, note);
+            if (topNotes.size() > mTopK) {
+                topNotes.remove(topNotes.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the top notes of a node from the words ending at it and the top notes of its
+     * children.
+     */
+    private void refill(Node node) {
+        TreeSet<NoteSnapshot> candidates = new TreeSet<>(MOST_RECENT_FIRST);
+        if (node.mEndingNotes != null) {
+            Iterator<NoteSnapshot> endingNotes = node.mEndingNotes.iterator();
+            for (int i = 0; i < mTopK && endingNotes.hasNext(); i++) {
+                candidates.add(endingNotes.next());
+            }
+        }
+        for (Node child : node.mChildren.values()) {
+            candidates.addAll(child.mTopNotes);
+        }
+        node.mTopNotes.clear();
+        Iterator<NoteSnapshot> best = candidates.iterator();
+        for (int i = 0; i < mTopK && best.hasNext(); i++) {
+            node.mTopNotes.add(best.next());
+        }
+    }
+
+    private static int commonPrefixLength(String label, String term, int offset) {
+        int length = Math.min(label.length(), term.length() - offset);
+        int common = 0;
+        while (common < length && label.charAt(common) == term.charAt(offset + common)) {
+            common++;
+        }
+        return common;
+    }
+
+    private static final class Node {
+
+        /**
+         * The characters on the edge from the parent to this node.
+         */
+        String mLabel;
+
+        final Map<Character, Node> mChildren = new HashMap<>();
+
+        /**
+         * Notes with a word that ends at this node, null if no word does.
+         */
+        @Nullable
+        TreeSet<NoteSnapshot> mEndingNotes;
+
+        /**
+         * The most recent notes with a word at or below this node, in {@link #MOST_RECENT_FIRST}
+         * order.
+         */
+        final List<NoteSnapshot> mTopNotes = new ArrayList<>();
+
+        Node(String label) {
+            mLabel = label;
+        }
+    }
+}
@@ -18,6 +18,14 @@ package com.example.android.testing.notes.data;
 
 import android.support.annotation.NonNull;
 
+import com.example.android.testing.notes.util.MainThreadFrameScheduler;
+import com.example.android.testing.notes.util.Schedulers;
+
+import java.io.File;
+import java.io.IOException;
+
+import timber.log.Timber;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public class NoteRepositories {
@@ -26,6 +34,8 @@ public class NoteRepositories {
         // no instance
     }
 
+    private static final String SNAPSHOT_FILE_NAME = "list.snapshot";
+
     private static NotesRepository repository = null;
 
     public synchronized static NotesRepository getInMemoryRepoInstance(@NonNull NotesServiceApi notesServiceApi) {
@@ -35,4 +45,34 @@ public class NoteRepositories {
         }
         return repository;
     }
+
+    /**
+     * Returns a repository that reads notes stored in {@code directory} first and only uses
+     * {@code remoteApi} to seed and sync them. The loaded list is also kept there so it can be
+     * shown right away on the next start, and writes are queued in a {@link NoteOutbox} there
+     * until they are written. Falls back to the remote API alone if the local storage cannot be
+     * opened.
+     */
+    public synchronized static NotesRepository getOfflineFirstRepoInstance(
+            @NonNull File directory, @NonNull NotesServiceApi remoteApi) {
+        checkNotNull(directory);
+        checkNotNull(remoteApi);
+        if (null == repository) {
+            Schedulers schedulers = Schedulers.getDefault();
+            NotesServiceApi notesServiceApi;
+            try {
+                notesServiceApi = new OfflineFirstNotesServiceApi(NoteLog.open(directory),
+                        remoteApi, schedulers.io());
+            } catch (IOException e) {
+                Timber.e(e, "Failed to open the local notes in %s", directory);
+                notesServiceApi = remoteApi;
+            }
+            NoteOutbox outbox = NoteOutbox.open(directory, notesServiceApi, schedulers);
+            repository = new InMemoryNotesRepository(notesServiceApi, new NoteCache(),
+                    new NoteListSnapshotFile(new File(directory, SNAPSHOT_FILE_NAME),
+                            schedulers.io(), NoteListSnapshotFile.DEFAULT_MAX_NOTES),
+                    new MainThreadFrameScheduler(), schedulers, outbox);
+        }
+        return repository;
+    }
 }
\ No newline at end of file
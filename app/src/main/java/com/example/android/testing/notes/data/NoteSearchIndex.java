@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Inverted index over the title and description of notes that ranks matches with Okapi BM25.
+ * Notes are added, replaced and removed one at a time, so the index can follow every write instead
+ * of being rebuilt. Title terms count twice, a match in the title says more about a note than a
+ * match in its description. Only notes with an id can be indexed.
+ */
+public class NoteSearchIndex {
+
+    /**
+     * Term frequency saturation.
+     */
+    private static final double K1 = 1.2;
+
+    /**
+     * Strength of the document length normalization.
+     */
+    private static final double B = 0.75;
+
+    private static final int TITLE_WEIGHT = 2;
+
+    /**
+     * For each term, how often it occurs in each note by note id.
+     */
+    private final Map<String, Map<String, Integer>> mPostings = new HashMap<>();
+
+    /**
+     * The terms of every indexed note, needed to remove the note from the postings again.
+     */
+    private final Map<String, Multiset<String>> mNoteTerms = new HashMap<>();
+
+    private final Map<String, NoteSnapshot> mNotes = new HashMap<>();
+
+    private long mTotalLength;
+
+    /**
+     * Adds a note or replaces the indexed version of it.
+     */
+    public void put(@NonNull NoteSnapshot note) {
+        checkNotNull(note.getId(), "Only notes with an id can be indexed");
+        remove(note.getId());
+        Multiset<String> terms = HashMultiset.create();
+        for (String term : tokenize(note.getTitle())) {
+            terms.add(term, TITLE_WEIGHT);
+        }
+        terms.addAll(tokenize(note.getDescription()));
+        for (Multiset.Entry<String> term : terms.entrySet()) {
+            Map<String, Integer> postings = mPostings.get(term.getElement());
+            if (postings == null) {
+                postings = new HashMap<>();
+                mPostings.put(term.getElement(), postings);
+            }
+            postings.put(note.getId(), term.getCount());
+        }
+        mNoteTerms.put(note.getId(), terms);
+        mNotes.put(note.getId(), note);
+        mTotalLength += terms.size();
+    }
+
+    public void remove(@NonNull String noteId) {
+        Multiset<String> terms = mNoteTerms.remove(checkNotNull(noteId));
+        if (terms == null) {
+            return;
+        }
+        for (String term : terms.elementSet()) {
+            Map<String, Integer> postings = mPostings.get(term);
+            postings.remove(noteId);
+            if (postings.isEmpty()) {
+                mPostings.remove(term);
+            }
+        }
+        mNotes.remove(noteId);
+        mTotalLength -= terms.size();
+    }
+
+    public void clear() {
+        mPostings.clear();
+        mNoteTerms.clear();
+        mNotes.clear();
+        mTotalLength = 0;
+    }
+
+    public int size() {
+        return mNotes.size();
+    }
+
+    /**
+     * @return up to {@code limit} notes that contain at least one of the query terms, best match
+     * first.
+     */
+    @NonNull
+    public List<NoteSnapshot> search(@NonNull String query, int limit) {
+        checkNotNull(query);
+        checkArgument(limit > 0, "limit must be positive");
+        if (mNotes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        double averageLength = (double) mTotalLength / mNotes.size();
+        final Map<String, Double> scores = new HashMap<>();
+        for (String term : new LinkedHashSet<>(tokenize(query))) {
+            Map<String, Integer> postings = mPostings.get(term);
+            if (postings == null) {
+                continue;
+            }
+            double idf = Math.log(1 + (mNotes.size() - postings.size() + 0.5)
+                    / (postings.size() + 0.5));
+            for (Map.Entry<String, Integer> posting : postings.entrySet()) {
+                int frequency = posting.getValue();
+                double length = mNoteTerms.get(posting.getKey()).size();
+                double score = idf * frequency * (K1 + 1)
+                        / (frequency + K1 * (1 - B + B * length / averageLength));
+                Double previous = scores.get(posting.getKey());
+                scores.put(posting.getKey(), previous == null ? score : previous + score);
+            }
+        }
+
+        // Keep the best matches in a min-heap of the requested size instead of sorting them all.
+        Comparator<String> byScore = new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                int result = Double.compare(scores.get(first), scores.get(second));
+                // Ties go to the lower id so results are stable.
+                return result != 0 ? result : second.compareTo(first);
+            }
+        };
+        PriorityQueue<String> best = new PriorityQueue<>(limit + 1, byScore);
+        for (String noteId : scores.keySet()) {
+            best.add(noteId);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<NoteSnapshot> results = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            results.add(mNotes.get(best.poll()));
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits. The other note indexes use the same
+     * words.
+     */
+    static List<String> tokenize(@Nullable String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inToken = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
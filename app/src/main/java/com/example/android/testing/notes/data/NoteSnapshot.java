@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Immutable, plain Java copy of a {@link Note}. Parse objects look every field up in a
+ * synchronized map, so the rest of the app works on snapshots that are created once at the
+ * {@link NotesServiceApi} boundary.
+ */
+public final class NoteSnapshot {
+
+    /**
+     * Value of {@link #getCreatedAt()} and {@link #getUpdatedAt()} for notes that have not been
+     * saved to the backend yet.
+     */
+    public static final long NO_TIMESTAMP = 0;
+
+    @Nullable
+    private final String mId;
+
+    @Nullable
+    private final String mTitle;
+
+    @Nullable
+    private final String mDescription;
+
+    @Nullable
+    private final String mImageUrl;
+
+    private final long mCreatedAt;
+
+    private final long mUpdatedAt;
+
+    private final boolean mIsEmpty;
+
+    public NoteSnapshot(@Nullable String id, @Nullable String title, @Nullable String description,
+                        @Nullable String imageUrl, long createdAt, long updatedAt) {
+        mId = id;
+        mTitle = title;
+        mDescription = description;
+        mImageUrl = imageUrl;
+        mCreatedAt = createdAt;
+        mUpdatedAt = updatedAt;
+        mIsEmpty = (title == null || title.isEmpty())
+                && (description == null || description.isEmpty());
+    }
+
+    /**
+     * Creates a snapshot for a new note that has not been assigned an id by the backend yet.
+     */
+    public static NoteSnapshot create(@Nullable String title, @Nullable String description,
+                                      @Nullable String imageUrl) {
+        return new NoteSnapshot(null, title, description, imageUrl, NO_TIMESTAMP, NO_TIMESTAMP);
+    }
+
+    /**
+     * @return a copy of this note with the given id and timestamps, as assigned by the backend.
+     */
+    public NoteSnapshot withBackendState(@NonNull String id, long createdAt, long updatedAt) {
+        return new NoteSnapshot(id, mTitle, mDescription, mImageUrl, createdAt, updatedAt);
+    }
+
+    @Nullable
+    public String getId() {
+        return mId;
+    }
+
+    @Nullable
+    public String getTitle() {
+        return mTitle;
+    }
+
+    @Nullable
+    public String getDescription() {
+        return mDescription;
+    }
+
+    @Nullable
+    public String getImageUrl() {
+        return mImageUrl;
+    }
+
+    /**
+     * @return creation time in milliseconds since the epoch or {@link #NO_TIMESTAMP}.
+     */
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /**
+     * @return last modification time in milliseconds since the epoch or {@link #NO_TIMESTAMP}.
+     */
+    public long getUpdatedAt() {
+        return mUpdatedAt;
+    }
+
+    public boolean isEmpty() {
+        return mIsEmpty;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        NoteSnapshot note = (NoteSnapshot) o;
+        return mCreatedAt == note.mCreatedAt
+                && mUpdatedAt == note.mUpdatedAt
+                && Objects.equal(mId, note.mId)
+                && Objects.equal(mTitle, note.mTitle)
+                && Objects.equal(mDescription, note.mDescription)
+                && Objects.equal(mImageUrl, note.mImageUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mId, mTitle, mDescription, mImageUrl, mCreatedAt, mUpdatedAt);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", mId)
+                .add("title", mTitle)
+                .toString();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps notes ordered by one of their timestamps, with the id breaking ties, in a balanced tree.
+ * Newest or oldest notes and notes within a time range are read in O(log n + k) for k notes, in
+ * either direction, without sorting all notes. Only notes with an id can be indexed.
+ */
+public class NoteTimeIndex {
+
+    /**
+     * The timestamp notes are ordered by.
+     */
+    public enum Timestamp {
+        CREATED_AT {
+            @Override
+            long of(NoteSnapshot note) {
+                return note.getCreatedAt();
+            }
+        },
+        UPDATED_AT {
+            @Override
+            long of(NoteSnapshot note) {
+                return note.getUpdatedAt();
+            }
+        };
+
+        abstract long of(NoteSnapshot note);
+    }
+
+    private final Timestamp mTimestamp;
+
+    private final TreeMap<Key, NoteSnapshot> mNotes = new TreeMap<>();
+
+    /**
+     * The key every indexed note is stored under by id, needed to find the note again once its
+     * timestamp changed.
+     */
+    private final Map<String, Key> mKeys = new HashMap<>();
+
+    public NoteTimeIndex(@NonNull Timestamp timestamp) {
+        mTimestamp = checkNotNull(timestamp);
+    }
+
+    /**
+     * Adds a note or replaces the indexed version of it.
+     */
+    public void put(@NonNull NoteSnapshot note) {
+        checkNotNull(note.getId(), "Only notes with an id can be indexed");
+        remove(note.getId());
+        Key key = new Key(mTimestamp.of(note), note.getId());
+        mNotes.put(key, note);
+        mKeys.put(note.getId(), key);
+    }
+
+    public void remove(@NonNull String noteId) {
+        Key key = mKeys.remove(checkNotNull(noteId));
+        if (key != null) {
+            mNotes.remove(key);
+        }
+    }
+
+    public void clear() {
+        mNotes.clear();
+        mKeys.clear();
+    }
+
+    public int size() {
+        return mNotes.size();
+    }
+
+    /**
+     * @return up to {@code limit} notes with the latest timestamps, newest first.
+     */
+    @NonNull
+    public List<NoteSnapshot> newest(int limit) {
+        return take(mNotes.descendingMap().values(), limit);
+    }
+
+    /**
+     * @return up to {@code limit} notes with the earliest timestamps, oldest first.
+     */
+    @NonNull
+    public List<NoteSnapshot> oldest(int limit) {
+        return take(mNotes.values(), limit);
+    }
+
+    /**
+     * @return the notes with a timestamp between {@code from} and {@code to}, both inclusive.
+     */
+    @NonNull
+    public List<NoteSnapshot> between(long from, long to, boolean newestFirst) {
+        checkArgument(from <= to, "from must not be after to");
+        NavigableMap<Key, NoteSnapshot> range =
+                mNotes.subMap(new Key(from, ""), true, new Key(to, null), true);
+        if (newestFirst) {
+            range = range.descendingMap();
+        }
+        return new ArrayList<>(range.values());
+    }
+
+    private static List<NoteSnapshot> take(Collection<NoteSnapshot> notes, int limit) {
+        checkArgument(limit >= 0, "limit cannot be negative");
+        List<NoteSnapshot> result = new ArrayList<>(Math.min(limit, notes.size()));
+        Iterator<NoteSnapshot> iterator = notes.iterator();
+        while (result.size() < limit && iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    private static final class Key implements Comparable<Key> {
+
+        final long mTimestamp;
+
+        /**
+         * Null sorts after every id, for the upper bound of a time range.
+         */
+        @Nullable
+        final String mId;
+
+        Key(long timestamp, @Nullable String id) {
+            mTimestamp = timestamp;
+            mId = id;
+        }
+
+        @Override
+        public int compareTo(@NonNull Key other) {
+            if (mTimestamp != other.mTimestamp) {
+                return mTimestamp < other.mTimestamp ? -1 : 1;
+            }
+            if (mId == null || other.mId == null) {
+                return mId == other.mId ? 0 : (mId == null ? 1 : -1);
+            }
+            return mId.compareTo(other.mId);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+import android.support.annotation.NonNull;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A change to a note, reported to {@link NotesRepository.NotesObserver}s. The position refers to
+ * the list of loaded pages the repository hands out, in the state right before the change is
+ * applied, so the changes of a batch can be applied one after the other.
+ */
+public final class NotesChange {
+
+    /**
+     * Position of changed notes that are not part of the loaded pages, like new notes before the
+     * backend assigned them an id.
+     */
+    public static final int NO_POSITION = -1;
+
+    public enum Type {
+        INSERTED,
+        UPDATED,
+        REMOVED
+    }
+
+    private final Type mType;
+
+    private final NoteSnapshot mNote;
+
+    private final int mPosition;
+
+    private NotesChange(Type type, NoteSnapshot note, int position) {
+        mType = type;
+        mNote = checkNotNull(note);
+        mPosition = position;
+    }
+
+    public static NotesChange inserted(@NonNull NoteSnapshot note, int position) {
+        return new NotesChange(Type.INSERTED, note, position);
+    }
+
+    public static NotesChange updated(@NonNull NoteSnapshot note, int position) {
+        return new NotesChange(Type.UPDATED, note, position);
+    }
+
+    /**
+     * @param note the note as it was before it was removed.
+     */
+    public static NotesChange removed(@NonNull NoteSnapshot note, int position) {
+        return new NotesChange(Type.REMOVED, note, position);
+    }
+
+    @NonNull
+    public Type getType() {
+        return mType;
+    }
+
+    @NonNull
+    public NoteSnapshot getNote() {
+        return mNote;
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public boolean hasPosition() {
+        return mPosition != NO_POSITION;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        NotesChange change = (NotesChange) o;
+        return mPosition == change.mPosition
+                && mType == change.mType
+                && mNote.equals(change.mNote);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mType, mNote, mPosition);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("type", mType)
+                .add("note", mNote)
+                .add("position", mPosition)
+                .toString();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Collects the {@link NotesChange}s of one frame and hands them to every subscribed
+ * {@link NotesRepository.NotesObserver} in a single batch when the frame is drawn, so a sync that
+ * touches many notes results in one UI update.
+ */
+public class NotesChangeDispatcher {
+
+    /**
+     * Runs code when the next frame is drawn.
+     */
+    public interface FrameScheduler {
+
+        void postFrame(@NonNull Runnable frame);
+    }
+
+    /**
+     * Delivers every change right away in a batch of its own.
+     */
+    public static final FrameScheduler IMMEDIATE = new FrameScheduler() {
+        @Override
+        public void postFrame(@NonNull Runnable frame) {
+            frame.run();
+        }
+    };
+
+    private final FrameScheduler mFrameScheduler;
+
+    private final Set<NotesRepository.NotesObserver> mObservers = new LinkedHashSet<>();
+
+    private List<NotesChange> mPendingChanges = new ArrayList<>();
+
+    private boolean mFramePosted;
+
+    private final Runnable mDeliverChanges = new Runnable() {
+        @Override
+        public void run() {
+            List<NotesChange> changes = Collections.unmodifiableList(mPendingChanges);
+            mPendingChanges = new ArrayList<>();
+            mFramePosted = false;
+            // Observers may unsubscribe while they handle the changes.
+            for (NotesRepository.NotesObserver observer : new ArrayList<>(mObservers)) {
+                observer.onNotesChanged(changes);
+            }
+        }
+    };
+
+    public NotesChangeDispatcher(@NonNull FrameScheduler frameScheduler) {
+        mFrameScheduler = checkNotNull(frameScheduler);
+    }
+
+    public void subscribe(@NonNull NotesRepository.NotesObserver observer) {
+        mObservers.add(checkNotNull(observer));
+    }
+
+    public void unsubscribe(@NonNull NotesRepository.NotesObserver observer) {
+        mObservers.remove(checkNotNull(observer));
+    }
+
+    /**
+     * Queues a change for the next frame.
+     */
+    public void dispatch(@NonNull NotesChange change) {
+        checkNotNull(change);
+        if (mObservers.isEmpty()) {
+            // Nobody would see it.
+            return;
+        }
+        mPendingChanges.add(change);
+        if (!mFramePosted) {
+            mFramePosted = true;
+            mFrameScheduler.postFrame(mDeliverChanges);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.ImmutableList;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Notes changed on the backend since a given time: notes that were created or updated and the ids
+ * of notes that were deleted.
+ */
+public final class NotesDelta {
+
+    /**
+     * Number of changes after which a delta is cut off, the rest is picked up by the next one.
+     * A delta never ends between two changes made at the same time, so it can exceed this by the
+     * changes sharing its high-water mark.
+     */
+    public static final int MAX_CHANGES = 999;
+
+    private final List<NoteSnapshot> mChangedNotes;
+
+    private final List<String> mDeletedNoteIds;
+
+    private final long mHighWaterMark;
+
+    private final boolean mHasMoreChanges;
+
+    /**
+     * @param highWaterMark  the latest modification time of any change in this delta
+     * @param hasMoreChanges true if the delta was cut off at {@link #MAX_CHANGES}
+     */
+    public NotesDelta(@NonNull List<NoteSnapshot> changedNotes,
+                      @NonNull List<String> deletedNoteIds, long highWaterMark,
+                      boolean hasMoreChanges) {
+        mChangedNotes = ImmutableList.copyOf(checkNotNull(changedNotes));
+        mDeletedNoteIds = ImmutableList.copyOf(checkNotNull(deletedNoteIds));
+        mHighWaterMark = highWaterMark;
+        mHasMoreChanges = hasMoreChanges;
+    }
+
+    @NonNull
+    public List<NoteSnapshot> getChangedNotes() {
+        return mChangedNotes;
+    }
+
+    @NonNull
+    public List<String> getDeletedNoteIds() {
+        return mDeletedNoteIds;
+    }
+
+    public long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public boolean hasMoreChanges() {
+        return mHasMoreChanges;
+    }
+
+    public boolean isEmpty() {
+        return mChangedNotes.isEmpty() && mDeletedNoteIds.isEmpty();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.ImmutableList;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One page of notes loaded for a {@link PageRequest}.
+ */
+public final class NotesPage {
+
+    private final List<NoteSnapshot> mNotes;
+
+    @Nullable
+    private final PageRequest mNextPage;
+
+    private final boolean mFromCache;
+
+    public NotesPage(@NonNull List<NoteSnapshot> notes, @Nullable PageRequest nextPage) {
+        this(notes, nextPage, false);
+    }
+
+    public NotesPage(@NonNull List<NoteSnapshot> notes, @Nullable PageRequest nextPage,
+                     boolean fromCache) {
+        mNotes = ImmutableList.copyOf(checkNotNull(notes));
+        mNextPage = nextPage;
+        mFromCache = fromCache;
+    }
+
+    /**
+     * Builds a page from the notes fetched for a request. Data sources fetch one note more than
+     * the page size, if it is there another page follows.
+     *
+     * @param fetchedNotes up to {@code request.getPageSize() + 1} notes in
+     *                     {@link PageRequest#KEYSET_ORDER}
+     */
+    public static NotesPage fromFetched(@NonNull PageRequest request,
+                                        @NonNull List<NoteSnapshot> fetchedNotes) {
+        int pageSize = request.getPageSize();
+        if (fetchedNotes.size() <= pageSize) {
+            return new NotesPage(fetchedNotes, null);
+        }
+        List<NoteSnapshot> notes = fetchedNotes.subList(0, pageSize);
+        return new NotesPage(notes, PageRequest.after(notes.get(pageSize - 1), pageSize));
+    }
+
+    @NonNull
+    public List<NoteSnapshot> getNotes() {
+        return mNotes;
+    }
+
+    /**
+     * @return the request for the following page or null if this is the last page.
+     */
+    @Nullable
+    public PageRequest getNextPage() {
+        return mNextPage;
+    }
+
+    public boolean isLastPage() {
+        return mNextPage == null;
+    }
+
+    /**
+     * @return true if the page was served from the repository's cache rather than loaded from the
+     * service API.
+     */
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+}
@@ -19,30 +19,156 @@ package com.example.android.testing.notes.data;
 import android.support.annotation.NonNull;
 
 import java.util.List;
+import java.util.Map;
 
 /**
- * Main entry point for accessing notes data.
+ * Main entry point for accessing notes data. Every call that loads notes returns a
+ * {@link NotesRequest} that can be cancelled once its response is not needed anymore.
+ * <p>
+ * Loads that fail call {@code onDataNotAvailable()} of their callback instead, after any cached
+ * data that was delivered, so callers can stop waiting. Retrying is up to the service API.
  */
 public interface NotesRepository {
 
     interface LoadNotesCallback {
 
-        void onNotesLoaded(List<Note> notes);
+        void onNotesLoaded(List<NoteSnapshot> notes);
+
+        void onDataNotAvailable();
+    }
+
+    interface LoadNotesPageCallback {
+
+        void onNotesPageLoaded(NotesPage page);
+
+        void onDataNotAvailable();
+    }
+
+    interface SyncNotesCallback {
+
+        void onNotesSynced();
+
+        void onDataNotAvailable();
     }
 
     interface GetNoteCallback {
 
-        void onNoteLoaded(Note note);
+        void onNoteLoaded(NoteSnapshot note);
+
+        void onDataNotAvailable();
+    }
+
+    interface SearchNotesCallback {
+
+        void onNotesFound(List<NoteSnapshot> notes);
+
+        void onDataNotAvailable();
+    }
+
+    /**
+     * Notified about changes to notes made through the repository or picked up by a sync. The
+     * changes of one frame arrive in a single batch.
+     */
+    interface NotesObserver {
+
+        void onNotesChanged(List<NotesChange> changes);
+    }
+
+    /**
+     * Notified whenever writes made on this device are queued, written or fail to be written.
+     */
+    interface SyncStateObserver {
+
+        /**
+         * @param syncStates the state of every note with writes that did not reach the backend
+         *                   yet, all other notes are {@link SyncState#SYNCED}.
+         */
+        void onSyncStatesChanged(Map<String, SyncState> syncStates);
     }
 
-    void getNotes(@NonNull LoadNotesCallback callback);
+    NotesRequest getNotes(@NonNull LoadNotesCallback callback);
+
+    NotesRequest getNotesPage(@NonNull PageRequest request,
+                              @NonNull LoadNotesPageCallback callback);
+
+    NotesRequest getNotesPage(@NonNull PageRequest request, @NonNull CachePolicy cachePolicy,
+                              @NonNull LoadNotesPageCallback callback);
+
+    NotesRequest getNote(@NonNull String noteId, @NonNull GetNoteCallback callback);
 
-    void getNote(@NonNull String noteId, @NonNull GetNoteCallback callback);
+    NotesRequest getNote(@NonNull String noteId, @NonNull CachePolicy cachePolicy,
+                         @NonNull GetNoteCallback callback);
 
-    void saveNote(@NonNull Note note);
+    void saveNote(@NonNull NoteSnapshot note);
 
     void refreshData();
 
-    void deleteNote(@NonNull Note note);
+    /**
+     * Brings the cached notes up to date by only loading the notes that changed since they were
+     * loaded. Behaves like {@link #refreshData()} if nothing has been loaded yet.
+     */
+    NotesRequest syncNotes(@NonNull SyncNotesCallback callback);
+
+    void deleteNote(@NonNull NoteSnapshot note);
+
+    /**
+     * Finds up to {@code limit} notes whose title or description contains any word of the query,
+     * best match first.
+     */
+    NotesRequest search(@NonNull String query, int limit,
+                        @NonNull SearchNotesCallback callback);
+
+    /**
+     * Finds up to {@code limit} of the most recently updated notes with words starting with each
+     * word of the prefix, most recent first, fast enough to run on every keystroke.
+     */
+    NotesRequest filter(@NonNull String prefix, int limit,
+                        @NonNull SearchNotesCallback callback);
+
+    /**
+     * Loads up to {@code limit} of the most recently created notes, newest first.
+     */
+    NotesRequest getNewestNotes(int limit, @NonNull LoadNotesCallback callback);
+
+    /**
+     * Loads the notes created between {@code from} and {@code to}, both inclusive, in order of
+     * creation.
+     */
+    NotesRequest getNotesCreatedBetween(long from, long to, boolean newestFirst,
+                                        @NonNull LoadNotesCallback callback);
+
+    /**
+     * Loads up to {@code limit} of the most recently updated notes, most recent first.
+     */
+    NotesRequest getRecentlyUpdatedNotes(int limit, @NonNull LoadNotesCallback callback);
+
+    void subscribe(@NonNull NotesObserver observer);
+
+    void unsubscribe(@NonNull NotesObserver observer);
+
+    /**
+     * Subscribes {@code observer} and tells it the current sync states right away.
+     */
+    void subscribeToSyncStates(@NonNull SyncStateObserver observer);
+
+    void unsubscribeFromSyncStates(@NonNull SyncStateObserver observer);
+
+    /**
+     * Sends the writes that are still queued right away instead of waiting for their next retry,
+     * for example when the device is back online.
+     */
+    void retryPendingWrites();
+
+    /**
+     * Sends the writes of {@code note} that were given up on again, see
+     * {@link SyncState#NOT_SYNCED}.
+     */
+    void retrySync(@NonNull NoteSnapshot note);
+
+    /**
+     * Drops the writes of {@code note} that were given up on. The notes are loaded from the
+     * backend again, so the note shows what the backend has.
+     */
+    void discardUnsyncedChanges(@NonNull NoteSnapshot note);
 
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+/**
+ * Handle to a call to the {@link NotesRepository}. Requests are numbered in the order they were
+ * made, so a caller can tell which of two responses is the newer one.
+ * <p>
+ * A cancelled request doesn't call its callback anymore and the repository skips any work that is
+ * only needed for it, like loading fresh data after the cached data was delivered. Responses other
+ * callers share are still loaded and cached.
+ */
+public final class NotesRequest {
+
+    private final long mSequenceNumber;
+
+    private volatile boolean mCancelled;
+
+    private volatile boolean mDone;
+
+    NotesRequest(long sequenceNumber) {
+        mSequenceNumber = sequenceNumber;
+    }
+
+    public long getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Stops the callback of this request from being called. Does nothing if the request is done.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Returns whether the callback has received its last response.
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Returns whether the request still waits for a response somebody will see.
+     */
+    public boolean isPending() {
+        return !mCancelled && !mDone;
+    }
+
+    void finish() {
+        mDone = true;
+    }
+
+    @Override
+    public String toString() {
+        return "NotesRequest{" + mSequenceNumber + (mCancelled ? ", cancelled" : "")
+                + (mDone ? ", done" : "") + '}';
+    }
+}
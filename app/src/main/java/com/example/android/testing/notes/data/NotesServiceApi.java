@@ -16,24 +16,78 @@
 
 package com.example.android.testing.notes.data;
 
+import android.support.annotation.NonNull;
+
 import java.util.List;
 
 /**
  * Defines an interface to the service API that is used by this application. All data request should
- * be piped through this interface.
+ * be piped through this interface. Notes cross this boundary as immutable {@link NoteSnapshot}s.
  */
 public interface NotesServiceApi {
 
+    /**
+     * The calls a service API answers, for code that treats them alike.
+     */
+    enum Method {
+        GET_ALL_NOTES,
+        GET_NOTES_PAGE,
+        GET_NOTES_CHANGED_SINCE,
+        GET_NOTE,
+        SAVE_NOTE,
+        DELETE_NOTE,
+        WRITE_MUTATION,
+        WRITE_MUTATIONS
+    }
+
+    /**
+     * Receives the answer to a call, exactly one of its methods is called once.
+     */
     interface NotesServiceCallback<T> {
 
         void onLoaded(T notes);
+
+        /**
+         * Called instead of {@link #onLoaded(Object)} if the call failed, for example because the
+         * backend could not be reached or did not answer in time.
+         */
+        void onError(@NonNull Exception error);
     }
 
-    void getAllNotes(NotesServiceCallback<List<Note>> callback);
+    void getAllNotes(NotesServiceCallback<List<NoteSnapshot>> callback);
+
+    /**
+     * Loads a single page of notes in {@link PageRequest#KEYSET_ORDER}.
+     */
+    void getNotesPage(PageRequest request, NotesServiceCallback<NotesPage> callback);
+
+    /**
+     * Loads the notes created, updated or deleted after the given time, in order of their
+     * modification time.
+     */
+    void getNotesChangedSince(long updatedAfter, NotesServiceCallback<NotesDelta> callback);
+
+    void getNote(String noteId, NotesServiceCallback<NoteSnapshot> callback);
+
+    void saveNote(NoteSnapshot note);
 
-    void getNote(String noteId, NotesServiceCallback<Note> callback);
+    void deleteNote(NoteSnapshot note);
 
-    void saveNote(Note note);
+    /**
+     * Writes a single mutation right away and reports whether it was applied, unlike
+     * {@link #saveNote(NoteSnapshot)} and {@link #deleteNote(NoteSnapshot)}. A mutation whose
+     * idempotency key was applied before is not applied again but still succeeds, so it can be
+     * retried after any failure. Answers with the note as stored, null for deletes.
+     */
+    void writeMutation(@NonNull NoteMutation mutation,
+                       @NonNull NotesServiceCallback<NoteSnapshot> callback);
 
-    void deleteNote(Note note);
+    /**
+     * Writes the mutations like {@link #writeMutation}, in as few requests as the backend allows.
+     * A delete must not follow the create of its note in the same call. Answers with the note as
+     * stored for every mutation, in their order. If the call fails some of the mutations may have
+     * been applied, their idempotency keys keep them from being applied twice.
+     */
+    void writeMutations(@NonNull List<NoteMutation> mutations,
+                        @NonNull NotesServiceCallback<List<NoteSnapshot>> callback);
 }
@@ -18,6 +18,8 @@ package com.example.android.testing.notes.data;
 
 import android.support.v4.util.ArrayMap;
 
+import java.util.UUID;
+
 /**
  * This is the endpoint for your data source. Typically, it would be a SQLite db and/or a server
  * API. In this example, we fake this by creating the data on the fly.
@@ -30,17 +32,29 @@ public final class NotesServiceApiEndpoint {
         addNote("Espresso", "UI Testing for Android", null);
     }
 
-    private final static ArrayMap<String, Note> DATA;
+    private final static ArrayMap<String, NoteSnapshot> DATA;
 
     private static void addNote(String title, String description, String imageUrl) {
-        Note newNote = new Note(title, description, imageUrl);
+        String id = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        NoteSnapshot newNote = new NoteSnapshot(id, title, description, imageUrl, now, now);
         DATA.put(newNote.getId(), newNote);
     }
 
     /**
      * @return the Notes to show when starting the app.
      */
-    public static ArrayMap<String, Note> loadPersistedNotes() {
+    public static ArrayMap<String, NoteSnapshot> loadPersistedNotes() {
         return DATA;
     }
+
+    /**
+     * Streams {@code count} made-up notes, the same ones for the same {@code seed}, for when two
+     * notes are not enough.
+     *
+     * @see NoteGenerator
+     */
+    public static Iterable<NoteSnapshot> generateNotes(int count, long seed) {
+        return new NoteGenerator(seed, count);
+    }
 }
@@ -17,86 +17,464 @@
 package com.example.android.testing.notes.data;
 
 import android.os.Handler;
+import android.support.annotation.NonNull;
 import android.support.v4.util.ArrayMap;
 
-import com.parse.DeleteCallback;
 import com.parse.FindCallback;
 import com.parse.GetCallback;
 import com.parse.ParseException;
+import com.parse.ParseObject;
 import com.parse.ParseQuery;
 import com.parse.SaveCallback;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import timber.log.Timber;
 
 /**
- * Implementation of the Notes Service API that adds a latency simulating network.
+ * Implementation of the Notes Service API backed by Parse. Failed queries are reported to the
+ * callback, retries and timeouts are left to {@link ResilientNotesServiceApi}.
  */
 public class NotesServiceApiImpl implements NotesServiceApi {
 
+    private static final String CREATED_AT = "createdAt";
+
+    private static final String OBJECT_ID = "objectId";
+
+    private static final String UPDATED_AT = "updatedAt";
+
+    private final NoteMutationQueue mMutationQueue =
+            new NoteMutationQueue(new NoteMutationQueue.Flusher() {
+                @Override
+                public void flush(List<NoteSnapshot> saves, List<NoteSnapshot> deletes) {
+                    saveAll(saves, deletes);
+                }
+            });
+
+    @Override
+    public void getAllNotes(final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        // A single query is silently capped by Parse, so walk through all pages instead.
+        loadRemainingPages(PageRequest.firstPage(PageRequest.MAX_PAGE_SIZE),
+                new ArrayList<NoteSnapshot>(), callback);
+    }
+
+    private void loadRemainingPages(PageRequest request, final List<NoteSnapshot> loadedNotes,
+                                    final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        getNotesPage(request, new NotesServiceCallback<NotesPage>() {
+            @Override
+            public void onLoaded(NotesPage page) {
+                loadedNotes.addAll(page.getNotes());
+                if (page.isLastPage()) {
+                    callback.onLoaded(loadedNotes);
+                } else {
+                    loadRemainingPages(page.getNextPage(), loadedNotes, callback);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                callback.onError(error);
+            }
+        });
+    }
+
     @Override
-    public void getAllNotes(final NotesServiceCallback callback) {
-        ParseQuery<Note> query = ParseQuery.getQuery(Note.class);
+    public void getNotesPage(final PageRequest request,
+                             final NotesServiceCallback<NotesPage> callback) {
+        ParseQuery<Note> query;
+        if (request.isFirstPage()) {
+            query = newNotesQuery();
+        } else {
+            // Keyset condition: createdAt > after || (createdAt == after && objectId > afterId)
+            Date afterCreatedAt = new Date(request.getAfterCreatedAt());
+            ParseQuery<Note> createdLater = newNotesQuery()
+                    .whereGreaterThan(CREATED_AT, afterCreatedAt);
+            ParseQuery<Note> createdAtSameTime = newNotesQuery()
+                    .whereEqualTo(CREATED_AT, afterCreatedAt)
+                    .whereGreaterThan(OBJECT_ID, request.getAfterId());
+            query = ParseQuery.or(Arrays.asList(createdLater, createdAtSameTime));
+        }
+        query.orderByAscending(CREATED_AT).addAscendingOrder(OBJECT_ID);
+        query.setLimit(request.getPageSize() + 1);
         query.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ELSE_CACHE);
         query.findInBackground(new FindCallback<Note>() {
             @Override
             public void done(List<Note> notes, ParseException e) {
                 if(e == null) {
-                    callback.onLoaded(notes);
+                    callback.onLoaded(NotesPage.fromFetched(request, toSnapshots(notes)));
                 }
                 else {
                     Timber.e(e.getMessage());
+                    callback.onError(e);
                 }
             }
         });
     }
 
     @Override
-    public void getNote(final String noteId, final NotesServiceCallback callback) {
-        ParseQuery<Note> query = ParseQuery.getQuery(Note.class);
+    public void getNotesChangedSince(long updatedAfter,
+                                     final NotesServiceCallback<NotesDelta> callback) {
+        // Tombstones are included on purpose, they tell us which notes were deleted.
+        ParseQuery<Note> query = ParseQuery.getQuery(Note.class)
+                .whereGreaterThan(UPDATED_AT, new Date(updatedAfter))
+                .orderByAscending(UPDATED_AT)
+                .addAscendingOrder(OBJECT_ID)
+                .setLimit(NotesDelta.MAX_CHANGES + 1);
+        query.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ONLY);
+        query.findInBackground(new FindCallback<Note>() {
+            @Override
+            public void done(List<Note> notes, ParseException e) {
+                if(e != null) {
+                    Timber.e(e.getMessage());
+                    callback.onError(e);
+                    return;
+                }
+                if (notes.size() <= NotesDelta.MAX_CHANGES) {
+                    callback.onLoaded(toDelta(notes, false));
+                    return;
+                }
+                List<Note> changes = new ArrayList<>(notes.subList(0, NotesDelta.MAX_CHANGES));
+                Date lastUpdatedAt = changes.get(changes.size() - 1).getUpdatedAt();
+                if (lastUpdatedAt.equals(notes.get(NotesDelta.MAX_CHANGES).getUpdatedAt())) {
+                    // The next delta starts after the high-water mark, so the notes sharing it
+                    // have to be in this one.
+                    loadRemainingChangesAt(changes, callback);
+                } else {
+                    callback.onLoaded(toDelta(changes, true));
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the notes modified at the same time as the last one of {@code changes} that did not
+     * fit into the first query, paging through them by id.
+     */
+    private void loadRemainingChangesAt(final List<Note> changes,
+                                        final NotesServiceCallback<NotesDelta> callback) {
+        Note last = changes.get(changes.size() - 1);
+        ParseQuery<Note> query = ParseQuery.getQuery(Note.class)
+                .whereEqualTo(UPDATED_AT, last.getUpdatedAt())
+                .whereGreaterThan(OBJECT_ID, last.getObjectId())
+                .orderByAscending(OBJECT_ID)
+                .setLimit(NotesDelta.MAX_CHANGES + 1);
+        query.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ONLY);
+        query.findInBackground(new FindCallback<Note>() {
+            @Override
+            public void done(List<Note> notes, ParseException e) {
+                if(e != null) {
+                    Timber.e(e.getMessage());
+                    callback.onError(e);
+                    return;
+                }
+                boolean hasMoreNotes = notes.size() > NotesDelta.MAX_CHANGES;
+                changes.addAll(hasMoreNotes ? notes.subList(0, NotesDelta.MAX_CHANGES) : notes);
+                if (hasMoreNotes) {
+                    loadRemainingChangesAt(changes, callback);
+                } else {
+                    callback.onLoaded(toDelta(changes, true));
+                }
+            }
+        });
+    }
+
+    private static NotesDelta toDelta(List<Note> notes, boolean hasMoreChanges) {
+        List<NoteSnapshot> changedNotes = new ArrayList<>(notes.size());
+        List<String> deletedNoteIds = new ArrayList<>();
+        long highWaterMark = NoteSnapshot.NO_TIMESTAMP;
+        for (Note note : notes) {
+            NoteSnapshot snapshot = note.toSnapshot();
+            highWaterMark = Math.max(highWaterMark, snapshot.getUpdatedAt());
+            if (note.isDeleted()) {
+                deletedNoteIds.add(snapshot.getId());
+            } else {
+                changedNotes.add(snapshot);
+            }
+        }
+        return new NotesDelta(changedNotes, deletedNoteIds, highWaterMark, hasMoreChanges);
+    }
+
+    @Override
+    public void getNote(final String noteId, final NotesServiceCallback<NoteSnapshot> callback) {
+        ParseQuery<Note> query = newNotesQuery();
         query.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ELSE_CACHE);
         query.getInBackground(noteId, new GetCallback<Note>() {
             @Override
             public void done(Note note, ParseException e) {
                 if(e == null) {
-                    callback.onLoaded(note);
+                    callback.onLoaded(note.toSnapshot());
                 }
                 else {
                     Timber.e(e.getMessage());
+                    callback.onError(e);
                 }
             }
         });
     }
 
     @Override
-    public void saveNote(final Note note) {
-        note.saveEventually(new SaveCallback() {
+    public void saveNote(final NoteSnapshot note) {
+        mMutationQueue.enqueueSave(note);
+    }
+
+    @Override
+    public void deleteNote(final NoteSnapshot note) {
+        mMutationQueue.enqueueDelete(note);
+    }
+
+    @Override
+    public void writeMutation(@NonNull final NoteMutation mutation,
+                              @NonNull final NotesServiceCallback<NoteSnapshot> callback) {
+        if (mutation.getType() == NoteMutation.Type.DELETE && mutation.getNoteId() == null) {
+            deleteCreated(mutation, callback);
+            return;
+        }
+        if (mutation.getType() != NoteMutation.Type.CREATE) {
+            // Updates and tombstones overwrite the same object, writing them twice is harmless.
+            final Note note = mutation.getType() == NoteMutation.Type.UPDATE
+                    ? Note.fromSnapshot(mutation.getNote())
+                    : Note.tombstone(mutation.getNoteId());
+            save(note, mutation, callback);
+            return;
+        }
+        ParseQuery.getQuery(Note.class)
+                .whereEqualTo(Note.IDEMPOTENCY_KEY, mutation.getIdempotencyKey())
+                .getFirstInBackground(new GetCallback<Note>() {
+                    @Override
+                    public void done(Note existing, ParseException e) {
+                        if (e == null) {
+                            // Created by an earlier attempt whose answer got lost.
+                            callback.onLoaded(existing.toSnapshot());
+                        } else if (e.getCode() == ParseException.OBJECT_NOT_FOUND) {
+                            Note note = Note.fromSnapshot(mutation.getNote());
+                            note.put(Note.IDEMPOTENCY_KEY, mutation.getIdempotencyKey());
+                            save(note, mutation, callback);
+                        } else {
+                            Timber.e(e.getMessage());
+                            callback.onError(e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Finds the notes written by earlier attempts of the creates, and by the creates the deletes
+     * refer to, with a single query and writes the rest with a single batch request.
+     */
+    @Override
+    public void writeMutations(@NonNull final List<NoteMutation> mutations,
+                               @NonNull final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        List<String> keys = new ArrayList<>();
+        for (NoteMutation mutation : mutations) {
+            if (mutation.getType() == NoteMutation.Type.CREATE) {
+                keys.add(mutation.getIdempotencyKey());
+            } else if (mutation.getType() == NoteMutation.Type.DELETE
+                    && mutation.getNoteId() == null) {
+                keys.add(mutation.getCreateKey());
+            }
+        }
+        if (keys.isEmpty()) {
+            saveBatch(mutations, new ArrayMap<String, Note>(), callback);
+            return;
+        }
+        ParseQuery.getQuery(Note.class)
+                .whereContainedIn(Note.IDEMPOTENCY_KEY, keys)
+                .setLimit(keys.size())
+                .findInBackground(new FindCallback<Note>() {
+                    @Override
+                    public void done(List<Note> created, ParseException e) {
+                        if (e != null) {
+                            Timber.e(e.getMessage());
+                            callback.onError(e);
+                            return;
+                        }
+                        ArrayMap<String, Note> createdByKey = new ArrayMap<>(created.size());
+                        for (Note note : created) {
+                            createdByKey.put(note.getString(Note.IDEMPOTENCY_KEY), note);
+                        }
+                        saveBatch(mutations, createdByKey, callback);
+                    }
+                });
+    }
+
+    /**
+     * Saves the notes of the mutations with {@link ParseObject#saveAllInBackground}, except the
+     * creates in {@code createdByKey}: those were written before.
+     *
+     * @param createdByKey the notes written by creates, by their idempotency key
+     */
+    private static void saveBatch(final List<NoteMutation> mutations,
+                                  ArrayMap<String, Note> createdByKey,
+                                  final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        final List<NoteSnapshot> answers = new ArrayList<>(mutations.size());
+        final List<Note> notes = new ArrayList<>(mutations.size());
+        final List<Note> unsaved = new ArrayList<>(mutations.size());
+        for (NoteMutation mutation : mutations) {
+            Note note = null;
+            NoteSnapshot answer = null;
+            if (mutation.getType() == NoteMutation.Type.CREATE) {
+                Note created = createdByKey.get(mutation.getIdempotencyKey());
+                if (created != null) {
+                    // Created by an earlier attempt whose answer got lost.
+                    answer = created.toSnapshot();
+                } else {
+                    note = Note.fromSnapshot(mutation.getNote());
+                    note.put(Note.IDEMPOTENCY_KEY, mutation.getIdempotencyKey());
+                }
+            } else if (mutation.getType() == NoteMutation.Type.UPDATE) {
+                note = Note.fromSnapshot(mutation.getNote());
+            } else if (mutation.getNoteId() != null) {
+                note = Note.tombstone(mutation.getNoteId());
+            } else {
+                // If the create never arrived there is nothing to delete.
+                Note created = createdByKey.get(mutation.getCreateKey());
+                note = created == null ? null : Note.tombstone(created.getObjectId());
+            }
+            notes.add(note);
+            answers.add(answer);
+            if (note != null) {
+                unsaved.add(note);
+            }
+        }
+        if (unsaved.isEmpty()) {
+            callback.onLoaded(answers);
+            return;
+        }
+        ParseObject.saveAllInBackground(unsaved, new SaveCallback() {
             @Override
             public void done(ParseException e) {
-                if(e == null) {
-
+                if (e == null) {
+                    for (int i = 0; i < mutations.size(); i++) {
+                        if (notes.get(i) != null
+                                && mutations.get(i).getType() != NoteMutation.Type.DELETE) {
+                            answers.set(i, notes.get(i).toSnapshot());
+                        }
+                    }
+                    callback.onLoaded(answers);
+                } else {
+                    Timber.e("Could not write %d mutations to Parse! %s", unsaved.size(),
+                            e.getMessage());
+                    callback.onError(e);
                 }
-                else {
-                    Timber.e("Could not save '%s' to Parse! %s", note.getTitle(), e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Deletes the note written by the create with the key the delete carries, the device didn't
+     * know its id yet.
+     */
+    private static void deleteCreated(final NoteMutation mutation,
+                                      final NotesServiceCallback<NoteSnapshot> callback) {
+        ParseQuery.getQuery(Note.class)
+                .whereEqualTo(Note.IDEMPOTENCY_KEY, mutation.getCreateKey())
+                .getFirstInBackground(new GetCallback<Note>() {
+                    @Override
+                    public void done(Note created, ParseException e) {
+                        if (e == null) {
+                            save(Note.tombstone(created.getObjectId()), mutation, callback);
+                        } else if (e.getCode() == ParseException.OBJECT_NOT_FOUND) {
+                            // The create never arrived, so there is nothing to delete.
+                            callback.onLoaded(null);
+                        } else {
+                            Timber.e(e.getMessage());
+                            callback.onError(e);
+                        }
+                    }
+                });
+    }
+
+    private static void save(final Note note, final NoteMutation mutation,
+                             final NotesServiceCallback<NoteSnapshot> callback) {
+        note.saveInBackground(new SaveCallback() {
+            @Override
+            public void done(ParseException e) {
+                if (e == null) {
+                    callback.onLoaded(mutation.getType() == NoteMutation.Type.DELETE
+                            ? null : note.toSnapshot());
+                } else {
+                    Timber.e("Could not write %s to Parse! %s", mutation, e.getMessage());
+                    callback.onError(e);
                 }
             }
         });
     }
 
-    @Override
-    public void deleteNote(final Note note) {
-        note.deleteEventually(new DeleteCallback() {
+    /**
+     * Writes a batch of mutations with a single request. Deleted notes are replaced with a
+     * tombstone rather than deleted, so the deletion shows up in getNotesChangedSince() for other
+     * clients, which means deletes are saved along with everything else.
+     */
+    private void saveAll(final List<NoteSnapshot> saves, List<NoteSnapshot> deletes) {
+        final List<Note> notes = new ArrayList<>(saves.size() + deletes.size());
+        for (NoteSnapshot note : saves) {
+            notes.add(Note.fromSnapshot(note));
+        }
+        for (NoteSnapshot note : deletes) {
+            notes.add(Note.tombstone(note.getId()));
+        }
+        ParseObject.saveAllInBackground(notes, new SaveCallback() {
             @Override
             public void done(ParseException e) {
                 if(e == null) {
-                    Timber.d("Deleted %s", note.getTitle());
+                    Timber.d("Saved %d notes", notes.size());
+                    for (int i = 0; i < saves.size(); i++) {
+                        onSaved(saves.get(i), notes.get(i));
+                    }
                 }
                 else {
-                    Timber.e(e.getMessage());
+                    // Fall back to Parse's offline queue so the writes are not lost.
+                    Timber.e("Could not save %d notes to Parse! %s", notes.size(), e.getMessage());
+                    for (int i = 0; i < saves.size(); i++) {
+                        saveEventually(saves.get(i), notes.get(i));
+                    }
+                    for (Note tombstone : notes.subList(saves.size(), notes.size())) {
+                        tombstone.saveEventually();
+                    }
                 }
             }
         });
     }
+
+    private void saveEventually(final NoteSnapshot save, final Note note) {
+        if (save.getId() != null) {
+            note.saveEventually();
+            return;
+        }
+        note.saveEventually(new SaveCallback() {
+            @Override
+            public void done(ParseException e) {
+                if (e == null) {
+                    onSaved(save, note);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells the mutation queue the id of a new note, a delete may be waiting for it.
+     */
+    private void onSaved(NoteSnapshot save, Note note) {
+        if (save.getId() == null) {
+            mMutationQueue.onNoteCreated(save, note.toSnapshot());
+        }
+    }
+
+    /**
+     * @return a query for all notes that have not been deleted.
+     */
+    private static ParseQuery<Note> newNotesQuery() {
+        return ParseQuery.getQuery(Note.class).whereNotEqualTo(Note.DELETED, true);
+    }
+
+    private static List<NoteSnapshot> toSnapshots(List<Note> notes) {
+        List<NoteSnapshot> snapshots = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            snapshots.add(note.toSnapshot());
+        }
+        return snapshots;
+    }
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.SerialExecutor;
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Serves reads from notes stored on the device and only falls back to the remote
+ * {@link NotesServiceApi} while the device has nothing stored yet, the first full load from the
+ * remote API seeds the local {@link NoteLog}. Changes are always fetched from the remote API and
+ * written to the local log on their way to the caller, so syncing keeps the device up to date.
+ * Writes go to both.
+ * <p>
+ * A new note created through {@link #writeMutation} is stored under the idempotency key of its
+ * create until the remote API answers with the id it assigned, so it survives a restart while the
+ * device is offline. New notes saved through {@link #saveNote} are stored locally once they come
+ * back with the next sync.
+ * <p>
+ * The log is only read and written on the io scheduler, one task at a time, so local reads see
+ * every write made before them. Callbacks may be called on the io scheduler.
+ */
+public class OfflineFirstNotesServiceApi implements NotesServiceApi {
+
+    private static final NotesServiceCallback<NoteSnapshot> IGNORE_RESULT =
+            new NotesServiceCallback<NoteSnapshot>() {
+                @Override
+                public void onLoaded(NoteSnapshot note) {
+                }
+
+                @Override
+                public void onError(@NonNull Exception error) {
+                    // Logged by the local API.
+                }
+            };
+
+    private final NoteLog mNoteLog;
+
+    private final NotesServiceApi mLocalApi;
+
+    private final NotesServiceApi mRemoteApi;
+
+    private final Executor mLogExecutor;
+
+    /**
+     * Creates a service API that reads and writes the log on the calling thread.
+     */
+    public OfflineFirstNotesServiceApi(@NonNull NoteLog noteLog,
+                                       @NonNull NotesServiceApi remoteApi) {
+        this(noteLog, remoteApi, Schedulers.immediate().io());
+    }
+
+    public OfflineFirstNotesServiceApi(@NonNull NoteLog noteLog,
+                                       @NonNull NotesServiceApi remoteApi,
+                                       @NonNull TaskScheduler ioScheduler) {
+        mNoteLog = checkNotNull(noteLog);
+        mLocalApi = new LocalNotesServiceApiImpl(noteLog);
+        mRemoteApi = checkNotNull(remoteApi);
+        mLogExecutor = new SerialExecutor(ioScheduler, TaskScheduler.Priority.NORMAL);
+    }
+
+    @Override
+    public void getAllNotes(final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mNoteLog.isEmpty()) {
+                    mLocalApi.getAllNotes(callback);
+                    return;
+                }
+                mRemoteApi.getAllNotes(new NotesServiceCallback<List<NoteSnapshot>>() {
+                    @Override
+                    public void onLoaded(List<NoteSnapshot> notes) {
+                        storeAll(notes);
+                        callback.onLoaded(notes);
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        callback.onError(error);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void getNotesPage(final PageRequest request,
+                             final NotesServiceCallback<NotesPage> callback) {
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mNoteLog.isEmpty()) {
+                    mLocalApi.getNotesPage(request, callback);
+                    return;
+                }
+                // Seed the log with all notes, paging through a partially stored collection
+                // would skip the notes that are missing.
+                mRemoteApi.getAllNotes(new NotesServiceCallback<List<NoteSnapshot>>() {
+                    @Override
+                    public void onLoaded(List<NoteSnapshot> notes) {
+                        storeAll(notes);
+                        mLogExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                mLocalApi.getNotesPage(request, callback);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        callback.onError(error);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void getNotesChangedSince(long updatedAfter,
+                                     final NotesServiceCallback<NotesDelta> callback) {
+        mRemoteApi.getNotesChangedSince(updatedAfter, new NotesServiceCallback<NotesDelta>() {
+            @Override
+            public void onLoaded(final NotesDelta delta) {
+                storeAll(delta.getChangedNotes());
+                mLogExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (String noteId : delta.getDeletedNoteIds()) {
+                                mNoteLog.remove(noteId, delta.getHighWaterMark());
+                            }
+                        } catch (IOException e) {
+                            Timber.e(e, "Failed to store deleted notes");
+                        }
+                        // This device is the only client of the log and has now synced up to
+                        // the mark.
+                        mNoteLog.setSyncHighWaterMark(delta.getHighWaterMark());
+                        callback.onLoaded(delta);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    @Override
+    public void getNote(final String noteId, final NotesServiceCallback<NoteSnapshot> callback) {
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                NoteSnapshot note = mNoteLog.get(noteId);
+                if (note != null) {
+                    callback.onLoaded(note);
+                    return;
+                }
+                mRemoteApi.getNote(noteId, new NotesServiceCallback<NoteSnapshot>() {
+                    @Override
+                    public void onLoaded(NoteSnapshot note) {
+                        if (note != null) {
+                            storeAll(Collections.singletonList(note));
+                        }
+                        callback.onLoaded(note);
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception error) {
+                        callback.onError(error);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void saveNote(NoteSnapshot note) {
+        mRemoteApi.saveNote(note);
+        if (note.getId() != null) {
+            storeAll(Collections.singletonList(note));
+        }
+    }
+
+    @Override
+    public void deleteNote(final NoteSnapshot note) {
+        mRemoteApi.deleteNote(note);
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLocalApi.deleteNote(note);
+            }
+        });
+    }
+
+    /**
+     * Applies the mutation to the log before it is written to the remote API, so it shows up
+     * offline, and stores the note as the remote API answers with it.
+     */
+    @Override
+    public void writeMutation(@NonNull final NoteMutation mutation,
+                              @NonNull final NotesServiceCallback<NoteSnapshot> callback) {
+        applyLocally(mutation);
+        mRemoteApi.writeMutation(mutation, new NotesServiceCallback<NoteSnapshot>() {
+            @Override
+            public void onLoaded(NoteSnapshot note) {
+                storeWritten(mutation, note);
+                callback.onLoaded(note);
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #writeMutation}, the remote API gets all mutations in one call.
+     */
+    @Override
+    public void writeMutations(@NonNull final List<NoteMutation> mutations,
+                               @NonNull final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        for (NoteMutation mutation : mutations) {
+            applyLocally(mutation);
+        }
+        mRemoteApi.writeMutations(mutations, new NotesServiceCallback<List<NoteSnapshot>>() {
+            @Override
+            public void onLoaded(List<NoteSnapshot> notes) {
+                for (int i = 0; i < mutations.size(); i++) {
+                    storeWritten(mutations.get(i), notes.get(i));
+                }
+                callback.onLoaded(notes);
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    private void applyLocally(final NoteMutation mutation) {
+        if (mutation.getType() == NoteMutation.Type.UPDATE) {
+            storeAll(Collections.singletonList(mutation.getNote()));
+            return;
+        }
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Creates are stored under their key, like the local API does, and so are
+                // deletes of notes whose create was not answered yet.
+                mLocalApi.writeMutation(mutation, IGNORE_RESULT);
+            }
+        });
+    }
+
+    /**
+     * Stores the note the remote API answered {@code mutation} with, null for deletes.
+     */
+    private void storeWritten(NoteMutation mutation, @Nullable NoteSnapshot note) {
+        if (note == null) {
+            return;
+        }
+        if (mutation.getType() == NoteMutation.Type.CREATE) {
+            replaceCreated(mutation.getIdempotencyKey(), note);
+        } else {
+            storeAll(Collections.singletonList(note));
+        }
+    }
+
+    /**
+     * Replaces the note stored under the key of its create with the note the remote API created.
+     */
+    private void replaceCreated(final String idempotencyKey, final NoteSnapshot created) {
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mNoteLog.put(created);
+                    if (mNoteLog.get(idempotencyKey) != null) {
+                        mNoteLog.remove(idempotencyKey, created.getUpdatedAt());
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to store created note %s", created.getId());
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends the notes to the log on the io scheduler.
+     */
+    private void storeAll(final List<NoteSnapshot> notes) {
+        mLogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (NoteSnapshot note : notes) {
+                        mNoteLog.put(note);
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to store notes");
+                }
+            }
+        });
+    }
+}
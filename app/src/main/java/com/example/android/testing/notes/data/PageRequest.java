@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Comparator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Describes one page of notes. Pages are ordered by creation time and id and continue after the
+ * (createdAt, id) key of the last note of the previous page, so loading a page never has to skip
+ * over the notes that came before it.
+ */
+public final class PageRequest {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * Parse caps query limits at 1000 and one extra note is fetched to find out whether there is
+     * a next page.
+     */
+    public static final int MAX_PAGE_SIZE = 999;
+
+    /**
+     * Order of notes in pages: ascending by creation time, ties broken by id.
+     */
+    public static final Comparator<NoteSnapshot> KEYSET_ORDER = new Comparator<NoteSnapshot>() {
+        @Override
+        public int compare(NoteSnapshot first, NoteSnapshot second) {
+            return compareKeys(first.getCreatedAt(), first.getId(),
+                    second.getCreatedAt(), second.getId());
+        }
+    };
+
+    private final long mAfterCreatedAt;
+
+    @Nullable
+    private final String mAfterId;
+
+    private final int mPageSize;
+
+    private PageRequest(long afterCreatedAt, @Nullable String afterId, int pageSize) {
+        checkArgument(pageSize > 0 && pageSize <= MAX_PAGE_SIZE, "invalid page size %s", pageSize);
+        mAfterCreatedAt = afterCreatedAt;
+        mAfterId = afterId;
+        mPageSize = pageSize;
+    }
+
+    public static PageRequest firstPage(int pageSize) {
+        return new PageRequest(NoteSnapshot.NO_TIMESTAMP, null, pageSize);
+    }
+
+    /**
+     * @return the page of notes that come after the given note.
+     */
+    public static PageRequest after(@NonNull NoteSnapshot lastNote, int pageSize) {
+        return new PageRequest(lastNote.getCreatedAt(),
+                checkNotNull(lastNote.getId(), "only saved notes can be paged after"), pageSize);
+    }
+
+    public boolean isFirstPage() {
+        return mAfterId == null;
+    }
+
+    public long getAfterCreatedAt() {
+        return mAfterCreatedAt;
+    }
+
+    @Nullable
+    public String getAfterId() {
+        return mAfterId;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return true if the note sorts after the key this page continues from.
+     */
+    public boolean isAfterCursor(@NonNull NoteSnapshot note) {
+        return isFirstPage()
+                || compareKeys(note.getCreatedAt(), note.getId(), mAfterCreatedAt, mAfterId) > 0;
+    }
+
+    private static int compareKeys(long firstCreatedAt, @Nullable String firstId,
+                                   long secondCreatedAt, @Nullable String secondId) {
+        if (firstCreatedAt != secondCreatedAt) {
+            return firstCreatedAt < secondCreatedAt ? -1 : 1;
+        }
+        if (firstId == null || secondId == null) {
+            return firstId == null ? (secondId == null ? 0 : -1) : 1;
+        }
+        return firstId.compareTo(secondId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        PageRequest request = (PageRequest) o;
+        return mAfterCreatedAt == request.mAfterCreatedAt
+                && mPageSize == request.mPageSize
+                && Objects.equal(mAfterId, request.mAfterId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mAfterCreatedAt, mAfterId, mPageSize);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("afterCreatedAt", mAfterCreatedAt)
+                .add("afterId", mAfterId)
+                .add("pageSize", mPageSize)
+                .toString();
+    }
+}
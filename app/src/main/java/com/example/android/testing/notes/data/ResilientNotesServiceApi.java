@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.Cancellable;
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Wraps a {@link NotesServiceApi} so a slow or failing backend can't hang its callers: every call
+ * that loads notes gives up after {@link #TIMEOUT_MILLIS}, failed calls are tried again a few
+ * times with exponential backoff and a {@link CircuitBreaker} rejects calls right away while the
+ * backend is down. Callers get {@link NotesServiceCallback#onError(Exception)} once the last
+ * attempt failed. Loading all notes walks through the pages, each page is a call of its own.
+ * <p>
+ * Saves and deletes go straight through, the service API queues them until they are written.
+ * Mutations replayed from the {@link NoteOutbox} are retried like loads.
+ * Answers that arrive after their call timed out are dropped.
+ */
+public class ResilientNotesServiceApi implements NotesServiceApi {
+
+    @VisibleForTesting
+    static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Attempts per call, the first one included.
+     */
+    @VisibleForTesting
+    static final int MAX_ATTEMPTS = 3;
+
+    @VisibleForTesting
+    static final long BASE_BACKOFF_MILLIS = 500;
+
+    @VisibleForTesting
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(8);
+
+    @VisibleForTesting
+    static final int FAILURE_THRESHOLD = 5;
+
+    @VisibleForTesting
+    static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final NotesServiceApi mDelegate;
+
+    private final TaskScheduler mScheduler;
+
+    private final CircuitBreaker mCircuitBreaker;
+
+    private final Random mRandom;
+
+    private final AtomicLong mRetryCount = new AtomicLong();
+
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+
+    /**
+     * @param scheduler runs the timeouts and retries, callbacks may be called on it.
+     */
+    public ResilientNotesServiceApi(@NonNull NotesServiceApi delegate,
+                                    @NonNull TaskScheduler scheduler) {
+        this(delegate, scheduler, new CircuitBreaker(scheduler, FAILURE_THRESHOLD, OPEN_MILLIS),
+                new Random());
+    }
+
+    @VisibleForTesting
+    ResilientNotesServiceApi(@NonNull NotesServiceApi delegate, @NonNull TaskScheduler scheduler,
+                             @NonNull CircuitBreaker circuitBreaker, @NonNull Random random) {
+        mDelegate = checkNotNull(delegate);
+        mScheduler = checkNotNull(scheduler);
+        mCircuitBreaker = checkNotNull(circuitBreaker);
+        mRandom = checkNotNull(random);
+    }
+
+    /**
+     * Loads the pages one by one, so a long collection doesn't run into the timeout of a single
+     * call and a failed page is retried on its own.
+     */
+    @Override
+    public void getAllNotes(NotesServiceCallback<List<NoteSnapshot>> callback) {
+        loadRemainingPages(PageRequest.firstPage(PageRequest.MAX_PAGE_SIZE),
+                new ArrayList<NoteSnapshot>(), checkNotNull(callback));
+    }
+
+    private void loadRemainingPages(PageRequest request, final List<NoteSnapshot> loadedNotes,
+                                    final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        getNotesPage(request, new NotesServiceCallback<NotesPage>() {
+            @Override
+            public void onLoaded(NotesPage page) {
+                loadedNotes.addAll(page.getNotes());
+                if (page.isLastPage()) {
+                    callback.onLoaded(loadedNotes);
+                } else {
+                    loadRemainingPages(page.getNextPage(), loadedNotes, callback);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    @Override
+    public void getNotesPage(final PageRequest request, NotesServiceCallback<NotesPage> callback) {
+        new Call<NotesPage>(Method.GET_NOTES_PAGE, callback) {
+            @Override
+            void send(NotesServiceCallback<NotesPage> attempt) {
+                mDelegate.getNotesPage(request, attempt);
+            }
+        }.attempt();
+    }
+
+    @Override
+    public void getNotesChangedSince(final long updatedAfter,
+                                     NotesServiceCallback<NotesDelta> callback) {
+        new Call<NotesDelta>(Method.GET_NOTES_CHANGED_SINCE, callback) {
+            @Override
+            void send(NotesServiceCallback<NotesDelta> attempt) {
+                mDelegate.getNotesChangedSince(updatedAfter, attempt);
+            }
+        }.attempt();
+    }
+
+    @Override
+    public void getNote(final String noteId, NotesServiceCallback<NoteSnapshot> callback) {
+        new Call<NoteSnapshot>(Method.GET_NOTE, callback) {
+            @Override
+            void send(NotesServiceCallback<NoteSnapshot> attempt) {
+                mDelegate.getNote(noteId, attempt);
+            }
+        }.attempt();
+    }
+
+    @Override
+    public void saveNote(NoteSnapshot note) {
+        mDelegate.saveNote(note);
+    }
+
+    @Override
+    public void deleteNote(NoteSnapshot note) {
+        mDelegate.deleteNote(note);
+    }
+
+    /**
+     * Retried like the calls that load notes, the idempotency key makes that safe.
+     */
+    @Override
+    public void writeMutation(@NonNull final NoteMutation mutation,
+                              @NonNull NotesServiceCallback<NoteSnapshot> callback) {
+        new Call<NoteSnapshot>(Method.WRITE_MUTATION, callback) {
+            @Override
+            void send(NotesServiceCallback<NoteSnapshot> attempt) {
+                mDelegate.writeMutation(mutation, attempt);
+            }
+        }.attempt();
+    }
+
+    /**
+     * Retried as a whole, the idempotency keys make that safe for the mutations that were applied.
+     */
+    @Override
+    public void writeMutations(@NonNull final List<NoteMutation> mutations,
+                               @NonNull NotesServiceCallback<List<NoteSnapshot>> callback) {
+        new Call<List<NoteSnapshot>>(Method.WRITE_MUTATIONS, callback) {
+            @Override
+            void send(NotesServiceCallback<List<NoteSnapshot>> attempt) {
+                mDelegate.writeMutations(mutations, attempt);
+            }
+        }.attempt();
+    }
+
+    @NonNull
+    public CircuitBreaker.State getCircuitState() {
+        return mCircuitBreaker.getState();
+    }
+
+    /**
+     * @return the number of attempts after the first one of each call.
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * @return the number of attempts that were given up because they took too long.
+     */
+    public long getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+
+    /**
+     * @return the number of attempts rejected by the open circuit breaker.
+     */
+    public long getRejectedCount() {
+        return mCircuitBreaker.getRejectedCount();
+    }
+
+    /**
+     * "Full jitter": a random delay up to an exponentially growing cap, so clients that failed
+     * together don't all come back at the same time.
+     */
+    @VisibleForTesting
+    long backoffMillis(int failedAttempts) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (failedAttempts - 1));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * One call to the delegate and its retries.
+     */
+    private abstract class Call<T> implements Runnable {
+
+        private final Method mMethod;
+
+        private final NotesServiceCallback<T> mCallback;
+
+        private int mAttempts;
+
+        Call(Method method, NotesServiceCallback<T> callback) {
+            mMethod = method;
+            mCallback = checkNotNull(callback);
+        }
+
+        abstract void send(NotesServiceCallback<T> attempt);
+
+        void attempt() {
+            if (!mCircuitBreaker.allowRequest()) {
+                mCallback.onError(new IOException(mMethod + " rejected, the backend is down"));
+                return;
+            }
+            mAttempts++;
+            Attempt attempt = new Attempt();
+            send(attempt);
+            // Only started once the attempt is sent, so a delegate that answers right away never
+            // races its own timeout.
+            attempt.startTimeout();
+        }
+
+        /**
+         * Retries the call once its backoff has passed.
+         */
+        @Override
+        public void run() {
+            mRetryCount.incrementAndGet();
+            attempt();
+        }
+
+        private void onAttemptFailed(Exception error) {
+            mCircuitBreaker.onFailure();
+            if (mAttempts >= MAX_ATTEMPTS) {
+                Timber.w("%s failed after %d attempts: %s", mMethod, mAttempts, error);
+                mCallback.onError(error);
+                return;
+            }
+            mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, this,
+                    backoffMillis(mAttempts));
+        }
+
+        /**
+         * Waits for the answer to one attempt and gives up on it when it runs as the timeout.
+         */
+        private final class Attempt implements NotesServiceCallback<T>, Runnable {
+
+            private final AtomicBoolean mDone = new AtomicBoolean();
+
+            private volatile Cancellable mTimeout;
+
+            void startTimeout() {
+                Cancellable timeout = mScheduler.executeDelayed(TaskScheduler.Priority.HIGH,
+                        this, TIMEOUT_MILLIS);
+                mTimeout = timeout;
+                if (mDone.get()) {
+                    // Answered while the timeout was started.
+                    timeout.cancel();
+                }
+            }
+
+            @Override
+            public void onLoaded(T response) {
+                if (mDone.compareAndSet(false, true)) {
+                    cancelTimeout();
+                    mCircuitBreaker.onSuccess();
+                    mCallback.onLoaded(response);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull Exception error) {
+                if (mDone.compareAndSet(false, true)) {
+                    cancelTimeout();
+                    onAttemptFailed(error);
+                }
+            }
+
+            private void cancelTimeout() {
+                Cancellable timeout = mTimeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+            }
+
+            @Override
+            public void run() {
+                if (mDone.compareAndSet(false, true)) {
+                    mTimeoutCount.incrementAndGet();
+                    onAttemptFailed(new TimeoutException(
+                            mMethod + " took longer than " + TIMEOUT_MILLIS + " ms"));
+                }
+            }
+        }
+    }
+}
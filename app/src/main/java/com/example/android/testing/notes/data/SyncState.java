@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+/**
+ * Whether the writes of a note made on this device have reached the backend, see
+ * {@link NoteOutbox}.
+ */
+public enum SyncState {
+
+    /**
+     * Written on this device and waiting to be sent.
+     */
+    PENDING,
+
+    /**
+     * Every write was accepted by the backend.
+     */
+    SYNCED,
+
+    /**
+     * The last attempt to send a write failed, it is tried again later.
+     */
+    FAILED,
+
+    /**
+     * The backend refused a write or it failed too often, it is only sent again if the user asks
+     * for it.
+     */
+    NOT_SYNCED
+}
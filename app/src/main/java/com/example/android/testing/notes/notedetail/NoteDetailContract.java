@@ -45,5 +45,7 @@ public interface NoteDetailContract {
     interface UserActionsListener {
 
         void openNote(@Nullable String noteId);
+
+        void stop();
     }
 }
@@ -60,8 +60,8 @@ public class NoteDetailFragment extends Fragment implements NoteDetailContract.V
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
-        mActionsListener = new NoteDetailPresenter(Injection.provideNotesRepository(),
-                this);
+        mActionsListener = new NoteDetailPresenter(
+                Injection.provideNotesRepository(getContext()), this);
     }
 
     @Nullable
@@ -82,6 +82,12 @@ public class NoteDetailFragment extends Fragment implements NoteDetailContract.V
         mActionsListener.openNote(noteId);
     }
 
+    @Override
+    public void onStop() {
+        mActionsListener.stop();
+        super.onStop();
+    }
+
     @Override
     public void setProgressIndicator(boolean active) {
         if (active) {
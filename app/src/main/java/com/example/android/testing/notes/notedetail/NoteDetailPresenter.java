@@ -16,8 +16,10 @@
 
 package com.example.android.testing.notes.notedetail;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.CachePolicy;
+import com.example.android.testing.notes.data.NoteSnapshot;
 import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.data.NotesRequest;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -34,6 +36,22 @@ public class NoteDetailPresenter implements NoteDetailContract.UserActionsListen
 
     private final NoteDetailContract.View mNotesDetailView;
 
+    /**
+     * Incremented by every opened note, notes that were opened before are dropped when they
+     * arrive.
+     */
+    private int mGeneration;
+
+    @Nullable
+    private NotesRequest mNoteRequest;
+
+    /**
+     * Whether the opened note, or that it is missing, was shown.
+     */
+    private boolean mNoteShown;
+
+    private boolean mShowingProgress;
+
     public NoteDetailPresenter(@NonNull NotesRepository notesRepository,
                                @NonNull NoteDetailContract.View noteDetailView) {
         mNotesRepository = checkNotNull(notesRepository, "notesRepository cannot be null!");
@@ -42,26 +60,81 @@ public class NoteDetailPresenter implements NoteDetailContract.UserActionsListen
 
     @Override
     public void openNote(@Nullable String noteId) {
+        final int generation = cancelNoteRequest();
         if (null == noteId || noteId.isEmpty()) {
             mNotesDetailView.showMissingNote();
             return;
         }
 
-        mNotesDetailView.setProgressIndicator(true);
-        mNotesRepository.getNote(noteId, new NotesRepository.GetNoteCallback() {
-            @Override
-            public void onNoteLoaded(Note note) {
-                mNotesDetailView.setProgressIndicator(false);
-                if (null == note) {
-                    mNotesDetailView.showMissingNote();
-                } else {
-                    showNote(note);
-                }
-            }
-        });
+        mNoteShown = false;
+        // A cached note is shown right away and replaced if the service API has a newer version.
+        // Notes prefetched by the list are usually cached, so the note is already shown on the
+        // first frame instead of a progress indicator.
+        mNoteRequest = mNotesRepository.getNote(noteId, CachePolicy.CACHE_THEN_NETWORK,
+                new NotesRepository.GetNoteCallback() {
+                    @Nullable
+                    private NoteSnapshot mShownNote;
+
+                    @Override
+                    public void onNoteLoaded(NoteSnapshot note) {
+                        if (generation != mGeneration) {
+                            // Another note was opened or the view is gone.
+                            return;
+                        }
+                        mNoteShown = true;
+                        if (mShowingProgress) {
+                            mShowingProgress = false;
+                            mNotesDetailView.setProgressIndicator(false);
+                        }
+                        if (null == note) {
+                            mNotesDetailView.showMissingNote();
+                        } else if (!note.equals(mShownNote)) {
+                            mShownNote = note;
+                            showNote(note);
+                        }
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        if (mShowingProgress) {
+                            mShowingProgress = false;
+                            mNotesDetailView.setProgressIndicator(false);
+                        }
+                        if (!mNoteShown) {
+                            // Nothing to show, a cached note would have been shown already.
+                            mNoteShown = true;
+                            mNotesDetailView.showMissingNote();
+                        }
+                    }
+                });
+        if (generation == mGeneration && !mNoteShown) {
+            mShowingProgress = true;
+            mNotesDetailView.setProgressIndicator(true);
+        }
+    }
+
+    @Override
+    public void stop() {
+        cancelNoteRequest();
+    }
+
+    /**
+     * Cancels loading the note that is opened, its response is dropped if it arrives anyway.
+     *
+     * @return the generation of the note opened next.
+     */
+    private int cancelNoteRequest() {
+        if (mNoteRequest != null) {
+            mNoteRequest.cancel();
+            mNoteRequest = null;
+        }
+        return ++mGeneration;
     }
 
-    private void showNote(Note note) {
+    private void showNote(NoteSnapshot note) {
         String title = note.getTitle();
         String description = note.getDescription();
         String imageUrl = note.getImageUrl();
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.notes;
+
+import com.example.android.testing.notes.data.CachePolicy;
+import com.example.android.testing.notes.data.NoteSnapshot;
+import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.data.NotesRequest;
+import com.example.android.testing.notes.util.ImagePreloader;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Warms the note cache and the image cache for the notes the user is likely to open next, so the
+ * detail screen can show them on its first frame. The note under the user's finger goes first,
+ * then the notes opened recently and then the rows on screen.
+ * <p>
+ * Most prefetched notes are never opened, so only a few are loaded at a time and loading stops
+ * once a number of bytes was loaded without the user opening any of the notes.
+ * <p>
+ * Only use it on the main thread.
+ */
+public class NotePrefetcher {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    @VisibleForTesting
+    static final int MAX_RECENT_NOTES = 10;
+
+    private static final int MAX_PRELOADED_IMAGES = 100;
+
+    private final NotesRepository mNotesRepository;
+
+    private final ImagePreloader mImagePreloader;
+
+    private final int mMaxConcurrent;
+
+    private final long mMaxBytes;
+
+    /**
+     * The notes waiting to be prefetched, in order.
+     */
+    private final ArrayDeque<NoteSnapshot> mQueue = new ArrayDeque<>();
+
+    /**
+     * The ids of the notes being prefetched and their requests, null once only the image is left.
+     */
+    private final Map<String, NotesRequest> mInFlight = new HashMap<>();
+
+    /**
+     * The notes opened recently, the one opened last comes last.
+     */
+    private final Map<String, NoteSnapshot> mRecentNotes =
+            new LinkedHashMap<String, NoteSnapshot>(MAX_RECENT_NOTES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, NoteSnapshot> eldest) {
+                    return size() > MAX_RECENT_NOTES;
+                }
+            };
+
+    /**
+     * The urls of the images preloaded, Glide keeps them in its disk cache.
+     */
+    private final Map<String, Boolean> mPreloadedImages =
+            new LinkedHashMap<String, Boolean>(MAX_PRELOADED_IMAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_PRELOADED_IMAGES;
+                }
+            };
+
+    /**
+     * The bytes loaded since the user last opened a note.
+     */
+    private long mLoadedBytes;
+
+    /**
+     * Incremented by {@link #cancel()}, prefetches started before are dropped when they complete.
+     */
+    private int mGeneration;
+
+    private boolean mPrefetching;
+
+    public NotePrefetcher(@NonNull NotesRepository notesRepository,
+                          @NonNull ImagePreloader imagePreloader) {
+        this(notesRepository, imagePreloader, DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_BYTES);
+    }
+
+    public NotePrefetcher(@NonNull NotesRepository notesRepository,
+                          @NonNull ImagePreloader imagePreloader, int maxConcurrent,
+                          long maxBytes) {
+        checkArgument(maxConcurrent > 0, "maxConcurrent must be positive");
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        mNotesRepository = checkNotNull(notesRepository, "notesRepository cannot be null!");
+        mImagePreloader = checkNotNull(imagePreloader, "imagePreloader cannot be null!");
+        mMaxConcurrent = maxConcurrent;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Prefetches the notes opened recently and {@code visibleNotes}, replacing the notes that
+     * were on screen before.
+     */
+    public void prefetchVisible(@NonNull List<NoteSnapshot> visibleNotes) {
+        checkNotNull(visibleNotes);
+        mQueue.clear();
+        // The user is likely to go back to a note they just read.
+        List<NoteSnapshot> recentNotes = new ArrayList<>(mRecentNotes.values());
+        for (int i = recentNotes.size() - 1; i >= 0; i--) {
+            enqueue(recentNotes.get(i));
+        }
+        for (NoteSnapshot note : visibleNotes) {
+            enqueue(note);
+        }
+        prefetch();
+    }
+
+    /**
+     * Prefetches a note the user touched right away, the touch is often the start of a click.
+     */
+    public void prefetchTouched(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (note.getId() == null || mInFlight.containsKey(note.getId())) {
+            return;
+        }
+        remove(note.getId());
+        // Not limited, the note is most likely opened and loaded anyway.
+        start(note);
+    }
+
+    /**
+     * Remembers an opened note to prefetch it again later. Opening a note is what prefetching is
+     * for, so it allows loading as many bytes again.
+     */
+    public void noteOpened(@NonNull NoteSnapshot note) {
+        checkNotNull(note);
+        if (note.getId() != null) {
+            mRecentNotes.put(note.getId(), note);
+        }
+        mLoadedBytes = 0;
+    }
+
+    /**
+     * Stops prefetching, notes being loaded still end up in the cache.
+     */
+    public void cancel() {
+        mGeneration++;
+        mQueue.clear();
+        for (NotesRequest request : mInFlight.values()) {
+            if (request != null) {
+                request.cancel();
+            }
+        }
+        mInFlight.clear();
+    }
+
+    @VisibleForTesting
+    int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    @VisibleForTesting
+    long getLoadedBytes() {
+        return mLoadedBytes;
+    }
+
+    private void enqueue(NoteSnapshot note) {
+        String noteId = note.getId();
+        if (noteId != null && !mInFlight.containsKey(noteId) && !isQueued(noteId)) {
+            mQueue.addLast(note);
+        }
+    }
+
+    private boolean isQueued(String noteId) {
+        for (NoteSnapshot queued : mQueue) {
+            if (noteId.equals(queued.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(String noteId) {
+        Iterator<NoteSnapshot> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            if (noteId.equals(iterator.next().getId())) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private void prefetch() {
+        if (mPrefetching) {
+            // Called back from a prefetch that completed right away, the loop below goes on.
+            return;
+        }
+        mPrefetching = true;
+        try {
+            while (!mQueue.isEmpty() && mInFlight.size() < mMaxConcurrent
+                    && mLoadedBytes < mMaxBytes) {
+                start(mQueue.removeFirst());
+            }
+        } finally {
+            mPrefetching = false;
+        }
+    }
+
+    private void start(NoteSnapshot note) {
+        Prefetch prefetch = new Prefetch(note.getId());
+        mInFlight.put(note.getId(), null);
+        NotesRequest request = mNotesRepository.getNote(
+                note.getId(), CachePolicy.CACHE_ELSE_NETWORK, prefetch);
+        prefetch.mRequested = true;
+        if (request != null && request.isPending() && mInFlight.containsKey(note.getId())) {
+            mInFlight.put(note.getId(), request);
+        }
+    }
+
+    private static long estimateSize(@Nullable NoteSnapshot note) {
+        if (note == null) {
+            return 0;
+        }
+        // Two bytes per char, roughly what the note takes in memory.
+        return 2L * (length(note.getTitle()) + length(note.getDescription())
+                + length(note.getImageUrl()));
+    }
+
+    private static int length(@Nullable String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Loads a note and then its image.
+     */
+    private final class Prefetch
+            implements NotesRepository.GetNoteCallback, ImagePreloader.PreloadCallback {
+
+        private final String mNoteId;
+
+        private final int mStartGeneration = mGeneration;
+
+        /**
+         * Set once the repository was asked for the note, notes delivered before came from the
+         * cache and cost nothing.
+         */
+        private boolean mRequested;
+
+        Prefetch(String noteId) {
+            mNoteId = noteId;
+        }
+
+        @Override
+        public void onNoteLoaded(@Nullable NoteSnapshot note) {
+            if (mStartGeneration != mGeneration) {
+                return;
+            }
+            if (mRequested) {
+                mLoadedBytes += estimateSize(note);
+            }
+            String imageUrl = note == null ? null : note.getImageUrl();
+            if (imageUrl == null || mPreloadedImages.put(imageUrl, Boolean.TRUE) != null) {
+                complete();
+                return;
+            }
+            mInFlight.put(mNoteId, null);
+            mImagePreloader.preload(imageUrl, this);
+        }
+
+        @Override
+        public void onDataNotAvailable() {
+            if (mStartGeneration != mGeneration) {
+                return;
+            }
+            // Not worth retrying, the note is loaded again when it is opened.
+            complete();
+        }
+
+        @Override
+        public void onPreloaded(long bytes) {
+            if (mStartGeneration != mGeneration) {
+                return;
+            }
+            mLoadedBytes += bytes;
+            complete();
+        }
+
+        private void complete() {
+            mInFlight.remove(mNoteId);
+            prefetch();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.example.android.testing.notes.notes;
 
+import com.example.android.testing.notes.Injection;
 import com.example.android.testing.notes.R;
 import com.example.android.testing.notes.statistics.StatisticsActivity;
 import com.example.android.testing.notes.util.EspressoIdlingResource;
@@ -35,6 +36,9 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class NotesActivity extends AppCompatActivity {
 
     private DrawerLayout mDrawerLayout;
@@ -104,6 +108,21 @@ public class NotesActivity extends AppCompatActivity {
                 });
     }
 
+    /**
+     * Adds the service API latencies to {@code adb shell dumpsys activity <package>}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("NotesServiceApi:");
+        for (String line : Injection.provideNotesServiceApi().report().split("\n")) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(line);
+        }
+    }
+
     @VisibleForTesting
     public IdlingResource getCountingIdlingResource() {
         return EspressoIdlingResource.getIdlingResource();
@@ -18,9 +18,11 @@ package com.example.android.testing.notes.notes;
 
 import android.support.annotation.NonNull;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.NoteSnapshot;
+import com.example.android.testing.notes.data.SyncState;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * This specifies the contract between the view and the presenter.
@@ -31,7 +33,18 @@ public interface NotesContract {
 
         void setProgressIndicator(boolean active);
 
-        void showNotes(List<Note> notes);
+        void showNotes(List<NoteSnapshot> notes);
+
+        /**
+         * Tells the user the notes could not be loaded, the notes shown so far stay.
+         */
+        void showLoadingNotesError();
+
+        /**
+         * Marks the notes whose changes did not reach the backend yet, by note id. Notes missing
+         * from {@code syncStates} are synced.
+         */
+        void showSyncStates(Map<String, SyncState> syncStates);
 
         void showAddNote();
 
@@ -40,12 +53,60 @@ public interface NotesContract {
 
     interface UserActionsListener {
 
+        /**
+         * Called when the view is shown, loads the notes unless the ones shown are still fresh.
+         */
+        void start();
+
+        /**
+         * Called when the view is hidden, cancels the requests in flight.
+         */
+        void stop();
+
+        /**
+         * Called when the view is gone for good.
+         */
+        void destroy();
+
         void loadNotes(boolean forceUpdate);
 
+        void loadMoreNotes();
+
         void addNewNote();
 
-        void openNoteDetails(@NonNull Note requestedNote);
+        void openNoteDetails(@NonNull NoteSnapshot requestedNote);
+
+        /**
+         * Called with the notes on screen whenever the list comes to rest, gets them ready to be
+         * opened.
+         */
+        void prefetchNotes(@NonNull List<NoteSnapshot> visibleNotes);
+
+        /**
+         * Called when the user touches a note, gets it ready to be opened.
+         */
+        void prefetchNote(@NonNull NoteSnapshot touchedNote);
+
+        void removeNote(@NonNull NoteSnapshot noteToDelete);
+
+        void searchNotes(@NonNull String query);
+
+        void filterNotes(@NonNull String prefix);
+
+        /**
+         * Called when the device is back online, writes the changes that are waiting right away.
+         */
+        void retryPendingWrites();
+
+        /**
+         * Called when the user asks to send the changes of a note that could not be synced again.
+         */
+        void retrySync(@NonNull NoteSnapshot note);
 
-        void removeNote(@NonNull Note noteToDelete);
+        /**
+         * Called when the user gives up on the changes of a note that could not be synced, shows
+         * the note as the backend has it.
+         */
+        void discardUnsyncedChanges(@NonNull NoteSnapshot note);
     }
 }
@@ -20,14 +20,27 @@ import com.example.android.testing.notes.Injection;
 import com.example.android.testing.notes.addnote.AddNoteActivity;
 import com.example.android.testing.notes.notedetail.NoteDetailActivity;
 import com.example.android.testing.notes.R;
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.NoteSnapshot;
+import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.data.SyncState;
+import com.example.android.testing.notes.util.EspressoIdlingResource;
+import com.example.android.testing.notes.util.GlideImagePreloader;
+import com.example.android.testing.notes.util.ListDiff;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.TaskScheduler;
+import com.google.common.base.Function;
 import com.parse.DeleteCallback;
 import com.parse.ParseException;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.ClipData;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
@@ -35,36 +48,64 @@ import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
 import android.support.v7.widget.helper.ItemTouchHelper.SimpleCallback;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import timber.log.Timber;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Display a grid of {@link Note}s
+ * Display a grid of {@link NoteSnapshot}s
  */
 public class NotesFragment extends Fragment implements NotesContract.View {
 
     private static final int REQUEST_ADD_NOTE = 1;
 
+    private static final int LOAD_MORE_THRESHOLD = 10;
+
     private NotesContract.UserActionsListener mActionsListener;
 
     private NotesAdapter mListAdapter;
 
+    /**
+     * Writes the changes waiting in the outbox as soon as the device is back online, instead of
+     * waiting for their next retry.
+     */
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isInitialStickyBroadcast()) {
+                return;
+            }
+            ConnectivityManager connectivityManager =
+                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+            if (network != null && network.isConnected()) {
+                mActionsListener.retryPendingWrites();
+            }
+        }
+    };
+
     public NotesFragment() {
         // Requires empty public constructor
     }
@@ -76,13 +117,28 @@ public class NotesFragment extends Fragment implements NotesContract.View {
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mListAdapter = new NotesAdapter(new ArrayList<Note>(0), mItemListener);
+        mListAdapter = new NotesAdapter(new ArrayList<NoteSnapshot>(0), mItemListener);
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mActionsListener.start();
+        getActivity().registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        mActionsListener.loadNotes(false);
+    public void onStop() {
+        getActivity().unregisterReceiver(mConnectivityReceiver);
+        mActionsListener.stop();
+        super.onStop();
+    }
+
+    @Override
+    public void onDestroy() {
+        mActionsListener.destroy();
+        super.onDestroy();
     }
 
     @Override
@@ -91,8 +147,12 @@ public class NotesFragment extends Fragment implements NotesContract.View {
 
         setRetainInstance(true);
 
-        mActionsListener = new NotesPresenter(Injection.provideNotesRepository(), this);
-
+        // The presenter is retained with the fragment, along with the notes it has loaded.
+        if (mActionsListener == null) {
+            NotesRepository repository = Injection.provideNotesRepository(getContext());
+            mActionsListener = new NotesPresenter(repository, this, Schedulers.getDefault(),
+                    new NotePrefetcher(repository, new GlideImagePreloader(getContext())));
+        }
     }
 
     @Override
@@ -116,7 +176,32 @@ public class NotesFragment extends Fragment implements NotesContract.View {
         recyclerView.setHasFixedSize(true);
         recyclerView.addItemDecoration(new DividerItemDecoration(getContext(), null));
         recyclerView.setItemAnimator(new DefaultItemAnimator());
-        recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+        recyclerView.setLayoutManager(layoutManager);
+
+        // Load the next page before the user reaches the end of the list and get the notes on
+        // screen ready to be opened once the list comes to rest
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int lastVisiblePosition = layoutManager.findLastVisibleItemPosition();
+                if (dy > 0 && lastVisiblePosition
+                        >= mListAdapter.getItemCount() - LOAD_MORE_THRESHOLD) {
+                    mActionsListener.loadMoreNotes();
+                }
+                if (dx == 0 && dy == 0) {
+                    // Laid out again, e.g. after the notes changed.
+                    prefetchVisibleNotes(layoutManager);
+                }
+            }
+
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prefetchVisibleNotes(layoutManager);
+                }
+            }
+        });
 
         SimpleCallback simpleItemTouchCallback = new ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.LEFT|ItemTouchHelper.RIGHT) {
             @Override
@@ -151,6 +236,23 @@ public class NotesFragment extends Fragment implements NotesContract.View {
             }
         });
 
+        // Filter the list as the user types
+        EditText filter = (EditText) root.findViewById(R.id.notes_filter);
+        filter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mActionsListener.filterNotes(s.toString());
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
         // Pull-to-refresh
         SwipeRefreshLayout swipeRefreshLayout =
                 (SwipeRefreshLayout) root.findViewById(R.id.refresh_layout);
@@ -167,20 +269,58 @@ public class NotesFragment extends Fragment implements NotesContract.View {
         return root;
     }
 
+    private void prefetchVisibleNotes(LinearLayoutManager layoutManager) {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last >= mListAdapter.getItemCount()) {
+            return;
+        }
+        List<NoteSnapshot> visibleNotes = new ArrayList<>(last - first + 1);
+        for (int position = first; position <= last; position++) {
+            visibleNotes.add(mListAdapter.getItem(position));
+        }
+        mActionsListener.prefetchNotes(visibleNotes);
+    }
+
     /**
      * Listener for clicks on notes in the RecyclerView.
      */
     NoteItemListener mItemListener = new NoteItemListener() {
         @Override
-        public void onNoteClick(Note clickedNote) {
+        public void onNoteClick(NoteSnapshot clickedNote) {
             mActionsListener.openNoteDetails(clickedNote);
         }
 
         @Override
-        public void onItemRemove(Note removedNote) {
+        public void onNoteTouched(NoteSnapshot touchedNote) {
+            mActionsListener.prefetchNote(touchedNote);
+        }
+
+        @Override
+        public void onItemRemove(NoteSnapshot removedNote) {
             Timber.d("We need to remove the item now!");
             mActionsListener.removeNote(removedNote);
-//            mActionsListener.loadNotes(true);
+        }
+
+        @Override
+        public void onNotSyncedClick(final NoteSnapshot note) {
+            new AlertDialog.Builder(getContext())
+                    .setMessage(R.string.not_synced_message)
+                    .setPositiveButton(R.string.not_synced_retry,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    mActionsListener.retrySync(note);
+                                }
+                            })
+                    .setNegativeButton(R.string.not_synced_discard,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    mActionsListener.discardUnsyncedChanges(note);
+                                }
+                            })
+                    .show();
         }
     };
 
@@ -203,10 +343,24 @@ public class NotesFragment extends Fragment implements NotesContract.View {
     }
 
     @Override
-    public void showNotes(List<Note> notes) {
+    public void showNotes(List<NoteSnapshot> notes) {
         mListAdapter.replaceData(notes);
     }
 
+    @Override
+    public void showLoadingNotesError() {
+        if (getView() == null) {
+            return;
+        }
+        Snackbar.make(getView(), getString(R.string.loading_notes_error),
+                Snackbar.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void showSyncStates(Map<String, SyncState> syncStates) {
+        mListAdapter.replaceSyncStates(syncStates);
+    }
+
     @Override
     public void showAddNote() {
         Intent intent = new Intent(getContext(), AddNoteActivity.class);
@@ -225,12 +379,34 @@ public class NotesFragment extends Fragment implements NotesContract.View {
 
     private static class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.ViewHolder> {
 
-        private List<Note> mNotes;
+        private static final Function<NoteSnapshot, String> NOTE_ID =
+                new Function<NoteSnapshot, String>() {
+                    @Override
+                    public String apply(NoteSnapshot note) {
+                        return note.getId();
+                    }
+                };
+
+        private final Schedulers mSchedulers = Schedulers.getDefault();
+
+        /**
+         * Incremented by every {@link #replaceData(List)}, older lists are dropped when their
+         * comparison is done.
+         */
+        private int mReplaceGeneration;
+
+        /**
+         * Incremented whenever {@link #mNotes} changes.
+         */
+        private int mListVersion;
+
+        private List<NoteSnapshot> mNotes;
+        private Map<String, SyncState> mSyncStates = Collections.emptyMap();
         private NoteItemListener mItemListener;
         private SimpleDateFormat simpleDateFormat;
-        public List<Note> mNotesToRemove;
+        public List<NoteSnapshot> mNotesToRemove;
 
-        public NotesAdapter(List<Note> notes, NoteItemListener itemListener) {
+        public NotesAdapter(List<NoteSnapshot> notes, NoteItemListener itemListener) {
             setList(notes);
             mItemListener = itemListener;
             mNotesToRemove = new ArrayList<>();
@@ -249,11 +425,16 @@ public class NotesFragment extends Fragment implements NotesContract.View {
 
         @Override
         public void onBindViewHolder(final ViewHolder viewHolder, final int position) {
-            final Note note = mNotes.get(position);
+            final NoteSnapshot note = mNotes.get(position);
             final View undo = viewHolder.itemView.findViewById(R.id.undo_layout);
 
             viewHolder.title.setText(note.getTitle());
-            viewHolder.createdDate.setText(simpleDateFormat.format(note.getCreatedAt()));
+            if (note.getCreatedAt() == NoteSnapshot.NO_TIMESTAMP) {
+                viewHolder.createdDate.setText(null);
+            } else {
+                viewHolder.createdDate.setText(simpleDateFormat.format(note.getCreatedAt()));
+            }
+            bindSyncState(viewHolder.syncState, note);
 
             if (undo != null) {
 
@@ -288,19 +469,132 @@ public class NotesFragment extends Fragment implements NotesContract.View {
             }
         }
 
-        private void removeNote(final Note note, final int position) {
+        private void bindSyncState(TextView view, final NoteSnapshot note) {
+            view.setOnClickListener(null);
+            view.setClickable(false);
+            switch (getSyncState(note)) {
+                case PENDING:
+                    view.setText(R.string.sync_state_pending);
+                    view.setVisibility(View.VISIBLE);
+                    break;
+                case FAILED:
+                    view.setText(R.string.sync_state_failed);
+                    view.setVisibility(View.VISIBLE);
+                    break;
+                case NOT_SYNCED:
+                    view.setText(R.string.sync_state_not_synced);
+                    view.setVisibility(View.VISIBLE);
+                    // Only the user can decide whether to send the changes again.
+                    view.setOnClickListener(new View.OnClickListener() {
+                        @Override
+                        public void onClick(View v) {
+                            mItemListener.onNotSyncedClick(note);
+                        }
+                    });
+                    break;
+                default:
+                    view.setVisibility(View.GONE);
+            }
+        }
+
+        private SyncState getSyncState(NoteSnapshot note) {
+            SyncState syncState = note.getId() == null ? null : mSyncStates.get(note.getId());
+            return syncState == null ? SyncState.SYNCED : syncState;
+        }
+
+        /**
+         * Shows the new sync states, only the rows whose state changed are bound again.
+         */
+        public void replaceSyncStates(Map<String, SyncState> syncStates) {
+            Map<String, SyncState> oldSyncStates = mSyncStates;
+            mSyncStates = checkNotNull(syncStates);
+            for (int i = 0; i < mNotes.size(); i++) {
+                String noteId = mNotes.get(i).getId();
+                if (noteId != null && oldSyncStates.get(noteId) != syncStates.get(noteId)) {
+                    notifyItemChanged(i);
+                }
+            }
+        }
+
+        private void removeNote(final NoteSnapshot note, final int position) {
             mNotes.remove(note);
+            mListVersion++;
             notifyItemRemoved(position);
             mItemListener.onItemRemove(note);
         }
 
-        public void replaceData(List<Note> notes) {
-            setList(notes);
-            notifyDataSetChanged();
+        /**
+         * Compares the shown notes with {@code notes} in the background and only notifies the
+         * rows that changed, so refreshing a long list keeps its animations and doesn't drop
+         * frames.
+         */
+        public void replaceData(List<NoteSnapshot> notes) {
+            final List<NoteSnapshot> oldNotes = new ArrayList<>(mNotes);
+            final List<NoteSnapshot> newNotes = new ArrayList<>(checkNotNull(notes));
+            final int generation = ++mReplaceGeneration;
+            final int version = mListVersion;
+
+            // The rows are not up to date until the comparison is done.
+            EspressoIdlingResource.increment(); // App is busy until further notice
+
+            // Compared off the main thread, ahead of work the user is not waiting for.
+            mSchedulers.compute().execute(TaskScheduler.Priority.HIGH, new Runnable() {
+                @Override
+                public void run() {
+                    final ListDiff diff = ListDiff.calculate(oldNotes, newNotes, NOTE_ID);
+                    mSchedulers.main().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            EspressoIdlingResource.decrement(); // Set app as idle.
+                            applyData(generation, version, newNotes, diff);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void applyData(int generation, int version, List<NoteSnapshot> notes,
+                               @Nullable ListDiff diff) {
+            if (generation != mReplaceGeneration) {
+                // A newer list is being compared already.
+                return;
+            }
+            boolean swiped = version != mListVersion;
+            mNotes = notes;
+            mListVersion++;
+            if (diff == null || swiped) {
+                // Too many changes to compare, or a row was swiped away in the meantime and the
+                // positions don't match anymore.
+                notifyDataSetChanged();
+            } else {
+                diff.dispatchTo(new ListDiff.Callback() {
+                    @Override
+                    public void onInserted(int position, int count) {
+                        notifyItemRangeInserted(position, count);
+                    }
+
+                    @Override
+                    public void onRemoved(int position, int count) {
+                        notifyItemRangeRemoved(position, count);
+                    }
+
+                    @Override
+                    public void onMoved(int fromPosition, int toPosition) {
+                        notifyItemMoved(fromPosition, toPosition);
+                    }
+
+                    @Override
+                    public void onChanged(int position, int count) {
+                        notifyItemRangeChanged(position, count);
+                    }
+                });
+            }
         }
 
-        private void setList(List<Note> notes) {
-            mNotes = checkNotNull(notes);
+        private void setList(List<NoteSnapshot> notes) {
+            // The repository hands out its cached list, keep a private copy since rows get
+            // removed from it when swiped away.
+            mNotes = new ArrayList<>(checkNotNull(notes));
         }
 
         @Override
@@ -308,14 +602,16 @@ public class NotesFragment extends Fragment implements NotesContract.View {
             return mNotes.size();
         }
 
-        public Note getItem(int position) {
+        public NoteSnapshot getItem(int position) {
             return mNotes.get(position);
         }
 
-        public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        public class ViewHolder extends RecyclerView.ViewHolder
+                implements View.OnClickListener, View.OnTouchListener {
 
             public TextView title;
             public TextView createdDate;
+            public TextView syncState;
 
             private NoteItemListener mItemListener;
 
@@ -325,16 +621,30 @@ public class NotesFragment extends Fragment implements NotesContract.View {
 
                 title = (TextView) itemView.findViewById(R.id.note_detail_title);
                 createdDate = (TextView) itemView.findViewById(R.id.note_detail_created_date);
+                syncState = (TextView) itemView.findViewById(R.id.note_sync_state);
 
                 itemView.findViewById(R.id.note_row).setOnClickListener(this);
+                itemView.findViewById(R.id.note_row).setOnTouchListener(this);
 
                 itemView.setOnClickListener(this);
+                itemView.setOnTouchListener(this);
+            }
+
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                int position = getAdapterPosition();
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN
+                        && position != RecyclerView.NO_POSITION) {
+                    mItemListener.onNoteTouched(getItem(position));
+                }
+                // Only watching, the touch still becomes a click or a swipe.
+                return false;
             }
 
             @Override
             public void onClick(View v) {
                 int position = getAdapterPosition();
-                Note note = getItem(position);
+                NoteSnapshot note = getItem(position);
                 mItemListener.onNoteClick(note);
 
             }
@@ -343,9 +653,13 @@ public class NotesFragment extends Fragment implements NotesContract.View {
 
     public interface NoteItemListener {
 
-        void onNoteClick(Note clickedNote);
+        void onNoteClick(NoteSnapshot clickedNote);
+
+        void onNoteTouched(NoteSnapshot touchedNote);
+
+        void onItemRemove(NoteSnapshot removedNote);
 
-        void onItemRemove(Note removedNote);
+        void onNotSyncedClick(NoteSnapshot note);
     }
 
 }
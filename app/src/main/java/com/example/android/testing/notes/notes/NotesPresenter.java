@@ -16,13 +16,27 @@
 
 package com.example.android.testing.notes.notes;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.CachePolicy;
+import com.example.android.testing.notes.data.NoteSnapshot;
+import com.example.android.testing.notes.data.NotesChange;
+import com.example.android.testing.notes.data.NotesPage;
 import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.data.NotesRequest;
+import com.example.android.testing.notes.data.PageRequest;
+import com.example.android.testing.notes.data.SyncState;
 import com.example.android.testing.notes.util.EspressoIdlingResource;
+import com.example.android.testing.notes.util.ImagePreloader;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.TaskScheduler;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -33,34 +47,325 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class NotesPresenter implements NotesContract.UserActionsListener {
 
+    @VisibleForTesting
+    static final int PAGE_SIZE = PageRequest.DEFAULT_PAGE_SIZE;
+
+    @VisibleForTesting
+    static final int SEARCH_LIMIT = 50;
+
+    /**
+     * Every match is shown, so a filtered list never silently leaves notes out.
+     */
+    @VisibleForTesting
+    static final int FILTER_LIMIT = Integer.MAX_VALUE;
+
+    /**
+     * Notes loaded longer ago than this are loaded again when the list is shown.
+     */
+    @VisibleForTesting
+    static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long NEVER = -1;
+
     private final NotesRepository mNotesRepository;
     private final NotesContract.View mNotesView;
+    private final TaskScheduler mClock;
+    private final NotePrefetcher mPrefetcher;
+
+    private final List<NoteSnapshot> mLoadedNotes = new ArrayList<>();
+
+    @Nullable
+    private PageRequest mNextPage;
+
+    private boolean mLoadingMoreNotes;
+
+    /**
+     * Incremented by every load, search or filter, responses to older ones are dropped when they
+     * arrive. Cancelling a request is only a hint to the repository.
+     */
+    private int mGeneration;
+
+    /**
+     * The sync or first page load in progress.
+     */
+    @Nullable
+    private NotesRequest mLoadRequest;
+
+    @Nullable
+    private NotesRequest mLoadMoreRequest;
+
+    @Nullable
+    private NotesRequest mQueryRequest;
+
+    private boolean mShowingFoundNotes;
+
+    /**
+     * When the first page was last loaded from the service API, on {@link #mClock}.
+     */
+    private long mLoadedAt = NEVER;
+
+    /**
+     * Set if the repository reported changes that could not be applied to the shown notes.
+     */
+    private boolean mOutdated;
+
+    private boolean mSubscribed;
+
+    /**
+     * Keeps the shown pages up to date with notes saved, deleted or synced anywhere in the app, so
+     * the list doesn't have to be loaded again after every change. Changes keep coming in while
+     * the view is stopped, so the notes are still up to date when it comes back.
+     */
+    private final NotesRepository.NotesObserver mNotesObserver =
+            new NotesRepository.NotesObserver() {
+                @Override
+                public void onNotesChanged(List<NotesChange> changes) {
+                    if (mShowingFoundNotes) {
+                        // Search and filter results are not kept up to date, the pages are
+                        // loaded again once the query is cleared.
+                        mOutdated = true;
+                        return;
+                    }
+                    boolean changed = false;
+                    for (NotesChange change : changes) {
+                        changed |= applyChange(change);
+                    }
+                    if (changed) {
+                        mNotesView.showNotes(new ArrayList<>(mLoadedNotes));
+                    }
+                }
+            };
+
+    private final NotesRepository.SyncStateObserver mSyncStateObserver =
+            new NotesRepository.SyncStateObserver() {
+                @Override
+                public void onSyncStatesChanged(Map<String, SyncState> syncStates) {
+                    mNotesView.showSyncStates(syncStates);
+                }
+            };
 
     public NotesPresenter(
             @NonNull NotesRepository notesRepository, @NonNull NotesContract.View notesView) {
+        this(notesRepository, notesView, Schedulers.immediate());
+    }
+
+    /**
+     * Creates a presenter that tells the age of the loaded notes by the main scheduler of
+     * {@code schedulers}.
+     */
+    public NotesPresenter(@NonNull NotesRepository notesRepository,
+                          @NonNull NotesContract.View notesView,
+                          @NonNull Schedulers schedulers) {
+        this(notesRepository, notesView, schedulers,
+                new NotePrefetcher(notesRepository, ImagePreloader.NONE));
+    }
+
+    /**
+     * Creates a presenter that gets the notes the user is likely to open ready with
+     * {@code prefetcher}.
+     */
+    public NotesPresenter(@NonNull NotesRepository notesRepository,
+                          @NonNull NotesContract.View notesView,
+                          @NonNull Schedulers schedulers,
+                          @NonNull NotePrefetcher prefetcher) {
         mNotesRepository = checkNotNull(notesRepository, "notesRepository cannot be null");
         mNotesView = checkNotNull(notesView, "notesView cannot be null!");
+        mClock = checkNotNull(schedulers, "schedulers cannot be null!").main();
+        mPrefetcher = checkNotNull(prefetcher, "prefetcher cannot be null!");
+    }
+
+    @Override
+    public void start() {
+        if (!mSubscribed) {
+            mNotesRepository.subscribe(mNotesObserver);
+            mNotesRepository.subscribeToSyncStates(mSyncStateObserver);
+            mSubscribed = true;
+        }
+        // The view keeps showing the notes of the last load, e.g. after a rotation or when coming
+        // back from another screen.
+        if (isStale()) {
+            loadNotes(false);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Nobody will see the responses anymore.
+        supersedeRequests();
+        mPrefetcher.cancel();
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+        if (mSubscribed) {
+            mNotesRepository.unsubscribe(mNotesObserver);
+            mNotesRepository.unsubscribeFromSyncStates(mSyncStateObserver);
+            mSubscribed = false;
+        }
+    }
+
+    private boolean isStale() {
+        return mLoadedAt == NEVER || mOutdated || mClock.now() - mLoadedAt >= MAX_AGE_MILLIS;
     }
 
     @Override
     public void loadNotes(boolean forceUpdate) {
+        final int generation = supersedeRequests();
         mNotesView.setProgressIndicator(true);
-        if (forceUpdate) {
-            mNotesRepository.refreshData();
-        }
 
         // The network request might be handled in a different thread so make sure Espresso knows
         // that the app is busy until the response is handled.
         EspressoIdlingResource.increment(); // App is busy until further notice
 
-        mNotesRepository.getNotes(new NotesRepository.LoadNotesCallback() {
-            @Override
-            public void onNotesLoaded(List<Note> notes) {
-                EspressoIdlingResource.decrement(); // Set app as idle.
-                mNotesView.setProgressIndicator(false);
-                mNotesView.showNotes(notes);
+        if (forceUpdate) {
+            // Only fetch what changed since the last load instead of the whole collection.
+            NotesRequest syncRequest = mNotesRepository.syncNotes(
+                    new NotesRepository.SyncNotesCallback() {
+                        @Override
+                        public void onNotesSynced() {
+                            if (generation != mGeneration) {
+                                EspressoIdlingResource.decrement(); // Set app as idle.
+                                return;
+                            }
+                            loadFirstPage(generation);
+                        }
+
+                        @Override
+                        public void onDataNotAvailable() {
+                            EspressoIdlingResource.decrement(); // Set app as idle.
+                            if (generation == mGeneration) {
+                                // The notes shown so far stay, they are only not up to date.
+                                showLoadingError();
+                            }
+                        }
+                    });
+            if (isPending(syncRequest)) {
+                // Otherwise the first page is being loaded already.
+                mLoadRequest = syncRequest;
             }
-        });
+        } else {
+            loadFirstPage(generation);
+        }
+    }
+
+    private void loadFirstPage(final int generation) {
+        // Only the first page is loaded, the rest follows as the user scrolls through the list.
+        // Cached notes are shown right away while the fresh page is loaded.
+        mLoadRequest = mNotesRepository.getNotesPage(PageRequest.firstPage(PAGE_SIZE),
+                CachePolicy.CACHE_THEN_NETWORK, new NotesRepository.LoadNotesPageCallback() {
+                    @Override
+                    public void onNotesPageLoaded(NotesPage page) {
+                        if (!page.isFromCache()) {
+                            EspressoIdlingResource.decrement(); // Set app as idle.
+                        }
+                        if (generation != mGeneration) {
+                            // Superseded by a newer load, search or filter.
+                            return;
+                        }
+                        if (!page.isFromCache()) {
+                            mNotesView.setProgressIndicator(false);
+                            mLoadedAt = mClock.now();
+                            mOutdated = false;
+                        }
+                        mLoadedNotes.clear();
+                        showPage(page);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        if (generation == mGeneration) {
+                            // Cached notes, if there were any, stay on screen.
+                            showLoadingError();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void loadMoreNotes() {
+        if (mNextPage == null || mLoadingMoreNotes) {
+            return;
+        }
+        mLoadingMoreNotes = true;
+        final int generation = mGeneration;
+        EspressoIdlingResource.increment(); // App is busy until further notice
+
+        mLoadMoreRequest = mNotesRepository.getNotesPage(mNextPage,
+                new NotesRepository.LoadNotesPageCallback() {
+                    @Override
+                    public void onNotesPageLoaded(NotesPage page) {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        if (generation != mGeneration) {
+                            // The list was loaded again in the meantime.
+                            return;
+                        }
+                        mLoadingMoreNotes = false;
+                        showPage(page);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        // The next page is tried again when the user scrolls to the end.
+                        mLoadingMoreNotes = false;
+                        mNotesView.showLoadingNotesError();
+                    }
+                });
+    }
+
+    private void showLoadingError() {
+        mLoadRequest = null;
+        mNotesView.setProgressIndicator(false);
+        mNotesView.showLoadingNotesError();
+    }
+
+    /**
+     * Cancels the requests in flight, their responses are dropped if they arrive anyway.
+     *
+     * @return the generation of the requests that replace them.
+     */
+    private int supersedeRequests() {
+        if (cancel(mLoadRequest)) {
+            mNotesView.setProgressIndicator(false);
+        }
+        cancel(mLoadMoreRequest);
+        cancel(mQueryRequest);
+        mLoadRequest = null;
+        mLoadMoreRequest = null;
+        mQueryRequest = null;
+        mLoadingMoreNotes = false;
+        return ++mGeneration;
+    }
+
+    /**
+     * Cancels {@code request} if it is still waiting for its response.
+     *
+     * @return true if the request was cancelled.
+     */
+    private static boolean cancel(@Nullable NotesRequest request) {
+        if (!isPending(request)) {
+            return false;
+        }
+        request.cancel();
+        // The callback won't be called, so it can't tell Espresso either.
+        EspressoIdlingResource.decrement(); // Set app as idle.
+        return true;
+    }
+
+    private static boolean isPending(@Nullable NotesRequest request) {
+        return request != null && request.isPending();
+    }
+
+    private void showPage(NotesPage page) {
+        mShowingFoundNotes = false;
+        mLoadedNotes.addAll(page.getNotes());
+        mNextPage = page.getNextPage();
+        mNotesView.showNotes(new ArrayList<>(mLoadedNotes));
     }
 
     @Override
@@ -69,14 +374,161 @@ public class NotesPresenter implements NotesContract.UserActionsListener {
     }
 
     @Override
-    public void openNoteDetails(@NonNull Note requestedNote) {
+    public void openNoteDetails(@NonNull NoteSnapshot requestedNote) {
         checkNotNull(requestedNote, "requestedNote cannot be null!");
+        mPrefetcher.noteOpened(requestedNote);
         mNotesView.showNoteDetailUi(requestedNote.getId());
     }
 
     @Override
-    public void removeNote(@NonNull Note noteToDelete) {
+    public void prefetchNotes(@NonNull List<NoteSnapshot> visibleNotes) {
+        checkNotNull(visibleNotes, "visibleNotes cannot be null!");
+        mPrefetcher.prefetchVisible(visibleNotes);
+    }
+
+    @Override
+    public void prefetchNote(@NonNull NoteSnapshot touchedNote) {
+        checkNotNull(touchedNote, "touchedNote cannot be null!");
+        mPrefetcher.prefetchTouched(touchedNote);
+    }
+
+    @Override
+    public void removeNote(@NonNull NoteSnapshot noteToDelete) {
         mNotesRepository.deleteNote(noteToDelete);
     }
 
+    @Override
+    public void retryPendingWrites() {
+        mNotesRepository.retryPendingWrites();
+    }
+
+    @Override
+    public void retrySync(@NonNull NoteSnapshot note) {
+        mNotesRepository.retrySync(checkNotNull(note));
+    }
+
+    @Override
+    public void discardUnsyncedChanges(@NonNull NoteSnapshot note) {
+        mNotesRepository.discardUnsyncedChanges(checkNotNull(note));
+        loadNotes(false);
+    }
+
+    @Override
+    public void searchNotes(@NonNull String query) {
+        checkNotNull(query, "query cannot be null!");
+        if (query.trim().isEmpty()) {
+            loadNotes(false);
+            return;
+        }
+        final int generation = supersedeRequests();
+        EspressoIdlingResource.increment(); // App is busy until further notice
+
+        mQueryRequest = mNotesRepository.search(query, SEARCH_LIMIT,
+                new NotesRepository.SearchNotesCallback() {
+                    @Override
+                    public void onNotesFound(List<NoteSnapshot> notes) {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        showFoundNotes(generation, notes);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        if (generation == mGeneration) {
+                            mNotesView.showLoadingNotesError();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void filterNotes(@NonNull String prefix) {
+        checkNotNull(prefix, "prefix cannot be null!");
+        if (prefix.trim().isEmpty()) {
+            loadNotes(false);
+            return;
+        }
+        final int generation = supersedeRequests();
+        EspressoIdlingResource.increment(); // App is busy until further notice
+
+        mQueryRequest = mNotesRepository.filter(prefix, FILTER_LIMIT,
+                new NotesRepository.SearchNotesCallback() {
+                    @Override
+                    public void onNotesFound(List<NoteSnapshot> notes) {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        showFoundNotes(generation, notes);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        EspressoIdlingResource.decrement(); // Set app as idle.
+                        if (generation == mGeneration) {
+                            mNotesView.showLoadingNotesError();
+                        }
+                    }
+                });
+    }
+
+    private void showFoundNotes(int generation, List<NoteSnapshot> notes) {
+        if (generation != mGeneration) {
+            // The user kept typing, a newer query is on its way.
+            return;
+        }
+        // Search results are not paged, scrolling to the end doesn't load more notes.
+        mNextPage = null;
+        mShowingFoundNotes = true;
+        mLoadedNotes.clear();
+        mLoadedNotes.addAll(notes);
+        mNotesView.showNotes(new ArrayList<>(mLoadedNotes));
+    }
+
+    /**
+     * Applies a change to the shown pages. Returns whether the shown notes changed.
+     */
+    private boolean applyChange(NotesChange change) {
+        if (!change.hasPosition()) {
+            // New notes only get their position from the backend, the next load shows them.
+            mOutdated = true;
+            return false;
+        }
+        NoteSnapshot note = change.getNote();
+        switch (change.getType()) {
+            case INSERTED:
+                int position = change.getPosition();
+                // Notes past the end of the shown pages come with the next page.
+                if (position < mLoadedNotes.size()
+                        || (position == mLoadedNotes.size() && mNextPage == null)) {
+                    mLoadedNotes.add(position, note);
+                    return true;
+                }
+                return false;
+            case UPDATED:
+                int updated = indexOf(note.getId());
+                if (updated >= 0) {
+                    mLoadedNotes.set(updated, note);
+                    return true;
+                }
+                return false;
+            case REMOVED:
+                int removed = indexOf(note.getId());
+                if (removed >= 0) {
+                    mLoadedNotes.remove(removed);
+                    return true;
+                }
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown change " + change);
+        }
+    }
+
+    private int indexOf(String noteId) {
+        // The repository may have loaded more pages than are shown, look the note up by id.
+        for (int i = 0; i < mLoadedNotes.size(); i++) {
+            if (noteId.equals(mLoadedNotes.get(i).getId())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Downloads images into Glide's disk cache. Screens that load the image with
+ * {@link com.bumptech.glide.load.engine.DiskCacheStrategy#ALL} or
+ * {@link com.bumptech.glide.load.engine.DiskCacheStrategy#SOURCE} then only have to decode it.
+ */
+public class GlideImagePreloader implements ImagePreloader {
+
+    private final Context mContext;
+
+    public GlideImagePreloader(@NonNull Context context) {
+        // Preloads outlive the screen that started them.
+        mContext = checkNotNull(context).getApplicationContext();
+    }
+
+    @Override
+    public void preload(@NonNull String imageUrl, @NonNull final PreloadCallback callback) {
+        checkNotNull(callback);
+        Glide.with(mContext)
+                .load(checkNotNull(imageUrl))
+                .downloadOnly(new SimpleTarget<File>() {
+                    @Override
+                    public void onResourceReady(File resource,
+                                                GlideAnimation<? super File> animation) {
+                        callback.onPreloaded(resource.length());
+                    }
+
+                    @Override
+                    public void onLoadFailed(Exception e, Drawable errorDrawable) {
+                        callback.onPreloaded(0);
+                    }
+                });
+    }
+}
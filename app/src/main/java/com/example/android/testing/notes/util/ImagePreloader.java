@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Loads images into the image cache before they are shown, allows the injection of a fake
+ * implementation for tests.
+ */
+public interface ImagePreloader {
+
+    /**
+     * Doesn't preload anything.
+     */
+    ImagePreloader NONE = new ImagePreloader() {
+        @Override
+        public void preload(@NonNull String imageUrl, @NonNull PreloadCallback callback) {
+            callback.onPreloaded(0);
+        }
+    };
+
+    interface PreloadCallback {
+
+        /**
+         * @param bytes the size of the loaded image, 0 if it is unknown or failed to load.
+         */
+        void onPreloaded(long bytes);
+    }
+
+    void preload(@NonNull String imageUrl, @NonNull PreloadCallback callback);
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import com.google.common.base.Function;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The operations that turn one list into another, matching items by key. Items that are in both
+ * lists keep their place if they are part of the longest common subsequence of keys and are moved
+ * otherwise, so a list that is only partly reordered gets as few moves as possible. Items with
+ * equal keys but different contents are reported as changed.
+ * <p>
+ * The operations are meant to be applied one after another, every position refers to the list as
+ * it is after the previous operations, which is how a {@code RecyclerView.Adapter} expects them.
+ */
+public final class ListDiff {
+
+    /**
+     * Receives the operations of a {@link ListDiff}.
+     */
+    public interface Callback {
+
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position, int count);
+    }
+
+    /**
+     * Lists with more items than this are not compared, {@link #calculate} returns {@code null}
+     * and the caller should replace the whole list instead.
+     */
+    public static final int MAX_SIZE = 20000;
+
+    /**
+     * Moving more items than this is slower than binding the whole list again, {@link #calculate}
+     * returns {@code null} instead.
+     */
+    public static final int MAX_MOVES = 1000;
+
+    private static final int INSERT = 0;
+
+    private static final int REMOVE = 1;
+
+    private static final int MOVE = 2;
+
+    private static final int CHANGE = 3;
+
+    /**
+     * Operations as triples of type and two arguments: position and count, or from and to for
+     * moves.
+     */
+    private final int[] mOperations;
+
+    private ListDiff(int[] operations) {
+        mOperations = operations;
+    }
+
+    /**
+     * Calculates the operations that turn {@code oldList} into {@code newList}. Items with a
+     * {@code null} key never match. Returns {@code null} if the lists are larger than
+     * {@link #MAX_SIZE}, more than {@link #MAX_MOVES} items would be moved or a key is used by more
+     * than one item.
+     */
+    @Nullable
+    @WorkerThread
+    public static <T> ListDiff calculate(@NonNull List<T> oldList, @NonNull List<T> newList,
+                                         @NonNull Function<? super T, ?> keyFunction) {
+        checkNotNull(oldList);
+        checkNotNull(newList);
+        checkNotNull(keyFunction);
+        if (oldList.size() > MAX_SIZE || newList.size() > MAX_SIZE) {
+            return null;
+        }
+        Map<Object, Integer> oldPositions = positionsByKey(oldList, keyFunction);
+        Map<Object, Integer> newPositions = positionsByKey(newList, keyFunction);
+        if (oldPositions == null || newPositions == null) {
+            return null;
+        }
+        OperationsBuilder operations = new OperationsBuilder();
+
+        // Removals go from the end so the positions of the items before stay the same.
+        List<Object> keys = new ArrayList<>(oldList.size());
+        for (int i = oldList.size() - 1; i >= 0; i--) {
+            Object key = keyFunction.apply(oldList.get(i));
+            if (key == null || !newPositions.containsKey(key)) {
+                operations.add(REMOVE, i, 1);
+            } else {
+                keys.add(key);
+            }
+        }
+        Collections.reverse(keys);
+
+        // The items in both lists, ordered by their new position, keep their place if they are in
+        // the longest run that is still in the old order.
+        List<Object> keptKeys = new ArrayList<>(keys.size());
+        for (T item : newList) {
+            Object key = keyFunction.apply(item);
+            if (key != null && oldPositions.containsKey(key)) {
+                keptKeys.add(key);
+            }
+        }
+        Set<Object> anchors = longestOrderedRun(keptKeys, oldPositions);
+        if (keptKeys.size() - anchors.size() > MAX_MOVES) {
+            return null;
+        }
+
+        // Every other item is moved right after the item that precedes it in the new list, once
+        // that one is in place.
+        Object previousKey = null;
+        for (Object key : keptKeys) {
+            if (!anchors.contains(key)) {
+                int from = keys.indexOf(key);
+                keys.remove(from);
+                int to = previousKey == null ? 0 : keys.indexOf(previousKey) + 1;
+                keys.add(to, key);
+                if (from != to) {
+                    operations.add(MOVE, from, to);
+                }
+            }
+            previousKey = key;
+        }
+
+        // What's left are the items in new order, so inserts and changes go to their new position.
+        for (int i = 0; i < newList.size(); i++) {
+            Object key = keyFunction.apply(newList.get(i));
+            if (key == null || !oldPositions.containsKey(key)) {
+                operations.add(INSERT, i, 1);
+            }
+        }
+        for (int i = 0; i < newList.size(); i++) {
+            T item = newList.get(i);
+            Object key = keyFunction.apply(item);
+            if (key != null && oldPositions.containsKey(key)
+                    && !item.equals(oldList.get(oldPositions.get(key)))) {
+                operations.add(CHANGE, i, 1);
+            }
+        }
+        return new ListDiff(operations.build());
+    }
+
+    /**
+     * Returns the position of every item by its key, or {@code null} if a key is used twice.
+     */
+    @Nullable
+    private static <T> Map<Object, Integer> positionsByKey(List<T> list,
+                                                           Function<? super T, ?> keyFunction) {
+        Map<Object, Integer> positions = new HashMap<>(list.size() * 2);
+        for (int i = 0; i < list.size(); i++) {
+            Object key = keyFunction.apply(list.get(i));
+            if (key != null && positions.put(key, i) != null) {
+                return null;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the longest subsequence of {@code keys} whose old positions are increasing, found
+     * with patience sorting in O(n log n).
+     */
+    private static Set<Object> longestOrderedRun(List<Object> keys,
+                                                 Map<Object, Integer> oldPositions) {
+        int size = keys.size();
+        // tails[l] is the index of the smallest old position that ends a run of length l + 1.
+        int[] tails = new int[size];
+        int[] previous = new int[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            int position = oldPositions.get(keys.get(i));
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (oldPositions.get(keys.get(tails[middle])) < position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        Set<Object> run = new HashSet<>(length * 2);
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            run.add(keys.get(i));
+        }
+        return run;
+    }
+
+    /**
+     * Hands the operations to {@code callback} in the order they have to be applied.
+     */
+    public void dispatchTo(@NonNull Callback callback) {
+        for (int i = 0; i < mOperations.length; i += 3) {
+            int first = mOperations[i + 1];
+            int second = mOperations[i + 2];
+            switch (mOperations[i]) {
+                case INSERT:
+                    callback.onInserted(first, second);
+                    break;
+                case REMOVE:
+                    callback.onRemoved(first, second);
+                    break;
+                case MOVE:
+                    callback.onMoved(first, second);
+                    break;
+                case CHANGE:
+                    callback.onChanged(first, second);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + mOperations[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of operations, ranges of inserted, removed or changed items count once.
+     */
+    public int getOperationCount() {
+        return mOperations.length / 3;
+    }
+
+    @Override
+    public String toString() {
+        return "ListDiff{" + Arrays.toString(mOperations) + '}';
+    }
+
+    /**
+     * Collects operations and merges single item operations into ranges where they follow each
+     * other.
+     */
+    private static class OperationsBuilder {
+
+        private int[] mOperations = new int[48];
+
+        private int mSize;
+
+        void add(int type, int first, int second) {
+            if (mSize > 0 && mOperations[mSize - 3] == type) {
+                int lastFirst = mOperations[mSize - 2];
+                int lastCount = mOperations[mSize - 1];
+                if ((type == INSERT || type == CHANGE) && first == lastFirst + lastCount) {
+                    mOperations[mSize - 1] += second;
+                    return;
+                }
+                if (type == REMOVE && first + second == lastFirst) {
+                    // Removals are added from the end, the range grows towards the start.
+                    mOperations[mSize - 2] = first;
+                    mOperations[mSize - 1] += second;
+                    return;
+                }
+            }
+            if (mSize + 3 > mOperations.length) {
+                mOperations = Arrays.copyOf(mOperations, mOperations.length * 2);
+            }
+            mOperations[mSize++] = type;
+            mOperations[mSize++] = first;
+            mOperations[mSize++] = second;
+        }
+
+        int[] build() {
+            return Arrays.copyOf(mOperations, mSize);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Counts non-negative values in buckets that grow exponentially, like an HDR histogram with a
+ * precision of one significant binary digit plus {@value #SUB_BUCKET_BITS} more: values below
+ * {@code 2^}{@value #SUB_BUCKET_BITS} are counted exactly and larger ones are off by less than
+ * 1/{@code 2^}{@value #SUB_BUCKET_BITS}, under 1%, which keeps two significant decimal digits
+ * even for p99.9. The whole range of {@code long} fits in about seven thousand buckets.
+ * <p>
+ * Recording is lock-free and doesn't allocate, so it can be called from any thread on hot paths.
+ * {@link #snapshot()} copies the counts without stopping writers, a snapshot taken while values
+ * are recorded may miss some of them.
+ */
+public class LogHistogram {
+
+    @VisibleForTesting
+    static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    @VisibleForTesting
+    static final int BUCKET_COUNT = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        checkArgument(value >= 0, "value must not be negative");
+        mCounts.incrementAndGet(bucketOf(value));
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    @NonNull
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, mMax.get());
+    }
+
+    @VisibleForTesting
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value counted in {@code bucket}.
+     */
+    @VisibleForTesting
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] mCounts;
+
+        private final long mCount;
+
+        private final long mMax;
+
+        private Snapshot(long[] counts, long count, long max) {
+            mCounts = counts;
+            mCount = count;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the value that {@code percentile} percent of the values are less than or equal
+         * to, rounded up to the end of its bucket. 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            checkArgument(percentile >= 0 && percentile <= 100, "percentile must be 0..100");
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), mMax);
+                }
+            }
+            // Counts went up while they were copied.
+            return mMax;
+        }
+
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        public long getP95() {
+            return getValueAtPercentile(95);
+        }
+
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " p50=" + getP50() + " p95=" + getP95() + " p99="
+                    + getP99() + " p999=" + getP999() + " max=" + mMax;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import com.example.android.testing.notes.data.NotesChangeDispatcher;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+/**
+ * Runs code on the main thread when the next frame is drawn. Falls back to posting to the main
+ * thread before Jelly Bean, which has no {@link Choreographer}.
+ */
+public class MainThreadFrameScheduler implements NotesChangeDispatcher.FrameScheduler {
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void postFrame(@NonNull final Runnable frame) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            mMainHandler.post(frame);
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
+            postFrameCallback(frame);
+        } else {
+            // The Choreographer is bound to the thread it is obtained on.
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    postFrameCallback(frame);
+                }
+            });
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void postFrameCallback(final Runnable frame) {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                frame.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs tasks on the main thread. {@link Priority#HIGH} tasks go to the front of the message queue,
+ * {@link Priority#LOW} tasks wait until the main thread has nothing else to do.
+ */
+public class MainThreadTaskScheduler implements TaskScheduler {
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        execute(Priority.NORMAL, task);
+    }
+
+    @Override
+    public void execute(@NonNull Priority priority, @NonNull final Runnable task) {
+        checkNotNull(task);
+        switch (checkNotNull(priority)) {
+            case HIGH:
+                mMainHandler.postAtFrontOfQueue(task);
+                break;
+            case NORMAL:
+                mMainHandler.post(task);
+                break;
+            case LOW:
+                // The idle handler has to be added on the main thread.
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                            @Override
+                            public boolean queueIdle() {
+                                task.run();
+                                return false;
+                            }
+                        });
+                    }
+                });
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+    }
+
+    @Override
+    public Cancellable executeDelayed(@NonNull final Priority priority,
+                                      @NonNull final Runnable task, long delayMillis) {
+        checkNotNull(priority);
+        checkNotNull(task);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final Runnable delayedTask = new Runnable() {
+            @Override
+            public void run() {
+                execute(priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        // Low priority tasks may have been cancelled while waiting for idle time.
+                        if (!cancelled.get()) {
+                            task.run();
+                        }
+                    }
+                });
+            }
+        };
+        mMainHandler.postDelayed(delayedTask, delayMillis);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+                mMainHandler.removeCallbacks(delayedTask);
+            }
+        };
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The threads the app does its work on: a small pool for disk and network access, a pool for
+ * computations like comparing lists and the main thread to update the UI.
+ */
+public final class Schedulers {
+
+    /**
+     * Disk and network access mostly waits, but too many threads at once only slow each other
+     * down.
+     */
+    private static final int IO_THREAD_COUNT = 4;
+
+    private static Schedulers sDefault;
+
+    private final TaskScheduler mIo;
+
+    private final TaskScheduler mCompute;
+
+    private final TaskScheduler mMain;
+
+    public Schedulers(@NonNull TaskScheduler io, @NonNull TaskScheduler compute,
+                      @NonNull TaskScheduler main) {
+        mIo = checkNotNull(io);
+        mCompute = checkNotNull(compute);
+        mMain = checkNotNull(main);
+    }
+
+    /**
+     * Returns the schedulers backed by thread pools and the main thread, shared by the whole app.
+     */
+    public static synchronized Schedulers getDefault() {
+        if (sDefault == null) {
+            sDefault = new Schedulers(
+                    new ThreadPoolTaskScheduler("notes-io", IO_THREAD_COUNT),
+                    new ThreadPoolTaskScheduler("notes-compute",
+                            Runtime.getRuntime().availableProcessors()),
+                    new MainThreadTaskScheduler());
+        }
+        return sDefault;
+    }
+
+    /**
+     * Returns schedulers that run every task right away on the calling thread, for code that has
+     * always been synchronous. Delayed tasks don't wait either, they move the clock of the
+     * schedulers forward by their delay and run as if the time had passed.
+     */
+    public static Schedulers immediate() {
+        return of(new ImmediateTaskScheduler());
+    }
+
+    /**
+     * Returns schedulers that all run on {@code scheduler}, usually a
+     * {@link VirtualTimeScheduler} in tests.
+     */
+    public static Schedulers of(@NonNull TaskScheduler scheduler) {
+        return new Schedulers(scheduler, scheduler, scheduler);
+    }
+
+    @NonNull
+    public TaskScheduler io() {
+        return mIo;
+    }
+
+    @NonNull
+    public TaskScheduler compute() {
+        return mCompute;
+    }
+
+    @NonNull
+    public TaskScheduler main() {
+        return mMain;
+    }
+
+    private static class ImmediateTaskScheduler implements TaskScheduler {
+
+        /**
+         * Delayed tasks have already run when they are handed back.
+         */
+        private static final Cancellable ALREADY_RUN = new Cancellable() {
+            @Override
+            public void cancel() {
+            }
+        };
+
+        /**
+         * The time the delayed tasks didn't wait for.
+         */
+        private final AtomicLong mSkippedMillis = new AtomicLong();
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void execute(@NonNull Priority priority, @NonNull Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public Cancellable executeDelayed(@NonNull Priority priority, @NonNull Runnable task,
+                                          long delayMillis) {
+            checkArgument(delayMillis >= 0, "delayMillis cannot be negative");
+            mSkippedMillis.addAndGet(delayMillis);
+            task.run();
+            return ALREADY_RUN;
+        }
+
+        @Override
+        public long now() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + mSkippedMillis.get();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs tasks on a {@link TaskScheduler} one at a time, in the order they were added, for work
+ * like writing a file that must not overlap or be reordered on a pool of threads.
+ */
+public final class SerialExecutor implements Executor {
+
+    private final TaskScheduler mScheduler;
+
+    private final TaskScheduler.Priority mPriority;
+
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+
+    private boolean mDraining;
+
+    /**
+     * @param priority the priority all tasks run with on {@code scheduler}
+     */
+    public SerialExecutor(@NonNull TaskScheduler scheduler,
+                          @NonNull TaskScheduler.Priority priority) {
+        mScheduler = checkNotNull(scheduler);
+        mPriority = checkNotNull(priority);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        synchronized (this) {
+            mTasks.add(checkNotNull(task));
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        mScheduler.execute(mPriority, mDrain);
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (SerialExecutor.this) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mDraining = false;
+                        return;
+                    }
+                }
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // Let the failure through, the remaining tasks run in a new drain.
+                        mScheduler.execute(mPriority, this);
+                    }
+                }
+            }
+        }
+    };
+}
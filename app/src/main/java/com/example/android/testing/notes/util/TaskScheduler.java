@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a thread or pool of threads. Tasks of a higher {@link Priority} that are waiting
+ * run before tasks of a lower one, tasks of the same priority run in the order they were added.
+ * <p>
+ * {@link #execute(Runnable)} runs a task with {@link Priority#NORMAL} priority.
+ */
+public interface TaskScheduler extends Executor {
+
+    enum Priority {
+
+        /**
+         * Work the user is waiting for, like the notes on screen.
+         */
+        HIGH,
+
+        NORMAL,
+
+        /**
+         * Work the user doesn't see, like writing caches or prefetching.
+         */
+        LOW
+    }
+
+    void execute(@NonNull Priority priority, @NonNull Runnable task);
+
+    /**
+     * Runs {@code task} once {@code delayMillis} have passed on {@link #now()}.
+     *
+     * @return a handle to keep the task from running, for timeouts that are no longer needed.
+     */
+    @NonNull
+    Cancellable executeDelayed(@NonNull Priority priority, @NonNull Runnable task,
+                               long delayMillis);
+
+    /**
+     * Returns the time of this scheduler in milliseconds, only meaningful to measure time spans.
+     */
+    long now();
+}
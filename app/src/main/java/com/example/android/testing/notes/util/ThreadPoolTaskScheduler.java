@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs tasks on a fixed number of threads, waiting tasks are taken by priority. The threads stop
+ * when they have been idle for a while.
+ */
+public class ThreadPoolTaskScheduler implements TaskScheduler {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Holds delayed tasks until they are due, shared by all pools.
+     */
+    private static final ScheduledExecutorService DELAYS =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("notes-delay"));
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public ThreadPoolTaskScheduler(@NonNull String name, int threadCount) {
+        checkNotNull(name);
+        checkArgument(threadCount > 0, "threadCount must be positive");
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new NamedThreadFactory(name));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        execute(Priority.NORMAL, task);
+    }
+
+    @Override
+    public void execute(@NonNull Priority priority, @NonNull Runnable task) {
+        mExecutor.execute(new PrioritizedTask(checkNotNull(priority), mSequence.getAndIncrement(),
+                checkNotNull(task)));
+    }
+
+    @Override
+    public Cancellable executeDelayed(@NonNull final Priority priority,
+                                      @NonNull final Runnable task, long delayMillis) {
+        checkNotNull(priority);
+        checkNotNull(task);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final ScheduledFuture<?> delay = DELAYS.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        // The task may have been cancelled while it waited for a thread.
+                        if (!cancelled.get()) {
+                            task.run();
+                        }
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+                delay.cancel(false);
+            }
+        };
+    }
+
+    @Override
+    public long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        private final Priority mPriority;
+
+        private final long mSequence;
+
+        private final Runnable mTask;
+
+        PrioritizedTask(Priority priority, long sequence, Runnable task) {
+            mPriority = priority;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mName;
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
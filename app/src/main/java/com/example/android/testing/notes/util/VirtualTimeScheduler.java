@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.PriorityQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs tasks on the calling thread on a clock that only moves when told to, so code that depends
+ * on timing or on the order of threads behaves the same in every test run. One instance can stand
+ * in for all {@link Schedulers}.
+ * <p>
+ * Tasks are only run by {@link #runUntilIdle()} and {@link #advanceBy(long)}, in the order of
+ * their due time, then their priority, then the order they were added.
+ */
+public class VirtualTimeScheduler implements TaskScheduler {
+
+    private final PriorityQueue<ScheduledTask> mTasks = new PriorityQueue<>();
+
+    private long mNow;
+
+    private long mSequence;
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        execute(Priority.NORMAL, task);
+    }
+
+    @Override
+    public void execute(@NonNull Priority priority, @NonNull Runnable task) {
+        executeDelayed(priority, task, 0);
+    }
+
+    @Override
+    public Cancellable executeDelayed(@NonNull Priority priority, @NonNull Runnable task,
+                                      long delayMillis) {
+        checkArgument(delayMillis >= 0, "delayMillis cannot be negative");
+        final ScheduledTask scheduledTask = new ScheduledTask(mNow + delayMillis,
+                checkNotNull(priority), mSequence++, checkNotNull(task));
+        mTasks.add(scheduledTask);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                mTasks.remove(scheduledTask);
+            }
+        };
+    }
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    /**
+     * Runs the tasks that are due, including the ones they add, without moving the clock.
+     */
+    public void runUntilIdle() {
+        advanceBy(0);
+    }
+
+    /**
+     * Moves the clock forward by {@code millis} and runs every task that becomes due, with the
+     * clock set to its due time.
+     */
+    public void advanceBy(long millis) {
+        checkArgument(millis >= 0, "millis cannot be negative");
+        long target = mNow + millis;
+        while (!mTasks.isEmpty() && mTasks.peek().mDueTime <= target) {
+            ScheduledTask task = mTasks.poll();
+            mNow = task.mDueTime;
+            task.mTask.run();
+        }
+        mNow = target;
+    }
+
+    /**
+     * Returns the number of tasks that have not run yet.
+     */
+    public int getPendingTaskCount() {
+        return mTasks.size();
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+        final long mDueTime;
+
+        final Priority mPriority;
+
+        final long mSequence;
+
+        final Runnable mTask;
+
+        ScheduledTask(long dueTime, Priority priority, long sequence, Runnable task) {
+            mDueTime = dueTime;
+            mPriority = priority;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(@NonNull ScheduledTask other) {
+            if (mDueTime != other.mDueTime) {
+                return mDueTime < other.mDueTime ? -1 : 1;
+            }
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
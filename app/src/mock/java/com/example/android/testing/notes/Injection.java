@@ -17,10 +17,17 @@
 package com.example.android.testing.notes;
 
 import com.example.android.testing.notes.data.FakeNotesServiceApiImpl;
+import com.example.android.testing.notes.data.InstrumentedNotesServiceApi;
+import com.example.android.testing.notes.data.NetworkBehavior;
 import com.example.android.testing.notes.data.NoteRepositories;
 import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.data.ResilientNotesServiceApi;
 import com.example.android.testing.notes.util.FakeImageFileImpl;
 import com.example.android.testing.notes.util.ImageFile;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.content.Context;
 
 /**
  * Enables injection of mock implementations for {@link ImageFile} and
@@ -29,11 +36,38 @@ import com.example.android.testing.notes.util.ImageFile;
  */
 public class Injection {
 
+    private static final long NETWORK_SEED = 42;
+
+    private static final NetworkBehavior NETWORK_BEHAVIOR = new NetworkBehavior();
+
+    private static InstrumentedNotesServiceApi sNotesServiceApi;
+
     public static ImageFile provideImageFile() {
         return new FakeImageFileImpl();
     }
 
-    public static NotesRepository provideNotesRepository() {
-        return NoteRepositories.getInMemoryRepoInstance(new FakeNotesServiceApiImpl());
+    public static NotesRepository provideNotesRepository(Context context) {
+        return NoteRepositories.getInMemoryRepoInstance(provideNotesServiceApi());
+    }
+
+    /**
+     * The service API behind the repository, it retries failed calls and records how long its
+     * calls take.
+     */
+    public static synchronized InstrumentedNotesServiceApi provideNotesServiceApi() {
+        if (sNotesServiceApi == null) {
+            TaskScheduler scheduler = Schedulers.getDefault().main();
+            sNotesServiceApi = new InstrumentedNotesServiceApi(new ResilientNotesServiceApi(
+                    new FakeNotesServiceApiImpl(scheduler, NETWORK_BEHAVIOR, NETWORK_SEED),
+                    scheduler));
+        }
+        return sNotesServiceApi;
+    }
+
+    /**
+     * How the fake service API imitates the network, tests can add latency and failures.
+     */
+    public static NetworkBehavior provideNetworkBehavior() {
+        return NETWORK_BEHAVIOR;
     }
 }
@@ -18,39 +18,345 @@ package com.example.android.testing.notes.data;
 
 import com.google.common.collect.Lists;
 
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.TaskScheduler;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.ArrayMap;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Fake implementation of {@link NotesServiceApi} to inject a fake service in a hermetic test.
+ * <p>
+ * It can imitate a real backend with a {@link NetworkBehavior}: answers arrive on a
+ * {@link TaskScheduler} after a random latency, some calls fail with an error after their latency
+ * and calls beyond a rate wait for their turn. Saves and deletes take effect once their latency
+ * has passed. With a {@link com.example.android.testing.notes.util.VirtualTimeScheduler} tests
+ * decide when the answers arrive.
  */
 public class FakeNotesServiceApiImpl implements NotesServiceApi {
 
+    private static final long DEFAULT_SEED = 42;
+
     // TODO replace this with a new test specific data set.
-    private static final ArrayMap<String, Note> NOTES_SERVICE_DATA = new ArrayMap();
+    private static final ArrayMap<String, NoteSnapshot> NOTES_SERVICE_DATA = new ArrayMap();
+
+    /**
+     * Deletion times of deleted notes by id.
+     */
+    private static final ArrayMap<String, Long> DELETED_NOTES = new ArrayMap<>();
+
+    /**
+     * What each applied mutation answered with by idempotency key, a mutation that is written
+     * again gets the same answer without being applied twice.
+     */
+    private static final ArrayMap<String, NoteSnapshot> APPLIED_MUTATIONS = new ArrayMap<>();
+
+    private final TaskScheduler mScheduler;
+
+    private final NetworkBehavior mBehavior;
+
+    private final Random mRandom;
+
+    private final AtomicLong mFailedCallCount = new AtomicLong();
+
+    /**
+     * When the backend takes the next call if calls are limited, on the time of
+     * {@link #mScheduler}.
+     */
+    private long mNextCallTime;
+
+    /**
+     * Answers right away on the calling thread, latencies only move the clock of the fake.
+     */
+    public FakeNotesServiceApiImpl() {
+        this(Schedulers.immediate().main(), new NetworkBehavior(), DEFAULT_SEED);
+    }
+
+    /**
+     * @param scheduler answers calls, after the latency of {@code behavior}.
+     * @param seed      for the random latencies and failures, the same seed gives the same ones
+     *                  for the same calls.
+     */
+    public FakeNotesServiceApiImpl(@NonNull TaskScheduler scheduler,
+                                   @NonNull NetworkBehavior behavior, long seed) {
+        mScheduler = checkNotNull(scheduler);
+        mBehavior = checkNotNull(behavior);
+        mRandom = new Random(seed);
+    }
 
     @Override
-    public void getAllNotes(NotesServiceCallback<List<Note>> callback) {
-        callback.onLoaded(Lists.newArrayList(NOTES_SERVICE_DATA.values()));
+    public void getAllNotes(final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        call(Method.GET_ALL_NOTES, new Runnable() {
+            @Override
+            public void run() {
+                List<NoteSnapshot> notes;
+                synchronized (NOTES_SERVICE_DATA) {
+                    notes = Lists.newArrayList(NOTES_SERVICE_DATA.values());
+                }
+                callback.onLoaded(notes);
+            }
+        }, callback);
     }
 
     @Override
-    public void getNote(String noteId, NotesServiceCallback<Note> callback) {
-        Note note = NOTES_SERVICE_DATA.get(noteId);
-        callback.onLoaded(note);
+    public void getNotesPage(final PageRequest request,
+                             final NotesServiceCallback<NotesPage> callback) {
+        call(Method.GET_NOTES_PAGE, new Runnable() {
+            @Override
+            public void run() {
+                callback.onLoaded(loadPage(request));
+            }
+        }, callback);
+    }
+
+    private NotesPage loadPage(PageRequest request) {
+        List<NoteSnapshot> notes;
+        synchronized (NOTES_SERVICE_DATA) {
+            notes = Lists.newArrayList(NOTES_SERVICE_DATA.values());
+        }
+        Collections.sort(notes, PageRequest.KEYSET_ORDER);
+        List<NoteSnapshot> fetchedNotes = new ArrayList<>(request.getPageSize() + 1);
+        for (NoteSnapshot note : notes) {
+            if (fetchedNotes.size() > request.getPageSize()) {
+                break;
+            }
+            if (request.isAfterCursor(note)) {
+                fetchedNotes.add(note);
+            }
+        }
+        return NotesPage.fromFetched(request, fetchedNotes);
     }
 
     @Override
-    public void saveNote(Note note) {
-        NOTES_SERVICE_DATA.put(note.getId(), note);
+    public void getNotesChangedSince(final long updatedAfter,
+                                     final NotesServiceCallback<NotesDelta> callback) {
+        call(Method.GET_NOTES_CHANGED_SINCE, new Runnable() {
+            @Override
+            public void run() {
+                callback.onLoaded(loadChangesSince(updatedAfter));
+            }
+        }, callback);
     }
 
-    @VisibleForTesting
-    public static void addNotes(Note... notes) {
-        for (Note note : notes) {
+    private NotesDelta loadChangesSince(long updatedAfter) {
+        List<NoteSnapshot> changedNotes = new ArrayList<>();
+        List<String> deletedNoteIds = new ArrayList<>();
+        long highWaterMark = updatedAfter;
+        synchronized (NOTES_SERVICE_DATA) {
+            for (NoteSnapshot note : NOTES_SERVICE_DATA.values()) {
+                if (note.getUpdatedAt() > updatedAfter) {
+                    changedNotes.add(note);
+                    highWaterMark = Math.max(highWaterMark, note.getUpdatedAt());
+                }
+            }
+            for (Map.Entry<String, Long> deletedNote : DELETED_NOTES.entrySet()) {
+                if (deletedNote.getValue() > updatedAfter) {
+                    deletedNoteIds.add(deletedNote.getKey());
+                    highWaterMark = Math.max(highWaterMark, deletedNote.getValue());
+                }
+            }
+        }
+        return new NotesDelta(changedNotes, deletedNoteIds, highWaterMark, false);
+    }
+
+    @Override
+    public void getNote(final String noteId, final NotesServiceCallback<NoteSnapshot> callback) {
+        call(Method.GET_NOTE, new Runnable() {
+            @Override
+            public void run() {
+                NoteSnapshot note;
+                synchronized (NOTES_SERVICE_DATA) {
+                    note = NOTES_SERVICE_DATA.get(noteId);
+                }
+                callback.onLoaded(note);
+            }
+        }, callback);
+    }
+
+    @Override
+    public void saveNote(final NoteSnapshot note) {
+        call(Method.SAVE_NOTE, new Runnable() {
+            @Override
+            public void run() {
+                store(note);
+            }
+        }, null);
+    }
+
+    private static NoteSnapshot store(NoteSnapshot note) {
+        // Stamp the note the same way the real backend does.
+        long now = System.currentTimeMillis();
+        if (note.getId() == null) {
+            note = note.withBackendState(UUID.randomUUID().toString(), now, now);
+        } else {
+            note = note.withBackendState(note.getId(), note.getCreatedAt(), now);
+        }
+        synchronized (NOTES_SERVICE_DATA) {
             NOTES_SERVICE_DATA.put(note.getId(), note);
         }
+        return note;
+    }
+
+    @Override
+    public void deleteNote(final NoteSnapshot note) {
+        call(Method.DELETE_NOTE, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NOTES_SERVICE_DATA) {
+                    if (NOTES_SERVICE_DATA.remove(note.getId()) != null) {
+                        DELETED_NOTES.put(note.getId(), System.currentTimeMillis());
+                    }
+                }
+            }
+        }, null);
+    }
+
+    @Override
+    public void writeMutation(@NonNull final NoteMutation mutation,
+                              @NonNull final NotesServiceCallback<NoteSnapshot> callback) {
+        call(Method.WRITE_MUTATION, new Runnable() {
+            @Override
+            public void run() {
+                callback.onLoaded(apply(mutation));
+            }
+        }, callback);
+    }
+
+    @Override
+    public void writeMutations(@NonNull final List<NoteMutation> mutations,
+                               @NonNull final NotesServiceCallback<List<NoteSnapshot>> callback) {
+        call(Method.WRITE_MUTATIONS, new Runnable() {
+            @Override
+            public void run() {
+                List<NoteSnapshot> written = new ArrayList<>(mutations.size());
+                for (NoteMutation mutation : mutations) {
+                    written.add(apply(mutation));
+                }
+                callback.onLoaded(written);
+            }
+        }, callback);
+    }
+
+    @Nullable
+    private static NoteSnapshot apply(NoteMutation mutation) {
+        synchronized (NOTES_SERVICE_DATA) {
+            String key = mutation.getIdempotencyKey();
+            if (APPLIED_MUTATIONS.containsKey(key)) {
+                return APPLIED_MUTATIONS.get(key);
+            }
+            NoteSnapshot note = null;
+            if (mutation.getType() == NoteMutation.Type.DELETE) {
+                String noteId = mutation.getNoteId();
+                if (noteId == null) {
+                    NoteSnapshot created = APPLIED_MUTATIONS.get(mutation.getCreateKey());
+                    noteId = created == null ? null : created.getId();
+                }
+                if (noteId != null && NOTES_SERVICE_DATA.remove(noteId) != null) {
+                    DELETED_NOTES.put(noteId, System.currentTimeMillis());
+                }
+            } else {
+                note = store(mutation.getNote());
+            }
+            APPLIED_MUTATIONS.put(key, note);
+            return note;
+        }
+    }
+
+    /**
+     * @return the number of calls that failed on purpose.
+     */
+    public long getFailedCallCount() {
+        return mFailedCallCount.get();
+    }
+
+    /**
+     * Answers a call with {@code answer} as the {@link NetworkBehavior} says. Failed calls report
+     * an error to {@code callback} instead, failed saves and deletes are lost.
+     */
+    private void call(final Method method, Runnable answer,
+                      @Nullable final NotesServiceCallback<?> callback) {
+        boolean failed = mRandom.nextInt(100) < mBehavior.getFailurePercent(method);
+        long delay = waitForTurn() + mBehavior.getLatency(method).sample(mRandom);
+        if (failed) {
+            mFailedCallCount.incrementAndGet();
+            answer = new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) {
+                        callback.onError(new IOException("Simulated failure of " + method));
+                    }
+                }
+            };
+        }
+        if (delay == 0) {
+            mScheduler.execute(answer);
+        } else {
+            mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, answer, delay);
+        }
+    }
+
+    /**
+     * @return how long the call waits until the backend takes it.
+     */
+    private synchronized long waitForTurn() {
+        int maxCallsPerSecond = mBehavior.getMaxCallsPerSecond();
+        if (maxCallsPerSecond == 0) {
+            return 0;
+        }
+        long now = mScheduler.now();
+        long callTime = Math.max(now, mNextCallTime);
+        mNextCallTime = callTime + Math.max(1, TimeUnit.SECONDS.toMillis(1) / maxCallsPerSecond);
+        return callTime - now;
+    }
+
+    @VisibleForTesting
+    public static void addNotes(NoteSnapshot... notes) {
+        for (NoteSnapshot note : notes) {
+            if (note.getId() == null) {
+                // Assign an id the same way the real backend does for new notes.
+                long now = System.currentTimeMillis();
+                note = note.withBackendState(UUID.randomUUID().toString(), now, now);
+            }
+            synchronized (NOTES_SERVICE_DATA) {
+                NOTES_SERVICE_DATA.put(note.getId(), note);
+            }
+        }
+    }
+
+    /**
+     * Adds {@code count} notes for load tests, the same seed gives the same notes.
+     */
+    @VisibleForTesting
+    public static void addGeneratedNotes(int count, long seed) {
+        checkArgument(count >= 0, "count cannot be negative");
+        synchronized (NOTES_SERVICE_DATA) {
+            for (NoteSnapshot note : NotesServiceApiEndpoint.generateNotes(count, seed)) {
+                NOTES_SERVICE_DATA.put(note.getId(), note);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public static void clearNotes() {
+        synchronized (NOTES_SERVICE_DATA) {
+            NOTES_SERVICE_DATA.clear();
+            DELETED_NOTES.clear();
+            APPLIED_MUTATIONS.clear();
+        }
     }
 }
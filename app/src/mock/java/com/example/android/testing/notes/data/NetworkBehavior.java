@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.data.NotesServiceApi.Method;
+
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * How {@link FakeNotesServiceApiImpl} imitates a real backend: how long each call takes, how often
+ * it fails and how many calls are handled per second. Changes apply to the calls made after them.
+ * By default calls are answered right away and never fail.
+ */
+public final class NetworkBehavior {
+
+    /**
+     * How long calls take.
+     */
+    public static final class Latency {
+
+        public static final Latency NONE = fixed(0);
+
+        private final long mMedianMillis;
+
+        private final double mJitter;
+
+        private Latency(long medianMillis, double jitter) {
+            checkArgument(medianMillis >= 0, "medianMillis cannot be negative");
+            checkArgument(jitter >= 0, "jitter cannot be negative");
+            mMedianMillis = medianMillis;
+            mJitter = jitter;
+        }
+
+        public static Latency fixed(long millis) {
+            return new Latency(millis, 0);
+        }
+
+        /**
+         * Spreads calls log-normally around {@code medianMillis} like network round trips: most
+         * take about as long and a few take a lot longer. With a jitter of 0.5 about one call in
+         * twelve takes more than twice the median.
+         */
+        public static Latency logNormal(long medianMillis, double jitter) {
+            return new Latency(medianMillis, jitter);
+        }
+
+        long sample(Random random) {
+            if (mJitter == 0) {
+                return mMedianMillis;
+            }
+            return Math.round(mMedianMillis * Math.exp(mJitter * random.nextGaussian()));
+        }
+
+        @Override
+        public String toString() {
+            return "Latency{median=" + mMedianMillis + "ms, jitter=" + mJitter + "}";
+        }
+    }
+
+    private final EnumMap<Method, Latency> mLatencies = new EnumMap<>(Method.class);
+
+    private final EnumMap<Method, Integer> mFailurePercents = new EnumMap<>(Method.class);
+
+    private int mMaxCallsPerSecond;
+
+    public NetworkBehavior() {
+        setLatency(Latency.NONE);
+        setFailurePercent(0);
+    }
+
+    public synchronized void setLatency(@NonNull Latency latency) {
+        for (Method method : Method.values()) {
+            setLatency(method, latency);
+        }
+    }
+
+    public synchronized void setLatency(@NonNull Method method, @NonNull Latency latency) {
+        mLatencies.put(checkNotNull(method), checkNotNull(latency));
+    }
+
+    @NonNull
+    public synchronized Latency getLatency(@NonNull Method method) {
+        return mLatencies.get(checkNotNull(method));
+    }
+
+    public synchronized void setFailurePercent(int percent) {
+        for (Method method : Method.values()) {
+            setFailurePercent(method, percent);
+        }
+    }
+
+    /**
+     * Failed calls report an error once their latency has passed, failed saves and deletes are
+     * lost. A backend that doesn't answer at all is a latency longer than the callers wait.
+     */
+    public synchronized void setFailurePercent(@NonNull Method method, int percent) {
+        checkArgument(percent >= 0 && percent <= 100, "percent must be 0..100");
+        mFailurePercents.put(checkNotNull(method), percent);
+    }
+
+    public synchronized int getFailurePercent(@NonNull Method method) {
+        return mFailurePercents.get(checkNotNull(method));
+    }
+
+    /**
+     * Calls beyond this rate wait for their turn, like on a backend that queues requests.
+     *
+     * @param callsPerSecond the rate, or 0 for no limit.
+     */
+    public synchronized void setMaxCallsPerSecond(int callsPerSecond) {
+        checkArgument(callsPerSecond >= 0, "callsPerSecond cannot be negative");
+        mMaxCallsPerSecond = callsPerSecond;
+    }
+
+    public synchronized int getMaxCallsPerSecond() {
+        return mMaxCallsPerSecond;
+    }
+}
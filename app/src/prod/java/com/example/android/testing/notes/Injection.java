@@ -16,11 +16,18 @@
 
 package com.example.android.testing.notes;
 
+import com.example.android.testing.notes.data.InstrumentedNotesServiceApi;
 import com.example.android.testing.notes.data.NoteRepositories;
 import com.example.android.testing.notes.data.NotesRepository;
 import com.example.android.testing.notes.data.NotesServiceApiImpl;
+import com.example.android.testing.notes.data.ResilientNotesServiceApi;
 import com.example.android.testing.notes.util.ImageFile;
 import com.example.android.testing.notes.util.ImageFileImpl;
+import com.example.android.testing.notes.util.Schedulers;
+
+import android.content.Context;
+
+import java.io.File;
 
 /**
  * Enables injection of production implementations for {@link ImageFile} and
@@ -28,11 +35,28 @@ import com.example.android.testing.notes.util.ImageFileImpl;
  */
 public class Injection {
 
+    private static final String NOTES_DIRECTORY = "notes";
+
+    private static InstrumentedNotesServiceApi sNotesServiceApi;
+
     public static ImageFile provideImageFile() {
         return new ImageFileImpl();
     }
 
-    public static NotesRepository provideNotesRepository() {
-        return NoteRepositories.getInMemoryRepoInstance(new NotesServiceApiImpl());
+    public static NotesRepository provideNotesRepository(Context context) {
+        return NoteRepositories.getOfflineFirstRepoInstance(
+                new File(context.getFilesDir(), NOTES_DIRECTORY), provideNotesServiceApi());
+    }
+
+    /**
+     * The service API behind the repository, it retries failed calls and records how long its
+     * calls take.
+     */
+    public static synchronized InstrumentedNotesServiceApi provideNotesServiceApi() {
+        if (sNotesServiceApi == null) {
+            sNotesServiceApi = new InstrumentedNotesServiceApi(new ResilientNotesServiceApi(
+                    new NotesServiceApiImpl(), Schedulers.getDefault().main()));
+        }
+        return sNotesServiceApi;
     }
 }
@@ -16,9 +16,11 @@
 
 package com.example.android.testing.notes.addnote;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.NoteSnapshot;
 import com.example.android.testing.notes.data.NotesRepository;
 import com.example.android.testing.notes.util.ImageFile;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -30,6 +32,7 @@ import java.io.IOException;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -65,7 +68,7 @@ public class AddNotePresenterTest {
         mAddNotesPresenter.saveNote("New Note Title", "Some Note Description");
 
         // Then a note is,
-        verify(mNotesRepository).saveNote(any(Note.class)); // saved to the model
+        verify(mNotesRepository).saveNote(any(NoteSnapshot.class)); // saved to the model
         verify(mAddNoteView).showNotesList(); // shown in the UI
     }
 
@@ -126,4 +129,23 @@ public class AddNotePresenterTest {
         verify(mImageFile).delete();
     }
 
+    @Test
+    public void saveNote_checksImageFileBeforeUpdatingUiOnMainThread() {
+        // Given a presenter that runs its work on a virtual clock
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mAddNotesPresenter = new AddNotePresenter(mNotesRepository, mAddNoteView, mImageFile,
+                Schedulers.of(scheduler));
+
+        // When the presenter is asked to save a note
+        mAddNotesPresenter.saveNote("New Note Title", "Some Note Description");
+
+        // Then nothing happens until the scheduled work runs
+        verify(mImageFile, never()).exists();
+        verify(mAddNoteView, never()).showNotesList();
+        scheduler.runUntilIdle();
+        verify(mImageFile).exists();
+        verify(mNotesRepository).saveNote(any(NoteSnapshot.class));
+        verify(mAddNoteView).showNotesList();
+    }
+
 }
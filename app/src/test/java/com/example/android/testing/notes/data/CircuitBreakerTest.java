@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link CircuitBreaker}
+ */
+public class CircuitBreakerTest {
+
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final long OPEN_MILLIS = 1000;
+
+    private VirtualTimeScheduler mClock;
+
+    private CircuitBreaker mCircuitBreaker;
+
+    @Before
+    public void setupCircuitBreaker() {
+        mClock = new VirtualTimeScheduler();
+        mCircuitBreaker = new CircuitBreaker(mClock, FAILURE_THRESHOLD, OPEN_MILLIS);
+    }
+
+    @Test
+    public void onFailure_opensAfterFailuresInARow() {
+        // Given failures interrupted by a success
+        fail(FAILURE_THRESHOLD - 1);
+        assertThat(mCircuitBreaker.allowRequest(), is(true));
+        mCircuitBreaker.onSuccess();
+        fail(FAILURE_THRESHOLD - 1);
+
+        // Then the breaker only opens with the next failure
+        assertThat(mCircuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        fail(1);
+        assertThat(mCircuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertThat(mCircuitBreaker.allowRequest(), is(false));
+        assertThat(mCircuitBreaker.getRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void allowRequest_letsOneTrialThroughAfterOpenTime() {
+        // Given an open breaker
+        fail(FAILURE_THRESHOLD);
+
+        // When the open time has passed
+        mClock.advanceBy(OPEN_MILLIS);
+
+        // Then only a single trial call goes through
+        assertThat(mCircuitBreaker.allowRequest(), is(true));
+        assertThat(mCircuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(mCircuitBreaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void onSuccess_ofTrialClosesBreaker() {
+        // Given a trial call after the breaker opened
+        fail(FAILURE_THRESHOLD);
+        mClock.advanceBy(OPEN_MILLIS);
+        mCircuitBreaker.allowRequest();
+
+        // When it succeeds
+        mCircuitBreaker.onSuccess();
+
+        // Then calls go through again
+        assertThat(mCircuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(mCircuitBreaker.allowRequest(), is(true));
+        assertThat(mCircuitBreaker.allowRequest(), is(true));
+    }
+
+    @Test
+    public void onFailure_ofTrialOpensBreakerAgain() {
+        // Given a trial call after the breaker opened
+        fail(FAILURE_THRESHOLD);
+        mClock.advanceBy(OPEN_MILLIS);
+        mCircuitBreaker.allowRequest();
+
+        // When it fails
+        mCircuitBreaker.onFailure();
+
+        // Then calls are rejected for another open time
+        assertThat(mCircuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        mClock.advanceBy(OPEN_MILLIS - 1);
+        assertThat(mCircuitBreaker.allowRequest(), is(false));
+        mClock.advanceBy(1);
+        assertThat(mCircuitBreaker.allowRequest(), is(true));
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            mCircuitBreaker.allowRequest();
+            mCircuitBreaker.onFailure();
+        }
+    }
+}
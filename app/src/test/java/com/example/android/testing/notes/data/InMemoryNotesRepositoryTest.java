@@ -18,22 +18,46 @@ package com.example.android.testing.notes.data;
 
 import com.google.common.collect.Lists;
 
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+import com.parse.ParseException;
+
+import android.support.annotation.NonNull;
+
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 /**
  * Unit tests for the implementation of the in-memory repository with cache.
@@ -42,8 +66,12 @@ public class InMemoryNotesRepositoryTest {
 
     private final static String NOTE_TITLE = "title";
 
-    private static List<Note> NOTES = Lists.newArrayList(new Note("Title1", "Description1"),
-            new Note("Title2", "Description2"));
+    private static List<NoteSnapshot> NOTES = Lists.newArrayList(
+            new NoteSnapshot("1", "Title1", "Description1", null, 1, 1),
+            new NoteSnapshot("2", "Title2", "Description2", null, 2, 2));
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
 
     private InMemoryNotesRepository mNotesRepository;
 
@@ -56,6 +84,15 @@ public class InMemoryNotesRepositoryTest {
     @Mock
     private NotesRepository.LoadNotesCallback mLoadNotesCallback;
 
+    @Mock
+    private NotesRepository.LoadNotesPageCallback mLoadNotesPageCallback;
+
+    @Mock
+    private NotesRepository.SyncNotesCallback mSyncNotesCallback;
+
+    @Mock
+    private NotesRepository.SearchNotesCallback mSearchNotesCallback;
+
     /**
      * {@link ArgumentCaptor} is a powerful Mockito API to capture argument values and use them to
      * perform further actions or assertions on them.
@@ -96,6 +133,42 @@ public class InMemoryNotesRepositoryTest {
         verify(mServiceApi, times(2)).getAllNotes(any(NotesServiceApi.NotesServiceCallback.class));
     }
 
+    @Test
+    public void concurrentGetNotes_shareOneServiceApiCall() {
+        // Given a second callback
+        NotesRepository.LoadNotesCallback secondCallback =
+                mock(NotesRepository.LoadNotesCallback.class);
+
+        // When notes are requested twice before the first request completes
+        mNotesRepository.getNotes(mLoadNotesCallback);
+        mNotesRepository.getNotes(secondCallback);
+        verify(mServiceApi).getAllNotes(mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(NOTES);
+
+        // Then both callbacks are served from a single service API call
+        verify(mLoadNotesCallback).onNotesLoaded(NOTES);
+        verify(secondCallback).onNotesLoaded(NOTES);
+        assertThat(mNotesRepository.getCoalescedCallCount(), is(1L));
+    }
+
+    @Test
+    public void concurrentGetNote_sharesOneServiceApiCall() {
+        // Given a second callback
+        NotesRepository.GetNoteCallback secondCallback =
+                mock(NotesRepository.GetNoteCallback.class);
+
+        // When the same note is requested twice before the first request completes
+        mNotesRepository.getNote("1", mGetNoteCallback);
+        mNotesRepository.getNote("1", secondCallback);
+        verify(mServiceApi).getNote(eq("1"), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(NOTES.get(0));
+
+        // Then both callbacks are served from a single service API call
+        verify(mGetNoteCallback).onNoteLoaded(NOTES.get(0));
+        verify(secondCallback).onNoteLoaded(NOTES.get(0));
+        assertThat(mNotesRepository.getCoalescedCallCount(), is(1L));
+    }
+
     @Test
     public void getNotes_requestsAllNotesFromServiceApi() {
         // When notes are requested from the notes repository
@@ -108,7 +181,7 @@ public class InMemoryNotesRepositoryTest {
     @Test
     public void saveNote_savesNoteToServiceAPIAndInvalidatesCache() {
         // Given a stub note with title and createdDate
-        Note newNote = new Note(NOTE_TITLE, "Some Note Description");
+        NoteSnapshot newNote = NoteSnapshot.create(NOTE_TITLE, "Some Note Description", null);
 
         // When a note is saved to the notes repository
         mNotesRepository.saveNote(newNote);
@@ -117,6 +190,162 @@ public class InMemoryNotesRepositoryTest {
         assertThat(mNotesRepository.mCachedNotes, is(nullValue()));
     }
 
+    @Test
+    public void saveNote_writesThroughToLoadedCache() {
+        // Given a repository with cached notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+        NoteSnapshot newNote = NoteSnapshot.create(NOTE_TITLE, "Some Note Description", null);
+
+        // When a note is saved to the notes repository
+        mNotesRepository.saveNote(newNote);
+
+        // Then the note is sent to the service API and added to the cache
+        verify(mServiceApi).saveNote(newNote);
+        assertThat(mNotesRepository.mCachedNotes, hasItem(newNote));
+        assertThat(mNotesRepository.mCachedNotes.size(), is(NOTES.size() + 1));
+    }
+
+    @Test
+    public void deleteNote_writesThroughToLoadedCache() {
+        // Given a repository with cached notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+        NoteSnapshot noteToDelete = NOTES.get(0);
+
+        // When a note is deleted from the notes repository
+        mNotesRepository.deleteNote(noteToDelete);
+
+        // Then the note is deleted through the service API and removed from the cache
+        verify(mServiceApi).deleteNote(noteToDelete);
+        assertThat(mNotesRepository.mCachedNotes, not(hasItem(noteToDelete)));
+    }
+
+    @Test
+    public void getNotesPage_servesChainedPagesFromCache() {
+        // Given two pages of one note each that were loaded from the service API
+        PageRequest firstPage = PageRequest.firstPage(1);
+        PageRequest secondPage = PageRequest.after(NOTES.get(0), 1);
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(firstPage), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(
+                new NotesPage(NOTES.subList(0, 1), secondPage));
+        mNotesRepository.getNotesPage(secondPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(secondPage), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesPage(NOTES.subList(1, 2), null));
+
+        // When both pages are requested again
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        mNotesRepository.getNotesPage(secondPage, mLoadNotesPageCallback);
+
+        // Then each page was only requested once from the service API
+        verify(mServiceApi, times(2)).getNotesPage(any(PageRequest.class),
+                any(NotesServiceApi.NotesServiceCallback.class));
+        assertThat(mNotesRepository.mPagedNotes, is(NOTES));
+        assertThat(mNotesRepository.mAllPagesLoaded, is(true));
+    }
+
+    @Test
+    public void getNotesPage_refreshDataClearsLoadedPages() {
+        // Given a loaded page
+        PageRequest firstPage = PageRequest.firstPage(NOTES.size());
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(firstPage), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesPage(NOTES, null));
+
+        // When data refresh is requested and the page is loaded again
+        mNotesRepository.refreshData();
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+
+        // Then the page is requested from the service API again
+        verify(mServiceApi, times(2)).getNotesPage(eq(firstPage),
+                any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void concurrentGetNotes_failedServiceApiCallReachesAllCallbacks() {
+        // Given a second callback
+        NotesRepository.LoadNotesCallback secondCallback =
+                mock(NotesRepository.LoadNotesCallback.class);
+
+        // When notes are requested twice and the service API call fails
+        mNotesRepository.getNotes(mLoadNotesCallback);
+        mNotesRepository.getNotes(secondCallback);
+        verify(mServiceApi).getAllNotes(mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onError(new IOException("Offline"));
+
+        // Then both callbacks are told and the next call tries again
+        verify(mLoadNotesCallback).onDataNotAvailable();
+        verify(secondCallback).onDataNotAvailable();
+        mNotesRepository.getNotes(mLoadNotesCallback);
+        verify(mServiceApi, times(2)).getAllNotes(any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void getNote_cacheThenNetworkFailureKeepsCachedNote() {
+        // Given a cached note
+        twoLoadCallsToRepository(mLoadNotesCallback);
+
+        // When it is loaded from the cache and then the network, which fails
+        mNotesRepository.getNote("1", CachePolicy.CACHE_THEN_NETWORK, mGetNoteCallback);
+        verify(mServiceApi).getNote(eq("1"), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onError(new IOException("Offline"));
+
+        // Then the cached note was delivered first and the failure after it
+        InOrder inOrder = inOrder(mGetNoteCallback);
+        inOrder.verify(mGetNoteCallback).onNoteLoaded(NOTES.get(0));
+        inOrder.verify(mGetNoteCallback).onDataNotAvailable();
+        assertThat(mNotesRepository.mNoteCache.get("1"), is(NOTES.get(0)));
+    }
+
+    @Test
+    public void syncNotes_failureKeepsHighWaterMark() {
+        // Given cached notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+
+        // When notes are synced and the service API call fails
+        NotesRequest request = mNotesRepository.syncNotes(mSyncNotesCallback);
+        verify(mServiceApi).getNotesChangedSince(eq(2L), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onError(new IOException("Offline"));
+
+        // Then the callback is told and the next sync starts from the same place
+        verify(mSyncNotesCallback).onDataNotAvailable();
+        verify(mSyncNotesCallback, never()).onNotesSynced();
+        assertThat(request.isDone(), is(true));
+        assertThat(mNotesRepository.mHighWaterMark, is(2L));
+    }
+
+    @Test
+    public void syncNotes_withoutLoadedNotesRefreshesData() {
+        // When notes are synced before anything was loaded
+        mNotesRepository.syncNotes(mSyncNotesCallback);
+
+        // Then no delta is requested and the cache is marked dirty
+        verify(mServiceApi, never()).getNotesChangedSince(anyLong(),
+                any(NotesServiceApi.NotesServiceCallback.class));
+        verify(mSyncNotesCallback).onNotesSynced();
+        assertThat(mNotesRepository.mCacheIsDirty, is(true));
+    }
+
+    @Test
+    public void syncNotes_mergesChangesSinceLastLoad() {
+        // Given cached notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+        NoteSnapshot updatedNote = new NoteSnapshot("2", "Title2", "Updated", null, 2, 5);
+        NoteSnapshot newNote = new NoteSnapshot("3", "Title3", "Description3", null, 4, 4);
+
+        // When notes are synced and the service API reports an update, an insert and a deletion
+        mNotesRepository.syncNotes(mSyncNotesCallback);
+        verify(mServiceApi).getNotesChangedSince(eq(2L), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesDelta(
+                Lists.newArrayList(updatedNote, newNote), Lists.newArrayList("1"), 5, false));
+
+        // Then the changes are merged into the cache without loading all notes again
+        verify(mSyncNotesCallback).onNotesSynced();
+        verify(mServiceApi).getAllNotes(any(NotesServiceApi.NotesServiceCallback.class));
+        assertThat(mNotesRepository.mCachedNotes,
+                containsInAnyOrder(updatedNote, newNote));
+        assertThat(mNotesRepository.mHighWaterMark, is(5L));
+    }
+
     @Test
     public void getNote_requestsSingleNoteFromServiceApi() {
         // When a note is requested from the notes repository
@@ -126,6 +355,422 @@ public class InMemoryNotesRepositoryTest {
         verify(mServiceApi).getNote(eq(NOTE_TITLE), any(NotesServiceApi.NotesServiceCallback.class));
     }
 
+    @Test
+    public void getNote_cacheOnlyDoesNotCallTheServiceApi() {
+        // When a note that is not cached is requested from the cache only
+        mNotesRepository.getNote("1", CachePolicy.CACHE_ONLY, mGetNoteCallback);
+
+        // Then the callback receives no note and the service API is not called
+        verify(mGetNoteCallback).onNoteLoaded(null);
+        verify(mServiceApi, never()).getNote(any(String.class),
+                any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void getNote_networkOnlyBypassesTheCache() {
+        // Given a cached note
+        mNotesRepository.mNoteCache.put(NOTES.get(0));
+
+        // When the note is requested from the network only
+        mNotesRepository.getNote("1", CachePolicy.NETWORK_ONLY, mGetNoteCallback);
+
+        // Then the note is loaded from the service API
+        verify(mGetNoteCallback, never()).onNoteLoaded(any(NoteSnapshot.class));
+        verify(mServiceApi).getNote(eq("1"), any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void getNote_cacheThenNetworkDeliversCachedAndFreshNote() {
+        // Given a cached note that was updated on the service API
+        mNotesRepository.mNoteCache.put(NOTES.get(0));
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Updated", null, 1, 5);
+
+        // When the note is requested with the cache then network policy
+        mNotesRepository.getNote("1", CachePolicy.CACHE_THEN_NETWORK, mGetNoteCallback);
+        verify(mServiceApi).getNote(eq("1"), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(updatedNote);
+
+        // Then the cached note is delivered first, followed by the fresh one
+        verify(mGetNoteCallback).onNoteLoaded(NOTES.get(0));
+        verify(mGetNoteCallback).onNoteLoaded(updatedNote);
+        assertThat(mNotesRepository.mNoteCache.get("1"), is(updatedNote));
+    }
+
+    @Test
+    public void getNotesPage_cacheThenNetworkDeliversCachedAndFreshPage() {
+        // Given a loaded page
+        PageRequest firstPage = PageRequest.firstPage(NOTES.size());
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(firstPage), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesPage(NOTES, null));
+        NotesRepository.LoadNotesPageCallback callback =
+                mock(NotesRepository.LoadNotesPageCallback.class);
+
+        // When the page is requested with the cache then network policy
+        mNotesRepository.getNotesPage(firstPage, CachePolicy.CACHE_THEN_NETWORK, callback);
+
+        // Then the cached page is delivered and the page is requested from the service API again
+        ArgumentCaptor<NotesPage> pageCaptor = ArgumentCaptor.forClass(NotesPage.class);
+        verify(callback).onNotesPageLoaded(pageCaptor.capture());
+        assertThat(pageCaptor.getValue().isFromCache(), is(true));
+        assertThat(pageCaptor.getValue().getNotes(), is(NOTES));
+        verify(mServiceApi, times(2)).getNotesPage(eq(firstPage),
+                any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void getNotesPage_servesPagesRestoredFromSnapshot() throws IOException {
+        // Given a snapshot of the complete list
+        NoteListSnapshotFile snapshotFile = new NoteListSnapshotFile(
+                new File(mFolder.newFolder(), "list.snapshot"), Schedulers.immediate().io(),
+                NoteListSnapshotFile.DEFAULT_MAX_NOTES);
+        snapshotFile.write(NOTES, true);
+
+        // When a repository starting from the snapshot is asked for the first page
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), snapshotFile);
+        mNotesRepository.getNotesPage(PageRequest.firstPage(NOTES.size()), mLoadNotesPageCallback);
+
+        // Then the page is served without calling the service API
+        verify(mServiceApi, never()).getNotesPage(any(PageRequest.class),
+                any(NotesServiceApi.NotesServiceCallback.class));
+        assertThat(mNotesRepository.mPagedNotes, is(NOTES));
+        assertThat(mNotesRepository.mHighWaterMark, is(2L));
+    }
+
+    @Test
+    public void getNotesPage_waitsForSnapshotReadOnIoScheduler() throws IOException {
+        // Given a snapshot of the complete list and a repository starting from it
+        NoteListSnapshotFile snapshotFile = new NoteListSnapshotFile(
+                new File(mFolder.newFolder(), "list.snapshot"), Schedulers.immediate().io(),
+                NoteListSnapshotFile.DEFAULT_MAX_NOTES);
+        snapshotFile.write(NOTES, true);
+        VirtualTimeScheduler io = new VirtualTimeScheduler();
+        VirtualTimeScheduler main = new VirtualTimeScheduler();
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), snapshotFile,
+                NotesChangeDispatcher.IMMEDIATE, new Schedulers(io, main, main));
+
+        // When the first page is requested before the snapshot was read
+        mNotesRepository.getNotesPage(PageRequest.firstPage(NOTES.size()), mLoadNotesPageCallback);
+
+        // Then it is served from the snapshot once it was read on the io scheduler
+        assertThat(mNotesRepository.mPagedNotes.isEmpty(), is(true));
+        verify(mLoadNotesPageCallback, never()).onNotesPageLoaded(any(NotesPage.class));
+        io.runUntilIdle();
+        main.runUntilIdle();
+        verify(mLoadNotesPageCallback).onNotesPageLoaded(any(NotesPage.class));
+        verify(mServiceApi, never()).getNotesPage(any(PageRequest.class),
+                any(NotesServiceApi.NotesServiceCallback.class));
+        assertThat(mNotesRepository.mPagedNotes, is(NOTES));
+    }
+
+    @Test
+    public void getNotesPage_storesLoadedPagesInSnapshot() throws IOException {
+        // Given a repository that keeps a snapshot
+        NoteListSnapshotFile snapshotFile = new NoteListSnapshotFile(
+                new File(mFolder.newFolder(), "list.snapshot"), Schedulers.immediate().io(),
+                NoteListSnapshotFile.DEFAULT_MAX_NOTES);
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), snapshotFile);
+
+        // When a page is loaded
+        PageRequest firstPage = PageRequest.firstPage(NOTES.size());
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(firstPage), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesPage(NOTES, null));
+
+        // Then the loaded notes are stored in the snapshot
+        assertThat(snapshotFile.read().getNotes(), is(NOTES));
+    }
+
+    @Test
+    public void search_loadsNotesAndFollowsWrites() {
+        // Given loaded notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Groceries", null, 1, 3);
+
+        // When a note is updated and another one deleted
+        mNotesRepository.saveNote(updatedNote);
+        mNotesRepository.deleteNote(NOTES.get(1));
+        mNotesRepository.search("groceries description2", 10, mSearchNotesCallback);
+
+        // Then the search results reflect both writes
+        verify(mSearchNotesCallback).onNotesFound(Lists.newArrayList(updatedNote));
+    }
+
+    @Test
+    public void filter_findsNotesByPrefix() {
+        // Given loaded notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+
+        // When the notes are filtered by the start of a word
+        mNotesRepository.filter("desc", 10, mSearchNotesCallback);
+
+        // Then the most recently updated notes starting with it are found
+        verify(mSearchNotesCallback).onNotesFound(Lists.newArrayList(NOTES.get(1), NOTES.get(0)));
+    }
+
+    @Test
+    public void getNewestNotes_readsNotesInCreationOrder() {
+        // Given loaded notes
+        twoLoadCallsToRepository(mLoadNotesCallback);
+        NotesRepository.LoadNotesCallback callback =
+                mock(NotesRepository.LoadNotesCallback.class);
+
+        // When the newest note and the notes created in a time range are requested
+        mNotesRepository.getNewestNotes(1, callback);
+        mNotesRepository.getNotesCreatedBetween(1, 2, true, callback);
+
+        // Then they are read from the index in creation order
+        verify(callback).onNotesLoaded(Lists.newArrayList(NOTES.get(1)));
+        verify(callback).onNotesLoaded(Lists.newArrayList(NOTES.get(1), NOTES.get(0)));
+    }
+
+    @Test
+    public void subscribe_deliversChangesOfOneFrameInOneBatch() {
+        // Given a repository that delivers changes when a frame is drawn and a loaded page
+        final List<Runnable> frames = new ArrayList<>();
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                new NotesChangeDispatcher.FrameScheduler() {
+                    @Override
+                    public void postFrame(@NonNull Runnable frame) {
+                        frames.add(frame);
+                    }
+                });
+        loadPageOfNotes();
+        NotesRepository.NotesObserver observer = mock(NotesRepository.NotesObserver.class);
+        mNotesRepository.subscribe(observer);
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Updated", null, 1, 3);
+
+        // When a note is updated and another one deleted before the frame is drawn
+        mNotesRepository.saveNote(updatedNote);
+        mNotesRepository.deleteNote(NOTES.get(1));
+        assertThat(frames.size(), is(1));
+        frames.get(0).run();
+
+        // Then the observer receives both changes in one batch
+        verify(observer).onNotesChanged(Lists.newArrayList(NotesChange.updated(updatedNote, 0),
+                NotesChange.removed(NOTES.get(1), 1)));
+    }
+
+    @Test
+    public void syncNotes_deliversPositionedChangesToObservers() {
+        // Given a loaded page and a subscribed observer
+        loadPageOfNotes();
+        NotesRepository.NotesObserver observer = mock(NotesRepository.NotesObserver.class);
+        mNotesRepository.subscribe(observer);
+        NoteSnapshot updatedNote = new NoteSnapshot("2", "Title2", "Updated", null, 2, 5);
+        NoteSnapshot newNote = new NoteSnapshot("3", "Title3", "Description3", null, 4, 4);
+
+        // When notes are synced and the service API reports a deletion, an update and an insert
+        mNotesRepository.syncNotes(mSyncNotesCallback);
+        verify(mServiceApi).getNotesChangedSince(eq(2L), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesDelta(
+                Lists.newArrayList(updatedNote, newNote), Lists.newArrayList("1"), 5, false));
+
+        // Then the observer is told where each change happened in the loaded pages
+        verify(observer).onNotesChanged(Lists.newArrayList(NotesChange.removed(NOTES.get(0), 0)));
+        verify(observer).onNotesChanged(Lists.newArrayList(NotesChange.updated(updatedNote, 0)));
+        verify(observer).onNotesChanged(Lists.newArrayList(NotesChange.inserted(newNote, 1)));
+        assertThat(mNotesRepository.mPagedNotes, contains(updatedNote, newNote));
+
+        // When the observer unsubscribes and another note is deleted
+        mNotesRepository.unsubscribe(observer);
+        mNotesRepository.deleteNote(newNote);
+
+        // Then it isn't told about it
+        verifyNoMoreInteractions(observer);
+    }
+
+    @Test
+    public void getNotesPage_handlesServiceApiResponseOnMainScheduler() {
+        // Given a repository whose main scheduler runs on a virtual clock
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, Schedulers.of(scheduler));
+
+        // When the service API responds to a page request
+        loadPageOfNotes();
+
+        // Then the page is only cached and delivered once the main scheduler runs
+        verify(mLoadNotesPageCallback, never()).onNotesPageLoaded(any(NotesPage.class));
+        assertThat(mNotesRepository.mPagedNotes.isEmpty(), is(true));
+        scheduler.runUntilIdle();
+        verify(mLoadNotesPageCallback).onNotesPageLoaded(any(NotesPage.class));
+        assertThat(mNotesRepository.mPagedNotes, is(NOTES));
+    }
+
+    @Test
+    public void search_waitsForIndexesBuiltOnComputeSchedulerAndKeepsWritesMadeMeanwhile() {
+        // Given a repository whose main and compute schedulers run on virtual clocks
+        VirtualTimeScheduler main = new VirtualTimeScheduler();
+        VirtualTimeScheduler compute = new VirtualTimeScheduler();
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, new Schedulers(main, compute, main));
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Groceries", null, 1, 3);
+
+        // When notes are searched and a note is updated while the notes are indexed
+        mNotesRepository.search("groceries", 10, mSearchNotesCallback);
+        verify(mServiceApi).getAllNotes(mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(NOTES);
+        main.runUntilIdle();
+        mNotesRepository.saveNote(updatedNote);
+
+        // Then the search is only answered once the indexes are built, including the update
+        verify(mSearchNotesCallback, never()).onNotesFound(anyListOf(NoteSnapshot.class));
+        compute.runUntilIdle();
+        main.runUntilIdle();
+        compute.runUntilIdle();
+        main.runUntilIdle();
+        verify(mSearchNotesCallback).onNotesFound(Lists.newArrayList(updatedNote));
+    }
+
+    @Test
+    public void filter_runsOnComputeSchedulerAndDropsCancelledQueries() {
+        // Given a repository with indexed notes whose compute scheduler runs on a virtual clock
+        VirtualTimeScheduler main = new VirtualTimeScheduler();
+        VirtualTimeScheduler compute = new VirtualTimeScheduler();
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, new Schedulers(main, compute, main));
+        mNotesRepository.getNotes(mLoadNotesCallback);
+        verify(mServiceApi).getAllNotes(mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(NOTES);
+        main.runUntilIdle();
+        compute.runUntilIdle();
+        main.runUntilIdle();
+        NotesRepository.SearchNotesCallback supersededCallback =
+                mock(NotesRepository.SearchNotesCallback.class);
+
+        // When the notes are filtered twice and the first filter is cancelled before it runs
+        mNotesRepository.filter("d", 10, supersededCallback).cancel();
+        mNotesRepository.filter("desc", 10, mSearchNotesCallback);
+        main.runUntilIdle();
+
+        // Then only the second filter runs, on the compute scheduler, and answers on main
+        verify(mSearchNotesCallback, never()).onNotesFound(anyListOf(NoteSnapshot.class));
+        assertThat(compute.getPendingTaskCount(), is(1));
+        compute.runUntilIdle();
+        verify(mSearchNotesCallback, never()).onNotesFound(anyListOf(NoteSnapshot.class));
+        main.runUntilIdle();
+        verify(mSearchNotesCallback).onNotesFound(Lists.newArrayList(NOTES.get(1), NOTES.get(0)));
+        verifyZeroInteractions(supersededCallback);
+    }
+
+    @Test
+    public void saveNote_isQueuedInOutbox() throws IOException {
+        // Given a repository with an outbox
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        Schedulers schedulers = Schedulers.of(scheduler);
+        NoteOutbox outbox = NoteOutbox.open(mFolder.newFolder(), mServiceApi, schedulers);
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, schedulers, outbox);
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Updated", null, 1, 3);
+
+        // When a note is saved and another one deleted
+        mNotesRepository.saveNote(updatedNote);
+        mNotesRepository.deleteNote(NOTES.get(1));
+        scheduler.runUntilIdle();
+
+        // Then both are written through the outbox, in one batch
+        verify(mServiceApi, never()).saveNote(any(NoteSnapshot.class));
+        verify(mServiceApi, never()).deleteNote(any(NoteSnapshot.class));
+        verify(mServiceApi).writeMutations(anyListOf(NoteMutation.class),
+                any(NotesServiceApi.NotesServiceCallback.class));
+        assertThat(outbox.getPendingCount(), is(2));
+        outbox.close();
+    }
+
+    @Test
+    public void subscribeToSyncStates_deliversStatesOfOutbox() throws IOException {
+        // Given a repository with an outbox and a subscribed observer
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        Schedulers schedulers = Schedulers.of(scheduler);
+        NoteOutbox outbox = NoteOutbox.open(mFolder.newFolder(), mServiceApi, schedulers);
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, schedulers, outbox);
+        NotesRepository.SyncStateObserver observer =
+                mock(NotesRepository.SyncStateObserver.class);
+        mNotesRepository.subscribeToSyncStates(observer);
+
+        // When a note is saved
+        mNotesRepository.saveNote(NOTES.get(0));
+
+        // Then the observer is told it is waiting to be written
+        InOrder inOrder = inOrder(observer);
+        inOrder.verify(observer).onSyncStatesChanged(Collections.<String, SyncState>emptyMap());
+        inOrder.verify(observer).onSyncStatesChanged(
+                Collections.singletonMap(NOTES.get(0).getId(), SyncState.PENDING));
+        outbox.close();
+    }
+
+    @Test
+    public void saveNote_ofNewNoteAddsCreatedNoteToLoadedPage() throws IOException {
+        // Given a repository with an outbox, all notes loaded and a subscribed observer
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        Schedulers schedulers = Schedulers.of(scheduler);
+        NoteOutbox outbox = NoteOutbox.open(mFolder.newFolder(), mServiceApi, schedulers);
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, schedulers, outbox);
+        loadPageOfNotes();
+        scheduler.runUntilIdle();
+        NotesRepository.NotesObserver observer = mock(NotesRepository.NotesObserver.class);
+        mNotesRepository.subscribe(observer);
+        NoteSnapshot newNote = NoteSnapshot.create("Title3", "Description3", null);
+
+        // When a new note is saved and the outbox writes it
+        mNotesRepository.saveNote(newNote);
+        scheduler.runUntilIdle();
+        verify(mServiceApi).writeMutations(anyListOf(NoteMutation.class),
+                mNotesServiceCallbackCaptor.capture());
+        NoteSnapshot created = newNote.withBackendState("3", 3, 3);
+        mNotesServiceCallbackCaptor.getValue().onLoaded(Collections.singletonList(created));
+        scheduler.runUntilIdle();
+
+        // Then the created note shows up at its position in the loaded page
+        verify(observer).onNotesChanged(Lists.newArrayList(NotesChange.inserted(created, 2)));
+        mNotesRepository.getNotesPage(PageRequest.firstPage(10), CachePolicy.CACHE_ONLY,
+                mLoadNotesPageCallback);
+        ArgumentCaptor<NotesPage> pageCaptor = ArgumentCaptor.forClass(NotesPage.class);
+        verify(mLoadNotesPageCallback, times(2)).onNotesPageLoaded(pageCaptor.capture());
+        assertThat(pageCaptor.getValue().getNotes(),
+                contains(NOTES.get(0), NOTES.get(1), created));
+        outbox.close();
+    }
+
+    @Test
+    public void discardUnsyncedChanges_dropsRejectedWriteAndLoadsNotesAgain() throws IOException {
+        // Given a repository with an outbox whose save of a loaded note was rejected
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        Schedulers schedulers = Schedulers.of(scheduler);
+        NoteOutbox outbox = NoteOutbox.open(mFolder.newFolder(), mServiceApi, schedulers);
+        mNotesRepository = new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, schedulers, outbox);
+        loadPageOfNotes();
+        scheduler.runUntilIdle();
+        mNotesRepository.saveNote(NOTES.get(0));
+        scheduler.runUntilIdle();
+        verify(mServiceApi).writeMutations(anyListOf(NoteMutation.class),
+                mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onError(
+                new ParseException(ParseException.OBJECT_TOO_LARGE, "Too large"));
+        scheduler.runUntilIdle();
+        assertThat(outbox.getSyncState(NOTES.get(0).getId()), is(SyncState.NOT_SYNCED));
+
+        // When the user discards the changes
+        mNotesRepository.discardUnsyncedChanges(NOTES.get(0));
+
+        // Then the note is synced as far as the outbox is concerned and the notes are stale
+        assertThat(outbox.getSyncState(NOTES.get(0).getId()), is(SyncState.SYNCED));
+        assertThat(outbox.getDeadLetters().isEmpty(), is(true));
+        assertThat(mNotesRepository.mPagedNotes.isEmpty(), is(true));
+        outbox.close();
+    }
+
+    private void loadPageOfNotes() {
+        PageRequest firstPage = PageRequest.firstPage(NOTES.size());
+        mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(firstPage), mNotesServiceCallbackCaptor.capture());
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesPage(NOTES, null));
+    }
+
     /**
      * Convenience method that issues two calls to the notes repository
      */
@@ -142,4 +787,51 @@ public class InMemoryNotesRepositoryTest {
         mNotesRepository.getNotes(callback); // Second call to API
     }
 
-}
\ No newline at end of file
+    @Test
+    public void getNotesPage_cancelledRequestDoesNotCallBack() {
+        // Given a page request that is in flight
+        PageRequest firstPage = PageRequest.firstPage(NOTES.size());
+        NotesRequest request = mNotesRepository.getNotesPage(firstPage, mLoadNotesPageCallback);
+        verify(mServiceApi).getNotesPage(eq(firstPage), mNotesServiceCallbackCaptor.capture());
+
+        // When it is cancelled before the service API responds
+        request.cancel();
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesPage(NOTES, null));
+
+        // Then the callback is not called but the page is still cached for the next request
+        verify(mLoadNotesPageCallback, never()).onNotesPageLoaded(any(NotesPage.class));
+        assertThat(request.isDone(), is(false));
+        assertThat(mNotesRepository.mPagedNotes, is(NOTES));
+    }
+
+    @Test
+    public void syncNotes_cancelledSyncStopsLoadingChanges() {
+        // Given cached notes and a sync in flight
+        twoLoadCallsToRepository(mLoadNotesCallback);
+        NotesRequest request = mNotesRepository.syncNotes(mSyncNotesCallback);
+        verify(mServiceApi).getNotesChangedSince(eq(2L), mNotesServiceCallbackCaptor.capture());
+
+        // When the sync is cancelled and the service API reports that more changes follow
+        request.cancel();
+        NoteSnapshot newNote = new NoteSnapshot("3", "Title3", "Description3", null, 4, 4);
+        mNotesServiceCallbackCaptor.getValue().onLoaded(new NotesDelta(
+                Lists.newArrayList(newNote), Lists.<String>newArrayList(), 4, true));
+
+        // Then the changes so far are merged but no more are requested
+        verify(mServiceApi, never()).getNotesChangedSince(eq(4L),
+                any(NotesServiceApi.NotesServiceCallback.class));
+        verify(mSyncNotesCallback, never()).onNotesSynced();
+        assertThat(mNotesRepository.mCachedNotes, hasItem(newNote));
+    }
+
+    @Test
+    public void requests_areNumberedInOrder() {
+        // When two requests are made
+        NotesRequest first = mNotesRepository.getNote("1", mGetNoteCallback);
+        NotesRequest second = mNotesRepository.getNotes(mLoadNotesCallback);
+
+        // Then the later one has the higher number
+        assertThat(second.getSequenceNumber() > first.getSequenceNumber(), is(true));
+    }
+
+}
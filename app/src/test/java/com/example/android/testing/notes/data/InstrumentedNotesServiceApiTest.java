@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+import com.example.android.testing.notes.data.InstrumentedNotesServiceApi.MethodStats;
+import com.example.android.testing.notes.data.NotesServiceApi.Method;
+import com.example.android.testing.notes.data.NotesServiceApi.NotesServiceCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the implementation of {@link InstrumentedNotesServiceApi}
+ */
+public class InstrumentedNotesServiceApiTest {
+
+    private static final NoteSnapshot NOTE = new NoteSnapshot("1", "Title", "Description", null,
+            NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP);
+
+    @Mock
+    private NotesServiceApi mDelegate;
+
+    @Mock
+    private NotesServiceCallback<List<NoteSnapshot>> mCallback;
+
+    @Captor
+    private ArgumentCaptor<NotesServiceCallback<List<NoteSnapshot>>> mCallbackCaptor;
+
+    private FakeTicker mTicker;
+
+    private InstrumentedNotesServiceApi mServiceApi;
+
+    @Before
+    public void setupInstrumentedNotesServiceApi() {
+        MockitoAnnotations.initMocks(this);
+        mTicker = new FakeTicker();
+        mServiceApi = new InstrumentedNotesServiceApi(mDelegate, mTicker);
+    }
+
+    @Test
+    public void getAllNotes_recordsTimeUntilCallbackAndPayload() {
+        // Given a call that is answered after 30 ms
+        mServiceApi.getAllNotes(mCallback);
+        verify(mDelegate).getAllNotes(mCallbackCaptor.capture());
+        mTicker.advance(30, TimeUnit.MILLISECONDS);
+        List<NoteSnapshot> notes = Lists.newArrayList(NOTE, NOTE);
+
+        // When the notes arrive
+        mCallbackCaptor.getValue().onLoaded(notes);
+
+        // Then they are passed on and the call is recorded
+        verify(mCallback).onLoaded(notes);
+        MethodStats stats = mServiceApi.getStats(Method.GET_ALL_NOTES);
+        assertThat(stats.getSuccessCount(), is(1L));
+        assertThat(stats.getErrorCount(), is(0L));
+        assertThat(stats.getLatencyNanos().getMax(), is(TimeUnit.MILLISECONDS.toNanos(30)));
+        assertWithinEighth(stats.getLatencyNanos().getP50(), TimeUnit.MILLISECONDS.toNanos(30));
+        assertThat(stats.getPayloadBytes().getMax(), greaterThan(0L));
+    }
+
+    @Test
+    public void saveNote_recordsThrownExceptionAsError() {
+        // Given a service API that fails to save
+        doThrow(new IllegalStateException()).when(mDelegate).saveNote(any(NoteSnapshot.class));
+
+        // When a note is saved
+        try {
+            mServiceApi.saveNote(NOTE);
+            fail("The exception should be passed on");
+        } catch (IllegalStateException expected) {
+            // Then the exception is passed on and counted
+        }
+        assertThat(mServiceApi.getStats(Method.SAVE_NOTE).getErrorCount(), is(1L));
+        assertThat(mServiceApi.getStats(Method.SAVE_NOTE).getSuccessCount(), is(0L));
+    }
+
+    @Test
+    public void report_hasOneLinePerCalledMethod() {
+        // Given nothing was called
+        assertThat(mServiceApi.report(), isEmptyString());
+
+        // When two notes are saved and one is deleted
+        mServiceApi.saveNote(NOTE);
+        mServiceApi.saveNote(NOTE);
+        mServiceApi.deleteNote(NOTE);
+
+        // Then the report has a line for each method
+        String report = mServiceApi.report();
+        assertThat(report, containsString("SAVE_NOTE ok=2 errors=0"));
+        assertThat(report, containsString("DELETE_NOTE ok=1 errors=0"));
+        assertThat(report.split("\n").length, is(2));
+    }
+
+    private static void assertWithinEighth(long actual, long expected) {
+        assertThat(Math.abs(actual - expected), lessThanOrEqualTo(expected / 8));
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long mNanos;
+
+        @Override
+        public long read() {
+            return mNanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            mNanos += unit.toNanos(time);
+        }
+    }
+}
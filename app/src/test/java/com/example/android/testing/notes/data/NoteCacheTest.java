@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the bounded, expiring {@link NoteCache}.
+ */
+public class NoteCacheTest {
+
+    private static final int CAPACITY = 2;
+
+    private static final long EXPIRY_SECONDS = 10;
+
+    private FakeTicker mTicker;
+
+    private NoteCache mNoteCache;
+
+    @Before
+    public void setupNoteCache() {
+        mTicker = new FakeTicker();
+        mNoteCache = new NoteCache(CAPACITY, EXPIRY_SECONDS, TimeUnit.SECONDS, mTicker);
+    }
+
+    @Test
+    public void get_cachedNoteIsAHit() {
+        // Given a cached note
+        NoteSnapshot note = newNote("1");
+        mNoteCache.put(note);
+
+        // When the note is requested
+        NoteSnapshot cachedNote = mNoteCache.get("1");
+
+        // Then it is served from the cache and counted as a hit
+        assertThat(cachedNote, is(note));
+        assertThat(mNoteCache.getHitCount(), is(1L));
+        assertThat(mNoteCache.getMissCount(), is(0L));
+    }
+
+    @Test
+    public void get_expiredNoteIsAMiss() {
+        // Given a cached note that outlived its expiry
+        mNoteCache.put(newNote("1"));
+        mTicker.advance(EXPIRY_SECONDS + 1, TimeUnit.SECONDS);
+
+        // When the note is requested
+        NoteSnapshot cachedNote = mNoteCache.get("1");
+
+        // Then it is not served and counted as a miss
+        assertThat(cachedNote, is(nullValue()));
+        assertThat(mNoteCache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void put_beyondCapacityEvictsLeastRecentlyUsedNote() {
+        // Given a full cache where the first note was used most recently
+        mNoteCache.put(newNote("1"));
+        mNoteCache.put(newNote("2"));
+        mNoteCache.get("1");
+
+        // When another note is cached
+        mNoteCache.put(newNote("3"));
+
+        // Then the least recently used note is evicted
+        assertThat(mNoteCache.get("2"), is(nullValue()));
+        assertThat(mNoteCache.getEvictionCount(), is(1L));
+    }
+
+    private static NoteSnapshot newNote(String id) {
+        return new NoteSnapshot(id, "Title" + id, "Description" + id, null, 0, 0);
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long mNanos;
+
+        @Override
+        public long read() {
+            return mNanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            mNanos += unit.toNanos(time);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link NoteGenerator}
+ */
+public class NoteGeneratorTest {
+
+    private static final long SEED = 42;
+
+    @Test
+    public void iterator_sameSeedGivesSameNotes() {
+        List<NoteSnapshot> first = toList(new NoteGenerator(SEED, 100));
+        List<NoteSnapshot> second = toList(new NoteGenerator(SEED, 100));
+
+        assertThat(first.size(), is(100));
+        for (int i = 0; i < first.size(); i++) {
+            assertSameNote(second.get(i), first.get(i));
+        }
+    }
+
+    @Test
+    public void iterator_otherSeedGivesOtherNotes() {
+        NoteSnapshot note = new NoteGenerator(SEED, 1).get(0);
+        NoteSnapshot other = new NoteGenerator(SEED + 1, 1).get(0);
+
+        assertThat(other.getId(), is(not(note.getId())));
+    }
+
+    @Test
+    public void get_doesNotDependOnEarlierNotes() {
+        // Given the notes streamed in order
+        NoteGenerator generator = new NoteGenerator(SEED, 1000);
+        List<NoteSnapshot> streamed = toList(generator);
+
+        // Then any one note can be generated on its own
+        assertSameNote(generator.get(999), streamed.get(999));
+        assertSameNote(generator.get(500), streamed.get(500));
+    }
+
+    @Test
+    public void iterator_notesAreInKeysetOrderWithUniqueIds() {
+        Set<String> ids = new HashSet<>();
+        NoteSnapshot previous = null;
+        for (NoteSnapshot note : new NoteGenerator(SEED, NoteGenerator.MEDIUM)) {
+            assertThat(ids.add(note.getId()), is(true));
+            assertThat(note.getUpdatedAt(), is(greaterThanOrEqualTo(note.getCreatedAt())));
+            if (previous != null) {
+                assertThat(PageRequest.KEYSET_ORDER.compare(previous, note), is(lessThan(0)));
+            }
+            previous = note;
+        }
+        assertThat(ids.size(), is(NoteGenerator.MEDIUM));
+    }
+
+    @Test
+    public void iterator_notesAreSpreadOverTimeSpan() {
+        NoteGenerator generator = new NoteGenerator(SEED, NoteGenerator.SMALL);
+        long start = NoteGenerator.DEFAULT_END_TIME - NoteGenerator.DEFAULT_SPAN_MILLIS;
+
+        for (NoteSnapshot note : generator) {
+            assertThat(note.getCreatedAt(), is(both(greaterThanOrEqualTo(start))
+                    .and(lessThan(NoteGenerator.DEFAULT_END_TIME))));
+        }
+        // The first and last notes are near the ends of the span
+        long slot = NoteGenerator.DEFAULT_SPAN_MILLIS / NoteGenerator.SMALL;
+        assertThat(generator.get(0).getCreatedAt(), is(lessThan(start + slot)));
+        assertThat(generator.get(NoteGenerator.SMALL - 1).getCreatedAt(),
+                is(greaterThanOrEqualTo(NoteGenerator.DEFAULT_END_TIME - slot)));
+    }
+
+    @Test
+    public void iterator_lengthsAndImagesLookLikeRealNotes() {
+        // Given a sizeable sample
+        int count = NoteGenerator.MEDIUM;
+        int[] titleLengths = new int[count];
+        int[] descriptionLengths = new int[count];
+        int withImage = 0;
+        int edited = 0;
+        int i = 0;
+        for (NoteSnapshot note : new NoteGenerator(SEED, count)) {
+            titleLengths[i] = note.getTitle().length();
+            descriptionLengths[i] = note.getDescription().length();
+            if (note.getImageUrl() != null) {
+                withImage++;
+            }
+            if (note.getUpdatedAt() > note.getCreatedAt()) {
+                edited++;
+            }
+            i++;
+        }
+        Arrays.sort(titleLengths);
+        Arrays.sort(descriptionLengths);
+
+        // Then titles are short, most descriptions are a paragraph with a few long ones
+        assertThat(titleLengths[count / 2], is(both(greaterThan(5)).and(lessThan(40))));
+        assertThat(titleLengths[count - 1], is(lessThanOrEqualTo(150)));
+        assertThat(descriptionLengths[count / 2], is(both(greaterThan(60)).and(lessThan(400))));
+        assertThat(descriptionLengths[count * 99 / 100], is(greaterThan(1000)));
+        // And about a fifth have an image and about a third were edited
+        assertThat(withImage, is(both(greaterThan(count / 6)).and(lessThan(count / 4))));
+        assertThat(edited, is(both(greaterThan(count / 4)).and(lessThan(count * 2 / 5))));
+    }
+
+    private static List<NoteSnapshot> toList(Iterable<NoteSnapshot> notes) {
+        List<NoteSnapshot> list = new ArrayList<>();
+        for (NoteSnapshot note : notes) {
+            list.add(note);
+        }
+        return list;
+    }
+
+    private static void assertSameNote(NoteSnapshot actual, NoteSnapshot expected) {
+        assertThat(actual.getId(), is(expected.getId()));
+        assertThat(actual.getTitle(), is(expected.getTitle()));
+        assertThat(actual.getDescription(), is(expected.getDescription()));
+        assertThat(actual.getImageUrl(), is(expected.getImageUrl()));
+        assertThat(actual.getCreatedAt(), is(expected.getCreatedAt()));
+        assertThat(actual.getUpdatedAt(), is(expected.getUpdatedAt()));
+    }
+}
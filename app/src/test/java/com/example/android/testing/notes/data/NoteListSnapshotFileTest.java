@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import com.example.android.testing.notes.util.Schedulers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link NoteListSnapshotFile}.
+ */
+public class NoteListSnapshotFileTest {
+
+    private static List<NoteSnapshot> NOTES = Lists.newArrayList(
+            new NoteSnapshot("1", "Title1", "Description1", null, 1, 1),
+            new NoteSnapshot("2", "T\u00eftle2 \u2713", "", "file:///image.jpg", 1449000000000L,
+                    Long.MAX_VALUE));
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    private NoteListSnapshotFile mSnapshotFile;
+
+    @Before
+    public void setupSnapshotFile() throws IOException {
+        mFile = new File(mFolder.newFolder(), "list.snapshot");
+        mSnapshotFile = new NoteListSnapshotFile(mFile, Schedulers.immediate().io(), 2);
+    }
+
+    @Test
+    public void write_completeListCanBeReadBack() {
+        // When the complete list is written
+        mSnapshotFile.write(NOTES, true);
+
+        // Then the same notes are read back as the last page, served from cache
+        NotesPage page = mSnapshotFile.read();
+        assertThat(page.getNotes(), is(NOTES));
+        assertThat(page.isLastPage(), is(true));
+        assertThat(page.isFromCache(), is(true));
+    }
+
+    @Test
+    public void write_firstPagesContinueAfterLastNote() {
+        // When the first pages of the list are written
+        mSnapshotFile.write(NOTES, false);
+
+        // Then the next page continues after the last stored note
+        assertThat(mSnapshotFile.read().getNextPage(),
+                is(PageRequest.after(NOTES.get(1), PageRequest.DEFAULT_PAGE_SIZE)));
+    }
+
+    @Test
+    public void write_keepsOnlyTheStartOfLongLists() {
+        // Given a list longer than the snapshot keeps
+        List<NoteSnapshot> notes = Lists.newArrayList(NOTES);
+        notes.add(new NoteSnapshot("3", "Title3", "Description3", null, 3, 3));
+
+        // When the complete list is written
+        mSnapshotFile.write(notes, true);
+
+        // Then only its start is kept and the rest has to be paged in
+        NotesPage page = mSnapshotFile.read();
+        assertThat(page.getNotes(), is(NOTES));
+        assertThat(page.getNextPage(), is(notNullValue()));
+    }
+
+    @Test
+    public void read_withoutFileReturnsNull() {
+        // Then nothing is read before anything was written
+        assertThat(mSnapshotFile.read(), is(nullValue()));
+    }
+
+    @Test
+    public void read_ignoresCorruptFile() throws IOException {
+        // Given a written snapshot that got corrupted
+        mSnapshotFile.write(NOTES, true);
+        byte[] bytes = Files.toByteArray(mFile);
+        bytes[bytes.length / 2] ^= 0xff;
+        Files.write(bytes, mFile);
+
+        // Then it is ignored
+        assertThat(mSnapshotFile.read(), is(nullValue()));
+    }
+
+    @Test
+    public void read_ignoresTruncatedFile() throws IOException {
+        // Given a snapshot that was cut short
+        byte[] bytes = NoteListSnapshotFile.encode(NOTES, true);
+        byte[] truncated = new byte[bytes.length - 10];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        Files.write(truncated, mFile);
+
+        // Then it is ignored
+        assertThat(mSnapshotFile.read(), is(nullValue()));
+    }
+}
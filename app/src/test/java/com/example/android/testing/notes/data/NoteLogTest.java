@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.google.common.primitives.Bytes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link NoteLog}.
+ */
+public class NoteLogTest {
+
+    private static final int SEGMENT_SIZE = 512;
+
+    private static final NoteSnapshot NOTE =
+            new NoteSnapshot("1", "Title1", "Description1", null, 1, 1);
+
+    private static final NoteSnapshot OTHER_NOTE =
+            new NoteSnapshot("2", "Title2", "Description2", "file:///image.jpg", 2, 2);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    private NoteLog mNoteLog;
+
+    @Before
+    public void setupNoteLog() throws IOException {
+        mDirectory = mFolder.newFolder();
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+    }
+
+    @After
+    public void closeNoteLog() {
+        mNoteLog.close();
+    }
+
+    @Test
+    public void put_noteCanBeReadBack() throws IOException {
+        // When notes are stored
+        mNoteLog.put(NOTE);
+        mNoteLog.put(OTHER_NOTE);
+
+        // Then they can be read back
+        assertThat(mNoteLog.get(NOTE.getId()), is(NOTE));
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(NOTE, OTHER_NOTE));
+        assertThat(mNoteLog.size(), is(2));
+    }
+
+    @Test
+    public void remove_keepsDeletionTime() throws IOException {
+        // Given a stored note
+        mNoteLog.put(NOTE);
+
+        // When the note is removed
+        mNoteLog.remove(NOTE.getId(), 5);
+
+        // Then it can no longer be read and its deletion is remembered
+        assertThat(mNoteLog.get(NOTE.getId()), is(nullValue()));
+        assertThat(mNoteLog.getDeletionTimes(), hasEntry(NOTE.getId(), 5L));
+    }
+
+    @Test
+    public void open_replaysStoredNotes() throws IOException {
+        // Given a log with an updated and a deleted note
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Updated", null, 1, 3);
+        mNoteLog.put(NOTE);
+        mNoteLog.put(OTHER_NOTE);
+        mNoteLog.put(updatedNote);
+        mNoteLog.remove(OTHER_NOTE.getId(), 4);
+        mNoteLog.close();
+
+        // When the log is opened again
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+
+        // Then the latest version of every note is read back
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(updatedNote));
+        assertThat(mNoteLog.getDeletionTimes(), hasEntry(OTHER_NOTE.getId(), 4L));
+    }
+
+    @Test
+    public void open_ignoresTornRecord() throws IOException {
+        // Given a log whose last record was only partially written
+        mNoteLog.put(NOTE);
+        mNoteLog.put(OTHER_NOTE);
+        mNoteLog.close();
+        File segment = new File(mDirectory, NoteLog.SEGMENT_PREFIX + 0 + NoteLog.SEGMENT_SUFFIX);
+        byte[] bytes = Files.toByteArray(segment);
+        byte[] imageUrl = OTHER_NOTE.getImageUrl().getBytes(Charsets.UTF_8);
+        bytes[Bytes.indexOf(bytes, imageUrl)] ^= 0xff;
+        Files.write(bytes, segment);
+
+        // When the log is opened again and another note is stored
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+        mNoteLog.put(OTHER_NOTE);
+
+        // Then only the intact records are replayed and the torn record is overwritten
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(NOTE, OTHER_NOTE));
+        mNoteLog.close();
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(NOTE, OTHER_NOTE));
+    }
+
+    @Test
+    public void open_deletesLastSegmentWithoutHeader() throws IOException {
+        // Given a log whose last segment was created but not written when the app died
+        mNoteLog.put(NOTE);
+        mNoteLog.close();
+        File segment = new File(mDirectory, NoteLog.SEGMENT_PREFIX + 1 + NoteLog.SEGMENT_SUFFIX);
+        Files.write(new byte[SEGMENT_SIZE], segment);
+
+        // When the log is opened again and another note is stored
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+        mNoteLog.put(OTHER_NOTE);
+
+        // Then the torn segment is dropped and the log keeps working
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(NOTE, OTHER_NOTE));
+        mNoteLog.close();
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(NOTE, OTHER_NOTE));
+    }
+
+    @Test
+    public void put_rollsOverToNewSegments() throws IOException {
+        // When more notes are stored than fit into a segment
+        for (int i = 0; i < 20; i++) {
+            mNoteLog.put(new NoteSnapshot(String.valueOf(i), "Title", "Description", null, i, i));
+        }
+
+        // Then they are spread over several segments and can all be read back
+        assertThat(mNoteLog.getSegmentCount() > 1, is(true));
+        assertThat(mNoteLog.size(), is(20));
+        assertThat(mNoteLog.get("19").getCreatedAt(), is(19L));
+    }
+
+    @Test
+    public void put_storesNoteLargerThanSegment() throws IOException {
+        // Given a note that doesn't fit into a segment
+        NoteSnapshot largeNote = new NoteSnapshot("1", "Title", Strings.repeat("x", SEGMENT_SIZE),
+                null, 1, 1);
+
+        // When the note is stored
+        mNoteLog.put(largeNote);
+
+        // Then it can be read back
+        assertThat(mNoteLog.get("1"), is(largeNote));
+    }
+
+    @Test
+    public void compact_dropsGarbage() throws IOException {
+        // Given a log in which most records were overwritten
+        for (int i = 0; i < 10; i++) {
+            mNoteLog.put(new NoteSnapshot("1", "Title", "Description", null, 1, i));
+        }
+        mNoteLog.put(OTHER_NOTE);
+        mNoteLog.remove(OTHER_NOTE.getId(), 10);
+
+        // When the log is compacted
+        mNoteLog.compact();
+
+        // Then only the latest records are left, also after opening the log again
+        assertThat(mNoteLog.getGarbageBytes(), is(0L));
+        assertThat(mNoteLog.getSegmentCount(), is(1));
+        mNoteLog.close();
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+        assertThat(mNoteLog.get("1").getUpdatedAt(), is(9L));
+        assertThat(mNoteLog.getDeletionTimes(), hasEntry(OTHER_NOTE.getId(), 10L));
+    }
+
+    @Test
+    public void compact_dropsDeletionsUpToSyncHighWaterMark() throws IOException {
+        // Given a log with two deletions, one of them synced
+        mNoteLog.put(NOTE);
+        mNoteLog.put(OTHER_NOTE);
+        mNoteLog.remove(NOTE.getId(), 5);
+        mNoteLog.remove(OTHER_NOTE.getId(), 10);
+        mNoteLog.setSyncHighWaterMark(5);
+
+        // When the log is compacted
+        mNoteLog.compact();
+
+        // Then only the unsynced deletion is kept
+        assertThat(mNoteLog.getDeletionTimes().size(), is(1));
+        assertThat(mNoteLog.getDeletionTimes(), hasEntry(OTHER_NOTE.getId(), 10L));
+    }
+
+    @Test
+    public void getAll_returnsNotesInKeysetOrder() throws IOException {
+        // Given notes stored out of order, one of them moved by an update
+        NoteSnapshot thirdNote = new NoteSnapshot("0", "Title0", "Description0", null, 2, 2);
+        mNoteLog.put(OTHER_NOTE);
+        mNoteLog.put(new NoteSnapshot("1", "Title1", "Description1", null, 3, 3));
+        mNoteLog.put(thirdNote);
+        mNoteLog.put(NOTE);
+
+        // Then they are read back by creation time and id, also after opening the log again
+        assertThat(mNoteLog.getAll(), contains(NOTE, thirdNote, OTHER_NOTE));
+        mNoteLog.close();
+        mNoteLog = NoteLog.open(mDirectory, SEGMENT_SIZE);
+        assertThat(mNoteLog.getAll(), contains(NOTE, thirdNote, OTHER_NOTE));
+    }
+
+    @Test
+    public void getAfter_continuesAfterCursor() throws IOException {
+        // Given stored notes
+        for (int i = 0; i < 10; i++) {
+            mNoteLog.put(new NoteSnapshot(String.valueOf(i), "Title", "Description", null, i, i));
+        }
+
+        // When the notes after the fourth one are requested
+        PageRequest request = PageRequest.after(mNoteLog.get("3"), 2);
+        List<NoteSnapshot> notes = mNoteLog.getAfter(request, 3);
+
+        // Then the next notes are returned in order
+        assertThat(notes, contains(mNoteLog.get("4"), mNoteLog.get("5"), mNoteLog.get("6")));
+        assertThat(mNoteLog.getAfter(PageRequest.firstPage(2), 1), contains(mNoteLog.get("0")));
+    }
+
+    @Test
+    public void put_compactsOnceGarbageOutweighsLiveRecords() throws IOException {
+        // When a single note is overwritten over and over again
+        for (int i = 0; i < 100; i++) {
+            mNoteLog.put(new NoteSnapshot("1", "Title", "Description", null, 1, i));
+        }
+
+        // Then the log compacts itself and stays small
+        assertThat(mNoteLog.getGarbageBytes() < SEGMENT_SIZE, is(true));
+        assertThat(mNoteLog.getSegmentCount() <= 2, is(true));
+        assertThat(mNoteLog.get("1").getUpdatedAt(), is(99L));
+    }
+
+    @Test
+    public void isEmpty_forNewLog() {
+        // Then a new log holds no notes
+        assertThat(mNoteLog.isEmpty(), is(true));
+        assertThat(mNoteLog.getAll(), is(empty()));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the batching and coalescing of writes in {@link NoteMutationQueue}.
+ */
+public class NoteMutationQueueTest {
+
+    private static final int MAX_BATCH_SIZE = 3;
+
+    private static final NoteSnapshot NOTE = new NoteSnapshot("1", "Title1", "Description1",
+            null, 1, 1);
+
+    @Mock
+    private NoteMutationQueue.Flusher mFlusher;
+
+    private VirtualTimeScheduler mScheduler;
+
+    @Captor
+    private ArgumentCaptor<List<NoteSnapshot>> mSavesCaptor;
+
+    @Captor
+    private ArgumentCaptor<List<NoteSnapshot>> mDeletesCaptor;
+
+    private NoteMutationQueue mMutationQueue;
+
+    @Before
+    public void setupMutationQueue() {
+        MockitoAnnotations.initMocks(this);
+
+        mScheduler = new VirtualTimeScheduler();
+        mMutationQueue = new NoteMutationQueue(mFlusher, mScheduler, 100, MAX_BATCH_SIZE);
+    }
+
+    @Test
+    public void enqueueSave_schedulesFlushAfterWindow() {
+        // When a note is saved
+        mMutationQueue.enqueueSave(NOTE);
+
+        // Then nothing is written until the window has passed
+        mScheduler.advanceBy(99);
+        verify(mFlusher, never()).flush(anyListOf(NoteSnapshot.class),
+                anyListOf(NoteSnapshot.class));
+        mScheduler.advanceBy(1);
+        verify(mFlusher).flush(mSavesCaptor.capture(), mDeletesCaptor.capture());
+        assertThat(mSavesCaptor.getValue(), contains(NOTE));
+    }
+
+    @Test
+    public void flush_overtakesScheduledFlush() {
+        // Given a save that was flushed before its window passed
+        mMutationQueue.enqueueSave(NOTE);
+        mScheduler.advanceBy(50);
+        mMutationQueue.flush();
+
+        // When the note is deleted
+        mMutationQueue.enqueueDelete(NOTE);
+
+        // Then the delete waits for a window of its own
+        mScheduler.advanceBy(99);
+        assertThat(mMutationQueue.getPendingCount(), is(1));
+        mScheduler.advanceBy(1);
+        assertThat(mMutationQueue.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void repeatedSaves_areCoalesced() {
+        // Given a note that is saved twice
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Title1", "Updated", null, 1, 2);
+        mMutationQueue.enqueueSave(NOTE);
+        mMutationQueue.enqueueSave(updatedNote);
+
+        // When the queue is flushed
+        mMutationQueue.flush();
+
+        // Then only the last save is written
+        verify(mFlusher).flush(mSavesCaptor.capture(), mDeletesCaptor.capture());
+        assertThat(mSavesCaptor.getValue(), contains(updatedNote));
+        assertThat(mDeletesCaptor.getValue(), is(empty()));
+        assertThat(mMutationQueue.getCoalescedCount(), is(1L));
+    }
+
+    @Test
+    public void saveFollowedByDelete_onlyDeletes() {
+        // Given a note that is saved and then deleted
+        mMutationQueue.enqueueSave(NOTE);
+        mMutationQueue.enqueueDelete(NOTE);
+
+        // When the queue is flushed
+        mMutationQueue.flush();
+
+        // Then only the delete is written
+        verify(mFlusher).flush(mSavesCaptor.capture(), mDeletesCaptor.capture());
+        assertThat(mSavesCaptor.getValue(), is(empty()));
+        assertThat(mDeletesCaptor.getValue(), contains(NOTE));
+    }
+
+    @Test
+    public void newNoteDeletedBeforeFlush_isNeverWritten() {
+        // Given a new note that is deleted before it was written
+        NoteSnapshot newNote = NoteSnapshot.create("Title", "Description", null);
+        mMutationQueue.enqueueSave(newNote);
+        mMutationQueue.enqueueDelete(newNote);
+
+        // When the queue is flushed
+        mMutationQueue.flush();
+
+        // Then nothing is written
+        verify(mFlusher, never()).flush(anyListOf(NoteSnapshot.class),
+                anyListOf(NoteSnapshot.class));
+        assertThat(mMutationQueue.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void newNoteDeletedBeforeFlush_keepsEqualNewNote() {
+        // Given two new notes with the same content, one of which is deleted before it was written
+        NoteSnapshot newNote = NoteSnapshot.create("Title", "Description", null);
+        NoteSnapshot sameNewNote = NoteSnapshot.create("Title", "Description", null);
+        mMutationQueue.enqueueSave(newNote);
+        mMutationQueue.enqueueSave(sameNewNote);
+        mMutationQueue.enqueueDelete(sameNewNote);
+
+        // When the queue is flushed
+        mMutationQueue.flush();
+
+        // Then the other one is still written
+        verify(mFlusher).flush(mSavesCaptor.capture(), mDeletesCaptor.capture());
+        assertThat(mSavesCaptor.getValue().size(), is(1));
+        assertThat(mSavesCaptor.getValue().get(0), is(sameInstance(newNote)));
+    }
+
+    @Test
+    public void newNoteDeletedAfterFlush_isDeletedOnceCreated() {
+        // Given a new note that was handed to the flusher
+        NoteSnapshot newNote = NoteSnapshot.create("Title", "Description", null);
+        mMutationQueue.enqueueSave(newNote);
+        mMutationQueue.flush();
+
+        // When it is deleted before the backend has assigned its id
+        mMutationQueue.enqueueDelete(newNote);
+
+        // Then the delete waits for the id and is written with it
+        assertThat(mMutationQueue.getPendingCount(), is(0));
+        NoteSnapshot created = newNote.withBackendState("1", 1, 1);
+        mMutationQueue.onNoteCreated(newNote, created);
+        mMutationQueue.flush();
+        verify(mFlusher, times(2)).flush(mSavesCaptor.capture(), mDeletesCaptor.capture());
+        assertThat(mSavesCaptor.getValue(), is(empty()));
+        assertThat(mDeletesCaptor.getValue(), contains(created));
+    }
+
+    @Test
+    public void fullBatch_isFlushedRightAway() {
+        // When as many notes as fit into a batch are deleted
+        for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+            mMutationQueue.enqueueDelete(
+                    new NoteSnapshot(String.valueOf(i), null, null, null, 0, 0));
+        }
+
+        // Then the flush is not delayed
+        mScheduler.runUntilIdle();
+        verify(mFlusher).flush(mSavesCaptor.capture(), mDeletesCaptor.capture());
+        assertThat(mDeletesCaptor.getValue().size(), is(MAX_BATCH_SIZE));
+    }
+}
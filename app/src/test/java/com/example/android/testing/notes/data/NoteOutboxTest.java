@@ -0,0 +1,725 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.ImmutableMap;
+
+import com.example.android.testing.notes.data.NotesServiceApi.NotesServiceCallback;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+import com.parse.ParseException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the implementation of {@link NoteOutbox}
+ */
+public class NoteOutboxTest {
+
+    private static final int MAX_WRITES_PER_SECOND = 10;
+
+    private static final long SEND_INTERVAL_MILLIS = 1000 / MAX_WRITES_PER_SECOND;
+
+    private static final NoteSnapshot NOTE = new NoteSnapshot("1", "Title", "Description", null,
+            1, 1);
+
+    private static final NoteSnapshot OTHER_NOTE = new NoteSnapshot("2", "Other", "Description",
+            null, 2, 2);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Mock
+    private NotesServiceApi mServiceApi;
+
+    @Mock
+    private NoteOutbox.Listener mListener;
+
+    @Captor
+    private ArgumentCaptor<List<NoteMutation>> mBatchCaptor;
+
+    @Captor
+    private ArgumentCaptor<NotesServiceCallback<List<NoteSnapshot>>> mCallbackCaptor;
+
+    private VirtualTimeScheduler mScheduler;
+
+    private NoteOutbox mOutbox;
+
+    @Before
+    public void setupNoteOutbox() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        mScheduler = new VirtualTimeScheduler();
+        mOutbox = open();
+        mOutbox.addListener(mListener);
+    }
+
+    @After
+    public void closeNoteOutbox() throws IOException {
+        mOutbox.close();
+    }
+
+    @Test
+    public void enqueue_sendsConsecutiveMutationsInOrderAsOneBatch() throws IOException {
+        // Given a save and a delete of different notes
+        mOutbox.enqueueSave(NOTE);
+        mOutbox.enqueueDelete(OTHER_NOTE);
+
+        // When they are sent
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then they go with one call, in the order they were made
+        List<NoteMutation> batch = verifyBatch(1);
+        assertThat(batch.size(), is(2));
+        assertThat(batch.get(0).getType(), is(NoteMutation.Type.UPDATE));
+        assertThat(batch.get(0).getNote(), is(NOTE));
+        assertThat(batch.get(1).getType(), is(NoteMutation.Type.DELETE));
+        assertThat(batch.get(1).getNoteId(), is(OTHER_NOTE.getId()));
+
+        // When the batch is written
+        answerWrite(NOTE, null);
+
+        // Then both are acknowledged
+        assertThat(mOutbox.getPendingCount(), is(0));
+        assertThat(mOutbox.getWrittenCount(), is(2L));
+    }
+
+    @Test
+    public void enqueue_sendsNextMutationOfSameNoteInNextBatch() throws IOException {
+        // Given a delete of a note and a save that brings it back
+        mOutbox.enqueueDelete(NOTE);
+        mOutbox.enqueueSave(NOTE);
+
+        // When they are sent
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then the save waits for the delete to be written
+        assertThat(verifyWrite(1).getType(), is(NoteMutation.Type.DELETE));
+        answerWrite((NoteSnapshot) null);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        assertThat(verifyWrite(2).getType(), is(NoteMutation.Type.UPDATE));
+    }
+
+    @Test
+    public void enqueue_sendsAtMostMaxBatchSizeMutationsWithOneCall() throws IOException {
+        // Given one save more than fits into a batch
+        for (int i = 0; i <= NoteOutbox.MAX_BATCH_SIZE; i++) {
+            mOutbox.enqueueSave(NOTE.withBackendState("id" + i, 1, 1));
+        }
+
+        // When they are sent
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then the last one waits for the next batch
+        assertThat(verifyBatch(1).size(), is(NoteOutbox.MAX_BATCH_SIZE));
+        answerWrite(new NoteSnapshot[NoteOutbox.MAX_BATCH_SIZE]);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        assertThat(verifyWrite(2).getNoteId(), is("id" + NoteOutbox.MAX_BATCH_SIZE));
+    }
+
+    @Test
+    public void open_sendsUnacknowledgedMutationsAgainWithTheirKeys() throws IOException {
+        // Given a save that was sent but not acknowledged when the app died
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        String idempotencyKey = verifyWrite(1).getIdempotencyKey();
+        mOutbox.close();
+
+        // When the outbox is opened again
+        mOutbox = open();
+        mScheduler.runUntilIdle();
+
+        // Then the same mutation is sent again
+        NoteMutation replayed = verifyWrite(2);
+        assertThat(replayed.getIdempotencyKey(), is(idempotencyKey));
+        assertThat(replayed.getNote(), is(NOTE));
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.PENDING));
+    }
+
+    @Test
+    public void open_forgetsAcknowledgedMutations() throws IOException {
+        // Given a save that was written
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+        answerWrite(NOTE);
+        mOutbox.close();
+
+        // When the outbox is opened again
+        mOutbox = open();
+        mScheduler.runUntilIdle();
+
+        // Then nothing is sent and the journal is empty again
+        verifyWrite(1);
+        assertThat(mOutbox.getPendingCount(), is(0));
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.SYNCED));
+    }
+
+    @Test
+    public void journal_isOnlyReadAndWrittenOnIoScheduler() throws IOException {
+        // Given an outbox with a pending save whose io and main schedulers are run separately
+        mOutbox.enqueueSave(NOTE);
+        mOutbox.close();
+        mScheduler.runUntilIdle();
+        VirtualTimeScheduler io = new VirtualTimeScheduler();
+        mOutbox = NoteOutbox.open(mFolder.getRoot(), mServiceApi,
+                new Schedulers(io, mScheduler, mScheduler), MAX_WRITES_PER_SECOND);
+
+        // When a save is made before the journal was read
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mScheduler.runUntilIdle();
+
+        // Then nothing is sent until the journal was read and the new save was written to it
+        verify(mServiceApi, never()).writeMutations(anyListOf(NoteMutation.class),
+                any(NotesServiceCallback.class));
+        assertThat(mOutbox.getSyncState(OTHER_NOTE.getId()), is(SyncState.PENDING));
+        io.runUntilIdle();
+        mScheduler.runUntilIdle();
+        assertThat(verifyWrite(1).getNote(), is(NOTE));
+        answerWrite(NOTE);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        verifyWrite(1);
+        io.runUntilIdle();
+        mScheduler.runUntilIdle();
+        assertThat(verifyWrite(2).getNote(), is(OTHER_NOTE));
+    }
+
+    @Test
+    public void open_dropsTornRecordAtTheEnd() throws IOException {
+        // Given two saves, the second one only half written when the device lost power
+        mOutbox.enqueueSave(NOTE);
+        long journalBytes = mOutbox.getJournalBytes();
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mOutbox.close();
+        mScheduler.runUntilIdle();
+        truncateJournal(journalBytes + (mOutbox.getJournalBytes() - journalBytes) / 2);
+
+        // When the outbox is opened again
+        mOutbox = open();
+
+        // Then only the complete save is left and new saves are appended after it
+        assertThat(mOutbox.getPendingCount(), is(1));
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mOutbox.close();
+        mOutbox = open();
+        List<NoteMutation> pending = mOutbox.getPendingMutations();
+        assertThat(pending.size(), is(2));
+        assertThat(pending.get(0).getNote(), is(NOTE));
+        assertThat(pending.get(1).getNote(), is(OTHER_NOTE));
+    }
+
+    @Test
+    public void writeFailure_marksNoteFailedAndRetriesAfterBackoff() throws IOException {
+        // Given a save that fails
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+        failWrite();
+
+        // Then the note is marked as failed and nothing is sent until the backoff has passed
+        verify(mListener).onSyncStatesChanged(ImmutableMap.of(NOTE.getId(), SyncState.FAILED));
+        mScheduler.advanceBy(NoteOutbox.MIN_RETRY_MILLIS - 1);
+        verifyWrite(1);
+
+        // When the backoff has passed and the retry succeeds
+        mScheduler.advanceBy(1);
+        verifyWrite(2);
+        answerWrite(NOTE);
+
+        // Then the note is synced
+        verify(mListener).onSyncStatesChanged(Collections.<String, SyncState>emptyMap());
+        assertThat(mOutbox.getFailedAttemptCount(), is(1L));
+    }
+
+    @Test
+    public void permanentFailure_deadLettersMutationAndMovesOn() throws IOException {
+        // Given a save that the backend rejects and a save of another note in the same batch
+        mOutbox.enqueueSave(NOTE);
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mScheduler.runUntilIdle();
+        assertThat(verifyBatch(1).size(), is(2));
+        rejectWrite();
+
+        // Then the saves are sent one at a time to find the rejected one
+        assertThat(mOutbox.getDeadLetters().size(), is(0));
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        assertThat(verifyWrite(2).getNote(), is(NOTE));
+        rejectWrite();
+
+        // Then the rejected save is given up on and the next one is sent without a backoff
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.NOT_SYNCED));
+        assertThat(mOutbox.getDeadLetters().size(), is(1));
+        assertThat(mOutbox.getDeadLetters().get(0).getNote(), is(NOTE));
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        assertThat(verifyWrite(3).getNote(), is(OTHER_NOTE));
+
+        // Also after opening the outbox again
+        mOutbox.close();
+        mOutbox = open();
+        assertThat(mOutbox.getPendingMutations().size(), is(1));
+        assertThat(mOutbox.getPendingMutations().get(0).getNote(), is(OTHER_NOTE));
+    }
+
+    @Test
+    public void transientFailure_isGivenUpOnAfterMaxAttempts() throws IOException {
+        // Given a save that keeps failing while the device is offline
+        mOutbox.enqueueSave(NOTE);
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mScheduler.runUntilIdle();
+        for (int i = 1; i < NoteOutbox.MAX_ATTEMPTS; i++) {
+            verifyBatch(i);
+            failWrite();
+            mScheduler.advanceBy(NoteOutbox.MAX_RETRY_MILLIS);
+        }
+
+        // When the last attempt fails
+        verifyWrite(NoteOutbox.MAX_ATTEMPTS);
+        failWrite();
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then it is given up on and the next save is sent
+        assertThat(mOutbox.getDeadLetters().get(0).getNote(), is(NOTE));
+        assertThat(verifyWrite(NoteOutbox.MAX_ATTEMPTS + 1).getNote(), is(OTHER_NOTE));
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.NOT_SYNCED));
+    }
+
+    @Test
+    public void retryDeadLetters_sendsMutationAgainWithItsKey() throws IOException {
+        // Given a save that the backend rejected
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        String idempotencyKey = verifyWrite(1).getIdempotencyKey();
+        rejectWrite();
+
+        // When the user asks to send it again
+        mOutbox.retryDeadLetters(NOTE);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then it is sent again with the same key and the note waits to be synced
+        assertThat(verifyWrite(2).getIdempotencyKey(), is(idempotencyKey));
+        assertThat(mOutbox.getDeadLetters().size(), is(0));
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.PENDING));
+    }
+
+    @Test
+    public void discardDeadLetters_marksNoteSyncedWithoutSendingIt() throws IOException {
+        // Given a save that the backend rejected
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+        rejectWrite();
+
+        // When the user discards it
+        mOutbox.discardDeadLetters(NOTE);
+        mScheduler.runUntilIdle();
+
+        // Then it is forgotten and not sent again
+        verifyWrite(1);
+        assertThat(mOutbox.getDeadLetters().size(), is(0));
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.SYNCED));
+    }
+
+    @Test
+    public void isPermanent_onlyForErrorsTheBackendWillRepeat() {
+        assertThat(NoteOutbox.isPermanent(new IOException("Offline")), is(false));
+        assertThat(NoteOutbox.isPermanent(
+                new ParseException(ParseException.CONNECTION_FAILED, "Offline")), is(false));
+        assertThat(NoteOutbox.isPermanent(
+                new ParseException(ParseException.INVALID_JSON, "Invalid")), is(true));
+    }
+
+    @Test
+    public void replayNow_retriesWithoutWaitingForBackoff() throws IOException {
+        // Given a save that failed
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+        failWrite();
+
+        // When the device is back online
+        mOutbox.replayNow();
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then the save is sent again right away
+        verifyWrite(2);
+    }
+
+    @Test
+    public void failedMutation_holdsUpTheOnesAfterIt() throws IOException {
+        // Given a batch of saves of two notes that fails
+        mOutbox.enqueueSave(NOTE);
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mScheduler.runUntilIdle();
+        verifyBatch(1);
+        failWrite();
+
+        // When the retry is due
+        mScheduler.advanceBy(NoteOutbox.MIN_RETRY_MILLIS);
+
+        // Then the first one is sent again on its own before the other one
+        assertThat(verifyWrite(2).getNote(), is(NOTE));
+        assertThat(mOutbox.getSyncState(OTHER_NOTE.getId()), is(SyncState.PENDING));
+
+        // When it gets through
+        answerWrite(NOTE);
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then the mutations after it are batched again
+        assertThat(verifyBatch(3).size(), is(2));
+    }
+
+    @Test
+    public void enqueueSave_dropsPendingUpdateOfSameNote() throws IOException {
+        // Given a save that is being sent and two more saves of the same note
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mScheduler.runUntilIdle();
+        NoteSnapshot firstEdit = NOTE.withBackendState(NOTE.getId(), 1, 2);
+        NoteSnapshot secondEdit = NOTE.withBackendState(NOTE.getId(), 1, 3);
+        mOutbox.enqueueSave(firstEdit);
+        mOutbox.enqueueSave(secondEdit);
+
+        // When the first save is written
+        verifyWrite(1);
+        answerWrite(OTHER_NOTE);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then only the latest edit is sent
+        assertThat(verifyWrite(2).getNote(), is(secondEdit));
+        answerWrite(secondEdit);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        verifyWrite(2);
+        assertThat(mOutbox.getCoalescedCount(), is(1L));
+    }
+
+    @Test
+    public void enqueueSave_keepsUpdateThatIsBeingSent() throws IOException {
+        // Given a save that is being sent
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+
+        // When the note is deleted meanwhile
+        mOutbox.enqueueDelete(NOTE);
+
+        // Then both are sent
+        answerWrite(NOTE);
+        assertThat(mOutbox.getSyncState(NOTE.getId()), is(SyncState.PENDING));
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        assertThat(verifyWrite(2).getType(), is(NoteMutation.Type.DELETE));
+        assertThat(mOutbox.getCoalescedCount(), is(0L));
+    }
+
+    @Test
+    public void replay_isLimitedToMaxWritesPerSecond() throws IOException {
+        // Given a backend that answers right away and a save made every millisecond
+        answerWritesRightAway();
+
+        // When just under a second passes, the first save is sent right away
+        for (int millis = 0; millis < 999; millis++) {
+            mOutbox.enqueueSave(NOTE.withBackendState("id" + millis, 1, 1));
+            mScheduler.advanceBy(1);
+        }
+
+        // Then only the allowed number of batches was sent, with the saves made in between
+        verifyBatch(MAX_WRITES_PER_SECOND);
+        assertThat(mOutbox.getWrittenCount() > MAX_WRITES_PER_SECOND, is(true));
+    }
+
+    @Test
+    public void acknowledgingEverything_emptiesTheJournal() throws IOException {
+        // Given a save
+        long emptyJournalBytes = mOutbox.getJournalBytes();
+        mOutbox.enqueueSave(NOTE);
+
+        // When it is written
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+        answerWrite(NOTE);
+
+        // Then only the header of the journal is left
+        assertThat(mOutbox.getJournalBytes(), is(emptyJournalBytes));
+    }
+
+    @Test
+    public void compact_keepsOnlyPendingMutations() throws IOException {
+        // Given a journal with acknowledged mutations in front of a pending one
+        for (int i = 0; i < 9; i++) {
+            mOutbox.enqueueSave(NOTE.withBackendState("id" + i, 1, 1));
+        }
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        verifyBatch(1);
+        mOutbox.enqueueSave(NOTE.withBackendState("id9", 1, 1));
+        answerWrite(new NoteSnapshot[9]);
+        long journalBytes = mOutbox.getJournalBytes();
+
+        // When it is compacted and opened again
+        mOutbox.compact();
+        mOutbox.close();
+        mOutbox = open();
+
+        // Then it shrank and still holds the pending mutation
+        assertThat(mOutbox.getJournalBytes(), is(lessThan(journalBytes)));
+        assertThat(mOutbox.getPendingMutations().size(), is(1));
+        assertThat(mOutbox.getPendingMutations().get(0).getNoteId(), is("id9"));
+    }
+
+    @Test
+    public void metrics_recordQueueDepthAndLatency() throws IOException {
+        // Given two saves written a second after they were made
+        mOutbox.enqueueSave(NOTE);
+        mOutbox.enqueueSave(OTHER_NOTE);
+        mScheduler.advanceBy(1000);
+        verifyBatch(1);
+        answerWrite(NOTE, OTHER_NOTE);
+
+        // Then the queue depth and the time they waited are recorded
+        assertThat(mOutbox.getMaxPendingCount(), is(2));
+        assertThat(mOutbox.getQueueDepth().getCount(), is(2L));
+        assertThat(mOutbox.getLatencyMillis().getCount(), is(2L));
+        assertThat(mOutbox.getLatencyMillis().getMax() >= 1000, is(true));
+    }
+
+    @Test
+    public void enqueueDelete_ofNewNoteDropsItsPendingCreate() throws IOException {
+        // Given a new note whose create waits behind a save that is being sent
+        NoteSnapshot newNote = NoteSnapshot.create("Title", null, null);
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+        mOutbox.enqueueSave(newNote);
+        mScheduler.runUntilIdle();
+
+        // When the new note is deleted
+        mOutbox.enqueueDelete(newNote);
+
+        // Then its create is never sent, also after opening the outbox again
+        answerWrite(NOTE);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+        verifyWrite(1);
+        mOutbox.close();
+        mOutbox = open();
+        assertThat(mOutbox.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void enqueueDelete_ofNewNoteFollowsCreateThatIsBeingSent() throws IOException {
+        // Given a new note whose create is being sent
+        NoteSnapshot newNote = NoteSnapshot.create("Title", null, null);
+        mOutbox.enqueueSave(newNote);
+        mScheduler.runUntilIdle();
+        String createKey = verifyWrite(1).getIdempotencyKey();
+
+        // When the new note is deleted
+        mOutbox.enqueueDelete(newNote);
+
+        // Then the delete refers to the create, also after opening the outbox again
+        mOutbox.close();
+        mOutbox = open();
+        assertThat(mOutbox.getPendingMutations().get(1).getCreateKey(), is(createKey));
+
+        // When the create is written
+        mScheduler.runUntilIdle();
+        verifyWrite(2);
+        NoteSnapshot created = newNote.withBackendState("new", 1, 1);
+        answerWrite(created);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then the note it created is deleted
+        NoteMutation delete = verifyWrite(3);
+        assertThat(delete.getType(), is(NoteMutation.Type.DELETE));
+        assertThat(delete.getNoteId(), is("new"));
+        assertThat(delete.getCreateKey(), is(createKey));
+        assertThat(mOutbox.getSyncState("new"), is(SyncState.PENDING));
+    }
+
+    @Test
+    public void enqueueDelete_ofNewNoteThatWasWrittenDeletesTheCreatedNote() throws IOException {
+        // Given a new note that was written
+        NoteSnapshot newNote = NoteSnapshot.create("Title", null, null);
+        mOutbox.enqueueSave(newNote);
+        mScheduler.runUntilIdle();
+        NoteMutation create = verifyWrite(1);
+        NoteSnapshot created = newNote.withBackendState("new", 1, 1);
+        answerWrite(created);
+        verify(mListener).onNoteCreated(create, created);
+
+        // When the new note is deleted
+        mOutbox.enqueueDelete(newNote);
+        mScheduler.advanceBy(SEND_INTERVAL_MILLIS);
+
+        // Then the note it became is deleted
+        assertThat(verifyWrite(2).getNoteId(), is("new"));
+    }
+
+    @Test
+    public void enqueueDelete_ofNewNoteBeingSentHidesCreatedNoteFromListeners()
+            throws IOException {
+        // Given a new note whose create is being sent
+        NoteSnapshot newNote = NoteSnapshot.create("Title", null, null);
+        mOutbox.enqueueSave(newNote);
+        mScheduler.runUntilIdle();
+        verifyWrite(1);
+
+        // When the new note is deleted before the create is written
+        mOutbox.enqueueDelete(newNote);
+        answerWrite(newNote.withBackendState("new", 1, 1));
+
+        // Then the listeners are not told about the created note
+        verify(mListener, never()).onNoteCreated(any(NoteMutation.class),
+                any(NoteSnapshot.class));
+    }
+
+    @Test
+    public void enqueueDelete_ofNewNoteKeepsCreateOfEqualNote() throws IOException {
+        // Given two new notes with the same content whose creates wait behind another mutation
+        NoteSnapshot newNote = NoteSnapshot.create("Title", null, null);
+        NoteSnapshot sameNewNote = NoteSnapshot.create("Title", null, null);
+        mOutbox.enqueueSave(NOTE);
+        mScheduler.runUntilIdle();
+        mOutbox.enqueueSave(newNote);
+        mOutbox.enqueueSave(sameNewNote);
+        mScheduler.runUntilIdle();
+        String sameCreateKey = mOutbox.getPendingMutations().get(2).getIdempotencyKey();
+
+        // When the second one is deleted
+        mOutbox.enqueueDelete(sameNewNote);
+
+        // Then only its create is dropped
+        List<NoteMutation> pending = mOutbox.getPendingMutations();
+        assertThat(pending.size(), is(2));
+        assertThat(pending.get(1).getNote(), is(sameInstance(newNote)));
+        assertThat(pending.get(1).getIdempotencyKey(), is(not(sameCreateKey)));
+    }
+
+    @Test
+    public void enqueueDelete_ofNoteThatWasNeverQueuedIsIgnored() throws IOException {
+        // When deleting a note that was never written
+        mOutbox.enqueueDelete(NoteSnapshot.create("Title", null, null));
+
+        // Then nothing is queued
+        mScheduler.runUntilIdle();
+        assertThat(mOutbox.getPendingCount(), is(0));
+        verify(mServiceApi, never()).writeMutations(anyListOf(NoteMutation.class),
+                any(NotesServiceCallback.class));
+    }
+
+    /**
+     * @return an outbox that has read its journal.
+     */
+    private NoteOutbox open() {
+        NoteOutbox outbox = NoteOutbox.open(mFolder.getRoot(), mServiceApi,
+                Schedulers.of(mScheduler), MAX_WRITES_PER_SECOND);
+        mScheduler.runUntilIdle();
+        return outbox;
+    }
+
+    /**
+     * @return the mutations of the last of {@code count} batches that were sent so far.
+     */
+    private List<NoteMutation> verifyBatch(int count) {
+        verify(mServiceApi, times(count))
+                .writeMutations(mBatchCaptor.capture(), mCallbackCaptor.capture());
+        return mBatchCaptor.getValue();
+    }
+
+    /**
+     * @return the mutation of the last of {@code count} batches, it must be the only one in it.
+     */
+    private NoteMutation verifyWrite(int count) {
+        List<NoteMutation> batch = verifyBatch(count);
+        assertThat(batch.size(), is(1));
+        return batch.get(0);
+    }
+
+    private void answerWrite(NoteSnapshot... notes) {
+        mCallbackCaptor.getValue().onLoaded(Arrays.asList(notes));
+        mScheduler.runUntilIdle();
+    }
+
+    private void failWrite() {
+        mCallbackCaptor.getValue().onError(new IOException("Offline"));
+        mScheduler.runUntilIdle();
+    }
+
+    private void rejectWrite() {
+        mCallbackCaptor.getValue().onError(
+                new ParseException(ParseException.OBJECT_TOO_LARGE, "Too large"));
+        mScheduler.runUntilIdle();
+    }
+
+    /**
+     * Makes the backend write every batch as soon as it is sent.
+     */
+    private void answerWritesRightAway() {
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                List<NoteMutation> batch = (List<NoteMutation>) invocation.getArguments()[0];
+                List<NoteSnapshot> written = new ArrayList<>(batch.size());
+                for (NoteMutation mutation : batch) {
+                    written.add(mutation.getNote());
+                }
+                ((NotesServiceCallback<List<NoteSnapshot>>) invocation.getArguments()[1])
+                        .onLoaded(written);
+                return null;
+            }
+        }).when(mServiceApi).writeMutations(anyListOf(NoteMutation.class),
+                any(NotesServiceCallback.class));
+    }
+
+    private void truncateJournal(long length) throws IOException {
+        RandomAccessFile journal = new RandomAccessFile(
+                new File(mFolder.getRoot(), NoteOutbox.JOURNAL_NAME), "rw");
+        try {
+            journal.setLength(length);
+        } finally {
+            journal.close();
+        }
+    }
+}
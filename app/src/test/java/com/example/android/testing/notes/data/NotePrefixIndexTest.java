@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link NotePrefixIndex}.
+ */
+public class NotePrefixIndexTest {
+
+    private static final NoteSnapshot ESPRESSO_NOTE = new NoteSnapshot("1", "Espresso",
+            "UI Testing for Android", null, 1, 1);
+
+    private static final NoteSnapshot UNIT_TEST_NOTE = new NoteSnapshot("2", "Oh yes!",
+            "I demand trial by Unit testing", null, 2, 2);
+
+    private static final NoteSnapshot GROCERIES_NOTE = new NoteSnapshot("3", "Groceries",
+            "Espresso beans, tea and test strips", null, 3, 3);
+
+    private NotePrefixIndex mPrefixIndex;
+
+    @Before
+    public void setupPrefixIndex() {
+        mPrefixIndex = new NotePrefixIndex(2);
+        mPrefixIndex.put(ESPRESSO_NOTE);
+        mPrefixIndex.put(UNIT_TEST_NOTE);
+        mPrefixIndex.put(GROCERIES_NOTE);
+    }
+
+    @Test
+    public void find_returnsMostRecentNotesWithMatchingWords() {
+        // When filtering by the start of a word, up to a limit
+        List<NoteSnapshot> results = mPrefixIndex.find("Tes", 2);
+
+        // Then the most recent notes with words starting with it are returned
+        assertThat(results, contains(GROCERIES_NOTE, UNIT_TEST_NOTE));
+    }
+
+    @Test
+    public void find_returnsMatchesBeyondTopK() {
+        // When more notes match a prefix than the index keeps at each word
+        List<NoteSnapshot> results = mPrefixIndex.find("Tes", 10);
+
+        // Then every match is returned, most recent first
+        assertThat(results, contains(GROCERIES_NOTE, UNIT_TEST_NOTE, ESPRESSO_NOTE));
+    }
+
+    @Test
+    public void find_matchesEveryWordBeyondTopK() {
+        // When more notes match the first word of a query than the index keeps at each word
+        List<NoteSnapshot> results = mPrefixIndex.find("t e", 10);
+
+        // Then the older notes matching every word are still found
+        assertThat(results, contains(GROCERIES_NOTE, ESPRESSO_NOTE));
+    }
+
+    @Test
+    public void find_prefixEndingInsideAWord() {
+        // When filtering by a prefix that ends in the middle of a word after a split
+        List<NoteSnapshot> results = mPrefixIndex.find("espr", 10);
+
+        // Then the notes with that word are returned
+        assertThat(results, contains(GROCERIES_NOTE, ESPRESSO_NOTE));
+    }
+
+    @Test
+    public void find_matchesEveryWordOfTheQuery() {
+        // When filtering by two prefixes
+        List<NoteSnapshot> results = mPrefixIndex.find("unit test", 10);
+
+        // Then only notes with words starting with both are returned
+        assertThat(results, contains(UNIT_TEST_NOTE));
+    }
+
+    @Test
+    public void find_withoutMatchesReturnsNothing() {
+        // Then a prefix no word starts with matches nothing
+        assertThat(mPrefixIndex.find("coffee", 10), is(empty()));
+    }
+
+    @Test
+    public void remove_refillsTopNotesFromOtherWords() {
+        // When the most recent note with a matching word is removed
+        mPrefixIndex.remove(GROCERIES_NOTE.getId());
+
+        // Then the next most recent note takes its place
+        assertThat(mPrefixIndex.find("t", 10), contains(UNIT_TEST_NOTE, ESPRESSO_NOTE));
+        assertThat(mPrefixIndex.find("groc", 10), is(empty()));
+    }
+
+    @Test
+    public void put_replacesIndexedNote() {
+        // When a note is updated
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Cappuccino", "Milk foam", null, 1, 4);
+        mPrefixIndex.put(updatedNote);
+
+        // Then it is only found by its new words
+        assertThat(mPrefixIndex.find("esp", 10), contains(GROCERIES_NOTE));
+        assertThat(mPrefixIndex.find("cap", 10), contains(updatedNote));
+    }
+
+    @Test
+    public void find_agreesWithScanningAllNotesAfterRandomWrites() {
+        // Given an index that went through many random puts and removes
+        Random random = new Random(42);
+        String[] words = {"a", "an", "and", "android", "ant", "test", "testing", "tea", "team",
+                "espresso", "esp", "unit", "union", "u"};
+        NotePrefixIndex prefixIndex = new NotePrefixIndex(5);
+        Map<String, NoteSnapshot> notes = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            String id = String.valueOf(random.nextInt(200));
+            if (random.nextInt(4) == 0) {
+                prefixIndex.remove(id);
+                notes.remove(id);
+            } else {
+                NoteSnapshot note = new NoteSnapshot(id, words[random.nextInt(words.length)],
+                        words[random.nextInt(words.length)] + " "
+                                + words[random.nextInt(words.length)], null, 0, i);
+                prefixIndex.put(note);
+                notes.put(id, note);
+            }
+        }
+
+        // Then every prefix finds the same notes as scanning all of them
+        for (String word : words) {
+            for (int length = 1; length <= word.length(); length++) {
+                String prefix = word.substring(0, length);
+                assertThat(prefix, prefixIndex.find(prefix, 5), is(scan(notes, prefix, 5)));
+                assertThat(prefix, prefixIndex.find(prefix, Integer.MAX_VALUE),
+                        is(scan(notes, prefix, Integer.MAX_VALUE)));
+            }
+        }
+    }
+
+    private static List<NoteSnapshot> scan(Map<String, NoteSnapshot> notes, String prefix,
+                                           int limit) {
+        List<NoteSnapshot> matches = new ArrayList<>();
+        for (NoteSnapshot note : notes.values()) {
+            List<String> terms = new ArrayList<>(NoteSearchIndex.tokenize(note.getTitle()));
+            terms.addAll(NoteSearchIndex.tokenize(note.getDescription()));
+            for (String term : terms) {
+                if (term.startsWith(prefix)) {
+                    matches.add(note);
+                    break;
+                }
+            }
+        }
+        Collections.sort(matches, NotePrefixIndex.MOST_RECENT_FIRST);
+        return matches.subList(0, Math.min(limit, matches.size()));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link NoteSearchIndex}.
+ */
+public class NoteSearchIndexTest {
+
+    private static final NoteSnapshot ESPRESSO_NOTE = new NoteSnapshot("1", "Espresso",
+            "UI Testing for Android", null, 1, 1);
+
+    private static final NoteSnapshot UNIT_TEST_NOTE = new NoteSnapshot("2", "Oh yes!",
+            "I demand trial by Unit testing", null, 2, 2);
+
+    private static final NoteSnapshot GROCERIES_NOTE = new NoteSnapshot("3", "Groceries",
+            "Coffee beans for the espresso machine, milk, bread and a lot more things", null, 3,
+            3);
+
+    private NoteSearchIndex mSearchIndex;
+
+    @Before
+    public void setupSearchIndex() {
+        mSearchIndex = new NoteSearchIndex();
+        mSearchIndex.put(ESPRESSO_NOTE);
+        mSearchIndex.put(UNIT_TEST_NOTE);
+        mSearchIndex.put(GROCERIES_NOTE);
+    }
+
+    @Test
+    public void tokenize_splitsOnPunctuationAndLowerCases() {
+        // When text is tokenized
+        List<String> tokens = NoteSearchIndex.tokenize("Unit-testing, UI & more!");
+
+        // Then it is split into lower case words
+        assertThat(tokens, is((List<String>) Lists.newArrayList("unit", "testing", "ui", "more")));
+    }
+
+    @Test
+    public void search_ranksBestMatchFirst() {
+        // When searching for a word that is in the title of one note and the description of another
+        List<NoteSnapshot> results = mSearchIndex.search("espresso", 10);
+
+        // Then the note with the word in its short title ranks first
+        assertThat(results, contains(ESPRESSO_NOTE, GROCERIES_NOTE));
+    }
+
+    @Test
+    public void search_combinesQueryTerms() {
+        // When searching for several words
+        List<NoteSnapshot> results = mSearchIndex.search("Unit testing", 10);
+
+        // Then the note matching both words ranks above the one matching only one of them
+        assertThat(results, contains(UNIT_TEST_NOTE, ESPRESSO_NOTE));
+    }
+
+    @Test
+    public void search_returnsAtMostLimitNotes() {
+        // When searching with a limit below the number of matches
+        List<NoteSnapshot> results = mSearchIndex.search("testing", 1);
+
+        // Then only the best match, the shorter of the two notes, is returned
+        assertThat(results, contains(ESPRESSO_NOTE));
+    }
+
+    @Test
+    public void put_replacesIndexedNote() {
+        // When a note is updated
+        NoteSnapshot updatedNote = new NoteSnapshot("1", "Cappuccino", "Milk foam", null, 1, 4);
+        mSearchIndex.put(updatedNote);
+
+        // Then only its new words match it
+        assertThat(mSearchIndex.search("espresso", 10), contains(GROCERIES_NOTE));
+        assertThat(mSearchIndex.search("cappuccino", 10), contains(updatedNote));
+        assertThat(mSearchIndex.size(), is(3));
+    }
+
+    @Test
+    public void remove_dropsNoteFromResults() {
+        // When a note is removed
+        mSearchIndex.remove(GROCERIES_NOTE.getId());
+
+        // Then it no longer matches
+        assertThat(mSearchIndex.search("coffee", 10), is(empty()));
+        assertThat(mSearchIndex.search("espresso", 10), contains(ESPRESSO_NOTE));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link NoteTimeIndex}.
+ */
+public class NoteTimeIndexTest {
+
+    private static final NoteSnapshot FIRST_NOTE =
+            new NoteSnapshot("1", "Title1", "Description1", null, 10, 40);
+
+    private static final NoteSnapshot SECOND_NOTE =
+            new NoteSnapshot("2", "Title2", "Description2", null, 20, 20);
+
+    private static final NoteSnapshot SAME_TIME_NOTE =
+            new NoteSnapshot("3", "Title3", "Description3", null, 20, 30);
+
+    private static final NoteSnapshot LAST_NOTE =
+            new NoteSnapshot("4", "Title4", "Description4", null, 30, 30);
+
+    private NoteTimeIndex mCreatedAtIndex;
+
+    @Before
+    public void setupTimeIndex() {
+        mCreatedAtIndex = new NoteTimeIndex(NoteTimeIndex.Timestamp.CREATED_AT);
+        mCreatedAtIndex.put(SAME_TIME_NOTE);
+        mCreatedAtIndex.put(LAST_NOTE);
+        mCreatedAtIndex.put(FIRST_NOTE);
+        mCreatedAtIndex.put(SECOND_NOTE);
+    }
+
+    @Test
+    public void newest_returnsLatestNotesFirst() {
+        // Then the newest notes come first, notes created at the same time are ordered by id
+        assertThat(mCreatedAtIndex.newest(3), contains(LAST_NOTE, SAME_TIME_NOTE, SECOND_NOTE));
+    }
+
+    @Test
+    public void oldest_returnsEarliestNotesFirst() {
+        // Then the oldest notes come first
+        assertThat(mCreatedAtIndex.oldest(2), contains(FIRST_NOTE, SECOND_NOTE));
+    }
+
+    @Test
+    public void between_includesBothBounds() {
+        // Then notes created at either bound are included, in both directions
+        assertThat(mCreatedAtIndex.between(20, 30, false),
+                contains(SECOND_NOTE, SAME_TIME_NOTE, LAST_NOTE));
+        assertThat(mCreatedAtIndex.between(20, 30, true),
+                contains(LAST_NOTE, SAME_TIME_NOTE, SECOND_NOTE));
+        assertThat(mCreatedAtIndex.between(11, 19, false), is(empty()));
+    }
+
+    @Test
+    public void put_movesUpdatedNote() {
+        // Given an index by modification time
+        NoteTimeIndex updatedAtIndex = new NoteTimeIndex(NoteTimeIndex.Timestamp.UPDATED_AT);
+        updatedAtIndex.put(FIRST_NOTE);
+        updatedAtIndex.put(SECOND_NOTE);
+
+        // When a note is updated
+        NoteSnapshot updatedNote = new NoteSnapshot("2", "Title2", "Updated", null, 20, 50);
+        updatedAtIndex.put(updatedNote);
+
+        // Then it moves to its new position and is only indexed once
+        assertThat(updatedAtIndex.newest(10), contains(updatedNote, FIRST_NOTE));
+    }
+
+    @Test
+    public void remove_dropsNote() {
+        // When a note is removed
+        mCreatedAtIndex.remove(SAME_TIME_NOTE.getId());
+
+        // Then it is no longer returned
+        assertThat(mCreatedAtIndex.between(20, 20, false), contains(SECOND_NOTE));
+        assertThat(mCreatedAtIndex.size(), is(3));
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.Lists;
+
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the implementation of {@link OfflineFirstNotesServiceApi}.
+ */
+public class OfflineFirstNotesServiceApiTest {
+
+    private static List<NoteSnapshot> NOTES = Lists.newArrayList(
+            new NoteSnapshot("1", "Title1", "Description1", null, 1, 1),
+            new NoteSnapshot("2", "Title2", "Description2", null, 2, 2));
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Mock
+    private NotesServiceApi mRemoteApi;
+
+    @Mock
+    private NotesServiceApi.NotesServiceCallback<List<NoteSnapshot>> mNotesCallback;
+
+    @Mock
+    private NotesServiceApi.NotesServiceCallback<NotesDelta> mDeltaCallback;
+
+    @Mock
+    private NotesServiceApi.NotesServiceCallback<NoteSnapshot> mNoteCallback;
+
+    @Captor
+    private ArgumentCaptor<NotesServiceApi.NotesServiceCallback> mRemoteCallbackCaptor;
+
+    private File mLogDirectory;
+
+    private NoteLog mNoteLog;
+
+    private OfflineFirstNotesServiceApi mServiceApi;
+
+    @Before
+    public void setupServiceApi() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        mLogDirectory = mFolder.newFolder();
+        mNoteLog = NoteLog.open(mLogDirectory);
+        mServiceApi = new OfflineFirstNotesServiceApi(mNoteLog, mRemoteApi);
+    }
+
+    @After
+    public void closeNoteLog() {
+        mNoteLog.close();
+    }
+
+    @Test
+    public void getAllNotes_seedsLocalNotesFromRemoteApi() {
+        // When notes are requested before anything is stored on the device
+        mServiceApi.getAllNotes(mNotesCallback);
+        verify(mRemoteApi).getAllNotes(mRemoteCallbackCaptor.capture());
+        mRemoteCallbackCaptor.getValue().onLoaded(NOTES);
+
+        // Then the notes are loaded from the remote API and stored on the device
+        verify(mNotesCallback).onLoaded(NOTES);
+        assertThat(mNoteLog.getAll(), containsInAnyOrder(NOTES.toArray()));
+    }
+
+    @Test
+    public void getAllNotes_readsStoredNotesWithoutRemoteApi() throws IOException {
+        // Given notes stored on the device
+        for (NoteSnapshot note : NOTES) {
+            mNoteLog.put(note);
+        }
+
+        // When notes are requested
+        mServiceApi.getAllNotes(mNotesCallback);
+
+        // Then the stored notes are returned without calling the remote API
+        verify(mNotesCallback).onLoaded(NOTES);
+        verify(mRemoteApi, never()).getAllNotes(any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void getNotesChangedSince_storesChangesFromRemoteApi() throws IOException {
+        // Given notes stored on the device
+        for (NoteSnapshot note : NOTES) {
+            mNoteLog.put(note);
+        }
+        NoteSnapshot updatedNote = new NoteSnapshot("2", "Title2", "Updated", null, 2, 5);
+        NotesDelta delta = new NotesDelta(Lists.newArrayList(updatedNote),
+                Lists.newArrayList("1"), 5, false);
+
+        // When changes are requested
+        mServiceApi.getNotesChangedSince(2, mDeltaCallback);
+        verify(mRemoteApi).getNotesChangedSince(eq(2L), mRemoteCallbackCaptor.capture());
+        mRemoteCallbackCaptor.getValue().onLoaded(delta);
+
+        // Then the changes are passed on and applied to the stored notes
+        verify(mDeltaCallback).onLoaded(delta);
+        assertThat(mNoteLog.getAll(), is(Collections.singletonList(updatedNote)));
+        assertThat(mNoteLog.get("1"), is(nullValue()));
+    }
+
+    @Test
+    public void getNotesChangedSince_storesChangesOnIoScheduler() {
+        // Given a service API whose io scheduler runs on a virtual clock
+        VirtualTimeScheduler io = new VirtualTimeScheduler();
+        mServiceApi = new OfflineFirstNotesServiceApi(mNoteLog, mRemoteApi, io);
+        NotesDelta delta = new NotesDelta(NOTES, Collections.<String>emptyList(), 2, false);
+
+        // When the remote API answers with changes
+        mServiceApi.getNotesChangedSince(0, mDeltaCallback);
+        verify(mRemoteApi).getNotesChangedSince(eq(0L), mRemoteCallbackCaptor.capture());
+        mRemoteCallbackCaptor.getValue().onLoaded(delta);
+
+        // Then they are only stored and passed on once the io scheduler runs
+        verify(mDeltaCallback, never()).onLoaded(any(NotesDelta.class));
+        assertThat(mNoteLog.isEmpty(), is(true));
+        io.runUntilIdle();
+        verify(mDeltaCallback).onLoaded(delta);
+        assertThat(mNoteLog.getAll(), is(NOTES));
+    }
+
+    @Test
+    public void getNote_readsStoredNoteWithoutRemoteApi() throws IOException {
+        // Given a note stored on the device
+        mNoteLog.put(NOTES.get(0));
+
+        // When the note is requested
+        mServiceApi.getNote("1", mNoteCallback);
+
+        // Then the stored note is returned without calling the remote API
+        verify(mNoteCallback).onLoaded(NOTES.get(0));
+        verify(mRemoteApi, never()).getNote(anyString(),
+                any(NotesServiceApi.NotesServiceCallback.class));
+    }
+
+    @Test
+    public void deleteNote_deletesFromRemoteApiAndDevice() throws IOException {
+        // Given a note stored on the device
+        mNoteLog.put(NOTES.get(0));
+
+        // When the note is deleted
+        mServiceApi.deleteNote(NOTES.get(0));
+
+        // Then it is deleted through the remote API and from the device
+        verify(mRemoteApi).deleteNote(NOTES.get(0));
+        assertThat(mNoteLog.get("1"), is(nullValue()));
+    }
+
+    @Test
+    public void writeMutation_storesCreatedNoteBeforeRemoteApiAnswers() throws IOException {
+        // Given a new note that is created while the remote API does not answer
+        NoteMutation create = NoteMutation.save(1, NoteSnapshot.create("Title", "New", null));
+        mServiceApi.writeMutation(create, mNoteCallback);
+
+        // When the app restarts
+        mNoteLog.close();
+        mNoteLog = NoteLog.open(mLogDirectory);
+
+        // Then the note is still stored, under the key of its create
+        NoteSnapshot stored = mNoteLog.get(create.getIdempotencyKey());
+        assertThat(stored.getDescription(), is("New"));
+        verify(mNoteCallback, never()).onLoaded(any(NoteSnapshot.class));
+    }
+
+    @Test
+    public void writeMutation_replacesCreatedNoteWithRemoteNote() {
+        // Given a new note that is created
+        NoteMutation create = NoteMutation.save(1, NoteSnapshot.create("Title", "New", null));
+        mServiceApi.writeMutation(create, mNoteCallback);
+
+        // When the remote API answers with the id it assigned
+        NoteSnapshot created = new NoteSnapshot("3", "Title", "New", null, 3, 3);
+        verify(mRemoteApi).writeMutation(eq(create), mRemoteCallbackCaptor.capture());
+        mRemoteCallbackCaptor.getValue().onLoaded(created);
+
+        // Then the note is only stored under that id
+        verify(mNoteCallback).onLoaded(created);
+        assertThat(mNoteLog.getAll(), is(Collections.singletonList(created)));
+    }
+
+    @Test
+    public void writeMutation_deletesCreatedNoteBeforeItHasAnId() {
+        // Given a new note that was created but not answered by the remote API
+        NoteMutation create = NoteMutation.save(1, NoteSnapshot.create("Title", "New", null));
+        mServiceApi.writeMutation(create, mNoteCallback);
+
+        // When it is deleted
+        mServiceApi.writeMutation(NoteMutation.deleteCreated(2, create), mNoteCallback);
+
+        // Then it is no longer stored
+        assertThat(mNoteLog.get(create.getIdempotencyKey()), is(nullValue()));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.data.NotesServiceApi.NotesServiceCallback;
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the implementation of {@link ResilientNotesServiceApi}
+ */
+public class ResilientNotesServiceApiTest {
+
+    private static final NoteSnapshot NOTE = new NoteSnapshot("1", "Title", "Description", null,
+            1, 1);
+
+    @Mock
+    private NotesServiceApi mDelegate;
+
+    @Mock
+    private NotesServiceCallback<NoteSnapshot> mCallback;
+
+    @Captor
+    private ArgumentCaptor<NotesServiceCallback> mAttemptCaptor;
+
+    @Captor
+    private ArgumentCaptor<Exception> mErrorCaptor;
+
+    private VirtualTimeScheduler mScheduler;
+
+    private ResilientNotesServiceApi mServiceApi;
+
+    @Before
+    public void setupResilientNotesServiceApi() {
+        MockitoAnnotations.initMocks(this);
+        mScheduler = new VirtualTimeScheduler();
+        mServiceApi = new ResilientNotesServiceApi(mDelegate, mScheduler);
+    }
+
+    @Test
+    public void getNote_retriesFailedCallAfterBackoff() {
+        // Given a call that fails the first time
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        failAttempt(1);
+
+        // When the backoff has passed and the second attempt succeeds
+        mScheduler.advanceBy(ResilientNotesServiceApi.BASE_BACKOFF_MILLIS);
+        verify(mDelegate, times(2)).getNote(eq(NOTE.getId()), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onLoaded(NOTE);
+
+        // Then the caller only gets the note
+        verify(mCallback).onLoaded(NOTE);
+        verify(mCallback, never()).onError(any(Exception.class));
+        assertThat(mServiceApi.getRetryCount(), is(1L));
+    }
+
+    @Test
+    public void getNote_reportsErrorAfterLastAttempt() {
+        // When every attempt of a call fails
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        for (int attempt = 1; attempt <= ResilientNotesServiceApi.MAX_ATTEMPTS; attempt++) {
+            failAttempt(attempt);
+            mScheduler.advanceBy(ResilientNotesServiceApi.MAX_BACKOFF_MILLIS);
+        }
+
+        // Then the caller gets the last error once and no more attempts are made
+        verify(mCallback).onError(mErrorCaptor.capture());
+        assertThat(mErrorCaptor.getValue().getMessage(),
+                is("Attempt " + ResilientNotesServiceApi.MAX_ATTEMPTS));
+        verify(mDelegate, times(ResilientNotesServiceApi.MAX_ATTEMPTS))
+                .getNote(eq(NOTE.getId()), any(NotesServiceCallback.class));
+    }
+
+    @Test
+    public void getNote_givesUpOnAttemptThatTakesTooLong() {
+        // Given a call that isn't answered
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        verify(mDelegate).getNote(eq(NOTE.getId()), mAttemptCaptor.capture());
+        NotesServiceCallback slowAttempt = mAttemptCaptor.getValue();
+
+        // When it times out and the answer arrives late
+        mScheduler.advanceBy(ResilientNotesServiceApi.TIMEOUT_MILLIS);
+        slowAttempt.onLoaded(NOTE);
+
+        // Then the late answer is dropped and the call is tried again
+        verify(mCallback, never()).onLoaded(any(NoteSnapshot.class));
+        assertThat(mServiceApi.getTimeoutCount(), is(1L));
+        mScheduler.advanceBy(ResilientNotesServiceApi.BASE_BACKOFF_MILLIS);
+        verify(mDelegate, times(2)).getNote(eq(NOTE.getId()), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onLoaded(NOTE);
+        verify(mCallback).onLoaded(NOTE);
+    }
+
+    @Test
+    public void getNote_answeredCallDoesNotTimeOut() {
+        // Given a call that is answered right away
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        verify(mDelegate).getNote(eq(NOTE.getId()), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onLoaded(NOTE);
+
+        // When the timeout passes
+        mScheduler.advanceBy(ResilientNotesServiceApi.TIMEOUT_MILLIS);
+
+        // Then nothing else happens
+        verify(mCallback).onLoaded(NOTE);
+        verify(mCallback, never()).onError(any(Exception.class));
+        assertThat(mServiceApi.getTimeoutCount(), is(0L));
+    }
+
+    @Test
+    public void getNote_answeredCallCancelsItsTimeout() {
+        // When a call is answered
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        verify(mDelegate).getNote(eq(NOTE.getId()), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onLoaded(NOTE);
+
+        // Then its timeout no longer waits on the scheduler
+        assertThat(mScheduler.getPendingTaskCount(), is(0));
+    }
+
+    @Test
+    public void getAllNotes_timesOutEachPageOnItsOwn() {
+        // Given a backend that takes almost the whole timeout for each of two pages
+        long slowMillis = ResilientNotesServiceApi.TIMEOUT_MILLIS - 1;
+        NotesServiceCallback<List<NoteSnapshot>> callback = newListCallback();
+        NoteSnapshot otherNote = new NoteSnapshot("2", "Title2", "Description2", null, 2, 2);
+        PageRequest firstPage = PageRequest.firstPage(PageRequest.MAX_PAGE_SIZE);
+        PageRequest secondPage = PageRequest.after(NOTE, PageRequest.MAX_PAGE_SIZE);
+
+        // When all notes are loaded
+        mServiceApi.getAllNotes(callback);
+        mScheduler.advanceBy(slowMillis);
+        verify(mDelegate).getNotesPage(eq(firstPage), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onLoaded(
+                new NotesPage(Collections.singletonList(NOTE), secondPage));
+        mScheduler.advanceBy(slowMillis);
+        verify(mDelegate).getNotesPage(eq(secondPage), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onLoaded(
+                new NotesPage(Collections.singletonList(otherNote), null));
+
+        // Then the notes of both pages arrive without a timeout
+        verify(callback).onLoaded(Arrays.asList(NOTE, otherNote));
+        assertThat(mServiceApi.getTimeoutCount(), is(0L));
+    }
+
+    @Test
+    public void getNote_failsFastWhileCircuitBreakerIsOpen() {
+        // Given a circuit breaker that opens with the first failure
+        CircuitBreaker circuitBreaker = new CircuitBreaker(mScheduler, 1,
+                ResilientNotesServiceApi.OPEN_MILLIS);
+        mServiceApi = new ResilientNotesServiceApi(mDelegate, mScheduler, circuitBreaker,
+                new Random(42));
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        failAttempt(1);
+        mScheduler.advanceBy(ResilientNotesServiceApi.MAX_BACKOFF_MILLIS);
+        verify(mCallback).onError(any(Exception.class));
+
+        // When another note is loaded
+        NotesServiceCallback<NoteSnapshot> otherCallback = newCallback();
+        mServiceApi.getNote("2", otherCallback);
+
+        // Then it fails right away without calling the backend
+        verify(otherCallback).onError(mErrorCaptor.capture());
+        assertThat(mErrorCaptor.getValue(), is(instanceOf(IOException.class)));
+        verify(mDelegate, never()).getNote(eq("2"), any(NotesServiceCallback.class));
+        assertThat(mServiceApi.getCircuitState(), is(CircuitBreaker.State.OPEN));
+        assertThat(mServiceApi.getRejectedCount(), is(2L));
+    }
+
+    @Test
+    public void backoffMillis_growsExponentiallyUpToCap() {
+        for (int failedAttempts = 1; failedAttempts <= 6; failedAttempts++) {
+            long cap = Math.min(ResilientNotesServiceApi.MAX_BACKOFF_MILLIS,
+                    ResilientNotesServiceApi.BASE_BACKOFF_MILLIS << (failedAttempts - 1));
+            long longest = 0;
+            for (int i = 0; i < 100; i++) {
+                long backoff = mServiceApi.backoffMillis(failedAttempts);
+                assertThat(backoff, is(greaterThanOrEqualTo(0L)));
+                assertThat(backoff, is(lessThan(cap)));
+                longest = Math.max(longest, backoff);
+            }
+            // The delays are spread over the whole range
+            assertThat(longest, is(greaterThan(cap / 2)));
+        }
+    }
+
+    @Test
+    public void getNote_reportsTimeoutWhenNoAttemptIsAnswered() {
+        // When no attempt of a call is answered
+        mServiceApi.getNote(NOTE.getId(), mCallback);
+        mScheduler.advanceBy(ResilientNotesServiceApi.MAX_ATTEMPTS
+                * (ResilientNotesServiceApi.TIMEOUT_MILLIS
+                + ResilientNotesServiceApi.MAX_BACKOFF_MILLIS));
+
+        // Then the caller learns that the backend took too long
+        verify(mCallback).onError(mErrorCaptor.capture());
+        assertThat(mErrorCaptor.getValue(), is(instanceOf(TimeoutException.class)));
+        assertThat(mServiceApi.getTimeoutCount(),
+                is((long) ResilientNotesServiceApi.MAX_ATTEMPTS));
+    }
+
+    @Test
+    public void saveNote_goesStraightThrough() {
+        mServiceApi.saveNote(NOTE);
+
+        verify(mDelegate).saveNote(NOTE);
+    }
+
+    private void failAttempt(int attempt) {
+        verify(mDelegate, times(attempt)).getNote(eq(NOTE.getId()), mAttemptCaptor.capture());
+        mAttemptCaptor.getValue().onError(new IOException("Attempt " + attempt));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static NotesServiceCallback<NoteSnapshot> newCallback() {
+        return mock(NotesServiceCallback.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static NotesServiceCallback<List<NoteSnapshot>> newListCallback() {
+        return mock(NotesServiceCallback.class);
+    }
+}
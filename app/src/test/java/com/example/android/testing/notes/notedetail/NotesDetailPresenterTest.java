@@ -16,7 +16,8 @@
 
 package com.example.android.testing.notes.notedetail;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.CachePolicy;
+import com.example.android.testing.notes.data.NoteSnapshot;
 import com.example.android.testing.notes.data.NotesRepository;
 
 import org.junit.Before;
@@ -25,8 +26,15 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 /**
@@ -36,6 +44,8 @@ public class NotesDetailPresenterTest {
 
     public static final String INVALID_ID = "INVALID_ID";
 
+    public static final String NOTE_ID = "NOTE_ID";
+
     public static final String TITLE_TEST = "title";
 
     public static final String DESCRIPTION_TEST = "createdDate";
@@ -68,13 +78,15 @@ public class NotesDetailPresenterTest {
     @Test
     public void getNoteFromRepositoryAndLoadIntoView() {
         // Given an initialized NoteDetailPresenter with stubbed note
-        Note note = new Note(TITLE_TEST, DESCRIPTION_TEST);
+        NoteSnapshot note = new NoteSnapshot(NOTE_ID, TITLE_TEST, DESCRIPTION_TEST, null,
+                NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP);
 
         // When notes presenter is asked to open a note
         mNotesDetailsPresenter.openNote(note.getId());
 
         // Then note is loaded from model, callback is captured and progress indicator is shown
-        verify(mNotesRepository).getNote(eq(note.getId()), mGetNoteCallbackCaptor.capture());
+        verify(mNotesRepository).getNote(eq(note.getId()), eq(CachePolicy.CACHE_THEN_NETWORK),
+                mGetNoteCallbackCaptor.capture());
         verify(mNoteDetailView).setProgressIndicator(true);
 
         // When note is finally loaded
@@ -86,6 +98,24 @@ public class NotesDetailPresenterTest {
         verify(mNoteDetailView).showDescription(DESCRIPTION_TEST);
     }
 
+    @Test
+    public void getCachedNoteThenSameNoteFromNetwork_showsNoteOnce() {
+        // Given a stubbed note that is cached and unchanged on the service API
+        NoteSnapshot note = new NoteSnapshot(NOTE_ID, TITLE_TEST, DESCRIPTION_TEST, null,
+                NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP);
+        mNotesDetailsPresenter.openNote(note.getId());
+        verify(mNotesRepository).getNote(eq(note.getId()), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
+
+        // When the cached note and then the fresh note are delivered
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(note);
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(note);
+
+        // Then the note is only shown once
+        verify(mNoteDetailView).showTitle(TITLE_TEST);
+        verify(mNoteDetailView).showDescription(DESCRIPTION_TEST);
+    }
+
     @Test
     public void getUnknownNoteFromRepositoryAndLoadIntoView() {
         // When loading of a note is requested with an invalid note ID.
@@ -94,7 +124,8 @@ public class NotesDetailPresenterTest {
         // Then note with invalid id is attempted to load from model, callback is captured and
         // progress indicator is shown.
         verify(mNoteDetailView).setProgressIndicator(true);
-        verify(mNotesRepository).getNote(eq(INVALID_ID), mGetNoteCallbackCaptor.capture());
+        verify(mNotesRepository).getNote(eq(INVALID_ID), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
 
         // When note is finally loaded
         mGetNoteCallbackCaptor.getValue().onNoteLoaded(null); // Trigger callback
@@ -103,4 +134,59 @@ public class NotesDetailPresenterTest {
         verify(mNoteDetailView).setProgressIndicator(false);
         verify(mNoteDetailView).showMissingNote();
     }
+
+    @Test
+    public void openNote_failureHidesProgressIndicatorAndShowsMissingNote() {
+        // When a note is opened and can't be loaded
+        mNotesDetailsPresenter.openNote(INVALID_ID);
+        verify(mNoteDetailView).setProgressIndicator(true);
+        verify(mNotesRepository).getNote(eq(INVALID_ID), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
+        mGetNoteCallbackCaptor.getValue().onDataNotAvailable();
+
+        // Then progress indicator is hidden and missing note UI is shown
+        verify(mNoteDetailView).setProgressIndicator(false);
+        verify(mNoteDetailView).showMissingNote();
+    }
+
+    @Test
+    public void openNote_showsCachedNoteWithoutProgressIndicator() {
+        // Given a note that is cached, e.g. prefetched by the notes list
+        final NoteSnapshot note = new NoteSnapshot(NOTE_ID, TITLE_TEST, DESCRIPTION_TEST, null,
+                NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((NotesRepository.GetNoteCallback) invocation.getArguments()[2])
+                        .onNoteLoaded(note);
+                return null;
+            }
+        }).when(mNotesRepository).getNote(eq(NOTE_ID), any(CachePolicy.class),
+                any(NotesRepository.GetNoteCallback.class));
+
+        // When the note is opened
+        mNotesDetailsPresenter.openNote(NOTE_ID);
+
+        // Then it is shown right away and the progress indicator never is
+        verify(mNoteDetailView).showTitle(TITLE_TEST);
+        verify(mNoteDetailView, never()).setProgressIndicator(anyBoolean());
+    }
+
+    @Test
+    public void stop_dropsNoteThatArrivesLater() {
+        // Given a note that is being opened
+        mNotesDetailsPresenter.openNote(NOTE_ID);
+        verify(mNotesRepository).getNote(eq(NOTE_ID), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
+
+        // When the view goes away before the note arrives
+        mNotesDetailsPresenter.stop();
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(new NoteSnapshot(NOTE_ID, TITLE_TEST,
+                DESCRIPTION_TEST, null, NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP));
+
+        // Then the note is not shown
+        verify(mNoteDetailView, never()).showTitle(anyString());
+        verify(mNoteDetailView, never()).setProgressIndicator(false);
+    }
+
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.notes;
+
+import com.google.common.collect.Lists;
+
+import com.example.android.testing.notes.data.CachePolicy;
+import com.example.android.testing.notes.data.NoteSnapshot;
+import com.example.android.testing.notes.data.NotesRepository;
+import com.example.android.testing.notes.data.NotesRepository.GetNoteCallback;
+import com.example.android.testing.notes.util.ImagePreloader;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the implementation of {@link NotePrefetcher}
+ */
+public class NotePrefetcherTest {
+
+    private static final long MAX_BYTES = 1000;
+
+    private static final NoteSnapshot NOTE_1 = note("1", null);
+
+    private static final NoteSnapshot NOTE_2 = note("2", "http://image/2");
+
+    private static final NoteSnapshot NOTE_3 = note("3", null);
+
+    @Mock
+    private NotesRepository mNotesRepository;
+
+    @Captor
+    private ArgumentCaptor<GetNoteCallback> mGetNoteCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<String> mIdCaptor;
+
+    private FakeImagePreloader mImagePreloader;
+
+    private NotePrefetcher mPrefetcher;
+
+    @Before
+    public void setupNotePrefetcher() {
+        MockitoAnnotations.initMocks(this);
+        mImagePreloader = new FakeImagePreloader();
+        mPrefetcher = new NotePrefetcher(mNotesRepository, mImagePreloader, 2, MAX_BYTES);
+    }
+
+    @Test
+    public void prefetchVisible_loadsTwoNotesAtATime() {
+        // When three notes are on screen
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_1, NOTE_2, NOTE_3));
+
+        // Then only the first two are loaded
+        verify(mNotesRepository).getNote(eq("1"), eq(CachePolicy.CACHE_ELSE_NETWORK),
+                mGetNoteCallbackCaptor.capture());
+        verify(mNotesRepository).getNote(eq("2"), eq(CachePolicy.CACHE_ELSE_NETWORK),
+                any(GetNoteCallback.class));
+        verify(mNotesRepository, never()).getNote(eq("3"), any(CachePolicy.class),
+                any(GetNoteCallback.class));
+
+        // When the first note is loaded
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(NOTE_1);
+
+        // Then the third note is loaded
+        verify(mNotesRepository).getNote(eq("3"), eq(CachePolicy.CACHE_ELSE_NETWORK),
+                any(GetNoteCallback.class));
+    }
+
+    @Test
+    public void prefetchVisible_preloadsImageOfLoadedNote() {
+        // Given a note with an image on screen
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_2));
+        verify(mNotesRepository).getNote(eq("2"), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
+
+        // When the note is loaded
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(NOTE_2);
+
+        // Then its image is preloaded and the prefetch only completes with it
+        assertThat(mImagePreloader.mImageUrls, is((List<String>) Lists.newArrayList(
+                "http://image/2")));
+        assertThat(mPrefetcher.getInFlightCount(), is(1));
+        mImagePreloader.mCallbacks.get(0).onPreloaded(100);
+        assertThat(mPrefetcher.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void prefetchVisible_stopsOnceByteBudgetIsUsedUntilNoteIsOpened() {
+        // Given a note whose image takes the whole byte budget
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_2));
+        verify(mNotesRepository).getNote(eq("2"), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(NOTE_2);
+        mImagePreloader.mCallbacks.get(0).onPreloaded(MAX_BYTES);
+
+        // When other notes come on screen
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_1, NOTE_3));
+
+        // Then they are not loaded
+        verify(mNotesRepository, never()).getNote(eq("1"), any(CachePolicy.class),
+                any(GetNoteCallback.class));
+
+        // When the user opens a note and comes back to the list
+        mPrefetcher.noteOpened(NOTE_2);
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_1, NOTE_3));
+
+        // Then the notes on screen are loaded again
+        verify(mNotesRepository).getNote(eq("1"), any(CachePolicy.class),
+                any(GetNoteCallback.class));
+    }
+
+    @Test
+    public void prefetchVisible_loadsRecentlyOpenedNotesFirst() {
+        // Given two notes that were opened
+        mPrefetcher.noteOpened(NOTE_3);
+        mPrefetcher.noteOpened(NOTE_2);
+
+        // When another note is on screen
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_1));
+
+        // Then the note opened last and the one before it are loaded first
+        verify(mNotesRepository, times(2)).getNote(mIdCaptor.capture(), any(CachePolicy.class),
+                any(GetNoteCallback.class));
+        assertThat(mIdCaptor.getAllValues(), is((List<String>) Lists.newArrayList("2", "3")));
+    }
+
+    @Test
+    public void prefetchTouched_loadsNoteRightAway() {
+        // Given as many notes being loaded as allowed
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_1, NOTE_2));
+
+        // When the user touches a note
+        mPrefetcher.prefetchTouched(NOTE_3);
+
+        // Then it is loaded anyway
+        verify(mNotesRepository).getNote(eq("3"), eq(CachePolicy.CACHE_ELSE_NETWORK),
+                any(GetNoteCallback.class));
+    }
+
+    @Test
+    public void cancel_dropsQueuedNotes() {
+        // Given two notes being loaded and one waiting
+        mPrefetcher.prefetchVisible(Lists.newArrayList(NOTE_1, NOTE_2, NOTE_3));
+        verify(mNotesRepository).getNote(eq("1"), any(CachePolicy.class),
+                mGetNoteCallbackCaptor.capture());
+
+        // When prefetching is cancelled and a note arrives anyway
+        mPrefetcher.cancel();
+        mGetNoteCallbackCaptor.getValue().onNoteLoaded(NOTE_1);
+
+        // Then the waiting note is not loaded
+        assertThat(mPrefetcher.getInFlightCount(), is(0));
+        verify(mNotesRepository, never()).getNote(eq("3"), any(CachePolicy.class),
+                any(GetNoteCallback.class));
+    }
+
+    private static NoteSnapshot note(String id, String imageUrl) {
+        return new NoteSnapshot(id, "Title" + id, "Description" + id, imageUrl,
+                NoteSnapshot.NO_TIMESTAMP, NoteSnapshot.NO_TIMESTAMP);
+    }
+
+    private static class FakeImagePreloader implements ImagePreloader {
+
+        final List<String> mImageUrls = new ArrayList<>();
+
+        final List<PreloadCallback> mCallbacks = new ArrayList<>();
+
+        @Override
+        public void preload(@NonNull String imageUrl, @NonNull PreloadCallback callback) {
+            mImageUrls.add(imageUrl);
+            mCallbacks.add(callback);
+        }
+    }
+}
@@ -18,9 +18,20 @@ package com.example.android.testing.notes.notes;
 
 import com.google.common.collect.Lists;
 
-import com.example.android.testing.notes.data.Note;
+import com.example.android.testing.notes.data.CachePolicy;
+import com.example.android.testing.notes.data.NoteSnapshot;
+import com.example.android.testing.notes.data.NotesChange;
+import com.example.android.testing.notes.data.NotesPage;
 import com.example.android.testing.notes.data.NotesRepository;
-import com.example.android.testing.notes.data.NotesRepository.LoadNotesCallback;
+import com.example.android.testing.notes.data.NotesRepository.LoadNotesPageCallback;
+import com.example.android.testing.notes.data.NotesRepository.NotesObserver;
+import com.example.android.testing.notes.data.NotesRepository.SearchNotesCallback;
+import com.example.android.testing.notes.data.NotesRepository.SyncNotesCallback;
+import com.example.android.testing.notes.data.NotesRepository.SyncStateObserver;
+import com.example.android.testing.notes.data.PageRequest;
+import com.example.android.testing.notes.data.SyncState;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -30,9 +41,16 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 /**
@@ -40,10 +58,14 @@ import static org.mockito.Mockito.verify;
  */
 public class NotesPresenterTest {
 
-    private static List<Note> NOTES = Lists.newArrayList(new Note("Title1", "Description1"),
-            new Note("Title2", "Description2"));
+    private static List<NoteSnapshot> NOTES = Lists.newArrayList(
+            NoteSnapshot.create("Title1", "Description1", null),
+            NoteSnapshot.create("Title2", "Description2", null));
 
-    private static List<Note> EMPTY_NOTES = new ArrayList<>(0);
+    private static List<NoteSnapshot> EMPTY_NOTES = new ArrayList<>(0);
+
+    private static NoteSnapshot NOTE_WITH_ID =
+            new NoteSnapshot("3", "Title3", "Description3", null, 3, 3);
 
     @Mock
     private NotesRepository mNotesRepository;
@@ -56,7 +78,16 @@ public class NotesPresenterTest {
      * perform further actions or assertions on them.
      */
     @Captor
-    private ArgumentCaptor<LoadNotesCallback> mLoadNotesCallbackCaptor;
+    private ArgumentCaptor<LoadNotesPageCallback> mLoadNotesPageCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<SyncNotesCallback> mSyncNotesCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<SearchNotesCallback> mSearchNotesCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<NotesObserver> mNotesObserverCaptor;
 
     private NotesPresenter mNotesPresenter;
 
@@ -76,15 +107,191 @@ public class NotesPresenterTest {
         // When loading of Notes is requested
         mNotesPresenter.loadNotes(true);
 
-        // Callback is captured and invoked with stubbed notes
-        verify(mNotesRepository).getNotes(mLoadNotesCallbackCaptor.capture());
-        mLoadNotesCallbackCaptor.getValue().onNotesLoaded(NOTES);
+        // Changes are synced first
+        verify(mNotesRepository).syncNotes(mSyncNotesCallbackCaptor.capture());
+        mSyncNotesCallbackCaptor.getValue().onNotesSynced();
+
+        // Callback is captured and invoked with a stubbed page of notes
+        verify(mNotesRepository).getNotesPage(eq(PageRequest.firstPage(NotesPresenter.PAGE_SIZE)),
+                eq(CachePolicy.CACHE_THEN_NETWORK), mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(new NotesPage(NOTES, null));
 
         // Then progress indicator is hidden and notes are shown in UI
         verify(mNotesView).setProgressIndicator(false);
         verify(mNotesView).showNotes(NOTES);
     }
 
+    @Test
+    public void loadNotesWithoutForceUpdate_doesNotSync() {
+        // When loading of Notes is requested without forcing an update
+        mNotesPresenter.loadNotes(false);
+
+        // Then the first page is requested without syncing changes first
+        verify(mNotesRepository, never()).syncNotes(any(SyncNotesCallback.class));
+        verify(mNotesRepository).getNotesPage(eq(PageRequest.firstPage(NotesPresenter.PAGE_SIZE)),
+                eq(CachePolicy.CACHE_THEN_NETWORK), any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void loadMoreNotes_appendsNextPageToView() {
+        // Given a first page of notes that is followed by another page
+        PageRequest nextPage = PageRequest.after(NOTE_WITH_ID, NotesPresenter.PAGE_SIZE);
+        mNotesPresenter.loadNotes(false);
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(new NotesPage(NOTES, nextPage));
+
+        // When more notes are requested
+        mNotesPresenter.loadMoreNotes();
+
+        // Then the next page is loaded and appended to the notes shown in UI
+        verify(mNotesRepository).getNotesPage(eq(nextPage), mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(
+                new NotesPage(Lists.newArrayList(NOTE_WITH_ID), null));
+        List<NoteSnapshot> allNotes = Lists.newArrayList(NOTES);
+        allNotes.add(NOTE_WITH_ID);
+        verify(mNotesView).showNotes(allNotes);
+    }
+
+    @Test
+    public void loadNotes_failureHidesProgressIndicatorAndShowsError() {
+        // Given a cached first page that is shown while the fresh one is loaded
+        mNotesPresenter.loadNotes(false);
+        verify(mNotesView).setProgressIndicator(true);
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        LoadNotesPageCallback callback = mLoadNotesPageCallbackCaptor.getValue();
+        callback.onNotesPageLoaded(new NotesPage(NOTES, null, true));
+
+        // When the fresh page can't be loaded
+        callback.onDataNotAvailable();
+
+        // Then the progress indicator stops, the error is shown and the cached notes stay
+        verify(mNotesView).setProgressIndicator(false);
+        verify(mNotesView).showLoadingNotesError();
+        verify(mNotesView).showNotes(NOTES);
+    }
+
+    @Test
+    public void loadNotes_failedSyncDoesNotLoadFirstPage() {
+        // When loading of notes is forced and syncing the changes fails
+        mNotesPresenter.loadNotes(true);
+        verify(mNotesRepository).syncNotes(mSyncNotesCallbackCaptor.capture());
+        mSyncNotesCallbackCaptor.getValue().onDataNotAvailable();
+
+        // Then the error is shown instead of loading a page that would fail as well
+        verify(mNotesView).setProgressIndicator(false);
+        verify(mNotesView).showLoadingNotesError();
+        verify(mNotesRepository, never()).getNotesPage(any(PageRequest.class),
+                any(CachePolicy.class), any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void loadMoreNotes_failureAllowsLoadingAgain() {
+        // Given a first page of notes that is followed by another page that fails to load
+        PageRequest nextPage = PageRequest.after(NOTE_WITH_ID, NotesPresenter.PAGE_SIZE);
+        mNotesPresenter.loadNotes(false);
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(new NotesPage(NOTES, nextPage));
+        mNotesPresenter.loadMoreNotes();
+        verify(mNotesRepository).getNotesPage(eq(nextPage), mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onDataNotAvailable();
+
+        // When more notes are requested again
+        mNotesPresenter.loadMoreNotes();
+
+        // Then the error was shown and the next page is requested again
+        verify(mNotesView).showLoadingNotesError();
+        verify(mNotesRepository, times(2)).getNotesPage(eq(nextPage),
+                any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void loadMoreNotes_afterLastPageDoesNotCallRepository() {
+        // Given a single page of notes
+        mNotesPresenter.loadNotes(false);
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(new NotesPage(NOTES, null));
+
+        // When more notes are requested
+        mNotesPresenter.loadMoreNotes();
+
+        // Then the repository is not asked for another page
+        verify(mNotesRepository, never()).getNotesPage(any(PageRequest.class),
+                any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void loadNotes_showsCachedPageUntilFreshPageIsLoaded() {
+        // Given a cached first page
+        mNotesPresenter.loadNotes(false);
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        LoadNotesPageCallback callback = mLoadNotesPageCallbackCaptor.getValue();
+
+        // When the cached page is delivered
+        callback.onNotesPageLoaded(new NotesPage(NOTES, null, true));
+
+        // Then the cached notes are shown while the progress indicator keeps spinning
+        verify(mNotesView).showNotes(NOTES);
+        verify(mNotesView, never()).setProgressIndicator(false);
+
+        // When the fresh page is delivered
+        List<NoteSnapshot> freshNotes = Lists.newArrayList(NOTE_WITH_ID);
+        callback.onNotesPageLoaded(new NotesPage(freshNotes, null));
+
+        // Then the fresh notes replace the cached ones and the progress indicator is hidden
+        verify(mNotesView).showNotes(freshNotes);
+        verify(mNotesView).setProgressIndicator(false);
+    }
+
+    @Test
+    public void searchNotes_showsFoundNotes() {
+        // When notes are searched
+        mNotesPresenter.searchNotes("title");
+
+        // Then the repository is searched and the found notes are shown in UI
+        verify(mNotesRepository).search(eq("title"), eq(NotesPresenter.SEARCH_LIMIT),
+                mSearchNotesCallbackCaptor.capture());
+        mSearchNotesCallbackCaptor.getValue().onNotesFound(NOTES);
+        verify(mNotesView).showNotes(NOTES);
+    }
+
+    @Test
+    public void searchNotes_withBlankQueryLoadsAllNotes() {
+        // When notes are searched without a query
+        mNotesPresenter.searchNotes(" ");
+
+        // Then the notes are loaded as usual
+        verify(mNotesRepository, never()).search(anyString(), anyInt(),
+                any(SearchNotesCallback.class));
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void filterNotes_dropsResultsOfSupersededQuery() {
+        // Given a filter query that is followed by a longer one before its results arrive
+        mNotesPresenter.filterNotes("t");
+        mNotesPresenter.filterNotes("ti");
+        verify(mNotesRepository).filter(eq("t"), eq(NotesPresenter.FILTER_LIMIT),
+                mSearchNotesCallbackCaptor.capture());
+        SearchNotesCallback staleCallback = mSearchNotesCallbackCaptor.getValue();
+        verify(mNotesRepository).filter(eq("ti"), eq(NotesPresenter.FILTER_LIMIT),
+                mSearchNotesCallbackCaptor.capture());
+        SearchNotesCallback currentCallback = mSearchNotesCallbackCaptor.getValue();
+
+        // When the results of both queries arrive
+        currentCallback.onNotesFound(NOTES);
+        staleCallback.onNotesFound(EMPTY_NOTES);
+
+        // Then only the results of the latest query are shown
+        verify(mNotesView).showNotes(NOTES);
+        verify(mNotesView, never()).showNotes(EMPTY_NOTES);
+    }
+
     @Test
     public void clickOnFab_ShowsAddsNoteUi() {
         // When adding a new note
@@ -97,7 +304,8 @@ public class NotesPresenterTest {
     @Test
     public void clickOnNote_ShowsDetailUi() {
         // Given a stubbed note
-        Note requestedNote = new Note("Details Requested", "For this note");
+        NoteSnapshot requestedNote =
+                NoteSnapshot.create("Details Requested", "For this note", null);
 
         // When open note details is requested
         mNotesPresenter.openNoteDetails(requestedNote);
@@ -105,4 +313,165 @@ public class NotesPresenterTest {
         // Then note detail UI is shown
         verify(mNotesView).showNoteDetailUi(any(String.class));
     }
+
+    @Test
+    public void onNotesChanged_appliesChangesToShownNotes() {
+        // Given a started presenter showing the only page of notes
+        NoteSnapshot firstNote = new NoteSnapshot("1", "Title1", "Description1", null, 1, 1);
+        NoteSnapshot secondNote = new NoteSnapshot("2", "Title2", "Description2", null, 2, 2);
+        mNotesPresenter.start();
+        verify(mNotesRepository).subscribe(mNotesObserverCaptor.capture());
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(
+                new NotesPage(Lists.newArrayList(firstNote, secondNote), null));
+
+        // When the repository reports a batch of changes
+        NoteSnapshot updatedNote = new NoteSnapshot("2", "Title2", "Updated", null, 2, 5);
+        mNotesObserverCaptor.getValue().onNotesChanged(Lists.newArrayList(
+                NotesChange.removed(firstNote, 0),
+                NotesChange.updated(updatedNote, 0),
+                NotesChange.inserted(NOTE_WITH_ID, 1)));
+
+        // Then the changed notes are shown without loading them again
+        verify(mNotesView).showNotes(Lists.newArrayList(updatedNote, NOTE_WITH_ID));
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void destroy_unsubscribesFromRepository() {
+        // Given a started presenter
+        mNotesPresenter.start();
+        verify(mNotesRepository).subscribe(mNotesObserverCaptor.capture());
+
+        // When it is stopped
+        mNotesPresenter.stop();
+
+        // Then it keeps observing the repository until it is destroyed
+        verify(mNotesRepository, never()).unsubscribe(any(NotesObserver.class));
+        mNotesPresenter.destroy();
+        verify(mNotesRepository).unsubscribe(mNotesObserverCaptor.getValue());
+    }
+
+    @Test
+    public void start_showsSyncStatesOfRepository() {
+        // Given a started presenter
+        mNotesPresenter.start();
+        ArgumentCaptor<SyncStateObserver> observerCaptor =
+                ArgumentCaptor.forClass(SyncStateObserver.class);
+        verify(mNotesRepository).subscribeToSyncStates(observerCaptor.capture());
+
+        // When a note is waiting to be written
+        Map<String, SyncState> syncStates = Collections.singletonMap("1", SyncState.PENDING);
+        observerCaptor.getValue().onSyncStatesChanged(syncStates);
+
+        // Then the view marks it, until the presenter is destroyed
+        verify(mNotesView).showSyncStates(syncStates);
+        mNotesPresenter.destroy();
+        verify(mNotesRepository).unsubscribeFromSyncStates(observerCaptor.getValue());
+    }
+
+    @Test
+    public void retryPendingWrites_retriesWritesOfRepository() {
+        // When the device is back online
+        mNotesPresenter.retryPendingWrites();
+
+        // Then the repository writes what is waiting right away
+        verify(mNotesRepository).retryPendingWrites();
+    }
+
+    @Test
+    public void retrySync_retriesWritesOfNote() {
+        // When the user asks to sync a note that could not be synced again
+        mNotesPresenter.retrySync(NOTES.get(0));
+
+        // Then the repository sends its writes again
+        verify(mNotesRepository).retrySync(NOTES.get(0));
+    }
+
+    @Test
+    public void discardUnsyncedChanges_dropsWritesAndLoadsNotesAgain() {
+        // When the user discards the changes of a note that could not be synced
+        mNotesPresenter.discardUnsyncedChanges(NOTES.get(0));
+
+        // Then the repository drops them and the notes are loaded again
+        verify(mNotesRepository).discardUnsyncedChanges(NOTES.get(0));
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                any(NotesRepository.LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void start_loadsNotesOnlyWhenStale() {
+        // Given a presenter that showed freshly loaded notes before it was stopped
+        VirtualTimeScheduler clock = new VirtualTimeScheduler();
+        mNotesPresenter = new NotesPresenter(mNotesRepository, mNotesView, Schedulers.of(clock));
+        mNotesPresenter.start();
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(new NotesPage(NOTES, null));
+        mNotesPresenter.stop();
+
+        // When it is started again while the notes are fresh
+        clock.advanceBy(NotesPresenter.MAX_AGE_MILLIS - 1);
+        mNotesPresenter.start();
+
+        // Then the notes are not loaded again
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                any(LoadNotesPageCallback.class));
+
+        // When it is started again once they are stale
+        mNotesPresenter.stop();
+        clock.advanceBy(1);
+        mNotesPresenter.start();
+
+        // Then they are loaded again
+        verify(mNotesRepository, times(2)).getNotesPage(any(PageRequest.class),
+                any(CachePolicy.class), any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void start_loadsNotesAfterChangesItCannotApply() {
+        // Given a presenter that showed freshly loaded notes
+        mNotesPresenter.start();
+        verify(mNotesRepository).subscribe(mNotesObserverCaptor.capture());
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        mLoadNotesPageCallbackCaptor.getValue().onNotesPageLoaded(new NotesPage(NOTES, null));
+        mNotesPresenter.stop();
+
+        // When a new note without a position is saved while it is stopped
+        mNotesObserverCaptor.getValue().onNotesChanged(Lists.newArrayList(
+                NotesChange.inserted(NoteSnapshot.create("New", "Note", null),
+                        NotesChange.NO_POSITION)));
+        mNotesPresenter.start();
+
+        // Then the notes are loaded again
+        verify(mNotesRepository, times(2)).getNotesPage(any(PageRequest.class),
+                any(CachePolicy.class), any(LoadNotesPageCallback.class));
+    }
+
+    @Test
+    public void loadNotes_dropsPageOfSupersededLoad() {
+        // Given a load that is still in flight when the user refreshes the list
+        mNotesPresenter.loadNotes(false);
+        verify(mNotesRepository).getNotesPage(any(PageRequest.class), any(CachePolicy.class),
+                mLoadNotesPageCallbackCaptor.capture());
+        LoadNotesPageCallback staleCallback = mLoadNotesPageCallbackCaptor.getValue();
+        mNotesPresenter.loadNotes(true);
+        verify(mNotesRepository).syncNotes(mSyncNotesCallbackCaptor.capture());
+        mSyncNotesCallbackCaptor.getValue().onNotesSynced();
+        verify(mNotesRepository, times(2)).getNotesPage(any(PageRequest.class),
+                any(CachePolicy.class), mLoadNotesPageCallbackCaptor.capture());
+        LoadNotesPageCallback currentCallback = mLoadNotesPageCallbackCaptor.getValue();
+
+        // When the fresh page arrives before the stale one
+        currentCallback.onNotesPageLoaded(new NotesPage(NOTES, null));
+        staleCallback.onNotesPageLoaded(new NotesPage(EMPTY_NOTES, null));
+
+        // Then the stale page doesn't replace the fresh one
+        verify(mNotesView).showNotes(NOTES);
+        verify(mNotesView, never()).showNotes(EMPTY_NOTES);
+    }
+
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+import com.example.android.testing.notes.data.NoteSnapshot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link ListDiff}.
+ */
+public class ListDiffTest {
+
+    private static final Function<NoteSnapshot, String> NOTE_ID =
+            new Function<NoteSnapshot, String>() {
+                @Override
+                public String apply(NoteSnapshot note) {
+                    return note.getId();
+                }
+            };
+
+    /**
+     * Stands in for rows that have to be bound again.
+     */
+    private static final Object REBOUND = new Object();
+
+    @Test
+    public void calculate_movesOnlyItemsOutOfOrder() {
+        // Given a list where the first item moved to the end
+        List<NoteSnapshot> oldList = notes("a", "b", "c", "d");
+        List<NoteSnapshot> newList = notes("b", "c", "d", "a");
+
+        // When the lists are compared
+        ListDiff diff = ListDiff.calculate(oldList, newList, NOTE_ID);
+
+        // Then only that item is moved
+        assertThat(diff.getOperationCount(), is(1));
+        assertThat(apply(diff, oldList, newList), is(true));
+    }
+
+    @Test
+    public void calculate_mergesNeighbouringInsertsAndRemovals() {
+        // Given a list where two items next to each other were replaced
+        List<NoteSnapshot> oldList = notes("a", "b", "c", "d");
+        List<NoteSnapshot> newList = notes("a", "x", "y", "d");
+
+        // When the lists are compared
+        ListDiff diff = ListDiff.calculate(oldList, newList, NOTE_ID);
+
+        // Then there is one removal and one insert of two items each
+        assertThat(diff.toString(), is("ListDiff{[1, 1, 2, 0, 1, 2]}"));
+        assertThat(apply(diff, oldList, newList), is(true));
+    }
+
+    @Test
+    public void calculate_reportsChangedContents() {
+        // Given a list where the description of an item changed
+        List<NoteSnapshot> oldList = notes("a", "b");
+        List<NoteSnapshot> newList = Lists.newArrayList(oldList.get(0),
+                new NoteSnapshot("b", "Title", "Updated", null, 1, 2));
+
+        // When the lists are compared
+        ListDiff diff = ListDiff.calculate(oldList, newList, NOTE_ID);
+
+        // Then the item is reported as changed in place
+        assertThat(diff.getOperationCount(), is(1));
+        assertThat(apply(diff, oldList, newList), is(true));
+    }
+
+    @Test
+    public void calculate_returnsNullForDuplicateKeys() {
+        // When a list uses a key twice
+        ListDiff diff = ListDiff.calculate(notes("a"), notes("a", "a"), NOTE_ID);
+
+        // Then there is no diff and the whole list has to be replaced
+        assertThat(diff, is(nullValue()));
+    }
+
+    @Test
+    public void calculate_returnsNullForListsOverMaxSize() {
+        // When a list is larger than the limit
+        List<NoteSnapshot> largeList = new ArrayList<>(ListDiff.MAX_SIZE + 1);
+        for (int i = 0; i <= ListDiff.MAX_SIZE; i++) {
+            largeList.add(note(String.valueOf(i)));
+        }
+        ListDiff diff = ListDiff.calculate(notes("a"), largeList, NOTE_ID);
+
+        // Then there is no diff and the whole list has to be replaced
+        assertThat(diff, is(nullValue()));
+    }
+
+    @Test
+    public void calculate_turnsRandomListsIntoEachOther() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            // Given a list with random removals, inserts, moves, changes and notes without id
+            List<NoteSnapshot> oldList = new ArrayList<>();
+            for (int i = 0; i < random.nextInt(40); i++) {
+                oldList.add(random.nextInt(10) == 0 ? note(null) : note("old" + i));
+            }
+            List<NoteSnapshot> newList = new ArrayList<>();
+            for (NoteSnapshot note : oldList) {
+                int change = random.nextInt(5);
+                if (change == 0) {
+                    continue;
+                } else if (change == 1) {
+                    newList.add(new NoteSnapshot(note.getId(), "Title", "Updated", null, 1, 2));
+                } else {
+                    newList.add(note);
+                }
+            }
+            for (int i = 0; i < random.nextInt(10); i++) {
+                newList.add(random.nextInt(newList.size() + 1), note("new" + i));
+            }
+            for (int i = 0; i < random.nextInt(4) && !newList.isEmpty(); i++) {
+                newList.add(random.nextInt(newList.size()),
+                        newList.remove(random.nextInt(newList.size())));
+            }
+
+            // When the lists are compared
+            ListDiff diff = ListDiff.calculate(oldList, newList, NOTE_ID);
+
+            // Then applying the operations to the old list results in the new one
+            assertThat(oldList + " -> " + newList, apply(diff, oldList, newList), is(true));
+        }
+    }
+
+    /**
+     * Applies {@code diff} to a copy of {@code oldList} and returns whether every row ends up
+     * showing the item of {@code newList} at its position.
+     */
+    private static boolean apply(ListDiff diff, List<NoteSnapshot> oldList,
+                                 final List<NoteSnapshot> newList) {
+        final List<Object> rows = new ArrayList<Object>(oldList);
+        diff.dispatchTo(new ListDiff.Callback() {
+            @Override
+            public void onInserted(int position, int count) {
+                rows.addAll(position, Collections.nCopies(count, REBOUND));
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                rows.subList(position, position + count).clear();
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                rows.add(toPosition, rows.remove(fromPosition));
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+                for (int i = position; i < position + count; i++) {
+                    rows.set(i, REBOUND);
+                }
+            }
+        });
+        if (rows.size() != newList.size()) {
+            return false;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i) != REBOUND && !rows.get(i).equals(newList.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<NoteSnapshot> notes(String... ids) {
+        List<NoteSnapshot> notes = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            notes.add(note(id));
+        }
+        return notes;
+    }
+
+    private static NoteSnapshot note(String id) {
+        return new NoteSnapshot(id, "Title", "Description", null, 1, 1);
+    }
+}
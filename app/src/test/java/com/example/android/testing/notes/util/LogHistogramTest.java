@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link LogHistogram}
+ */
+public class LogHistogramTest {
+
+    @Test
+    public void snapshot_ofEmptyHistogramIsZero() {
+        LogHistogram.Snapshot snapshot = new LogHistogram().snapshot();
+
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getP99(), is(0L));
+        assertThat(snapshot.getMax(), is(0L));
+    }
+
+    @Test
+    public void getValueAtPercentile_smallValuesAreExact() {
+        // Given the values 1 to 5
+        LogHistogram histogram = new LogHistogram();
+        for (int value = 1; value <= 5; value++) {
+            histogram.record(value);
+        }
+
+        // Then the percentiles are exact
+        LogHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(5L));
+        assertThat(snapshot.getP50(), is(3L));
+        assertThat(snapshot.getValueAtPercentile(80), is(4L));
+        assertThat(snapshot.getP99(), is(5L));
+        assertThat(snapshot.getMax(), is(5L));
+    }
+
+    @Test
+    public void getValueAtPercentile_largeValuesAreWithinBucketPrecision() {
+        // Given uniformly spread latencies of up to a second, in nanos
+        LogHistogram histogram = new LogHistogram();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            histogram.record((long) (random.nextDouble() * 1000000000L));
+        }
+
+        // Then the percentiles are within an eighth of the exact ones
+        LogHistogram.Snapshot snapshot = histogram.snapshot();
+        assertWithinPrecision(snapshot.getP50(), 500000000L);
+        assertWithinPrecision(snapshot.getP95(), 950000000L);
+        assertWithinPrecision(snapshot.getP99(), 990000000L);
+        assertThat(snapshot.getMax(), lessThan(1000000000L));
+    }
+
+    @Test
+    public void getValueAtPercentile_isWithinOnePercentOfExactValue() {
+        // Given latencies spread over several orders of magnitude
+        LogHistogram histogram = new LogHistogram();
+        Random random = new Random(7);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 25);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        // Then every percentile is at most 1/2^SUB_BUCKET_BITS above the exact one
+        LogHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double percentile : new double[] {50, 90, 99, 99.9, 99.99}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = snapshot.getValueAtPercentile(percentile);
+            assertThat(actual, greaterThanOrEqualTo(exact));
+            assertThat((double) (actual - exact),
+                    lessThanOrEqualTo(exact / (double) (1 << LogHistogram.SUB_BUCKET_BITS)));
+            assertThat(actual - exact, lessThanOrEqualTo(exact / 100));
+        }
+        assertThat(snapshot.getP999(), is(snapshot.getValueAtPercentile(99.9)));
+    }
+
+    @Test
+    public void bucketOf_coversEveryLong() {
+        for (long value : new long[] {0, 7, 8, 9, 1000, Integer.MAX_VALUE, Long.MAX_VALUE}) {
+            int bucket = LogHistogram.bucketOf(value);
+            assertThat(bucket, lessThan(LogHistogram.BUCKET_COUNT));
+            assertThat(value, lessThanOrEqualTo(LogHistogram.highestValueIn(bucket)));
+        }
+        assertThat(LogHistogram.highestValueIn(LogHistogram.bucketOf(Long.MAX_VALUE)),
+                is(Long.MAX_VALUE));
+    }
+
+    private static void assertWithinPrecision(long actual, long expected) {
+        assertThat(Math.abs(actual - expected), lessThan(expected / 8));
+    }
+}
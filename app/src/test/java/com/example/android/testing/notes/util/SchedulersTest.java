@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the schedulers returned by {@link Schedulers}.
+ */
+public class SchedulersTest {
+
+    @Test
+    public void immediate_runsDelayedTaskRightAwayAndMovesClock() {
+        // Given immediate schedulers
+        Schedulers schedulers = Schedulers.immediate();
+        final List<String> runTasks = new ArrayList<>();
+        long start = schedulers.main().now();
+
+        // When a task is delayed
+        schedulers.main().executeDelayed(TaskScheduler.Priority.NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                runTasks.add("delayed");
+            }
+        }, 1000);
+
+        // Then it has run and the clock of all schedulers moved past its delay
+        assertThat(runTasks, contains("delayed"));
+        assertThat(schedulers.main().now() - start, greaterThanOrEqualTo(1000L));
+        assertThat(schedulers.io().now() - start, greaterThanOrEqualTo(1000L));
+    }
+}
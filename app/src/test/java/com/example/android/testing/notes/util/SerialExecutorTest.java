@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link SerialExecutor}.
+ */
+public class SerialExecutorTest {
+
+    private VirtualTimeScheduler mScheduler;
+
+    private SerialExecutor mExecutor;
+
+    private List<String> mRunTasks;
+
+    @Before
+    public void setupExecutor() {
+        mScheduler = new VirtualTimeScheduler();
+        mExecutor = new SerialExecutor(mScheduler, TaskScheduler.Priority.LOW);
+        mRunTasks = new ArrayList<>();
+    }
+
+    @Test
+    public void execute_runsTasksOneAfterAnotherInOrder() {
+        // Given tasks added to the executor, one of which adds another task
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRunTasks.add("first");
+                mExecutor.execute(task("added"));
+            }
+        });
+        mExecutor.execute(task("second"));
+
+        // When the scheduler runs
+        mScheduler.runUntilIdle();
+
+        // Then the tasks ran in the order they were added, on a single task of the scheduler
+        assertThat(mRunTasks, contains("first", "second", "added"));
+        assertThat(mScheduler.getPendingTaskCount(), is(0));
+    }
+
+    @Test
+    public void execute_keepsRunningTasksAfterFailedTask() {
+        // Given a task that fails followed by another task
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failed");
+            }
+        });
+        mExecutor.execute(task("next"));
+
+        // When the scheduler runs
+        IllegalStateException failure = null;
+        try {
+            mScheduler.runUntilIdle();
+        } catch (IllegalStateException e) {
+            failure = e;
+        }
+        mScheduler.runUntilIdle();
+
+        // Then the failure is passed on and the next task still runs
+        assertThat(failure, is(notNullValue()));
+        assertThat(mRunTasks, contains("next"));
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunTasks.add(name);
+            }
+        };
+    }
+}
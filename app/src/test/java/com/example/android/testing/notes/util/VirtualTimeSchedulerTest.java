@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for the implementation of {@link VirtualTimeScheduler}.
+ */
+public class VirtualTimeSchedulerTest {
+
+    private VirtualTimeScheduler mScheduler;
+
+    private List<String> mRunTasks;
+
+    @Before
+    public void setupScheduler() {
+        mScheduler = new VirtualTimeScheduler();
+        mRunTasks = new ArrayList<>();
+    }
+
+    @Test
+    public void runUntilIdle_runsDueTasksByPriorityThenInOrder() {
+        // Given tasks of different priorities
+        mScheduler.execute(TaskScheduler.Priority.LOW, task("low"));
+        mScheduler.execute(task("first"));
+        mScheduler.execute(TaskScheduler.Priority.HIGH, task("high"));
+        mScheduler.execute(task("second"));
+
+        // When the due tasks are run
+        mScheduler.runUntilIdle();
+
+        // Then they run by priority, tasks of the same priority in the order they were added
+        assertThat(mRunTasks, contains("high", "first", "second", "low"));
+        assertThat(mScheduler.getPendingTaskCount(), is(0));
+    }
+
+    @Test
+    public void runUntilIdle_doesNotRunDelayedTasks() {
+        // Given a delayed task
+        mScheduler.executeDelayed(TaskScheduler.Priority.HIGH, task("delayed"), 10);
+
+        // When the due tasks are run
+        mScheduler.runUntilIdle();
+
+        // Then the delayed task is still waiting
+        assertThat(mRunTasks, is(empty()));
+        assertThat(mScheduler.getPendingTaskCount(), is(1));
+    }
+
+    @Test
+    public void advanceBy_doesNotRunCancelledTasks() {
+        // Given a delayed task that is cancelled
+        mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, task("cancelled"), 10).cancel();
+
+        // When its delay passes
+        mScheduler.advanceBy(10);
+
+        // Then it doesn't run
+        assertThat(mRunTasks, is(empty()));
+        assertThat(mScheduler.getPendingTaskCount(), is(0));
+    }
+
+    @Test
+    public void advanceBy_runsTasksInTimeOrderWithTheClockAtTheirDueTime() {
+        // Given delayed tasks, one of which adds another task when it runs
+        final List<Long> runTimes = new ArrayList<>();
+        mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                runTimes.add(mScheduler.now());
+                mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, task("chained"), 5);
+            }
+        }, 20);
+        mScheduler.executeDelayed(TaskScheduler.Priority.LOW, task("early"), 10);
+        mScheduler.executeDelayed(TaskScheduler.Priority.NORMAL, task("late"), 100);
+
+        // When the clock is moved forward
+        mScheduler.advanceBy(50);
+
+        // Then the tasks that became due ran in order with the clock set to their due time
+        assertThat(mRunTasks, contains("early", "chained"));
+        assertThat(runTimes, contains(20L));
+        assertThat(mScheduler.now(), is(50L));
+        assertThat(mScheduler.getPendingTaskCount(), is(1));
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunTasks.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.data.NotesServiceApi.Method;
+import com.example.android.testing.notes.data.NotesServiceApi.NotesServiceCallback;
+import com.example.android.testing.notes.notes.NotesContract;
+import com.example.android.testing.notes.notes.NotesPresenter;
+import com.example.android.testing.notes.util.Schedulers;
+import com.example.android.testing.notes.util.VirtualTimeScheduler;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the implementation of {@link FakeNotesServiceApiImpl}
+ */
+public class FakeNotesServiceApiImplTest {
+
+    private static final NoteSnapshot NOTE = new NoteSnapshot("1", "Title", "Description", null,
+            1, 1);
+
+    @Mock
+    private NotesContract.View mNotesView;
+
+    private VirtualTimeScheduler mScheduler;
+
+    private NetworkBehavior mBehavior;
+
+    private FakeNotesServiceApiImpl mServiceApi;
+
+    @Before
+    public void setupFakeNotesServiceApi() {
+        MockitoAnnotations.initMocks(this);
+        FakeNotesServiceApiImpl.clearNotes();
+        FakeNotesServiceApiImpl.addNotes(NOTE);
+        mScheduler = new VirtualTimeScheduler();
+        mBehavior = new NetworkBehavior();
+        mServiceApi = new FakeNotesServiceApiImpl(mScheduler, mBehavior, 1);
+    }
+
+    @After
+    public void clearNotes() {
+        FakeNotesServiceApiImpl.clearNotes();
+    }
+
+    @Test
+    public void getNote_answersOnSchedulerAfterLatency() {
+        // Given a service API that takes 100 ms to load a note
+        mBehavior.setLatency(Method.GET_NOTE, NetworkBehavior.Latency.fixed(100));
+        Answer<NoteSnapshot> answer = new Answer<>();
+
+        // When a note is loaded
+        mServiceApi.getNote(NOTE.getId(), answer);
+
+        // Then it only arrives after 100 ms
+        mScheduler.advanceBy(99);
+        assertThat(answer.mAnswers.size(), is(0));
+        mScheduler.advanceBy(1);
+        assertThat(answer.mAnswers, contains(NOTE));
+    }
+
+    @Test
+    public void getNote_failedCallReportsErrorAfterLatency() {
+        // Given a service API that fails every call after 100 ms
+        mBehavior.setFailurePercent(100);
+        mBehavior.setLatency(Method.GET_NOTE, NetworkBehavior.Latency.fixed(100));
+        Answer<NoteSnapshot> answer = new Answer<>();
+
+        // When a note is loaded
+        mServiceApi.getNote(NOTE.getId(), answer);
+        mScheduler.advanceBy(100);
+
+        // Then the error arrives instead of the note
+        assertThat(answer.mAnswers.size(), is(0));
+        assertThat(answer.mErrors.size(), is(1));
+        assertThat(mServiceApi.getFailedCallCount(), is(1L));
+    }
+
+    @Test
+    public void getNote_immediateSchedulerAnswersRightAwayDespiteLatencyAndRate() {
+        // Given a service API on the calling thread that is slow and takes one call per second
+        mBehavior.setLatency(Method.GET_NOTE, NetworkBehavior.Latency.fixed(100));
+        mBehavior.setMaxCallsPerSecond(1);
+        mServiceApi = new FakeNotesServiceApiImpl(Schedulers.immediate().main(), mBehavior, 1);
+        Answer<NoteSnapshot> answer = new Answer<>();
+
+        // When notes are loaded
+        mServiceApi.getNote(NOTE.getId(), answer);
+        mServiceApi.getNote(NOTE.getId(), answer);
+
+        // Then both are answered without waiting
+        assertThat(answer.mAnswers, contains(NOTE, NOTE));
+    }
+
+    @Test
+    public void getNote_callsBeyondRateWaitForTheirTurn() {
+        // Given a service API that takes two calls per second
+        mBehavior.setMaxCallsPerSecond(2);
+        Answer<NoteSnapshot> answer = new Answer<>();
+
+        // When three notes are loaded at once
+        mServiceApi.getNote(NOTE.getId(), answer);
+        mServiceApi.getNote(NOTE.getId(), answer);
+        mServiceApi.getNote(NOTE.getId(), answer);
+
+        // Then they are answered half a second apart
+        mScheduler.runUntilIdle();
+        assertThat(answer.mAnswers.size(), is(1));
+        mScheduler.advanceBy(500);
+        assertThat(answer.mAnswers.size(), is(2));
+        mScheduler.advanceBy(500);
+        assertThat(answer.mAnswers.size(), is(3));
+    }
+
+    @Test
+    public void writeMutation_appliesEachIdempotencyKeyOnce() {
+        // Given a create of a new note
+        NoteMutation create = NoteMutation.save(0, NoteSnapshot.create("New", null, null));
+        Answer<NoteSnapshot> answer = new Answer<>();
+
+        // When it is written twice, as after a lost answer
+        mServiceApi.writeMutation(create, answer);
+        mServiceApi.writeMutation(create, answer);
+        mScheduler.runUntilIdle();
+
+        // Then only one note is created and both writes answer with it
+        assertThat(answer.mAnswers.size(), is(2));
+        assertThat(answer.mAnswers.get(1), is(answer.mAnswers.get(0)));
+        Answer<List<NoteSnapshot>> allNotes = new Answer<>();
+        mServiceApi.getAllNotes(allNotes);
+        mScheduler.runUntilIdle();
+        assertThat(allNotes.mAnswers.get(0).size(), is(2));
+    }
+
+    @Test
+    public void deleteNote_takesEffectAfterLatency() {
+        // Given a service API that takes 200 ms for every call
+        mBehavior.setLatency(NetworkBehavior.Latency.fixed(200));
+
+        // When a note is deleted and loaded right away
+        mServiceApi.deleteNote(NOTE);
+        Answer<NoteSnapshot> answer = new Answer<>();
+        mServiceApi.getNote(NOTE.getId(), answer);
+        mScheduler.advanceBy(200);
+
+        // Then the note is gone by the time the answer arrives
+        assertThat(answer.mAnswers.size(), is(1));
+        assertThat(answer.mAnswers.get(0), is(nullValue()));
+    }
+
+    @Test
+    public void notesPresenter_showsNotesOnceSlowNetworkAnswers() {
+        // Given a presenter on top of a network that takes about 300 ms per call
+        mBehavior.setLatency(NetworkBehavior.Latency.logNormal(300, 0.5));
+        InMemoryNotesRepository repository = new InMemoryNotesRepository(mServiceApi,
+                new NoteCache(), null, NotesChangeDispatcher.IMMEDIATE,
+                Schedulers.of(mScheduler));
+        NotesPresenter presenter = new NotesPresenter(repository, mNotesView,
+                Schedulers.of(mScheduler));
+
+        // When the notes are loaded
+        presenter.loadNotes(false);
+
+        // Then the progress indicator is shown until the notes arrive
+        verify(mNotesView).setProgressIndicator(true);
+        verify(mNotesView, never()).showNotes(anyListOf(NoteSnapshot.class));
+        mScheduler.advanceBy(10000);
+        verify(mNotesView).showNotes(Collections.singletonList(NOTE));
+        verify(mNotesView).setProgressIndicator(false);
+    }
+
+    private static class Answer<T> implements NotesServiceCallback<T> {
+
+        final List<T> mAnswers = new ArrayList<>();
+
+        final List<Exception> mErrors = new ArrayList<>();
+
+        @Override
+        public void onLoaded(T answer) {
+            mAnswers.add(answer);
+        }
+
+        @Override
+        public void onError(@NonNull Exception error) {
+            mErrors.add(error);
+        }
+    }
+}
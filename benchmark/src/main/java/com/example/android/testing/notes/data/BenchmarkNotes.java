@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the same notes for the same count on every run, so results can be compared.
+ */
+final class BenchmarkNotes {
+
+    private BenchmarkNotes() {
+    }
+
+    static List<NoteSnapshot> create(int count) {
+        List<NoteSnapshot> notes = new ArrayList<>(count);
+        for (NoteSnapshot note : NotesServiceApiEndpoint.generateNotes(count, count)) {
+            notes.add(note);
+        }
+        return notes;
+    }
+}
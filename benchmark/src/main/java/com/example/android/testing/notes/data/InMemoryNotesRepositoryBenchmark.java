@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.example.android.testing.notes.util.Schedulers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading, reading and saving notes through {@link InMemoryNotesRepository} with a service API
+ * that answers right away.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InMemoryNotesRepositoryBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<NoteSnapshot> mNotes;
+
+    private SynchronousNotesServiceApi mServiceApi;
+
+    /**
+     * A repository that has loaded all notes and the first two pages.
+     */
+    private InMemoryNotesRepository mLoadedRepository;
+
+    private final Results mResults = new Results();
+
+    private int mNextNote;
+
+    @Setup
+    public void setUp() {
+        mNotes = BenchmarkNotes.create(size);
+        mServiceApi = new SynchronousNotesServiceApi(mNotes);
+        mLoadedRepository = newRepository();
+        mLoadedRepository.getNotes(mResults);
+        // A page is only served from the cache once the note after it was loaded too.
+        mLoadedRepository.getNotesPage(PageRequest.firstPage(PageRequest.DEFAULT_PAGE_SIZE),
+                mResults);
+        if (mResults.mPage.getNextPage() != null) {
+            mLoadedRepository.getNotesPage(mResults.mPage.getNextPage(), mResults);
+        }
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> loadAllNotes() {
+        newRepository().getNotes(mResults);
+        return mResults.mNotes;
+    }
+
+    @Benchmark
+    public NotesPage loadFirstPage() {
+        newRepository().getNotesPage(PageRequest.firstPage(PageRequest.DEFAULT_PAGE_SIZE),
+                mResults);
+        return mResults.mPage;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> getLoadedNotes() {
+        mLoadedRepository.getNotes(mResults);
+        return mResults.mNotes;
+    }
+
+    @Benchmark
+    public NotesPage getCachedFirstPage() {
+        mLoadedRepository.getNotesPage(PageRequest.firstPage(PageRequest.DEFAULT_PAGE_SIZE),
+                CachePolicy.CACHE_ONLY, mResults);
+        return mResults.mPage;
+    }
+
+    @Benchmark
+    public NoteSnapshot getCachedNote() {
+        mLoadedRepository.getNote(nextNote().getId(), mResults);
+        return mResults.mNote;
+    }
+
+    @Benchmark
+    public void updateNote() {
+        NoteSnapshot note = nextNote();
+        mLoadedRepository.saveNote(new NoteSnapshot(note.getId(), note.getTitle(),
+                note.getDescription(), note.getImageUrl(), note.getCreatedAt(),
+                note.getUpdatedAt() + 1));
+    }
+
+    @Benchmark
+    public boolean syncWithoutChanges() {
+        mLoadedRepository.syncNotes(mResults);
+        return mResults.mSynced;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> search() {
+        mLoadedRepository.search("espresso testing", 50, mResults);
+        return mResults.mNotes;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> filter() {
+        mLoadedRepository.filter("rep", NotePrefixIndex.DEFAULT_TOP_K, mResults);
+        return mResults.mNotes;
+    }
+
+    private InMemoryNotesRepository newRepository() {
+        return new InMemoryNotesRepository(mServiceApi, new NoteCache(), null,
+                NotesChangeDispatcher.IMMEDIATE, Schedulers.immediate());
+    }
+
+    private NoteSnapshot nextNote() {
+        mNextNote = (mNextNote + 1) % mNotes.size();
+        return mNotes.get(mNextNote);
+    }
+
+    /**
+     * Keeps the last result of every kind of call.
+     */
+    private static class Results implements NotesRepository.LoadNotesCallback,
+            NotesRepository.LoadNotesPageCallback, NotesRepository.GetNoteCallback,
+            NotesRepository.SyncNotesCallback, NotesRepository.SearchNotesCallback {
+
+        List<NoteSnapshot> mNotes;
+
+        NotesPage mPage;
+
+        NoteSnapshot mNote;
+
+        boolean mSynced;
+
+        @Override
+        public void onNotesLoaded(List<NoteSnapshot> notes) {
+            mNotes = notes;
+        }
+
+        @Override
+        public void onNotesPageLoaded(NotesPage page) {
+            mPage = page;
+        }
+
+        @Override
+        public void onNoteLoaded(NoteSnapshot note) {
+            mNote = note;
+        }
+
+        @Override
+        public void onNotesSynced() {
+            mSynced = !mSynced;
+        }
+
+        @Override
+        public void onNotesFound(List<NoteSnapshot> notes) {
+            mNotes = notes;
+        }
+
+        @Override
+        public void onDataNotAvailable() {
+            throw new IllegalStateException("The synchronous service API never fails");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.base.Ticker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and querying the caches and indexes the repository keeps its notes in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoteIndexBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<NoteSnapshot> mNotes;
+
+    private NoteCache mNoteCache;
+
+    private NoteSearchIndex mSearchIndex;
+
+    private NotePrefixIndex mPrefixIndex;
+
+    private NoteTimeIndex mCreatedAtIndex;
+
+    private long mMiddleCreatedAt;
+
+    private int mNextNote;
+
+    @Setup
+    public void setUp() {
+        mNotes = BenchmarkNotes.create(size);
+        mNoteCache = newNoteCache();
+        mSearchIndex = new NoteSearchIndex();
+        mPrefixIndex = new NotePrefixIndex();
+        mCreatedAtIndex = new NoteTimeIndex(NoteTimeIndex.Timestamp.CREATED_AT);
+        for (NoteSnapshot note : mNotes) {
+            mNoteCache.put(note);
+            mSearchIndex.put(note);
+            mPrefixIndex.put(note);
+            mCreatedAtIndex.put(note);
+        }
+        mMiddleCreatedAt = mNotes.get(mNotes.size() / 2).getCreatedAt();
+    }
+
+    @Benchmark
+    public NoteCache fillNoteCache() {
+        NoteCache noteCache = newNoteCache();
+        for (NoteSnapshot note : mNotes) {
+            noteCache.put(note);
+        }
+        return noteCache;
+    }
+
+    @Benchmark
+    public NoteSnapshot getCachedNote() {
+        return mNoteCache.get(nextNote().getId());
+    }
+
+    @Benchmark
+    public NoteSearchIndex buildSearchIndex() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        for (NoteSnapshot note : mNotes) {
+            index.put(note);
+        }
+        return index;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> searchOneWord() {
+        return mSearchIndex.search("repository", 50);
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> searchTwoWords() {
+        return mSearchIndex.search("espresso testing", 50);
+    }
+
+    @Benchmark
+    public NotePrefixIndex buildPrefixIndex() {
+        NotePrefixIndex index = new NotePrefixIndex();
+        for (NoteSnapshot note : mNotes) {
+            index.put(note);
+        }
+        return index;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> findByPrefix() {
+        return mPrefixIndex.find("rep", NotePrefixIndex.DEFAULT_TOP_K);
+    }
+
+    @Benchmark
+    public NoteTimeIndex buildTimeIndex() {
+        NoteTimeIndex index = new NoteTimeIndex(NoteTimeIndex.Timestamp.CREATED_AT);
+        for (NoteSnapshot note : mNotes) {
+            index.put(note);
+        }
+        return index;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> newestNotes() {
+        return mCreatedAtIndex.newest(50);
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> notesCreatedInSecondHalf() {
+        return mCreatedAtIndex.between(mMiddleCreatedAt, Long.MAX_VALUE, true);
+    }
+
+    private NoteCache newNoteCache() {
+        // Large enough for every note, entries expire long after the benchmark.
+        return new NoteCache(Math.max(size, NoteCache.DEFAULT_CAPACITY), 1, TimeUnit.DAYS,
+                Ticker.systemTicker());
+    }
+
+    private NoteSnapshot nextNote() {
+        mNextNote = (mNextNote + 1) % mNotes.size();
+        return mNotes.get(mNextNote);
+    }
+}
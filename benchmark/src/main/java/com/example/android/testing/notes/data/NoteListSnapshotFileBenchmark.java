@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the list snapshot the app starts from, without the file system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoteListSnapshotFileBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<NoteSnapshot> mNotes;
+
+    private byte[] mEncodedNotes;
+
+    @Setup
+    public void setUp() {
+        mNotes = BenchmarkNotes.create(size);
+        mEncodedNotes = NoteListSnapshotFile.encode(mNotes, true);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return NoteListSnapshotFile.encode(mNotes, true);
+    }
+
+    @Benchmark
+    public NotesPage decode() throws IOException {
+        return NoteListSnapshotFile.decode(mEncodedNotes);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import com.google.common.collect.ImmutableList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the fields of {@link NoteSnapshot}s and building the lists they are passed around in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoteSnapshotBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int size;
+
+    private List<NoteSnapshot> mNotes;
+
+    private List<NoteSnapshot> mShuffledNotes;
+
+    @Setup
+    public void setUp() {
+        mNotes = BenchmarkNotes.create(size);
+        mShuffledNotes = new ArrayList<>(mNotes);
+        Collections.reverse(mShuffledNotes);
+    }
+
+    @Benchmark
+    public long readFields() {
+        long sum = 0;
+        for (NoteSnapshot note : mNotes) {
+            sum += note.getId().length() + note.getTitle().length()
+                    + note.getDescription().length() + note.getCreatedAt()
+                    + note.getUpdatedAt();
+            if (note.getImageUrl() != null) {
+                sum++;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> copyToArrayList() {
+        return new ArrayList<>(mNotes);
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> addToArrayList() {
+        List<NoteSnapshot> notes = new ArrayList<>();
+        for (NoteSnapshot note : mNotes) {
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> copyToImmutableList() {
+        return ImmutableList.copyOf(mNotes);
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> sortInKeysetOrder() {
+        List<NoteSnapshot> notes = new ArrayList<>(mShuffledNotes);
+        Collections.sort(notes, PageRequest.KEYSET_ORDER);
+        return notes;
+    }
+
+    @Benchmark
+    public List<NoteSnapshot> stampWithBackendState() {
+        List<NoteSnapshot> notes = new ArrayList<>(mNotes.size());
+        for (NoteSnapshot note : mNotes) {
+            notes.add(note.withBackendState(note.getId(), note.getCreatedAt(),
+                    note.getUpdatedAt() + 1));
+        }
+        return notes;
+    }
+}
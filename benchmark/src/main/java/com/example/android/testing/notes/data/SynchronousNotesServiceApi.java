@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.testing.notes.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers every call right away from a fixed list of notes, so benchmarks only measure the code
+ * in front of the service API. Writes are ignored, mutations succeed with their own note.
+ */
+final class SynchronousNotesServiceApi implements NotesServiceApi {
+
+    private final List<NoteSnapshot> mNotes;
+
+    private final Map<String, NoteSnapshot> mNotesById = new HashMap<>();
+
+    SynchronousNotesServiceApi(List<NoteSnapshot> notes) {
+        mNotes = new ArrayList<>(notes);
+        Collections.sort(mNotes, PageRequest.KEYSET_ORDER);
+        for (NoteSnapshot note : notes) {
+            mNotesById.put(note.getId(), note);
+        }
+    }
+
+    @Override
+    public void getAllNotes(NotesServiceCallback<List<NoteSnapshot>> callback) {
+        callback.onLoaded(new ArrayList<>(mNotes));
+    }
+
+    @Override
+    public void getNotesPage(PageRequest request, NotesServiceCallback<NotesPage> callback) {
+        int start = firstIndexAfterCursor(request);
+        int end = Math.min(mNotes.size(), start + request.getPageSize() + 1);
+        callback.onLoaded(NotesPage.fromFetched(request,
+                new ArrayList<>(mNotes.subList(start, end))));
+    }
+
+    @Override
+    public void getNotesChangedSince(long updatedAfter,
+                                     NotesServiceCallback<NotesDelta> callback) {
+        callback.onLoaded(new NotesDelta(Collections.<NoteSnapshot>emptyList(),
+                Collections.<String>emptyList(), updatedAfter, false));
+    }
+
+    @Override
+    public void getNote(String noteId, NotesServiceCallback<NoteSnapshot> callback) {
+        callback.onLoaded(mNotesById.get(noteId));
+    }
+
+    @Override
+    public void saveNote(NoteSnapshot note) {
+    }
+
+    @Override
+    public void deleteNote(NoteSnapshot note) {
+    }
+
+    @Override
+    public void writeMutation(NoteMutation mutation,
+                              NotesServiceCallback<NoteSnapshot> callback) {
+        callback.onLoaded(mutation.getType() == NoteMutation.Type.DELETE
+                ? null : mutation.getNote());
+    }
+
+    @Override
+    public void writeMutations(List<NoteMutation> mutations,
+                               NotesServiceCallback<List<NoteSnapshot>> callback) {
+        List<NoteSnapshot> written = new ArrayList<>(mutations.size());
+        for (NoteMutation mutation : mutations) {
+            written.add(mutation.getType() == NoteMutation.Type.DELETE
+                    ? null : mutation.getNote());
+        }
+        callback.onLoaded(written);
+    }
+
+    private int firstIndexAfterCursor(PageRequest request) {
+        int low = 0;
+        int high = mNotes.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (request.isAfterCursor(mNotes.get(middle))) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+}